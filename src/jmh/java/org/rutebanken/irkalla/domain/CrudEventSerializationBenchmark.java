@@ -0,0 +1,86 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.domain;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wololo.geojson.Point;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare allocation per event when writing CrudEvents to JMS messages with a new ObjectMapper and an intermediate String
+ * per event (as previously done) against the shared writer. Run with -prof gc to see allocation rate (gc.alloc.rate.norm).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CrudEventSerializationBenchmark {
+
+    private CrudEvent event;
+
+    @Setup
+    public void setUp() {
+        event = CrudEvent.builder()
+                        .type(CrudEvent.EntityType.StopPlace)
+                        .entityClassifier("onstreetBus")
+                        .action(CrudEvent.Action.UPDATE)
+                        .changeType("NAME")
+                        .oldValue("Old name")
+                        .newValue("New name")
+                        .externalId("NSR:StopPlace:1")
+                        .version(2L)
+                        .name("New name")
+                        .comment("Renamed")
+                        .username("user")
+                        .geometry(new Point(new double[]{10.75, 59.91}))
+                        .location("Oslo, Oslo")
+                        .eventTime(Instant.now())
+                        .build();
+    }
+
+    @Benchmark
+    public byte[] newObjectMapperPerEvent() throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.registerModule(new JavaTimeModule());
+        StringWriter writer = new StringWriter();
+        mapper.writeValue(writer, event);
+        // Copied again when converted to JMS message
+        return writer.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] sharedWriter() {
+        return event.toBytes();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.apache.activemq.command.ActiveMQMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.rutebanken.irkalla.Constants.HEADER_NEXT_BATCH_URL;
+import static org.rutebanken.irkalla.Constants.HEADER_SYNC_OPERATION;
+import static org.rutebanken.irkalla.Constants.SYNC_OPERATION_DELTA;
+import static org.rutebanken.irkalla.Constants.SYNC_OPERATION_FULL;
+import static org.rutebanken.irkalla.Constants.SYNC_OPERATION_FULL_WITH_DELETE_UNUSED_FIRST;
+
+/**
+ * Sorting of a batch of sync messages, as done when aggregating messages from ChouetteStopPlaceSyncQueue.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SyncMsgComparatorBenchmark {
+
+    private static final int MESSAGES = 100;
+
+    private static final String[] OPERATIONS = {SYNC_OPERATION_DELTA, SYNC_OPERATION_FULL, SYNC_OPERATION_FULL_WITH_DELETE_UNUSED_FIRST};
+
+    private final SyncMsgComparator comparator = new SyncMsgComparator();
+
+    private List<ActiveMQMessage> messages;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(42);
+        messages = new ArrayList<>(MESSAGES);
+        for (int i = 0; i < MESSAGES; i++) {
+            ActiveMQMessage msg = new ActiveMQMessage();
+            msg.setProperty(HEADER_SYNC_OPERATION, OPERATIONS[random.nextInt(OPERATIONS.length)]);
+            if (random.nextBoolean()) {
+                msg.setProperty(HEADER_NEXT_BATCH_URL, "http://tiamat/services/stop_places/netex?page=" + i);
+            }
+            messages.add(msg);
+        }
+    }
+
+    @Benchmark
+    public List<ActiveMQMessage> sort() {
+        List<ActiveMQMessage> toBeSorted = new ArrayList<>(messages);
+        Collections.sort(toBeSorted, comparator);
+        return toBeSorted;
+    }
+}
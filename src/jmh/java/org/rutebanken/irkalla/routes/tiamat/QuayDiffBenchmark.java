@@ -0,0 +1,77 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.tiamat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.rutebanken.irkalla.domain.CrudAction;
+import org.rutebanken.irkalla.routes.tiamat.graphql.model.StopPlace;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Compare the previous list based quay diff (List.contains per quay) with the hash based diff in StopPlaceChange for large hubs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QuayDiffBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int quays;
+
+    private StopPlace current;
+
+    private StopPlace previous;
+
+    @Setup
+    public void setUp() {
+        current = StopPlaceFixtures.stopPlace("NSR:StopPlace:1", 2, quays);
+        previous = StopPlaceFixtures.previousVersion(current);
+    }
+
+    @Benchmark
+    public void listBasedDiff(Blackhole blackhole) {
+        List<String> currentQuayIds = current.safeGetQuays().stream().map(q -> q.id).collect(Collectors.toList());
+        List<String> previousVersionQuayIds = previous.safeGetQuays().stream().map(q -> q.id).collect(Collectors.toList());
+
+        blackhole.consume(currentQuayIds.stream().filter(q -> !previousVersionQuayIds.contains(q)).collect(Collectors.toList()));
+        blackhole.consume(previousVersionQuayIds.stream().filter(q -> !currentQuayIds.contains(q)).collect(Collectors.toList()));
+    }
+
+    /**
+     * Includes detection of renamed and moved quays, which the list based diff does not.
+     */
+    @Benchmark
+    public StopPlaceChange hashBasedDiff() {
+        return new StopPlaceChange(CrudAction.UPDATE, current, previous);
+    }
+}
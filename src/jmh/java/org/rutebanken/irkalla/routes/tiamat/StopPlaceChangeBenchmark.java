@@ -0,0 +1,62 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.tiamat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rutebanken.irkalla.domain.CrudAction;
+import org.rutebanken.irkalla.routes.tiamat.graphql.model.StopPlace;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Construction of StopPlaceChange for updates, including detection of update type, for stops with increasing number of quays.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StopPlaceChangeBenchmark {
+
+    @Param({"1", "10", "100", "500"})
+    public int quays;
+
+    private StopPlace current;
+
+    private StopPlace previous;
+
+    @Setup
+    public void setUp() {
+        current = StopPlaceFixtures.stopPlace("NSR:StopPlace:1", 2, quays);
+        previous = StopPlaceFixtures.previousVersion(current);
+    }
+
+    @Benchmark
+    public StopPlaceChange detectUpdateType() {
+        return new StopPlaceChange(CrudAction.UPDATE, current, previous);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.tiamat;
+
+import org.rutebanken.irkalla.routes.tiamat.graphql.model.GraphqlGeometry;
+import org.rutebanken.irkalla.routes.tiamat.graphql.model.Name;
+import org.rutebanken.irkalla.routes.tiamat.graphql.model.Quay;
+import org.rutebanken.irkalla.routes.tiamat.graphql.model.StopPlace;
+import org.rutebanken.irkalla.routes.tiamat.graphql.model.TopographicPlace;
+import org.rutebanken.irkalla.routes.tiamat.graphql.model.ValidBetween;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Realistic stop places for benchmarks.
+ */
+public class StopPlaceFixtures {
+
+    /**
+     * Stop place with given number of quays, fully populated as returned from Tiamat for current version.
+     */
+    public static StopPlace stopPlace(String id, long version, int quayCount) {
+        StopPlace stopPlace = new StopPlace();
+        stopPlace.id = id;
+        stopPlace.version = version;
+        stopPlace.name = new Name("Jernbanetorget");
+        stopPlace.stopPlaceType = "onstreetBus";
+        stopPlace.versionComment = "Updated by benchmark";
+        stopPlace.changedBy = "benchmark";
+        stopPlace.__typename = "StopPlace";
+        stopPlace.geometry = point(10.7506, 59.9114);
+
+        ValidBetween validBetween = new ValidBetween();
+        validBetween.fromDate = Instant.parse("2018-06-01T10:00:00Z");
+        stopPlace.validBetween = validBetween;
+
+        TopographicPlace county = new TopographicPlace();
+        county.name = new Name("Oslo");
+        county.topographicPlaceType = "county";
+        TopographicPlace municipality = new TopographicPlace();
+        municipality.name = new Name("Oslo");
+        municipality.topographicPlaceType = "municipality";
+        municipality.parentTopographicPlace = county;
+        stopPlace.topographicPlace = municipality;
+
+        stopPlace.quays = new ArrayList<>(quayCount);
+        for (int i = 0; i < quayCount; i++) {
+            stopPlace.quays.add(new Quay("NSR:Quay:" + i, new Name("Quay " + i), point(10.7506 + i * 0.0001, 59.9114 + i * 0.0001)));
+        }
+        return stopPlace;
+    }
+
+    /**
+     * Previous version of stop place with same quays, except that the last quay did not exist and one quay had a different
+     * name and position.
+     */
+    public static StopPlace previousVersion(StopPlace current) {
+        StopPlace previous = stopPlace(current.id, current.version - 1, Math.max(0, current.quays.size() - 1));
+        if (!previous.quays.isEmpty()) {
+            Quay changed = previous.quays.get(previous.quays.size() / 2);
+            changed.name = new Name("Old name");
+            changed.geometry = point(10.8, 59.95);
+        }
+        // Quays are not necessarily returned in same order
+        Collections.reverse(previous.quays);
+        return previous;
+    }
+
+    public static GraphqlGeometry point(double x, double y) {
+        GraphqlGeometry geometry = new GraphqlGeometry();
+        geometry.type = "Point";
+        geometry.coordinates = Collections.singletonList(Arrays.asList(x, y));
+        return geometry;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.tiamat.graphql;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rutebanken.irkalla.routes.tiamat.StopPlaceFixtures;
+import org.rutebanken.irkalla.routes.tiamat.graphql.model.StopPlace;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.rutebanken.irkalla.routes.tiamat.graphql.StopPlaceQuery.CURRENT_ALIAS;
+import static org.rutebanken.irkalla.routes.tiamat.graphql.StopPlaceQuery.PREVIOUS_ALIAS;
+
+/**
+ * Deserialization of GraphQL responses from Tiamat with current and previous version for a number of stop places.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StopPlaceBatchResponseBenchmark {
+
+    @Param({"1", "50"})
+    public int stopPlaces;
+
+    @Param({"4"})
+    public int quays;
+
+    // Configured like the mapper used by RestTemplate
+    private final ObjectMapper mapper = new ObjectMapper().registerModule(new JavaTimeModule());
+
+    private final ObjectReader reader = mapper.readerFor(StopPlaceBatchResponse.class);
+
+    private byte[] payload;
+
+    @Setup
+    public void setUp() throws IOException {
+        StopPlaceBatchResponse response = new StopPlaceBatchResponse();
+        response.data = new HashMap<>();
+        for (int i = 0; i < stopPlaces; i++) {
+            StopPlace current = StopPlaceFixtures.stopPlace("NSR:StopPlace:" + i, 2, quays);
+            StopPlace previous = StopPlaceFixtures.previousVersion(current);
+            // Annotated date pattern has no zone and cannot be used for writing instants
+            current.validBetween = null;
+            previous.validBetween = null;
+            response.data.put(CURRENT_ALIAS + i, Collections.singletonList(current));
+            response.data.put(PREVIOUS_ALIAS + i, Collections.singletonList(previous));
+        }
+        payload = mapper.writeValueAsBytes(response);
+    }
+
+    @Benchmark
+    public StopPlaceBatchResponse deserialize() throws IOException {
+        return reader.readValue(payload);
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.tiamat.mapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rutebanken.irkalla.domain.CrudAction;
+import org.rutebanken.irkalla.domain.CrudEvent;
+import org.rutebanken.irkalla.routes.tiamat.StopPlaceChange;
+import org.rutebanken.irkalla.routes.tiamat.StopPlaceFixtures;
+import org.rutebanken.irkalla.routes.tiamat.graphql.model.StopPlace;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StopPlaceChangedToEventBenchmark {
+
+    private final StopPlaceChangedToEvent mapper = new StopPlaceChangedToEvent();
+
+    private StopPlaceChange change;
+
+    private final Instant registeredTime = Instant.now();
+
+    @Setup
+    public void setUp() {
+        StopPlace current = StopPlaceFixtures.stopPlace("NSR:StopPlace:1", 2, 4);
+        change = new StopPlaceChange(CrudAction.UPDATE, current, StopPlaceFixtures.previousVersion(current));
+    }
+
+    @Benchmark
+    public CrudEvent toEvent() {
+        return mapper.toEvent(change, "correlationId", registeredTime);
+    }
+}
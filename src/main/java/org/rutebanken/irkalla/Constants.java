@@ -24,10 +24,25 @@ public class Constants {
     public static final String HEADER_SYNC_STATUS_TO = "RutebankenSyncStatusTo";
     public static final String HEADER_SYNC_OPERATION = "RutebankenSyncOperation";
     public static final String HEADER_NEXT_BATCH_URL = "RutebankenNextBatchURL";
+    public static final String HEADER_SYNC_BYTES_RECEIVED = "RutebankenSyncBytesReceived";
+    public static final String HEADER_SYNC_BYTES_UNCOMPRESSED = "RutebankenSyncBytesUncompressed";
+    public static final String HEADER_SYNC_BYTES_SENT = "RutebankenSyncBytesSent";
+    public static final String HEADER_SYNC_BYTES_SENT_UNCOMPRESSED = "RutebankenSyncBytesSentUncompressed";
+    public static final String HEADER_SYNC_MAX_PAGE_LATENCY = "RutebankenSyncMaxPageLatency";
+    public static final String HEADER_SYNC_MAX_PAGE_BYTES = "RutebankenSyncMaxPageBytes";
+    public static final String HEADER_SYNC_CHOUETTE_BUSY = "RutebankenSyncChouetteBusy";
+    public static final String HEADER_CHOUETTE_RETRY_ATTEMPT = "RutebankenChouetteRetryAttempt";
+    public static final String HEADER_SYNC_JOB_ID = "RutebankenSyncJobId";
+    public static final String HEADER_SYNC_JOB_PAGES_COMPLETED = "RutebankenSyncJobPagesCompleted";
+    public static final String HEADER_SYNC_PARTITION = "RutebankenSyncPartition";
+    public static final String HEADER_SYNC_UNFILTERED = "RutebankenSyncUnfiltered";
+    public static final String HEADER_CHANGELOG_ENQUEUED_TIME = "RutebankenChangelogEnqueuedTime";
+    public static final String HEADER_CORRELATION_ID = "RutebankenCorrelationId";
     public static final String SINGLETON_ROUTE_DEFINITION_GROUP_NAME = "IrkallaSingletonRouteDefinitionGroup";
     public static final String SYNC_OPERATION_DELTA="DELTA";
     public static final String SYNC_OPERATION_FULL="FULL";
     public static final String SYNC_OPERATION_FULL_WITH_DELETE_UNUSED_FIRST="DELETE_UNUSED";
+    public static final String SYNC_OPERATION_TARGETED="TARGETED";
 
     public static final String ET_CLIENT_ID_HEADER = "ET-Client-ID";
     public static final String ET_CLIENT_NAME_HEADER = "ET-Client-Name";
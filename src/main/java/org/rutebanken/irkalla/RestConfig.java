@@ -19,6 +19,7 @@ import org.glassfish.jersey.logging.LoggingFeature;
 import org.glassfish.jersey.server.ResourceConfig;
 import org.rutebanken.irkalla.filter.CorsResponseFilter;
 import org.rutebanken.irkalla.rest.HealthResource;
+import org.rutebanken.irkalla.rest.PrometheusResource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.annotation.Configuration;
@@ -38,5 +39,6 @@ public class RestConfig extends ResourceConfig {
         register(CorsResponseFilter.class);
         register(LoggingFeature.class);
         register(HealthResource.class);
+        register(PrometheusResource.class);
     }
 }
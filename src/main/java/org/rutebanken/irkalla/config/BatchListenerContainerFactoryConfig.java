@@ -28,4 +28,9 @@ public class BatchListenerContainerFactoryConfig {
         return new BatchListenerContainerFactory(batchSize);
 
     }
+
+    @Bean
+    public BatchListenerContainerFactory changelogBatchListenerContainerFactory(@Value("${changelog.batch.size:100}") int batchSize) {
+        return new BatchListenerContainerFactory(batchSize);
+    }
 }
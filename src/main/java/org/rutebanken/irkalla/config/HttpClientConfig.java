@@ -1,15 +1,28 @@
 package org.rutebanken.irkalla.config;
 
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.apache.camel.CamelContext;
 import org.apache.camel.component.http4.HttpClientConfigurer;
 import org.apache.camel.component.http4.HttpComponent;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicHeader;
+import org.rutebanken.irkalla.metrics.OutboundCallMetrics;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
 
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 import static org.rutebanken.irkalla.Constants.ET_CLIENT_ID_HEADER;
 import static org.rutebanken.irkalla.Constants.ET_CLIENT_NAME_HEADER;
@@ -17,6 +30,13 @@ import static org.rutebanken.irkalla.Constants.ET_CLIENT_NAME_HEADER;
 @Configuration
 public class HttpClientConfig {
 
+    private static final String POOL_METRIC_PREFIX = "irkalla.http.client.pool.";
+
+    /**
+     * Http client configurer for http4 endpoints fetching NeTEx pages from Tiamat, see {@link #netexHttpClientConfigurer()}.
+     */
+    public static final String NETEX_HTTP_CLIENT_CONFIGURER = "netexHttpClientConfigurer";
+
     @Value("${http.client.name:irkalla}")
     private String clientName;
 
@@ -33,4 +53,75 @@ public class HttpClientConfig {
         return httpClientConfigurer;
     }
 
-}
\ No newline at end of file
+    /**
+     * Used by endpoints fetching NeTEx pages from Tiamat when compressed transfer is enabled. Transparent decompression is
+     * disabled, so that compressed pages can be passed on to Chouette as is. Other http4 endpoints are not affected.
+     */
+    @Bean(name = NETEX_HTTP_CLIENT_CONFIGURER)
+    public HttpClientConfigurer netexHttpClientConfigurer() {
+        return httpClientBuilder -> httpClientBuilder
+                                            .setDefaultHeaders(Arrays.asList(new BasicHeader(ET_CLIENT_ID_HEADER, clientId), new BasicHeader(ET_CLIENT_NAME_HEADER, clientName)))
+                                            .disableContentCompression();
+    }
+
+    /**
+     * Shared, pooled client for GraphQL lookups against Tiamat. Connections are kept alive between lookups so that each
+     * changelog event does not pay for a new connection (and TLS handshake).
+     */
+    @Bean(destroyMethod = "close")
+    public CloseableHttpClient tiamatHttpClient(@Autowired MeterRegistry meterRegistry,
+                                                       @Value("${tiamat.http.client.max.connections:20}") int maxConnections,
+                                                       @Value("${tiamat.http.client.connect.timeout:5000}") int connectTimeout,
+                                                       @Value("${tiamat.http.client.read.timeout:30000}") int readTimeout,
+                                                       @Value("${tiamat.http.client.connection.request.timeout:5000}") int connectionRequestTimeout,
+                                                       @Value("${tiamat.http.client.keep.alive:30000}") long keepAliveMillis) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        // All requests go to the same Tiamat host
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        registerPoolMetrics(meterRegistry, connectionManager, "tiamat");
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                                              .setConnectTimeout(connectTimeout)
+                                              .setSocketTimeout(readTimeout)
+                                              .setConnectionRequestTimeout(connectionRequestTimeout)
+                                              .build();
+
+        return HttpClientBuilder.create()
+                       .setConnectionManager(connectionManager)
+                       .setKeepAliveStrategy(keepAliveStrategy(keepAliveMillis))
+                       .setDefaultRequestConfig(requestConfig)
+                       .setDefaultHeaders(Arrays.asList(new BasicHeader(ET_CLIENT_ID_HEADER, clientId), new BasicHeader(ET_CLIENT_NAME_HEADER, clientName)))
+                       .evictExpiredConnections()
+                       .evictIdleConnections(keepAliveMillis, TimeUnit.MILLISECONDS)
+                       .build();
+    }
+
+    /**
+     * Used for GraphQL lookups only, all calls are timed as such.
+     */
+    @Bean
+    public RestTemplate tiamatRestTemplate(@Autowired @Qualifier("tiamatHttpClient") CloseableHttpClient tiamatHttpClient,
+                                                  @Autowired OutboundCallMetrics outboundCallMetrics) {
+        RestTemplate restTemplate = new RestTemplate(new HttpComponentsClientHttpRequestFactory(tiamatHttpClient));
+        restTemplate.getInterceptors().add(outboundCallMetrics.interceptor(OutboundCallMetrics.TARGET_TIAMAT, "graphql"));
+        return restTemplate;
+    }
+
+    /**
+     * Use keep alive from server if set, but never keep idle connections longer than configured max.
+     */
+    private ConnectionKeepAliveStrategy keepAliveStrategy(long keepAliveMillis) {
+        return (response, context) -> {
+            long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAliveMillis) : keepAliveMillis;
+        };
+    }
+
+    private void registerPoolMetrics(MeterRegistry meterRegistry, PoolingHttpClientConnectionManager connectionManager, String client) {
+        Gauge.builder(POOL_METRIC_PREFIX + "leased", connectionManager, cm -> cm.getTotalStats().getLeased()).tag("client", client).register(meterRegistry);
+        Gauge.builder(POOL_METRIC_PREFIX + "available", connectionManager, cm -> cm.getTotalStats().getAvailable()).tag("client", client).register(meterRegistry);
+        Gauge.builder(POOL_METRIC_PREFIX + "pending", connectionManager, cm -> cm.getTotalStats().getPending()).tag("client", client).register(meterRegistry);
+        Gauge.builder(POOL_METRIC_PREFIX + "max", connectionManager, cm -> cm.getTotalStats().getMax()).tag("client", client).register(meterRegistry);
+    }
+}
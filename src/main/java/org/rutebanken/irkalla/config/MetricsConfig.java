@@ -0,0 +1,53 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.camel.CamelContext;
+import org.apache.camel.spring.boot.CamelContextConfiguration;
+import org.rutebanken.irkalla.metrics.OutboundCallMetrics;
+import org.rutebanken.irkalla.metrics.RouteMetricsEventNotifier;
+import org.rutebanken.irkalla.metrics.RouteMetricsRoutePolicy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Metrics for all Camel routes and the HTTP calls made from them.
+ */
+@Configuration
+public class MetricsConfig {
+
+    @Bean
+    public CamelContextConfiguration routeMetricsConfiguration(@Autowired MeterRegistry meterRegistry,
+                                                                      @Autowired OutboundCallMetrics outboundCallMetrics,
+                                                                      @Value("${camel.route.metrics.enabled:true}") boolean routeMetricsEnabled) {
+        return new CamelContextConfiguration() {
+            @Override
+            public void beforeApplicationStart(CamelContext camelContext) {
+                if (routeMetricsEnabled) {
+                    camelContext.addRoutePolicyFactory(RouteMetricsRoutePolicy.factory(meterRegistry));
+                    camelContext.getManagementStrategy().addEventNotifier(new RouteMetricsEventNotifier(meterRegistry, outboundCallMetrics));
+                }
+            }
+
+            @Override
+            public void afterApplicationStart(CamelContext camelContext) {
+            }
+        };
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.config;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.spi.StreamCachingStrategy;
+import org.apache.camel.spring.boot.CamelContextConfiguration;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Stream caching used when passing NeTEx pages from Tiamat to Chouette as streams. Responses larger than the spool threshold
+ * are spooled to temp files instead of being kept on heap.
+ * <p>
+ * Only the strategy is configured here. Stream caching is enabled per route for the routes transferring pages, see
+ * {@link #STREAM_CACHING}.
+ */
+@Configuration
+public class StreamCachingConfig {
+
+    /**
+     * Value for stream caching of routes transferring NeTEx pages from Tiamat to Chouette.
+     */
+    public static final String STREAM_CACHING = "{{sync.stop.place.streaming.enabled:false}}";
+
+    @Bean
+    public CamelContextConfiguration streamCachingConfiguration(@Value("${sync.stop.place.streaming.enabled:false}") boolean streamingEnabled,
+                                                                       @Value("${sync.stop.place.streaming.spool.threshold:1048576}") long spoolThreshold,
+                                                                       @Value("${sync.stop.place.streaming.spool.directory:${java.io.tmpdir}/irkalla/camel-tmp-#uuid#}") String spoolDirectory) {
+        return new CamelContextConfiguration() {
+            @Override
+            public void beforeApplicationStart(CamelContext camelContext) {
+                if (streamingEnabled) {
+                    StreamCachingStrategy streamCachingStrategy = camelContext.getStreamCachingStrategy();
+                    streamCachingStrategy.setSpoolThreshold(spoolThreshold);
+                    streamCachingStrategy.setSpoolDirectory(spoolDirectory);
+                    streamCachingStrategy.setRemoveSpoolDirectoryWhenStopping(true);
+                }
+            }
+
+            @Override
+            public void afterApplicationStart(CamelContext camelContext) {
+            }
+        };
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.config;
+
+import org.rutebanken.irkalla.IrkallaException;
+import org.rutebanken.irkalla.metrics.OutboundCallMetrics;
+import org.rutebanken.irkalla.routes.etcd.EtcdSyncStatusStore;
+import org.rutebanken.irkalla.routes.singleton.SingletonRoutePolicyFactory;
+import org.rutebanken.irkalla.routes.syncstatus.FileSyncStatusStore;
+import org.rutebanken.irkalla.routes.syncstatus.HazelcastSyncStatusStore;
+import org.rutebanken.irkalla.routes.syncstatus.InMemorySyncStatusStore;
+import org.rutebanken.irkalla.routes.syncstatus.SyncStatusStore;
+import org.rutebanken.irkalla.routes.syncstatus.WriteBehindSyncStatusStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
+
+import java.nio.file.Paths;
+
+/**
+ * Select store for sync status and sync job with 'sync.status.store': etcd (default), hazelcast, file or memory. The
+ * deprecated 'sync.status.in.memory' property selects memory when no store is configured.
+ */
+@Configuration
+public class SyncStatusStoreConfig {
+
+    private static final Logger logger = LoggerFactory.getLogger(SyncStatusStoreConfig.class);
+
+    public static final String STORE_ETCD = "etcd";
+    public static final String STORE_HAZELCAST = "hazelcast";
+    public static final String STORE_FILE = "file";
+    public static final String STORE_MEMORY = "memory";
+
+    @Value("${sync.status.store:}")
+    private String store;
+
+    /**
+     * Deprecated, use 'sync.status.store=memory'.
+     */
+    @Value("${sync.status.in.memory:false}")
+    private boolean inMemory;
+
+    @Value("${sync.status.write.behind.enabled:false}")
+    private boolean writeBehindEnabled;
+
+    @Value("${sync.status.write.behind.delay:1000}")
+    private long writeBehindDelay;
+
+    @Value("${sync.status.file.path:/tmp/irkalla/stop_place_sync_status}")
+    private String filePath;
+
+    @Value("${sync.status.file.max.entries:1000}")
+    private int fileMaxEntries;
+
+    @Value("${etcd.url:}")
+    private String etcdUrl;
+
+    @Value("${etcd.sync.status.key:/v2/keys/prod/dynamic/irkalla/stop_place/sync}")
+    private String etcdSyncStatusKey;
+
+    @Value("${etcd.sync.job.key:/v2/keys/prod/dynamic/irkalla/stop_place/sync_job}")
+    private String etcdSyncJobKey;
+
+    @Value("${etcd.sync.status.cache.max.age:60000}")
+    private long etcdCacheMaxAge;
+
+    @Value("${etcd.sync.status.cas.max.retries:3}")
+    private int etcdMaxConflictRetries;
+
+    @Value("${etcd.connect.timeout:5000}")
+    private int etcdConnectTimeout;
+
+    @Value("${etcd.read.timeout:10000}")
+    private int etcdReadTimeout;
+
+    @Autowired
+    private OutboundCallMetrics outboundCallMetrics;
+
+    @Bean
+    public SyncStatusStore syncStatusStore(@Autowired SingletonRoutePolicyFactory singletonRoutePolicyFactory) {
+        String type = storeType();
+        SyncStatusStore syncStatusStore = createStore(type, singletonRoutePolicyFactory);
+        logger.info("Using sync status store: {}, write behind: {}", type, writeBehindEnabled);
+        if (writeBehindEnabled) {
+            return new WriteBehindSyncStatusStore(syncStatusStore, writeBehindDelay);
+        }
+        return syncStatusStore;
+    }
+
+    private String storeType() {
+        if (inMemory) {
+            if (store.isEmpty()) {
+                logger.warn("Property 'sync.status.in.memory' is deprecated, use 'sync.status.store={}'", STORE_MEMORY);
+                return STORE_MEMORY;
+            }
+            logger.warn("Ignoring deprecated property 'sync.status.in.memory', as 'sync.status.store' is set to: {}", store);
+        }
+        return store.isEmpty() ? STORE_ETCD : store;
+    }
+
+    private SyncStatusStore createStore(String type, SingletonRoutePolicyFactory singletonRoutePolicyFactory) {
+        switch (type) {
+            case STORE_ETCD:
+                if (etcdUrl.isEmpty()) {
+                    throw new IrkallaException("Missing 'etcd.url' for sync status store: " + type);
+                }
+                EtcdSyncStatusStore etcdStore = new EtcdSyncStatusStore(etcdRestTemplate(), etcdUrl + etcdSyncStatusKey, etcdUrl + etcdSyncJobKey, etcdCacheMaxAge, etcdMaxConflictRetries);
+                if (singletonRoutePolicyFactory.getHazelcastInstance() != null) {
+                    etcdStore.invalidateOnMembershipChange(singletonRoutePolicyFactory.getHazelcastInstance());
+                }
+                return etcdStore;
+            case STORE_HAZELCAST:
+                return new HazelcastSyncStatusStore(singletonRoutePolicyFactory.getHazelcastInstance());
+            case STORE_FILE:
+                return new FileSyncStatusStore(Paths.get(filePath), fileMaxEntries);
+            case STORE_MEMORY:
+                return new InMemorySyncStatusStore();
+            default:
+                throw new IrkallaException("Unknown sync status store: " + type);
+        }
+    }
+
+    private RestTemplate etcdRestTemplate() {
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(etcdConnectTimeout);
+        requestFactory.setReadTimeout(etcdReadTimeout);
+        RestTemplate restTemplate = new RestTemplate(requestFactory);
+        restTemplate.getInterceptors().add(outboundCallMetrics.interceptor(OutboundCallMetrics.TARGET_ETCD, "sync_status"));
+        return restTemplate;
+    }
+}
@@ -16,12 +16,10 @@
 package org.rutebanken.irkalla.domain;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.rutebanken.irkalla.util.JsonSerialization;
 import org.wololo.geojson.Geometry;
 
-import java.io.IOException;
-import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 
 @JsonInclude(JsonInclude.Include.NON_NULL)
@@ -65,16 +63,14 @@ public class CrudEvent {
 
     public String location;
 
+    public Double distance;
+
+    public byte[] toBytes() {
+        return JsonSerialization.toBytes(this);
+    }
+
     public String toString() {
-        try {
-            ObjectMapper mapper = new ObjectMapper();
-            mapper.registerModule(new JavaTimeModule());
-            StringWriter writer = new StringWriter();
-            mapper.writeValue(writer, this);
-            return writer.toString();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        return new String(toBytes(), StandardCharsets.UTF_8);
     }
 
 
@@ -131,6 +127,11 @@ public class CrudEvent {
         }
 
 
+        public Builder distance(Double distance) {
+            event.distance = distance;
+            return this;
+        }
+
         public Builder newValue(String newValue) {
             event.newValue = newValue;
             return this;
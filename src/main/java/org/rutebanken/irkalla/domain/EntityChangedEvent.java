@@ -15,6 +15,7 @@
 
 package org.rutebanken.irkalla.domain;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 
 @JsonInclude(JsonInclude.Include.NON_NULL)
@@ -32,6 +33,12 @@ public class EntityChangedEvent {
 
     public CrudAction crudAction;
 
+    /**
+     * Time event was enqueued in changelog, from message. Not part of event payload.
+     */
+    @JsonIgnore
+    public Long enqueuedTime;
+
     public String getMsgId() {
         return msgId;
     }
@@ -71,4 +78,12 @@ public class EntityChangedEvent {
     public void setCrudAction(CrudAction crudAction) {
         this.crudAction = crudAction;
     }
+
+    public Long getEnqueuedTime() {
+        return enqueuedTime;
+    }
+
+    public void setEnqueuedTime(Long enqueuedTime) {
+        this.enqueuedTime = enqueuedTime;
+    }
 }
\ No newline at end of file
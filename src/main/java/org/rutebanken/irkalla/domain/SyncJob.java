@@ -0,0 +1,188 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.domain;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * Progress of a stop place synchronization from Tiamat to Chouette, checkpointed after each page so that the sync can be
+ * resumed from the last committed page.
+ * <p>
+ * A deleted job is stored as a job without id, carrying only the fencing token of the leader deleting it, so that a
+ * deposed leader cannot recreate it.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class SyncJob {
+
+    public String jobId;
+
+    public String operation;
+
+    /**
+     * Start of sync window (epoch millis). Null for full sync.
+     */
+    public Long syncFrom;
+
+    /**
+     * End of sync window (epoch millis).
+     */
+    public Long syncTo;
+
+    /**
+     * Url for next page to sync. Null if no page has been synced yet.
+     */
+    public String nextBatchUrl;
+
+    public int pagesCompleted;
+
+    public Long bytesReceived;
+
+    public Long bytesUncompressed;
+
+    public Long bytesSent;
+
+    public Long bytesSentUncompressed;
+
+    public Long started;
+
+    public Long updated;
+
+    /**
+     * Fencing token of the leader having written the job. Null if written without fencing.
+     */
+    public Long fencingToken;
+
+    /**
+     * Marker for a job deleted by the leader holding the given fencing token.
+     */
+    public static SyncJob deleted(Long fencingToken) {
+        SyncJob deleted = new SyncJob();
+        deleted.setFencingToken(fencingToken);
+        return deleted;
+    }
+
+    @JsonIgnore
+    public boolean isDeleted() {
+        return jobId == null;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public void setJobId(String jobId) {
+        this.jobId = jobId;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public void setOperation(String operation) {
+        this.operation = operation;
+    }
+
+    public Long getSyncFrom() {
+        return syncFrom;
+    }
+
+    public void setSyncFrom(Long syncFrom) {
+        this.syncFrom = syncFrom;
+    }
+
+    public Long getSyncTo() {
+        return syncTo;
+    }
+
+    public void setSyncTo(Long syncTo) {
+        this.syncTo = syncTo;
+    }
+
+    public String getNextBatchUrl() {
+        return nextBatchUrl;
+    }
+
+    public void setNextBatchUrl(String nextBatchUrl) {
+        this.nextBatchUrl = nextBatchUrl;
+    }
+
+    public int getPagesCompleted() {
+        return pagesCompleted;
+    }
+
+    public void setPagesCompleted(int pagesCompleted) {
+        this.pagesCompleted = pagesCompleted;
+    }
+
+    public Long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public void setBytesReceived(Long bytesReceived) {
+        this.bytesReceived = bytesReceived;
+    }
+
+    public Long getBytesUncompressed() {
+        return bytesUncompressed;
+    }
+
+    public void setBytesUncompressed(Long bytesUncompressed) {
+        this.bytesUncompressed = bytesUncompressed;
+    }
+
+    public Long getBytesSent() {
+        return bytesSent;
+    }
+
+    public void setBytesSent(Long bytesSent) {
+        this.bytesSent = bytesSent;
+    }
+
+    public Long getBytesSentUncompressed() {
+        return bytesSentUncompressed;
+    }
+
+    public void setBytesSentUncompressed(Long bytesSentUncompressed) {
+        this.bytesSentUncompressed = bytesSentUncompressed;
+    }
+
+    public Long getStarted() {
+        return started;
+    }
+
+    public void setStarted(Long started) {
+        this.started = started;
+    }
+
+    public Long getUpdated() {
+        return updated;
+    }
+
+    public void setUpdated(Long updated) {
+        this.updated = updated;
+    }
+
+    public Long getFencingToken() {
+        return fencingToken;
+    }
+
+    public void setFencingToken(Long fencingToken) {
+        this.fencingToken = fencingToken;
+    }
+}
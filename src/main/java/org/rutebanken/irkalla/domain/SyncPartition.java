@@ -0,0 +1,171 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.domain;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Independent part of a partitioned full sync: the stop places changed within a time window. Passed between cluster
+ * members through Hazelcast.
+ */
+public class SyncPartition implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private int index;
+
+    private int count;
+
+    /**
+     * Start of window (epoch millis). Null for first partition, which covers all changes up until its end.
+     */
+    private Long from;
+
+    private long to;
+
+    /**
+     * Url for next page in partition, if partition has been partly synced.
+     */
+    private String nextBatchUrl;
+
+    private int attempts;
+
+    private int chouetteRetryAttempt;
+
+    /**
+     * Start time (epoch millis) of the partitioned sync this partition belongs to.
+     */
+    private long syncId;
+
+    /**
+     * Uuid of Hazelcast member currently syncing the partition. Null while partition is queued.
+     */
+    private String memberId;
+
+    /**
+     * Whether unchanged stop places are forwarded to Chouette as well.
+     */
+    private boolean unfiltered;
+
+    public SyncPartition(int index, int count, Long from, long to) {
+        this.index = index;
+        this.count = count;
+        this.from = from;
+        this.to = to;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public Long getFrom() {
+        return from;
+    }
+
+    public long getTo() {
+        return to;
+    }
+
+    public String getNextBatchUrl() {
+        return nextBatchUrl;
+    }
+
+    public void setNextBatchUrl(String nextBatchUrl) {
+        this.nextBatchUrl = nextBatchUrl;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public int getChouetteRetryAttempt() {
+        return chouetteRetryAttempt;
+    }
+
+    public void setChouetteRetryAttempt(int chouetteRetryAttempt) {
+        this.chouetteRetryAttempt = chouetteRetryAttempt;
+    }
+
+    public long getSyncId() {
+        return syncId;
+    }
+
+    public void setSyncId(long syncId) {
+        this.syncId = syncId;
+    }
+
+    public String getMemberId() {
+        return memberId;
+    }
+
+    public boolean isUnfiltered() {
+        return unfiltered;
+    }
+
+    public void setUnfiltered(boolean unfiltered) {
+        this.unfiltered = unfiltered;
+    }
+
+    /**
+     * Copy of partition held by another member.
+     */
+    public SyncPartition withMemberId(String memberId) {
+        SyncPartition copy = new SyncPartition(index, count, from, to);
+        copy.nextBatchUrl = nextBatchUrl;
+        copy.attempts = attempts;
+        copy.chouetteRetryAttempt = chouetteRetryAttempt;
+        copy.syncId = syncId;
+        copy.memberId = memberId;
+        copy.unfiltered = unfiltered;
+        return copy;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        SyncPartition that = (SyncPartition) o;
+        return index == that.index &&
+                       count == that.count &&
+                       to == that.to &&
+                       attempts == that.attempts &&
+                       chouetteRetryAttempt == that.chouetteRetryAttempt &&
+                       syncId == that.syncId &&
+                       unfiltered == that.unfiltered &&
+                       Objects.equals(from, that.from) &&
+                       Objects.equals(nextBatchUrl, that.nextBatchUrl) &&
+                       Objects.equals(memberId, that.memberId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(index, count, from, to, nextBatchUrl, attempts, chouetteRetryAttempt, syncId, memberId, unfiltered);
+    }
+
+    @Override
+    public String toString() {
+        return (index + 1) + "/" + count;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timers for calls to other services, tagged with target service, call and status. Used to find which hop limits
+ * synchronization throughput.
+ */
+@Component
+public class OutboundCallMetrics {
+
+    public static final String METER_NAME = "irkalla.outbound.call";
+
+    public static final String TARGET_TIAMAT = "tiamat";
+    public static final String TARGET_CHOUETTE = "chouette";
+    public static final String TARGET_ETCD = "etcd";
+    public static final String TARGET_OTHER = "other";
+
+    public static final String STATUS_IO_ERROR = "IO_ERROR";
+
+    private final MeterRegistry meterRegistry;
+
+    private final String tiamatAuthority;
+
+    private final String chouetteAuthority;
+
+    private final String etcdAuthority;
+
+    public OutboundCallMetrics(@Autowired MeterRegistry meterRegistry,
+                                      @Value("${tiamat.url}") String tiamatUrl,
+                                      @Value("${chouette.url}") String chouetteUrl,
+                                      @Value("${etcd.url:}") String etcdUrl) {
+        this.meterRegistry = meterRegistry;
+        this.tiamatAuthority = authority(tiamatUrl);
+        this.chouetteAuthority = authority(chouetteUrl);
+        this.etcdAuthority = authority(etcdUrl);
+    }
+
+    public void record(String target, String call, String status, long durationNanos) {
+        Timer.builder(METER_NAME)
+                .tag("target", target)
+                .tag("call", call)
+                .tag("status", status)
+                .publishPercentileHistogram()
+                .register(meterRegistry)
+                .record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Interceptor timing all requests made with a RestTemplate.
+     */
+    public ClientHttpRequestInterceptor interceptor(String target, String call) {
+        return (request, body, execution) -> {
+            long start = System.nanoTime();
+            String status = STATUS_IO_ERROR;
+            try {
+                ClientHttpResponse response = execution.execute(request, body);
+                status = Integer.toString(response.getRawStatusCode());
+                return response;
+            } finally {
+                record(target, call, status, System.nanoTime() - start);
+            }
+        };
+    }
+
+    /**
+     * Resolve target service from URL of call, by comparing host and port with configured service URLs.
+     */
+    public String getTarget(String url) {
+        String authority = authority(url);
+        if (authority.isEmpty()) {
+            return TARGET_OTHER;
+        } else if (authority.equals(tiamatAuthority)) {
+            return TARGET_TIAMAT;
+        } else if (authority.equals(chouetteAuthority)) {
+            return TARGET_CHOUETTE;
+        } else if (authority.equals(etcdAuthority)) {
+            return TARGET_ETCD;
+        }
+        return TARGET_OTHER;
+    }
+
+    /**
+     * Host and port part of URL, ignoring scheme (http, http4 ..), path and query.
+     */
+    static String authority(String url) {
+        if (url == null) {
+            return "";
+        }
+        String withoutScheme = url.replaceFirst("^[a-zA-Z][a-zA-Z0-9+.-]*:", "").replaceFirst("^/+", "");
+        int end = withoutScheme.length();
+        for (char delimiter : new char[]{'/', '?', '#'}) {
+            int index = withoutScheme.indexOf(delimiter);
+            if (index >= 0) {
+                end = Math.min(end, index);
+            }
+        }
+        return withoutScheme.substring(0, end);
+    }
+}
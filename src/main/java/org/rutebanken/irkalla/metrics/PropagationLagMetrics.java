@@ -0,0 +1,77 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.metrics;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.camel.Message;
+import org.rutebanken.irkalla.Constants;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lag from a stop place change is enqueued in the changelog until it has passed each stage of the pipeline. The
+ * enqueue time is carried through the pipeline as {@link Constants#HEADER_CHANGELOG_ENQUEUED_TIME}.
+ * <ul>
+ * <li>irkalla.propagation.lag: lag histogram, tagged with stage</li>
+ * <li>irkalla.propagation.last: epoch seconds when a change last passed the stage</li>
+ * </ul>
+ */
+@Component
+public class PropagationLagMetrics {
+
+    public static final String STAGE_TIAMAT_LOOKUP = "tiamat_lookup";
+    public static final String STAGE_CRUD_EVENT_PUBLISHED = "crud_event_published";
+    public static final String STAGE_CHOUETTE_SYNCED = "chouette_synced";
+
+    private final MeterRegistry meterRegistry;
+
+    private final Map<String, AtomicLong> lastPropagated = new ConcurrentHashMap<>();
+
+    public PropagationLagMetrics(@Autowired MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Record lag for change(s) carried by message, if enqueue time is known.
+     */
+    public void record(String stage, Message message) {
+        record(stage, message.getHeader(Constants.HEADER_CHANGELOG_ENQUEUED_TIME, Long.class), System.currentTimeMillis());
+    }
+
+    void record(String stage, Long enqueuedTime, long now) {
+        if (enqueuedTime == null || enqueuedTime <= 0) {
+            return;
+        }
+        Timer.builder("irkalla.propagation.lag")
+                .tag("stage", stage)
+                .publishPercentileHistogram()
+                .register(meterRegistry)
+                .record(Math.max(0, now - enqueuedTime), TimeUnit.MILLISECONDS);
+
+        lastPropagated.computeIfAbsent(stage, s -> {
+            AtomicLong last = new AtomicLong();
+            Gauge.builder("irkalla.propagation.last", last, AtomicLong::get).tag("stage", s).register(meterRegistry);
+            return last;
+        }).set(TimeUnit.MILLISECONDS.toSeconds(now));
+    }
+}
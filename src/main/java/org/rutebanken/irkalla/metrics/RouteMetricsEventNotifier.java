@@ -0,0 +1,117 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.camel.Endpoint;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.http.common.HttpOperationFailedException;
+import org.apache.camel.management.event.ExchangeRedeliveryEvent;
+import org.apache.camel.management.event.ExchangeSentEvent;
+import org.apache.camel.spi.RouteContext;
+import org.apache.camel.spi.UnitOfWork;
+import org.apache.camel.support.EventNotifierSupport;
+
+import java.util.EventObject;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Record irkalla.camel.route.redeliveries, the number of redelivery attempts, per route id. The redelivery is counted
+ * for the route the exchange is currently in, which may be a sub-route called through a direct endpoint.
+ * <p>
+ * HTTP calls made from routes are recorded as {@link OutboundCallMetrics}. Latency and exchanges in flight per route
+ * are recorded by {@link RouteMetricsRoutePolicy}.
+ */
+public class RouteMetricsEventNotifier extends EventNotifierSupport {
+
+    private final MeterRegistry meterRegistry;
+
+    private final OutboundCallMetrics outboundCallMetrics;
+
+    public RouteMetricsEventNotifier(MeterRegistry meterRegistry, OutboundCallMetrics outboundCallMetrics) {
+        this.meterRegistry = meterRegistry;
+        this.outboundCallMetrics = outboundCallMetrics;
+        setIgnoreCamelContextEvents(true);
+        setIgnoreRouteEvents(true);
+        setIgnoreServiceEvents(true);
+        setIgnoreExchangeSendingEvents(true);
+    }
+
+    @Override
+    public boolean isEnabled(EventObject event) {
+        return event instanceof ExchangeSentEvent || event instanceof ExchangeRedeliveryEvent;
+    }
+
+    @Override
+    public void notify(EventObject event) {
+        if (event instanceof ExchangeSentEvent) {
+            ExchangeSentEvent sentEvent = (ExchangeSentEvent) event;
+            recordOutboundCall(sentEvent.getExchange(), sentEvent.getEndpoint(), sentEvent.getTimeTaken());
+        } else if (event instanceof ExchangeRedeliveryEvent) {
+            String routeId = getCurrentRouteId(((ExchangeRedeliveryEvent) event).getExchange());
+            if (routeId != null) {
+                meterRegistry.counter("irkalla.camel.route.redeliveries", "route", routeId).increment();
+            }
+        }
+    }
+
+    /**
+     * Id of the route the exchange is currently being processed by, or of the route it was created by if not known.
+     */
+    private String getCurrentRouteId(Exchange exchange) {
+        UnitOfWork unitOfWork = exchange.getUnitOfWork();
+        RouteContext routeContext = unitOfWork == null ? null : unitOfWork.getRouteContext();
+        if (routeContext == null || routeContext.getRoute() == null) {
+            return exchange.getFromRouteId();
+        }
+        return routeContext.getRoute().getId();
+    }
+
+    private void recordOutboundCall(Exchange exchange, Endpoint endpoint, long timeTakenMillis) {
+        String uri = endpoint.getEndpointUri();
+        if (!uri.startsWith("http")) {
+            return;
+        }
+        String target = outboundCallMetrics.getTarget(uri);
+        String call = getCall(exchange, target);
+        outboundCallMetrics.record(target, call, getStatus(exchange), TimeUnit.MILLISECONDS.toNanos(timeTakenMillis));
+    }
+
+    private String getCall(Exchange exchange, String target) {
+        Object method = getCurrentMessage(exchange).getHeader(Exchange.HTTP_METHOD);
+        String call = method == null ? "unknown" : method.toString().toLowerCase();
+        if (OutboundCallMetrics.TARGET_TIAMAT.equals(target) && "get".equals(call)) {
+            return "netex_page";
+        }
+        return call;
+    }
+
+    private String getStatus(Exchange exchange) {
+        Exception exception = exchange.getException();
+        if (exception instanceof HttpOperationFailedException) {
+            return Integer.toString(((HttpOperationFailedException) exception).getStatusCode());
+        } else if (exception != null) {
+            return OutboundCallMetrics.STATUS_IO_ERROR;
+        }
+        Object responseCode = getCurrentMessage(exchange).getHeader(Exchange.HTTP_RESPONSE_CODE);
+        return responseCode == null ? "200" : responseCode.toString();
+    }
+
+    private Message getCurrentMessage(Exchange exchange) {
+        return exchange.hasOut() ? exchange.getOut() : exchange.getIn();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.metrics;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.camel.Exchange;
+import org.apache.camel.Route;
+import org.apache.camel.spi.RoutePolicyFactory;
+import org.apache.camel.support.RoutePolicySupport;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Record metrics for a Camel route:
+ * <ul>
+ * <li>irkalla.camel.route.exchange: latency histogram for exchanges processed by the route, tagged with outcome</li>
+ * <li>irkalla.camel.route.inflight: exchanges currently in flight in the route</li>
+ * </ul>
+ * As a route policy is invoked for every route an exchange enters, sub-routes called through direct endpoints are
+ * timed separately from the consumer route. Added to all routes by {@link #factory(MeterRegistry)}.
+ */
+public class RouteMetricsRoutePolicy extends RoutePolicySupport {
+
+    public static final String OUTCOME_SUCCESS = "success";
+    public static final String OUTCOME_FAILURE = "failure";
+
+    private static final String PROPERTY_STARTED_PREFIX = "IrkallaRouteMetricsStarted.";
+
+    private final MeterRegistry meterRegistry;
+
+    private final String routeId;
+
+    private final String startedProperty;
+
+    public RouteMetricsRoutePolicy(MeterRegistry meterRegistry, String routeId) {
+        this.meterRegistry = meterRegistry;
+        this.routeId = routeId;
+        this.startedProperty = PROPERTY_STARTED_PREFIX + routeId;
+    }
+
+    /**
+     * Factory creating a policy per route, so that stopping one route does not stop recording for the others.
+     */
+    public static RoutePolicyFactory factory(MeterRegistry meterRegistry) {
+        return (camelContext, routeId, routeDefinition) -> new RouteMetricsRoutePolicy(meterRegistry, routeId);
+    }
+
+    @Override
+    public void onInit(Route route) {
+        Gauge.builder("irkalla.camel.route.inflight", route.getRouteContext().getCamelContext().getInflightRepository(), r -> r.size(routeId))
+                .tag("route", routeId)
+                .register(meterRegistry);
+    }
+
+    @Override
+    public void onExchangeBegin(Route route, Exchange exchange) {
+        exchange.setProperty(startedProperty, System.nanoTime());
+    }
+
+    @Override
+    public void onExchangeDone(Route route, Exchange exchange) {
+        Long started = (Long) exchange.removeProperty(startedProperty);
+        if (started == null) {
+            return;
+        }
+        Timer.builder("irkalla.camel.route.exchange")
+                .tag("route", routeId)
+                .tag("outcome", exchange.isFailed() ? OUTCOME_FAILURE : OUTCOME_SUCCESS)
+                .publishPercentileHistogram()
+                .register(meterRegistry)
+                .record(Math.max(0, System.nanoTime() - started), TimeUnit.NANOSECONDS);
+    }
+}
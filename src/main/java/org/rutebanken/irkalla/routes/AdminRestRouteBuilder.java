@@ -110,6 +110,25 @@ public class AdminRestRouteBuilder extends BaseRouteBuilder {
                 .to("direct:getSyncStatusUntilTime")
                 .endRest()
 
+                .get("/job")
+                .description("Get progress of current synchronization job, if any")
+                .responseMessage().code(200).endResponseMessage()
+                .responseMessage().code(500).message("Internal error").endResponseMessage()
+                .route().routeId("admin-chouette-synchronize-stop-places-job")
+                .removeHeaders("CamelHttp*")
+                .setBody(constant(null))
+                .to("direct:getSyncJob")
+                .endRest()
+
+                .get("/batch_size")
+                .description("Get current number of stop places per page for synchronization, with history of adjustments")
+                .responseMessage().code(200).endResponseMessage()
+                .responseMessage().code(500).message("Internal error").endResponseMessage()
+                .route().routeId("admin-chouette-synchronize-stop-places-batch-size")
+                .removeHeaders("CamelHttp*")
+                .bean("syncBatchSizeController", "getStatus")
+                .endRest()
+
                 .post("/delta")
                 .description("Synchronize new changes for stop places from Tiamat to Chouette")
                 .responseMessage().code(200).endResponseMessage()
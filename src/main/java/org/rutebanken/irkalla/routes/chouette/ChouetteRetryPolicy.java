@@ -0,0 +1,256 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.activemq.ScheduledMessage;
+import org.apache.camel.Exchange;
+import org.apache.camel.http.common.HttpOperationFailedException;
+import org.rutebanken.irkalla.routes.singleton.SingletonRoutePolicyFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.Serializable;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+import static org.rutebanken.irkalla.Constants.HEADER_CHOUETTE_RETRY_ATTEMPT;
+
+/**
+ * Shared retry policy for calls to Chouette rejected because Chouette is busy (423).
+ * <p>
+ * Retries are rescheduled with exponential backoff and jitter, capped at a max delay. Repeated 423 responses open a circuit
+ * breaker, which stops all calls to Chouette until the open period has passed. Then one probe request is let through
+ * (half open). The breaker closes if the probe succeeds, and opens again if Chouette is still busy.
+ * <p>
+ * Chouette is called from several members (singleton routes led by different members, partitions of a full sync on every
+ * member), so the breaker state is held in the Hazelcast cluster and changed by compare-and-swap. 423 responses seen by
+ * all members count towards the failure threshold, and only one probe is let through in the whole cluster.
+ */
+@Component
+public class ChouetteRetryPolicy {
+
+    public enum CircuitState {CLOSED, HALF_OPEN, OPEN}
+
+    private static final Logger logger = LoggerFactory.getLogger(ChouetteRetryPolicy.class);
+
+    private static final String MAP_NAME = "irkalla.chouette.circuit.breaker";
+
+    private static final String KEY = "chouette";
+
+    @Value("${chouette.sync.stop.place.retry.delay:15000}")
+    private long initialDelay;
+
+    @Value("${chouette.retry.max.delay:900000}")
+    private long maxDelay;
+
+    @Value("${chouette.retry.multiplier:2.0}")
+    private double multiplier;
+
+    /**
+     * Max fraction of delay to add or subtract randomly, so that retries are spread out.
+     */
+    @Value("${chouette.retry.jitter:0.2}")
+    private double jitter;
+
+    @Value("${chouette.circuit.breaker.failure.threshold:5}")
+    private int failureThreshold;
+
+    @Value("${chouette.circuit.breaker.open.ms:300000}")
+    private long openMillis;
+
+    private final Supplier<HazelcastInstance> hazelcast;
+
+    private final Map<CircuitState, Counter> transitionCounters = new EnumMap<>(CircuitState.class);
+
+    @Autowired
+    public ChouetteRetryPolicy(SingletonRoutePolicyFactory singletonRoutePolicyFactory, MeterRegistry meterRegistry) {
+        this(singletonRoutePolicyFactory::getHazelcastInstance, meterRegistry);
+    }
+
+    ChouetteRetryPolicy(Supplier<HazelcastInstance> hazelcast, MeterRegistry meterRegistry) {
+        this.hazelcast = hazelcast;
+        Gauge.builder("irkalla.chouette.circuit.breaker.state", this, p -> p.getState().ordinal())
+                .description("0=closed, 1=half open, 2=open")
+                .register(meterRegistry);
+        for (CircuitState circuitState : CircuitState.values()) {
+            transitionCounters.put(circuitState, meterRegistry.counter("irkalla.chouette.circuit.breaker.transitions", "state", circuitState.name()));
+        }
+    }
+
+    /**
+     * Throw ChouetteBusyException if the circuit breaker does not allow requests to Chouette now.
+     */
+    public void checkRequestAllowed(Exchange e) {
+        update(circuit -> {
+            long now = System.currentTimeMillis();
+            if (circuit.state == CircuitState.OPEN) {
+                if (now < circuit.openUntil) {
+                    throw new ChouetteBusyException("Circuit breaker for Chouette is open for another " + (circuit.openUntil - now) + " ms");
+                }
+                return new Circuit(CircuitState.HALF_OPEN, circuit.consecutiveBusy, circuit.openUntil, now);
+            } else if (circuit.state == CircuitState.HALF_OPEN) {
+                // Only one probe at a time, unless the probe never completed
+                if (now < circuit.probeStarted + openMillis) {
+                    throw new ChouetteBusyException("Circuit breaker for Chouette is half open, waiting for probe request");
+                }
+                return new Circuit(CircuitState.HALF_OPEN, circuit.consecutiveBusy, circuit.openUntil, now);
+            }
+            return circuit;
+        });
+    }
+
+    public void onSuccess(Exchange e) {
+        update(circuit -> Circuit.CLOSED);
+        e.getIn().removeHeader(HEADER_CHOUETTE_RETRY_ATTEMPT);
+    }
+
+    /**
+     * Whether exchange failed because Chouette is busy, either answering 423 or not called at all because of open circuit.
+     */
+    public boolean isChouetteBusy(Exchange e) {
+        Exception exception = e.getException();
+        if (exception == null) {
+            exception = e.getProperty(Exchange.EXCEPTION_CAUGHT, Exception.class);
+        }
+        if (exception instanceof ChouetteBusyException) {
+            return true;
+        }
+        return exception instanceof HttpOperationFailedException && ((HttpOperationFailedException) exception).getStatusCode() == 423;
+    }
+
+    /**
+     * Register that Chouette is busy and set delay for rescheduled message in header.
+     */
+    public void scheduleRetry(Exchange e) {
+        Exception exception = e.getProperty(Exchange.EXCEPTION_CAUGHT, Exception.class);
+        Circuit circuit = exception instanceof ChouetteBusyException ? getCircuit() : update(this::onBusy);
+
+        int attempt = e.getIn().getHeader(HEADER_CHOUETTE_RETRY_ATTEMPT, 0, Integer.class) + 1;
+        long delay = getDelay(attempt);
+        if (circuit.state == CircuitState.OPEN) {
+            delay = Math.max(delay, circuit.openUntil - System.currentTimeMillis());
+        }
+        e.getIn().setHeader(HEADER_CHOUETTE_RETRY_ATTEMPT, attempt);
+        e.getIn().setHeader(ScheduledMessage.AMQ_SCHEDULED_DELAY, delay);
+    }
+
+    /**
+     * Delay before given retry attempt (starting at 1): initial delay multiplied by multiplier for each previous attempt,
+     * capped at max delay and with random jitter.
+     */
+    long getDelay(int attempt) {
+        double delay = initialDelay * Math.pow(multiplier, Math.max(0, attempt - 1));
+        delay = Math.min(delay, maxDelay);
+        if (jitter > 0) {
+            delay = delay * (1 + ThreadLocalRandom.current().nextDouble(-jitter, jitter));
+        }
+        return Math.max(0, Math.round(delay));
+    }
+
+    public CircuitState getState() {
+        return getCircuit().state;
+    }
+
+    private Circuit onBusy(Circuit circuit) {
+        int consecutiveBusy = circuit.consecutiveBusy + 1;
+        if (circuit.state == CircuitState.HALF_OPEN || (circuit.state == CircuitState.CLOSED && consecutiveBusy >= failureThreshold)) {
+            return new Circuit(CircuitState.OPEN, consecutiveBusy, System.currentTimeMillis() + openMillis, circuit.probeStarted);
+        }
+        return new Circuit(circuit.state, consecutiveBusy, circuit.openUntil, circuit.probeStarted);
+    }
+
+    /**
+     * Apply change to circuit state in the cluster, retrying if changed concurrently by another member.
+     */
+    private Circuit update(UnaryOperator<Circuit> change) {
+        IMap<String, Circuit> map = getMap();
+        while (true) {
+            Circuit current = map.get(KEY);
+            Circuit circuit = current == null ? Circuit.CLOSED : current;
+            Circuit updated = change.apply(circuit);
+            if (updated.equals(circuit)) {
+                return circuit;
+            }
+            boolean stored = current == null ? map.putIfAbsent(KEY, updated) == null : map.replace(KEY, current, updated);
+            if (stored) {
+                if (updated.state != circuit.state) {
+                    logger.info("Circuit breaker for Chouette changed from {} to {}", circuit.state, updated.state);
+                    transitionCounters.get(updated.state).increment();
+                }
+                return updated;
+            }
+        }
+    }
+
+    private Circuit getCircuit() {
+        Circuit circuit = getMap().get(KEY);
+        return circuit == null ? Circuit.CLOSED : circuit;
+    }
+
+    private IMap<String, Circuit> getMap() {
+        return hazelcast.get().getMap(MAP_NAME);
+    }
+
+    static class Circuit implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        static final Circuit CLOSED = new Circuit(CircuitState.CLOSED, 0, 0, 0);
+
+        private final CircuitState state;
+
+        private final int consecutiveBusy;
+
+        private final long openUntil;
+
+        private final long probeStarted;
+
+        Circuit(CircuitState state, int consecutiveBusy, long openUntil, long probeStarted) {
+            this.state = state;
+            this.consecutiveBusy = consecutiveBusy;
+            this.openUntil = openUntil;
+            this.probeStarted = probeStarted;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Circuit that = (Circuit) o;
+            return consecutiveBusy == that.consecutiveBusy &&
+                           openUntil == that.openUntil &&
+                           probeStarted == that.probeStarted &&
+                           state == that.state;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(state, consecutiveBusy, openUntil, probeStarted);
+        }
+    }
+}
@@ -22,6 +22,7 @@ import org.apache.camel.component.http4.HttpMethods;
 import org.apache.camel.http.common.HttpOperationFailedException;
 import org.rutebanken.irkalla.Constants;
 import org.rutebanken.irkalla.routes.BaseRouteBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
@@ -32,8 +33,11 @@ public class ChouetteStopPlaceDeleteRouteBuilder extends BaseRouteBuilder {
     @Value("${chouette.url}")
     private String chouetteUrl;
 
-    @Value("${chouette.sync.stop.place.retry.delay:15000}")
-    private int retryDelay;
+    @Autowired
+    private ChouetteRetryPolicy chouetteRetryPolicy;
+
+    @Autowired
+    private StopPlaceContentFilter stopPlaceContentFilter;
 
     @Override
     public void configure() throws Exception {
@@ -47,17 +51,18 @@ public class ChouetteStopPlaceDeleteRouteBuilder extends BaseRouteBuilder {
                 .removeHeaders("CamelHttp*")
                 .setHeader(Exchange.HTTP_METHOD, constant(HttpMethods.DELETE))
                 .doTry()
+                .process(e -> chouetteRetryPolicy.checkRequestAllowed(e))
                 .toD(toHttp4Url(chouetteUrl) + "/chouette_iev/stop_place/${header." + Constants.HEADER_ENTITY_ID + "}")
+                .process(e -> chouetteRetryPolicy.onSuccess(e))
+                .process(e -> stopPlaceContentFilter.remove(e.getIn().getHeader(Constants.HEADER_ENTITY_ID, String.class)))
                 .log(LoggingLevel.INFO, "Finished deleting stop place ${header." + Constants.HEADER_ENTITY_ID + "} in Chouette")
 
-                .doCatch(HttpOperationFailedException.class).onWhen(exchange -> {
-                    HttpOperationFailedException ex = exchange.getException(HttpOperationFailedException.class);
-                     return (ex.getStatusCode() == 423);
-                })
-                .log(LoggingLevel.INFO, "Unable to delete stop place because Chouette is busy, retry in " + retryDelay + " ms")
-                .setHeader(ScheduledMessage.AMQ_SCHEDULED_DELAY, constant(retryDelay))
+                .doCatch(HttpOperationFailedException.class, ChouetteBusyException.class).onWhen(exchange -> chouetteRetryPolicy.isChouetteBusy(exchange))
+                .process(e -> chouetteRetryPolicy.scheduleRetry(e))
+                .log(LoggingLevel.INFO, "Unable to delete stop place because Chouette is busy, retry attempt ${header." + Constants.HEADER_CHOUETTE_RETRY_ATTEMPT + "} in ${header." + ScheduledMessage.AMQ_SCHEDULED_DELAY + "} ms")
                 .setBody(constant(null))
-                .to("activemq:queue:ChouetteStopPlaceSyncQueue")
+                .removeHeaders("CamelHttp*")
+                .to("activemq:queue:ChouetteStopPlaceDeleteQueue")
                 .end()
                 .routeId("chouette-delete-stop-place");
 
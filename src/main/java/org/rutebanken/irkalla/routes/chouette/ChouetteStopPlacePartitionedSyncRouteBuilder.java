@@ -0,0 +1,182 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.apache.activemq.ScheduledMessage;
+import org.apache.camel.Exchange;
+import org.apache.camel.LoggingLevel;
+import org.apache.camel.component.hazelcast.seda.HazelcastSedaComponent;
+import org.apache.camel.http.common.HttpOperationFailedException;
+import org.rutebanken.irkalla.domain.SyncPartition;
+import org.rutebanken.irkalla.routes.BaseRouteBuilder;
+import org.rutebanken.irkalla.routes.singleton.SingletonRoutePolicyFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+
+import static org.rutebanken.irkalla.Constants.*;
+
+/**
+ * Full synchronization of stop places split in partitions synced in parallel by all cluster members. See {@link SyncPartitionCoordinator}.
+ */
+@Component
+public class ChouetteStopPlacePartitionedSyncRouteBuilder extends BaseRouteBuilder {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChouetteStopPlacePartitionedSyncRouteBuilder.class);
+
+    private static final String PARTITION_QUEUE = "hazelcast-seda:" + SyncPartitionCoordinator.PARTITION_QUEUE_NAME;
+
+    private static final String PROPERTY_PARTITION = "RutebankenSyncPartition";
+
+    private static final String PROPERTY_PAGE_URL = "RutebankenSyncPartitionPageUrl";
+
+    private static final String PROPERTY_MORE_PAGES = "RutebankenSyncPartitionMorePages";
+
+    private static final String PROPERTY_LAST_PARTITION = "RutebankenSyncPartitionLast";
+
+    /**
+     * Number of partitions synced in parallel by each cluster member.
+     */
+    @Value("${sync.stop.place.full.partition.consumers:1}")
+    private int partitionConsumers;
+
+    @Value("${sync.stop.place.full.partition.max.attempts:3}")
+    private int maxAttempts;
+
+    @Autowired
+    private SyncPartitionCoordinator syncPartitionCoordinator;
+
+    @Autowired
+    private ChouetteRetryPolicy chouetteRetryPolicy;
+
+    @Autowired
+    private SingletonRoutePolicyFactory singletonRoutePolicyFactory;
+
+    @Override
+    public void configure() throws Exception {
+        super.configure();
+
+        // Use same Hazelcast instance as for singleton routes, instead of having the component create its own
+        getContext().getComponent("hazelcast-seda", HazelcastSedaComponent.class).setHazelcastInstance(singletonRoutePolicyFactory.getHazelcastInstance());
+
+        // Partitions are put on the queue by the coordinator
+        from("direct:startPartitionedSynchronization")
+                .process(e -> e.getIn().setBody(syncPartitionCoordinator.start(Instant.now().toEpochMilli(), e.getIn().getHeader(HEADER_SYNC_UNFILTERED, false, Boolean.class))))
+                .choice()
+                .when(body().isNull())
+                .log(LoggingLevel.INFO, "Partitioned full synchronization of stop places in Chouette already in progress.")
+                .otherwise()
+                .log(LoggingLevel.INFO, "Partitioned full synchronization of stop places in Chouette started with ${body.size} partitions.")
+                .end()
+                .routeId("chouette-synchronize-stop-places-partitioned-start");
+
+        from(PARTITION_QUEUE + "?concurrentConsumers=" + partitionConsumers)
+                .autoStartup(syncPartitionCoordinator.isEnabled())
+                .filter(e -> !syncPartitionCoordinator.claim(e.getIn().getBody(SyncPartition.class)))
+                .log(LoggingLevel.INFO, "Discarding partition ${body} no longer part of current partitioned full synchronization.")
+                .stop()
+                .end()
+                .process(e -> startPartition(e))
+                .log(LoggingLevel.INFO, "Synchronizing partition ${exchangeProperty." + PROPERTY_PARTITION + "} of stop places in Chouette.")
+                .doTry()
+                .to("direct:synchronizeStopPlacePages")
+                .to("direct:completeSynchronizationPartition")
+                .doCatch(HttpOperationFailedException.class, ChouetteBusyException.class).onWhen(exchange -> chouetteRetryPolicy.isChouetteBusy(exchange))
+                .process(e -> chouetteRetryPolicy.scheduleRetry(e))
+                .process(e -> e.getProperty(PROPERTY_PARTITION, SyncPartition.class).setChouetteRetryAttempt(e.getIn().getHeader(HEADER_CHOUETTE_RETRY_ATTEMPT, 0, Integer.class)))
+                .log(LoggingLevel.INFO, "Unable to sync partition ${exchangeProperty." + PROPERTY_PARTITION + "} because Chouette is busy, retry in ${header." + ScheduledMessage.AMQ_SCHEDULED_DELAY + "} ms")
+                // Requeue after delay, so that Chouette is not retried immediately by another member. Consumer is free to take other partitions meanwhile
+                .process(e -> syncPartitionCoordinator.requeueLater(partitionFromCurrentPage(e), e.getIn().getHeader(ScheduledMessage.AMQ_SCHEDULED_DELAY, Long.class)))
+                .doCatch(Exception.class)
+                .process(e -> retryOrFailPartition(e))
+                .filter(exchangeProperty(PROPERTY_LAST_PARTITION).isEqualTo(true))
+                .to("direct:completeSynchronizationPartitions")
+                .end()
+                .end()
+                .routeId("chouette-synchronize-stop-places-partition");
+
+        // Sync all pages within same exchange, instead of one page per message as for singleton sync
+        from("direct:synchronizeStopPlacePages")
+                .setProperty(PROPERTY_MORE_PAGES, constant(true))
+                .loopDoWhile(exchangeProperty(PROPERTY_MORE_PAGES).isEqualTo(true))
+                .process(e -> e.setProperty(PROPERTY_PAGE_URL, e.getIn().getHeader(HEADER_NEXT_BATCH_URL)))
+                .setBody(constant(null))
+                .to("direct:processChangedStopPlacesAsNetex")
+                .process(e -> e.setProperty(PROPERTY_MORE_PAGES, e.getIn().getHeader(HEADER_NEXT_BATCH_URL) != null))
+                .end()
+                .routeId("chouette-synchronize-stop-places-pages");
+
+        from("direct:completeSynchronizationPartition")
+                .filter(e -> syncPartitionCoordinator.complete(e.getProperty(PROPERTY_PARTITION, SyncPartition.class), false))
+                .to("direct:completeSynchronizationPartitions")
+                .end()
+                .routeId("chouette-synchronize-stop-places-partition-complete");
+
+        from("direct:completeSynchronizationPartitions")
+                .choice()
+                .when(e -> syncPartitionCoordinator.hasFailures())
+                .log(LoggingLevel.ERROR, "Partitioned full synchronization of stop places in Chouette completed with failed partitions, sync status is not updated.")
+                .otherwise()
+                .process(e -> e.getIn().setHeader(HEADER_SYNC_STATUS_TO, syncPartitionCoordinator.getSyncTo()))
+                .to("direct:completeSynchronization")
+                .end()
+                .routeId("chouette-synchronize-stop-places-partitions-complete");
+    }
+
+    private void startPartition(Exchange e) {
+        SyncPartition partition = e.getIn().getBody(SyncPartition.class);
+        e.setProperty(PROPERTY_PARTITION, partition);
+        e.getIn().setHeader(HEADER_SYNC_OPERATION, SYNC_OPERATION_FULL);
+        e.getIn().setHeader(HEADER_SYNC_PARTITION, partition.getIndex());
+        e.getIn().setHeader(HEADER_SYNC_UNFILTERED, partition.isUnfiltered());
+        e.getIn().setHeader(HEADER_SYNC_STATUS_FROM, partition.getFrom());
+        e.getIn().setHeader(HEADER_SYNC_STATUS_TO, partition.getTo());
+        e.getIn().setHeader(HEADER_NEXT_BATCH_URL, partition.getNextBatchUrl());
+        e.getIn().setHeader(HEADER_PROCESS_TARGET, "direct:synchronizeStopPlaceBatch");
+        if (partition.getChouetteRetryAttempt() > 0) {
+            e.getIn().setHeader(HEADER_CHOUETTE_RETRY_ATTEMPT, partition.getChouetteRetryAttempt());
+        }
+    }
+
+    /**
+     * Partition to be continued from the page that failed.
+     */
+    private SyncPartition partitionFromCurrentPage(Exchange e) {
+        SyncPartition partition = e.getProperty(PROPERTY_PARTITION, SyncPartition.class);
+        partition.setNextBatchUrl(e.getProperty(PROPERTY_PAGE_URL, String.class));
+        return partition;
+    }
+
+    /**
+     * Requeue partition, unless it has failed too many times.
+     */
+    private void retryOrFailPartition(Exchange e) {
+        Exception exception = e.getProperty(Exchange.EXCEPTION_CAUGHT, Exception.class);
+        SyncPartition partition = partitionFromCurrentPage(e);
+        partition.setAttempts(partition.getAttempts() + 1);
+        if (partition.getAttempts() < maxAttempts) {
+            logger.warn("Sync of partition {} failed, will retry: {}", partition, exception.getMessage(), exception);
+            syncPartitionCoordinator.requeue(partition);
+            return;
+        }
+        logger.error("Sync of partition {} failed after {} attempts: {}", partition, partition.getAttempts(), exception.getMessage(), exception);
+        e.setProperty(PROPERTY_LAST_PARTITION, syncPartitionCoordinator.complete(partition, true));
+    }
+}
@@ -15,28 +15,49 @@
 
 package org.rutebanken.irkalla.routes.chouette;
 
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.apache.activemq.ScheduledMessage;
 import org.apache.activemq.command.ActiveMQMessage;
 import org.apache.camel.Exchange;
+import org.apache.camel.InvalidPayloadException;
 import org.apache.camel.LoggingLevel;
+import org.apache.camel.Message;
+import org.apache.camel.builder.PredicateBuilder;
 import org.apache.camel.component.http4.HttpMethods;
 import org.apache.camel.http.common.HttpOperationFailedException;
+import org.apache.camel.util.GZIPHelper;
+import org.apache.http.entity.ContentType;
 import org.rutebanken.irkalla.Constants;
 import org.rutebanken.irkalla.IrkallaException;
+import org.rutebanken.irkalla.config.StreamCachingConfig;
+import org.rutebanken.irkalla.domain.SyncJob;
+import org.rutebanken.irkalla.metrics.PropagationLagMetrics;
 import org.rutebanken.irkalla.routes.BaseRouteBuilder;
+import org.rutebanken.irkalla.util.CountingEntity;
+import org.rutebanken.irkalla.util.TransferSize;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 import static org.rutebanken.irkalla.Constants.*;
 import static org.rutebanken.irkalla.util.Http4URL.toHttp4Url;
 
 @Component
 public class ChouetteStopPlaceUpdateRouteBuilder extends BaseRouteBuilder {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChouetteStopPlaceUpdateRouteBuilder.class);
+
     @Value("${chouette.url}")
     private String chouetteUrl;
 
@@ -47,13 +68,70 @@ public class ChouetteStopPlaceUpdateRouteBuilder extends BaseRouteBuilder {
     @Value("${chouette.sync.stop.place.full.cron:0 0 2 * * ?}")
     private String fullSyncCronSchedule;
 
-
-    @Value("${chouette.sync.stop.place.retry.delay:15000}")
-    private int retryDelay;
-
     @Value("${chouette.sync.stop.place.grace.ms:60000}")
     private int graceMilliseconds;
 
+    /**
+     * Pass NeTEx pages from Tiamat on to Chouette as streams (spooled to disk if large) instead of reading them into Strings.
+     */
+    @Value("${sync.stop.place.streaming.enabled:false}")
+    private boolean streamingEnabled;
+
+    /**
+     * Post gzip encoded NeTEx to Chouette. Pages received gzip encoded from Tiamat are passed on without decompressing.
+     */
+    @Value("${chouette.sync.stop.place.compression.enabled:false}")
+    private boolean chouetteCompressionEnabled;
+
+    /**
+     * Persist progress of sync jobs in the sync status store after each page, so that an interrupted sync is resumed from
+     * the last completed page instead of started over.
+     */
+    @Value("${sync.stop.place.job.checkpoint.enabled:false}")
+    private boolean syncJobCheckpointEnabled;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private SyncBatchSizeController syncBatchSizeController;
+
+    @Autowired
+    private ChouetteRetryPolicy chouetteRetryPolicy;
+
+    @Autowired
+    private SyncPartitionCoordinator syncPartitionCoordinator;
+
+    @Autowired
+    private PendingStopPlaceIds pendingStopPlaceIds;
+
+    @Autowired
+    private StopPlaceContentFilter stopPlaceContentFilter;
+
+    @Autowired
+    private PropagationLagMetrics propagationLagMetrics;
+
+    /**
+     * Max number of stop places exported from Tiamat in one targeted sync.
+     */
+    @Value("${sync.stop.place.targeted.max.ids:500}")
+    private int targetedSyncMaxIds;
+
+    @Value("${sync.stop.place.targeted.enabled:false}")
+    private boolean targetedSyncEnabled;
+
+    private static final String PROPERTY_PAGE_BYTES = "RutebankenPageBytes";
+
+    private static final String PROPERTY_POST_START = "RutebankenPostStart";
+
+    private static final String PROPERTY_SYNC_JOB_SUPERSEDED = "RutebankenSyncJobSuperseded";
+
+    private static final String PROPERTY_TARGETED_IDS = "RutebankenTargetedIds";
+
+    private static final String PROPERTY_PAGE_CHANGED = "RutebankenPageChanged";
+
+    private static final String PROPERTY_COMPRESSED_ENTITY = "RutebankenCompressedEntity";
+
 
     @Override
     public void configure() throws Exception {
@@ -79,6 +157,10 @@ public class ChouetteStopPlaceUpdateRouteBuilder extends BaseRouteBuilder {
                 .choice()
                 .when(simple("${header." + HEADER_SYNC_OPERATION + "} == '" + SYNC_OPERATION_FULL_WITH_DELETE_UNUSED_FIRST + "'"))
                 .to("direct:deleteUnusedStopPlaces")
+                .when(e -> isNewPartitionedFullSync(e))
+                .to("direct:startPartitionedSynchronization")
+                .when(simple("${header." + HEADER_SYNC_OPERATION + "} == '" + SYNC_OPERATION_TARGETED + "'"))
+                .to("direct:synchronizeTargetedStopPlaces")
                 .otherwise()
                 .to("direct:synchronizeStopPlaces")
                 .end()
@@ -87,8 +169,9 @@ public class ChouetteStopPlaceUpdateRouteBuilder extends BaseRouteBuilder {
 
         from("direct:synchronizeStopPlaces")
                 .setHeader(Constants.HEADER_PROCESS_TARGET, constant("direct:synchronizeStopPlaceBatch"))
+                .to("direct:resumeSyncJob")
                 .choice()
-                .when(header(HEADER_NEXT_BATCH_URL).isNull()) // New sync, init
+                .when(PredicateBuilder.and(header(HEADER_NEXT_BATCH_URL).isNull(), header(HEADER_SYNC_JOB_ID).isNull())) // New sync, init
                 .to("direct:initNewSynchronization")
                 .otherwise()
                 .log(LoggingLevel.INFO, "${header." + HEADER_SYNC_OPERATION + "} synchronization of stop places in Chouette resumed.")
@@ -98,9 +181,11 @@ public class ChouetteStopPlaceUpdateRouteBuilder extends BaseRouteBuilder {
                 .to("direct:processChangedStopPlacesAsNetex")
                 .choice()
                 .when(header(HEADER_NEXT_BATCH_URL).isNotNull())
+                .to("direct:checkpointSyncJob")
                 .to("activemq:ChouetteStopPlaceSyncQueue")  // Prepare new iteration
                 .otherwise()
                 .to("direct:completeSynchronization") // Completed
+                .to("direct:clearSyncJob")
 
                 .end()
 
@@ -117,38 +202,138 @@ public class ChouetteStopPlaceUpdateRouteBuilder extends BaseRouteBuilder {
                 .end()
 
                 .process(e -> e.getIn().setHeader(Constants.HEADER_SYNC_STATUS_TO, Instant.now().toEpochMilli()))
+                .to("direct:startSyncJob")
                 .routeId("chouette-synchronize-stop-places-init");
 
+        from("direct:startSyncJob")
+                .filter(e -> syncJobCheckpointEnabled)
+                .process(e -> e.getIn().setBody(SyncJobCheckpoints.start(e.getIn(), System.currentTimeMillis())))
+                .to("direct:setSyncJob")
+                .setBody(constant(null))
+                .routeId("chouette-synchronize-stop-places-job-start");
+
+        from("direct:resumeSyncJob")
+                .filter(e -> syncJobCheckpointEnabled)
+                .setBody(constant(null))
+                .to("direct:getSyncJob")
+                .process(e -> resumeSyncJob(e))
+                .setBody(constant(null))
+                .filter(exchangeProperty(PROPERTY_SYNC_JOB_SUPERSEDED).isEqualTo(true))
+                .log(LoggingLevel.INFO, "Discarding iteration of sync job ${header." + HEADER_SYNC_JOB_ID + "} after ${header." + HEADER_SYNC_JOB_PAGES_COMPLETED + "} pages, job is completed or superseded")
+                .stop()
+                .end()
+                .routeId("chouette-synchronize-stop-places-job-resume");
+
+        from("direct:checkpointSyncJob")
+                .filter(e -> syncJobCheckpointEnabled)
+                .setBody(constant(null))
+                .to("direct:getSyncJob")
+                .choice()
+                .when(e -> SyncJobCheckpoints.isSuperseded(e.getIn(), e.getIn().getBody(SyncJob.class)))
+                .log(LoggingLevel.INFO, "Stopping iteration of sync job ${header." + HEADER_SYNC_JOB_ID + "} after ${header." + HEADER_SYNC_JOB_PAGES_COMPLETED + "} pages, job is completed or superseded")
+                .stop()
+                .otherwise()
+                .process(e -> e.getIn().setBody(SyncJobCheckpoints.checkpoint(e.getIn(), e.getIn().getBody(SyncJob.class), System.currentTimeMillis())))
+                .to("direct:setSyncJob")
+                .end()
+                .setBody(constant(null))
+                .routeId("chouette-synchronize-stop-places-job-checkpoint");
+
+        from("direct:clearSyncJob")
+                .filter(e -> syncJobCheckpointEnabled)
+                .setBody(constant(null))
+                .to("direct:deleteSyncJob")
+                .routeId("chouette-synchronize-stop-places-job-clear");
+
         from("direct:completeSynchronization")
                 .choice()
                 .when(header(Constants.HEADER_SYNC_STATUS_TO).isNotNull())
                 // Adjust sync status back in time to be sure to catch any historic changes not yet committed in stop place registry
                 .process(e -> e.getIn().setBody(e.getIn().getHeader(HEADER_SYNC_STATUS_TO, Instant.class).minusMillis(graceMilliseconds)))
                 .to("direct:setSyncStatusUntilTime")
+                .process(e -> reportBytesTransferred(e))
+                .process(e -> adjustBatchSize(e))
+                .process(e -> recordChangesSynced(e))
                 .log(LoggingLevel.INFO, "${header." + HEADER_SYNC_OPERATION + "} synchronization of stop places in Chouette completed.")
                 .otherwise()
                 .log(LoggingLevel.INFO, "${header." + HEADER_SYNC_OPERATION + "} synchronization of stop places in Chouette completed, unable to update etcd.")
                 .end()
+                .to("direct:triggerTargetedSynchronizationIfPending")
 
                 .routeId("chouette-synchronize-stop-places-complete");
 
 
+        from("direct:synchronizeTargetedStopPlaces")
+                .process(e -> e.setProperty(PROPERTY_TARGETED_IDS, pendingStopPlaceIds.drain(targetedSyncMaxIds).toArray(new String[0])))
+                .choice()
+                .when(e -> getTargetedIds(e).length == 0)
+                .log(LoggingLevel.DEBUG, "No stop places pending targeted synchronization.")
+                .otherwise()
+                .setBody(exchangeProperty(PROPERTY_TARGETED_IDS))
+                .process(e -> logger.info("Targeted synchronization of {} stop places in Chouette started.", getTargetedIds(e).length))
+                .to("direct:synchronizeTargetedStopPlacePages")
+                .end()
+                .routeId("chouette-synchronize-stop-places-targeted");
+
+        from("direct:synchronizeTargetedStopPlacePages")
+                .doTry()
+                .to("direct:setStopPlacesByIdURL")
+                .setHeader(Constants.HEADER_PROCESS_TARGET, constant("direct:synchronizeStopPlaceBatch"))
+                .to("direct:synchronizeStopPlacePages")
+                .log(LoggingLevel.INFO, "Targeted synchronization of stop places in Chouette completed.")
+                .process(e -> propagationLagMetrics.record(PropagationLagMetrics.STAGE_CHOUETTE_SYNCED, e.getIn()))
+                .to("direct:triggerTargetedSynchronizationIfPending")
+                .doCatch(HttpOperationFailedException.class, ChouetteBusyException.class).onWhen(exchange -> chouetteRetryPolicy.isChouetteBusy(exchange))
+                .process(e -> pendingStopPlaceIds.addAll(Arrays.asList(getTargetedIds(e))))
+                .process(e -> chouetteRetryPolicy.scheduleRetry(e))
+                .log(LoggingLevel.INFO, "Unable to sync targeted stop places because Chouette is busy, retry attempt ${header." + HEADER_CHOUETTE_RETRY_ATTEMPT + "} in ${header." + ScheduledMessage.AMQ_SCHEDULED_DELAY + "} ms")
+                .removeHeader(HEADER_NEXT_BATCH_URL)
+                .setBody(constant(null))
+                .to("activemq:queue:ChouetteStopPlaceSyncQueue")
+                .doCatch(Exception.class)
+                // Put ids back for next attempt
+                .process(e -> {
+                    pendingStopPlaceIds.addAll(Arrays.asList(getTargetedIds(e)));
+                    throw e.getProperty(Exchange.EXCEPTION_CAUGHT, Exception.class);
+                })
+                .end()
+                .routeId("chouette-synchronize-stop-places-targeted-pages");
+
+        // Trigger for targeted sync is dropped when merged with a message for another sync in progress, and more ids than max for one sync may be pending
+        from("direct:triggerTargetedSynchronizationIfPending")
+                .filter(e -> targetedSyncEnabled && pendingStopPlaceIds.size() > 0)
+                .wireTap("direct:triggerTargetedSynchronization")
+                .end()
+                .routeId("chouette-synchronize-stop-places-targeted-trigger-pending");
+
+        // New message without state of the sync just completed
+        from("direct:triggerTargetedSynchronization")
+                .removeHeaders("Rutebanken*")
+                .setHeader(HEADER_SYNC_OPERATION, constant(SYNC_OPERATION_TARGETED))
+                .setBody(constant(null))
+                .log(LoggingLevel.INFO, "Stop places pending targeted synchronization, triggering new targeted synchronization.")
+                .to("activemq:queue:ChouetteStopPlaceSyncQueue")
+                .routeId("chouette-synchronize-stop-places-targeted-trigger");
+
         from("direct:deleteUnusedStopPlaces")
                 .log(LoggingLevel.INFO, "Full synchronization of stop places in Chouette, deleting unused stops first")
                 .removeHeaders("CamelHttp*")
                 .setBody(constant(null))
                 .setHeader(Exchange.HTTP_METHOD, constant(HttpMethods.DELETE))
                 .doTry()
+                .process(e -> chouetteRetryPolicy.checkRequestAllowed(e))
                 .toD(toHttp4Url(chouetteUrl) + "/chouette_iev/stop_place/unused")
+                .process(e -> chouetteRetryPolicy.onSuccess(e))
+                // Full sync requested with clean first should not resume an interrupted job
+                .to("direct:clearSyncJob")
+                // Chouette does not tell which stop places were deleted, so following full sync forwards all stop places. Hashes are kept for other syncs
                 .setHeader(HEADER_SYNC_OPERATION, constant(SYNC_OPERATION_FULL))
+                .setHeader(HEADER_SYNC_UNFILTERED, constant(true))
                 .log(LoggingLevel.INFO, "Deleting unused stop places in Chouette completed.")
                 .to("activemq:queue:ChouetteStopPlaceSyncQueue")
-                .doCatch(HttpOperationFailedException.class).onWhen(exchange -> {
-            HttpOperationFailedException ex = exchange.getException(HttpOperationFailedException.class);
-            return (ex.getStatusCode() == 423);
-        })
-                .log(LoggingLevel.INFO, "Unable to delete unused stop places because Chouette is busy, retry in " + retryDelay + " ms")
-                .setHeader(ScheduledMessage.AMQ_SCHEDULED_DELAY, constant(retryDelay))
+                .doCatch(HttpOperationFailedException.class, ChouetteBusyException.class).onWhen(exchange -> chouetteRetryPolicy.isChouetteBusy(exchange))
+                .process(e -> chouetteRetryPolicy.scheduleRetry(e))
+                .log(LoggingLevel.INFO, "Unable to delete unused stop places because Chouette is busy, retry attempt ${header." + HEADER_CHOUETTE_RETRY_ATTEMPT + "} in ${header." + ScheduledMessage.AMQ_SCHEDULED_DELAY + "} ms")
                 .setBody(constant(null))
                 .to("activemq:queue:ChouetteStopPlaceSyncQueue")
                 .stop()
@@ -156,24 +341,194 @@ public class ChouetteStopPlaceUpdateRouteBuilder extends BaseRouteBuilder {
 
 
         from("direct:synchronizeStopPlaceBatch")
-                .convertBodyTo(String.class)
+                .streamCaching(StreamCachingConfig.STREAM_CACHING)
+                .process(e -> e.setProperty(PROPERTY_PAGE_CHANGED, stopPlaceContentFilter.filter(e)))
+                .choice()
+                .when(exchangeProperty(PROPERTY_PAGE_CHANGED).isEqualTo(false))
+                .log(LoggingLevel.INFO, "Not posting page to Chouette, no stop places changed since last accepted by Chouette")
+                .otherwise()
+                .to("direct:postStopPlaceBatch")
+                .end()
+                .removeProperty(PROPERTY_PAGE_CHANGED)
+                .routeId("chouette-synchronize-stop-place-batch-filter");
+
+        from("direct:postStopPlaceBatch")
+                .streamCaching(StreamCachingConfig.STREAM_CACHING)
+                .process(e -> e.setProperty(PROPERTY_PAGE_BYTES, TransferSize.bytes(e.getIn().getBody())))
+                .process(e -> prepareStopPlaceBatchBody(e))
                 .removeHeaders("CamelHttp*")
                 .setHeader(Exchange.HTTP_METHOD, constant(HttpMethods.POST))
                 .doTry()
+                // Permit first, so that a permit timeout does not take the probe slot of a half open circuit breaker
+                .process(e -> syncPartitionCoordinator.acquireChouettePermit(e))
+                .process(e -> chouetteRetryPolicy.checkRequestAllowed(e))
+                .process(e -> e.setProperty(PROPERTY_POST_START, System.currentTimeMillis()))
                 .toD(toHttp4Url(chouetteUrl) + "/chouette_iev/stop_place")
-                .doCatch(HttpOperationFailedException.class).onWhen(exchange -> {
-            HttpOperationFailedException ex = exchange.getException(HttpOperationFailedException.class);
-            return (ex.getStatusCode() == 423);
-        })
-                .log(LoggingLevel.INFO, "Unable to sync stop places because Chouette is busy, retry in " + retryDelay + " ms")
-                .setHeader(ScheduledMessage.AMQ_SCHEDULED_DELAY, constant(retryDelay))
+                .process(e -> registerPagePosted(e))
+                .process(e -> chouetteRetryPolicy.onSuccess(e))
+                .process(e -> stopPlaceContentFilter.registerAccepted(e))
+                .process(e -> registerBytesSent(e))
+                .doCatch(HttpOperationFailedException.class, ChouetteBusyException.class).onWhen(exchange -> chouetteRetryPolicy.isChouetteBusy(exchange))
+                .process(e -> {
+                    // Page was not posted at all if circuit breaker is open, so page size is not to blame
+                    if (!(e.getProperty(Exchange.EXCEPTION_CAUGHT) instanceof ChouetteBusyException)) {
+                        syncBatchSizeController.onChouetteBusy();
+                        e.getIn().setHeader(HEADER_SYNC_CHOUETTE_BUSY, e.getIn().getHeader(HEADER_SYNC_CHOUETTE_BUSY, 0, Integer.class) + 1);
+                    }
+                })
+                .process(e -> {
+                    // Pages in partition or targeted sync are retried by calling route
+                    if (e.getIn().getHeader(HEADER_SYNC_PARTITION) != null || SYNC_OPERATION_TARGETED.equals(e.getIn().getHeader(HEADER_SYNC_OPERATION))) {
+                        throw e.getProperty(Exchange.EXCEPTION_CAUGHT, Exception.class);
+                    }
+                })
+                .process(e -> chouetteRetryPolicy.scheduleRetry(e))
+                .log(LoggingLevel.INFO, "Unable to sync stop places because Chouette is busy, retry attempt ${header." + HEADER_CHOUETTE_RETRY_ATTEMPT + "} in ${header." + ScheduledMessage.AMQ_SCHEDULED_DELAY + "} ms")
                 .setBody(constant(null))
                 .to("activemq:queue:ChouetteStopPlaceSyncQueue")
                 .stop()
+                .doCatch(Exception.class)
+                .process(e -> {
+                    Exception ex = e.getProperty(Exchange.EXCEPTION_CAUGHT, Exception.class);
+                    syncBatchSizeController.onPostFailed(ex);
+                    throw ex;
+                })
+                .doFinally()
+                .process(e -> syncPartitionCoordinator.releaseChouettePermit(e))
+                .end()
                 .routeId("chouette-synchronize-stop-place-batch");
 
     }
 
+    /**
+     * Prepare NeTEx page from Tiamat for posting to Chouette, depending on whether the page is compressed and whether Chouette
+     * should receive it compressed.
+     */
+    private void prepareStopPlaceBatchBody(Exchange e) throws InvalidPayloadException, IOException {
+        boolean compressed = GZIPHelper.isGzip(e.getIn().getHeader(Exchange.CONTENT_ENCODING, String.class));
+        // Encoding of request is given by entity
+        e.getIn().removeHeader(Exchange.CONTENT_ENCODING);
+
+        if (compressed) {
+            if (chouetteCompressionEnabled) {
+                long uncompressed = TransferSize.gzipUncompressedBytes(e.getIn().getBody());
+                setCompressedEntity(e, CountingEntity.gzipEncoded(e.getIn().getMandatoryBody(InputStream.class), ContentType.APPLICATION_XML, uncompressed));
+                return;
+            }
+            e.getIn().setBody(new GZIPInputStream(e.getIn().getMandatoryBody(InputStream.class)));
+        }
+
+        if (chouetteCompressionEnabled) {
+            setCompressedEntity(e, CountingEntity.gzipCompressing(e.getIn().getMandatoryBody(InputStream.class), ContentType.APPLICATION_XML));
+        } else if (streamingEnabled) {
+            e.getIn().setBody(e.getIn().getMandatoryBody(InputStream.class));
+        } else {
+            e.getIn().setBody(e.getIn().getMandatoryBody(String.class));
+        }
+    }
+
+    private void setCompressedEntity(Exchange e, CountingEntity entity) {
+        e.getIn().setBody(entity);
+        e.setProperty(PROPERTY_COMPRESSED_ENTITY, entity);
+    }
+
+    /**
+     * Accumulate bytes sent gzip encoded to Chouette for the whole sync run in headers, which are passed on to next iteration.
+     */
+    private void registerBytesSent(Exchange e) {
+        CountingEntity entity = e.getProperty(PROPERTY_COMPRESSED_ENTITY, CountingEntity.class);
+        e.removeProperty(PROPERTY_COMPRESSED_ENTITY);
+        if (entity == null || entity.getUncompressedBytes() < 0) {
+            return;
+        }
+        Message in = e.getIn();
+        in.setHeader(HEADER_SYNC_BYTES_SENT, in.getHeader(HEADER_SYNC_BYTES_SENT, 0L, Long.class) + entity.getBytesWritten());
+        in.setHeader(HEADER_SYNC_BYTES_SENT_UNCOMPRESSED, in.getHeader(HEADER_SYNC_BYTES_SENT_UNCOMPRESSED, 0L, Long.class) + entity.getUncompressedBytes());
+    }
+
+    /**
+     * Let batch size controller decrease page size for slow or large page, and keep worst latency and largest page of
+     * sync run in headers, for adjusting page size when the run completes.
+     */
+    private void registerPagePosted(Exchange e) {
+        long latency = System.currentTimeMillis() - e.getProperty(PROPERTY_POST_START, Long.class);
+        long pageBytes = e.getProperty(PROPERTY_PAGE_BYTES, Long.class);
+        syncBatchSizeController.onPagePosted(latency, pageBytes);
+
+        Message in = e.getIn();
+        in.setHeader(HEADER_SYNC_MAX_PAGE_LATENCY, Math.max(latency, in.getHeader(HEADER_SYNC_MAX_PAGE_LATENCY, 0L, Long.class)));
+        in.setHeader(HEADER_SYNC_MAX_PAGE_BYTES, Math.max(pageBytes, in.getHeader(HEADER_SYNC_MAX_PAGE_BYTES, 0L, Long.class)));
+    }
+
+    /**
+     * Page size may be increased once per completed sync run in which pages were posted.
+     */
+    private void adjustBatchSize(Exchange e) {
+        Message in = e.getIn();
+        Long maxLatency = in.getHeader(HEADER_SYNC_MAX_PAGE_LATENCY, Long.class);
+        Long runStarted = in.getHeader(HEADER_SYNC_STATUS_TO, Long.class);
+        if (maxLatency == null || runStarted == null) {
+            return;
+        }
+        syncBatchSizeController.onSyncCompleted(runStarted, maxLatency, in.getHeader(HEADER_SYNC_MAX_PAGE_BYTES, 0L, Long.class),
+                in.getHeader(HEADER_SYNC_CHOUETTE_BUSY, 0, Integer.class));
+    }
+
+    private boolean isNewPartitionedFullSync(Exchange e) {
+        return syncPartitionCoordinator.isEnabled()
+                       && SYNC_OPERATION_FULL.equals(e.getIn().getHeader(HEADER_SYNC_OPERATION))
+                       && e.getIn().getHeader(HEADER_NEXT_BATCH_URL) == null;
+    }
+
+    /**
+     * Resume stored sync job for new sync request or retry of a page. Iterations of a job that has been completed or
+     * superseded by another job are marked to be discarded.
+     */
+    private void resumeSyncJob(Exchange e) {
+        Message in = e.getIn();
+        SyncJob stored = in.getBody(SyncJob.class);
+        if (in.getHeader(HEADER_NEXT_BATCH_URL) == null) {
+            if (SyncJobCheckpoints.resume(in, stored)) {
+                logger.info("Resuming {} sync job {} after {} completed pages", stored.getOperation(), stored.getJobId(), stored.getPagesCompleted());
+            } else {
+                in.removeHeader(HEADER_SYNC_JOB_ID);
+                in.removeHeader(HEADER_SYNC_JOB_PAGES_COMPLETED);
+            }
+        } else if (SyncJobCheckpoints.isSuperseded(in, stored)) {
+            e.setProperty(PROPERTY_SYNC_JOB_SUPERSEDED, true);
+        }
+    }
+
+    private void reportBytesTransferred(Exchange e) {
+        String syncOperation = e.getIn().getHeader(HEADER_SYNC_OPERATION, String.class);
+        Long received = e.getIn().getHeader(HEADER_SYNC_BYTES_RECEIVED, Long.class);
+        Long uncompressed = e.getIn().getHeader(HEADER_SYNC_BYTES_UNCOMPRESSED, Long.class);
+        if (received != null && uncompressed != null && received > 0) {
+            double compressionRatio = reportBytesTransferred(syncOperation, "tiamat", "received", received, uncompressed);
+            logger.info("{} synchronization of stop places transferred {} bytes from Tiamat ({} bytes uncompressed, compression ratio {})",
+                    syncOperation, received, uncompressed, String.format("%.2f", compressionRatio));
+        }
+
+        Long sent = e.getIn().getHeader(HEADER_SYNC_BYTES_SENT, Long.class);
+        Long sentUncompressed = e.getIn().getHeader(HEADER_SYNC_BYTES_SENT_UNCOMPRESSED, Long.class);
+        if (sent != null && sentUncompressed != null && sent > 0) {
+            double compressionRatio = reportBytesTransferred(syncOperation, "chouette", "sent", sent, sentUncompressed);
+            logger.info("{} synchronization of stop places transferred {} bytes to Chouette ({} bytes uncompressed, compression ratio {})",
+                    syncOperation, sent, sentUncompressed, String.format("%.2f", compressionRatio));
+        }
+    }
+
+    private double reportBytesTransferred(String syncOperation, String link, String type, long transferred, long uncompressed) {
+        double compressionRatio = (double) uncompressed / transferred;
+        DistributionSummary.builder("irkalla.sync.bytes").baseUnit("bytes").tag("operation", syncOperation).tag("link", link).tag("type", type)
+                .register(meterRegistry).record(transferred);
+        DistributionSummary.builder("irkalla.sync.bytes").baseUnit("bytes").tag("operation", syncOperation).tag("link", link).tag("type", "uncompressed")
+                .register(meterRegistry).record(uncompressed);
+        DistributionSummary.builder("irkalla.sync.compression.ratio").tag("operation", syncOperation).tag("link", link)
+                .register(meterRegistry).record(compressionRatio);
+        return compressionRatio;
+    }
+
     /**
      * Merge status from all msg read in batch into current exchange.
      * <p>
@@ -193,12 +548,52 @@ public class ChouetteStopPlaceUpdateRouteBuilder extends BaseRouteBuilder {
                 e.getIn().setHeader(HEADER_SYNC_OPERATION, SYNC_OPERATION_DELTA);
             } else {
                 e.getIn().setHeader(HEADER_SYNC_OPERATION, syncOperation);
+                e.getIn().setHeader(HEADER_SYNC_STATUS_FROM, topPriMsg.getProperty(HEADER_SYNC_STATUS_FROM));
                 e.getIn().setHeader(HEADER_SYNC_STATUS_TO, topPriMsg.getProperty(HEADER_SYNC_STATUS_TO));
                 e.getIn().setHeader(HEADER_NEXT_BATCH_URL, topPriMsg.getProperty(HEADER_NEXT_BATCH_URL));
+                e.getIn().setHeader(HEADER_SYNC_BYTES_RECEIVED, topPriMsg.getProperty(HEADER_SYNC_BYTES_RECEIVED));
+                e.getIn().setHeader(HEADER_SYNC_BYTES_UNCOMPRESSED, topPriMsg.getProperty(HEADER_SYNC_BYTES_UNCOMPRESSED));
+                e.getIn().setHeader(HEADER_SYNC_BYTES_SENT, topPriMsg.getProperty(HEADER_SYNC_BYTES_SENT));
+                e.getIn().setHeader(HEADER_SYNC_BYTES_SENT_UNCOMPRESSED, topPriMsg.getProperty(HEADER_SYNC_BYTES_SENT_UNCOMPRESSED));
+                e.getIn().setHeader(HEADER_CHOUETTE_RETRY_ATTEMPT, topPriMsg.getProperty(HEADER_CHOUETTE_RETRY_ATTEMPT));
+                e.getIn().setHeader(HEADER_SYNC_JOB_ID, topPriMsg.getProperty(HEADER_SYNC_JOB_ID));
+                e.getIn().setHeader(HEADER_SYNC_JOB_PAGES_COMPLETED, topPriMsg.getProperty(HEADER_SYNC_JOB_PAGES_COMPLETED));
+                e.getIn().setHeader(HEADER_SYNC_UNFILTERED, topPriMsg.getProperty(HEADER_SYNC_UNFILTERED));
             }
+            e.getIn().setHeader(HEADER_CHANGELOG_ENQUEUED_TIME, getFirstChangelogEnqueuedTime(msgList));
         } catch (IOException ioE) {
             throw new IrkallaException("Unable to get sync operation header as property from ActiveMQMessage: " + ioE.getMessage(), ioE);
         }
     }
 
+    private static String[] getTargetedIds(Exchange e) {
+        String[] ids = e.getProperty(PROPERTY_TARGETED_IDS, String[].class);
+        return ids == null ? new String[0] : ids;
+    }
+
+    /**
+     * Sync may be triggered by several changelog events, lag is measured from the first of them.
+     */
+    private Long getFirstChangelogEnqueuedTime(List<ActiveMQMessage> msgList) throws IOException {
+        Long first = null;
+        for (ActiveMQMessage msg : msgList) {
+            Object enqueuedTime = msg.getProperty(HEADER_CHANGELOG_ENQUEUED_TIME);
+            if (enqueuedTime instanceof Number && (first == null || ((Number) enqueuedTime).longValue() < first)) {
+                first = ((Number) enqueuedTime).longValue();
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Changes are only covered by a delta or full sync if they were registered before the sync started.
+     */
+    private void recordChangesSynced(Exchange e) {
+        Long enqueuedTime = e.getIn().getHeader(HEADER_CHANGELOG_ENQUEUED_TIME, Long.class);
+        Long syncedUntil = e.getIn().getHeader(HEADER_SYNC_STATUS_TO, Long.class);
+        if (enqueuedTime != null && syncedUntil != null && enqueuedTime <= syncedUntil) {
+            propagationLagMetrics.record(PropagationLagMetrics.STAGE_CHOUETTE_SYNCED, e.getIn());
+        }
+    }
+
 }
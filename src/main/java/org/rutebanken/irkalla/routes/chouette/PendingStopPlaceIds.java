@@ -0,0 +1,79 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.ISet;
+import org.rutebanken.irkalla.routes.singleton.SingletonRoutePolicyFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Cluster wide set of ids for stop places with effective changes not yet synced to Chouette by targeted sync.
+ */
+@Component
+public class PendingStopPlaceIds {
+
+    private static final String SET_NAME = "irkalla.sync.pending.stop.places";
+
+    private final Supplier<HazelcastInstance> hazelcast;
+
+    @Autowired
+    public PendingStopPlaceIds(SingletonRoutePolicyFactory singletonRoutePolicyFactory) {
+        this(singletonRoutePolicyFactory::getHazelcastInstance);
+    }
+
+    PendingStopPlaceIds(Supplier<HazelcastInstance> hazelcast) {
+        this.hazelcast = hazelcast;
+    }
+
+    public void add(String id) {
+        getSet().add(id);
+    }
+
+    public void addAll(Collection<String> ids) {
+        getSet().addAll(ids);
+    }
+
+    /**
+     * Remove and return up to max ids. Ids added after this are pending until next drain. The current version is always
+     * exported from Tiamat, so a change registered while its id is drained is still synced.
+     */
+    public List<String> drain(int max) {
+        ISet<String> set = getSet();
+        List<String> ids = new ArrayList<>();
+        Iterator<String> iterator = set.iterator();
+        while (iterator.hasNext() && ids.size() < max) {
+            ids.add(iterator.next());
+        }
+        set.removeAll(ids);
+        return ids;
+    }
+
+    public int size() {
+        return getSet().size();
+    }
+
+    private ISet<String> getSet() {
+        return hazelcast.get().getSet(SET_NAME);
+    }
+}
@@ -0,0 +1,548 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import com.hazelcast.core.IMap;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.camel.Exchange;
+import org.apache.camel.InvalidPayloadException;
+import org.apache.camel.StreamCache;
+import org.apache.camel.converter.stream.CachedOutputStream;
+import org.apache.camel.util.GZIPHelper;
+import org.apache.camel.util.IOHelper;
+import org.rutebanken.irkalla.IrkallaException;
+import org.rutebanken.irkalla.routes.singleton.SingletonRoutePolicyFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.rutebanken.irkalla.Constants.HEADER_SYNC_OPERATION;
+import static org.rutebanken.irkalla.Constants.HEADER_SYNC_UNFILTERED;
+import static org.rutebanken.irkalla.Constants.SYNC_OPERATION_DELTA;
+import static org.rutebanken.irkalla.Constants.SYNC_OPERATION_TARGETED;
+
+/**
+ * Remove stop places not changed since last accepted by Chouette from NeTEx pages before they are posted.
+ * <p>
+ * Each StopPlace element is hashed over its parse events, so that the hash does not depend on whitespace between elements,
+ * attribute order, namespace prefixes, character encoding or how text is escaped. A stop place is forwarded to Chouette if
+ * its hash differs from the hash registered when it was last accepted, or if it is the parent of a forwarded stop place.
+ * Hashes are kept in a Hazelcast map, so that they are shared by and survive restarts of cluster members.
+ * <p>
+ * The page is streamed twice, without holding it on heap: first to hash the stop places, then to copy the page to a stream
+ * cached output without the suppressed stop places. Compressed pages are compressed again. A page where no stop place is
+ * suppressed is passed on as is.
+ * <p>
+ * With targeted sync enabled, stop places posted by targeted sync are hashed without being filtered, and delta sync pages
+ * are filtered even if the filter is not enabled for all syncs. The delta sync then only forwards stop places not already
+ * synced by a targeted sync, ie stop places for which the change event was lost.
+ */
+@Component
+public class StopPlaceContentFilter {
+
+    private static final String MAP_NAME = "irkalla.sync.stop.place.hashes";
+
+    private static final String PROPERTY_FILTER_RESULT = "RutebankenStopPlaceFilterResult";
+
+    private static final String STOP_PLACES = "stopPlaces";
+
+    private static final String STOP_PLACE = "StopPlace";
+
+    private static final String PARENT_SITE_REF = "ParentSiteRef";
+
+    /**
+     * Separates tokens fed to the hash. Not allowed in XML, so it cannot occur in names or text.
+     */
+    private static final byte SEPARATOR = 0;
+
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    static {
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        // Report CDATA and escaped text alike, as one text event
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    @Value("${sync.stop.place.content.filter.enabled:false}")
+    private boolean enabled;
+
+    @Value("${sync.stop.place.targeted.enabled:false}")
+    private boolean targetedSyncEnabled;
+
+    private final SingletonRoutePolicyFactory singletonRoutePolicyFactory;
+
+    private final Counter forwardedCounter;
+
+    private final Counter suppressedCounter;
+
+    public StopPlaceContentFilter(@Autowired SingletonRoutePolicyFactory singletonRoutePolicyFactory, @Autowired MeterRegistry meterRegistry) {
+        this.singletonRoutePolicyFactory = singletonRoutePolicyFactory;
+        this.forwardedCounter = meterRegistry.counter("irkalla.sync.stop.place.filter", "result", "forwarded");
+        this.suppressedCounter = meterRegistry.counter("irkalla.sync.stop.place.filter", "result", "suppressed");
+    }
+
+    /**
+     * Remove unchanged stop places from NeTEx page in body.
+     *
+     * @return false if the page contained stop places, but none of them were changed
+     */
+    public boolean filter(Exchange e) throws InvalidPayloadException, IOException {
+        if (!isHashed(e)) {
+            return true;
+        }
+        Function<Set<String>, Map<String, Long>> acceptedHashesLookup = isFiltered(e) ? ids -> getAcceptedHashes().getAll(ids) : ids -> new HashMap<>();
+        Result result = filter(e, acceptedHashesLookup);
+
+        forwardedCounter.increment(result.forwardedHashes.size());
+        suppressedCounter.increment(result.stopPlaceCount - result.forwardedHashes.size());
+        e.setProperty(PROPERTY_FILTER_RESULT, result);
+        return result.stopPlaceCount == 0 || !result.forwardedHashes.isEmpty();
+    }
+
+    /**
+     * Register hashes for stop places in page accepted by Chouette.
+     */
+    public void registerAccepted(Exchange e) {
+        Result result = e.getProperty(PROPERTY_FILTER_RESULT, Result.class);
+        if (result != null && !result.forwardedHashes.isEmpty()) {
+            getAcceptedHashes().putAll(result.forwardedHashes);
+        }
+    }
+
+    public void remove(String stopPlaceId) {
+        if (isActive()) {
+            getAcceptedHashes().delete(stopPlaceId);
+        }
+    }
+
+    private boolean isActive() {
+        return enabled || targetedSyncEnabled;
+    }
+
+    private boolean isHashed(Exchange e) {
+        String syncOperation = e.getIn().getHeader(HEADER_SYNC_OPERATION, String.class);
+        return enabled || targetedSyncEnabled && (SYNC_OPERATION_TARGETED.equals(syncOperation) || SYNC_OPERATION_DELTA.equals(syncOperation));
+    }
+
+    /**
+     * Whether unchanged stop places should be suppressed. Syncs marked as unfiltered, ie the full sync following deletion of
+     * unused stop places in Chouette, forward all stop places but still register their hashes.
+     */
+    private boolean isFiltered(Exchange e) {
+        if (e.getIn().getHeader(HEADER_SYNC_UNFILTERED, false, Boolean.class)) {
+            return false;
+        }
+        return enabled || targetedSyncEnabled && SYNC_OPERATION_DELTA.equals(e.getIn().getHeader(HEADER_SYNC_OPERATION, String.class));
+    }
+
+    /**
+     * Hash stop places in NeTEx page in body and replace body with page without unchanged stop places, if any.
+     */
+    static Result filter(Exchange e, Function<Set<String>, Map<String, Long>> acceptedHashesLookup) throws InvalidPayloadException, IOException {
+        boolean compressed = GZIPHelper.isGzip(e.getIn().getHeader(Exchange.CONTENT_ENCODING, String.class));
+        NetexSource netex = netexSource(e, compressed);
+        try {
+            Result result = selectChanged(hashStopPlaces(netex), acceptedHashesLookup);
+            if (result.isModified()) {
+                CachedOutputStream cachedOutputStream = new CachedOutputStream(e);
+                try (OutputStream out = compressed ? new GZIPOutputStream(cachedOutputStream) : cachedOutputStream) {
+                    write(netex, result.suppressed, out);
+                }
+                e.getIn().setBody(cachedOutputStream.newStreamCache());
+            }
+            return result;
+        } catch (XMLStreamException ex) {
+            throw new IrkallaException("Failed to read stop places in NeTEx: " + ex.getMessage(), ex);
+        } finally {
+            resetBody(e);
+        }
+    }
+
+    /**
+     * Source for reading the page in body more than once. A page not already cached is cached, spooled to disk if large.
+     */
+    private static NetexSource netexSource(Exchange e, boolean compressed) throws InvalidPayloadException, IOException {
+        Object body = e.getIn().getBody();
+        NetexSource source;
+        if (body instanceof StreamCache && body instanceof InputStream) {
+            source = () -> {
+                ((StreamCache) body).reset();
+                return new UnclosedInputStream((InputStream) body);
+            };
+        } else if (body instanceof InputStream) {
+            CachedOutputStream cachedOutputStream = new CachedOutputStream(e);
+            IOHelper.copyAndCloseInput((InputStream) body, cachedOutputStream);
+            e.getIn().setBody(cachedOutputStream.newStreamCache());
+            return netexSource(e, compressed);
+        } else {
+            byte[] page = e.getIn().getMandatoryBody(byte[].class);
+            source = () -> new ByteArrayInputStream(page);
+        }
+        return compressed ? () -> new GZIPInputStream(source.open()) : source;
+    }
+
+    private static void resetBody(Exchange e) {
+        Object body = e.getIn().getBody();
+        if (body instanceof StreamCache) {
+            ((StreamCache) body).reset();
+        }
+    }
+
+    /**
+     * Hash child elements of each stopPlaces element, in document order.
+     */
+    static List<StopPlaceElement> hashStopPlaces(NetexSource netex) throws IOException, XMLStreamException {
+        List<StopPlaceElement> stopPlaces = new ArrayList<>();
+        try (InputStream in = netex.open()) {
+            XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(in);
+            try {
+                int depth = 0;
+                int sectionDepth = -1;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        if (sectionDepth >= 0 && depth == sectionDepth) {
+                            stopPlaces.add(readElement(reader));
+                            continue;
+                        }
+                        depth++;
+                        if (sectionDepth < 0 && STOP_PLACES.equals(reader.getLocalName())) {
+                            sectionDepth = depth;
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        if (depth == sectionDepth) {
+                            sectionDepth = -1;
+                        }
+                        depth--;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return stopPlaces;
+    }
+
+    /**
+     * Read id and parent of element at reader, and hash it from its parse events. Leaves reader at end of element.
+     */
+    private static StopPlaceElement readElement(XMLStreamReader reader) throws XMLStreamException {
+        StopPlaceElement stopPlace = new StopPlaceElement();
+        stopPlace.stopPlace = STOP_PLACE.equals(reader.getLocalName());
+        stopPlace.id = reader.getAttributeValue(null, "id");
+
+        MessageDigest digest = newDigest();
+        int depth = 0;
+        while (true) {
+            switch (reader.getEventType()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    hashStartElement(reader, digest);
+                    if (stopPlace.stopPlace && stopPlace.parentRef == null && PARENT_SITE_REF.equals(reader.getLocalName())) {
+                        stopPlace.parentRef = reader.getAttributeValue(null, "ref");
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    depth--;
+                    digest.update((byte) '/');
+                    digest.update(SEPARATOR);
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    // Whitespace between elements is formatting only
+                    if (!reader.isWhiteSpace()) {
+                        update(digest, "#", reader.getText());
+                    }
+                    break;
+                default:
+                    // Comments and processing instructions are not content
+            }
+            if (depth == 0) {
+                break;
+            }
+            reader.next();
+        }
+
+        stopPlace.hash = ByteBuffer.wrap(digest.digest()).getLong();
+        return stopPlace;
+    }
+
+    /**
+     * Hash element by namespace and local name, and attributes sorted by namespace and local name. Namespace prefixes and
+     * declarations are left out, as they do not change the content.
+     */
+    private static void hashStartElement(XMLStreamReader reader, MessageDigest digest) {
+        update(digest, "<", qualifiedName(reader.getNamespaceURI(), reader.getLocalName()));
+        List<String> attributes = new ArrayList<>(reader.getAttributeCount());
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            attributes.add(qualifiedName(reader.getAttributeNamespace(i), reader.getAttributeLocalName(i)) + '=' + reader.getAttributeValue(i));
+        }
+        Collections.sort(attributes);
+        for (String attribute : attributes) {
+            update(digest, "@", attribute);
+        }
+    }
+
+    private static String qualifiedName(String namespaceUri, String localName) {
+        return namespaceUri == null || namespaceUri.isEmpty() ? localName : '{' + namespaceUri + '}' + localName;
+    }
+
+    private static void update(MessageDigest digest, String type, String value) {
+        digest.update(type.getBytes(StandardCharsets.UTF_8));
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update(SEPARATOR);
+    }
+
+    static Result selectChanged(List<StopPlaceElement> stopPlaces, Function<Set<String>, Map<String, Long>> acceptedHashesLookup) {
+        Result result = new Result();
+        Set<String> ids = new HashSet<>();
+        for (StopPlaceElement stopPlace : stopPlaces) {
+            if (stopPlace.isFilterable()) {
+                ids.add(stopPlace.id);
+                result.stopPlaceCount++;
+            }
+        }
+        Map<String, Long> acceptedHashes = ids.isEmpty() ? new HashMap<>() : acceptedHashesLookup.apply(ids);
+
+        Set<String> forwardedIds = new HashSet<>();
+        for (StopPlaceElement stopPlace : stopPlaces) {
+            if (!stopPlace.isFilterable() || !Long.valueOf(stopPlace.hash).equals(acceptedHashes.get(stopPlace.id))) {
+                forwardedIds.add(stopPlace.id);
+                if (stopPlace.parentRef != null) {
+                    // Keep parent with changed child, so that Chouette can resolve reference
+                    forwardedIds.add(stopPlace.parentRef);
+                }
+            }
+        }
+
+        for (int i = 0; i < stopPlaces.size(); i++) {
+            StopPlaceElement stopPlace = stopPlaces.get(i);
+            if (!stopPlace.isFilterable()) {
+                continue;
+            }
+            if (forwardedIds.contains(stopPlace.id)) {
+                result.forwardedHashes.put(stopPlace.id, stopPlace.hash);
+            } else {
+                result.suppressed.set(i);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Copy page event by event, leaving out suppressed child elements of stopPlaces elements (by index in document order)
+     * together with their indentation.
+     */
+    static void write(NetexSource netex, BitSet suppressed, OutputStream out) throws IOException, XMLStreamException {
+        try (InputStream in = netex.open()) {
+            XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(in);
+            XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(out, StandardCharsets.UTF_8.name());
+            try {
+                writer.writeStartDocument(StandardCharsets.UTF_8.name(), reader.getVersion() != null ? reader.getVersion() : "1.0");
+                int depth = 0;
+                int sectionDepth = -1;
+                int index = 0;
+                String indentation = null;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    boolean sectionLevel = sectionDepth >= 0 && depth == sectionDepth;
+                    if (sectionLevel && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.SPACE) && reader.isWhiteSpace()) {
+                        indentation = indentation == null ? reader.getText() : indentation + reader.getText();
+                        continue;
+                    }
+                    if (sectionLevel && event == XMLStreamConstants.START_ELEMENT && suppressed.get(index++)) {
+                        skipElement(reader);
+                        indentation = null;
+                        continue;
+                    }
+                    if (indentation != null) {
+                        writer.writeCharacters(indentation);
+                        indentation = null;
+                    }
+                    switch (event) {
+                        case XMLStreamConstants.START_ELEMENT:
+                            depth++;
+                            if (sectionDepth < 0 && STOP_PLACES.equals(reader.getLocalName())) {
+                                sectionDepth = depth;
+                            }
+                            writeStartElement(reader, writer);
+                            break;
+                        case XMLStreamConstants.END_ELEMENT:
+                            if (depth == sectionDepth) {
+                                sectionDepth = -1;
+                            }
+                            depth--;
+                            writer.writeEndElement();
+                            break;
+                        case XMLStreamConstants.CHARACTERS:
+                        case XMLStreamConstants.SPACE:
+                            writer.writeCharacters(reader.getText());
+                            break;
+                        case XMLStreamConstants.CDATA:
+                            writer.writeCData(reader.getText());
+                            break;
+                        case XMLStreamConstants.COMMENT:
+                            writer.writeComment(reader.getText());
+                            break;
+                        case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                            writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+                            break;
+                        case XMLStreamConstants.END_DOCUMENT:
+                            writer.writeEndDocument();
+                            break;
+                        default:
+                            // DTD and unresolved entity references are not used in NeTEx
+                    }
+                }
+                writer.flush();
+            } finally {
+                writer.close();
+                reader.close();
+            }
+        }
+    }
+
+    private static void writeStartElement(XMLStreamReader reader, XMLStreamWriter writer) throws XMLStreamException {
+        writer.writeStartElement(emptyIfNull(reader.getPrefix()), reader.getLocalName(), emptyIfNull(reader.getNamespaceURI()));
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            String prefix = reader.getNamespacePrefix(i);
+            if (prefix == null || prefix.isEmpty()) {
+                writer.writeDefaultNamespace(reader.getNamespaceURI(i));
+            } else {
+                writer.writeNamespace(prefix, reader.getNamespaceURI(i));
+            }
+        }
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            writer.writeAttribute(emptyIfNull(reader.getAttributePrefix(i)), emptyIfNull(reader.getAttributeNamespace(i)),
+                    reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+        }
+    }
+
+    /**
+     * Skip element at reader, leaving reader at end of element.
+     */
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static String emptyIfNull(String value) {
+        return value == null ? "" : value;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            // First 64 bits of SHA-1 hash are used. Sufficient for detecting changes, and compact to store.
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IrkallaException("SHA-1 not supported: " + e.getMessage(), e);
+        }
+    }
+
+    private IMap<String, Long> getAcceptedHashes() {
+        return singletonRoutePolicyFactory.getHazelcastInstance().getMap(MAP_NAME);
+    }
+
+    /**
+     * Page to be read more than once.
+     */
+    interface NetexSource {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * Leaves cached body open when the stream reading it is closed, so that it can be reset and read again.
+     */
+    private static class UnclosedInputStream extends FilterInputStream {
+
+        UnclosedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() {
+            // Body is reset, not closed
+        }
+    }
+
+    static class StopPlaceElement {
+        private boolean stopPlace;
+        private String id;
+        private String parentRef;
+        private long hash;
+
+        private boolean isFilterable() {
+            return stopPlace && id != null;
+        }
+
+        long getHash() {
+            return hash;
+        }
+
+        String getId() {
+            return id;
+        }
+    }
+
+    static class Result {
+        int stopPlaceCount;
+        Map<String, Long> forwardedHashes = new HashMap<>();
+        BitSet suppressed = new BitSet();
+
+        boolean isModified() {
+            return !suppressed.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IAtomicLong;
+import com.hazelcast.core.IList;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.rutebanken.irkalla.routes.singleton.SingletonRoutePolicyFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Supplier;
+
+/**
+ * Tunes number of stop places per page (per_page) for synchronization from Tiamat to Chouette, using additive increase /
+ * multiplicative decrease (AIMD) based on how Chouette copes with the posted pages.
+ * <p>
+ * Page size is multiplied by a factor < 1 whenever a page is slow, too large, rejected because Chouette is busy (423) or
+ * fails. It is increased by a fixed step at most once per completed sync run, if all pages of the run were posted within
+ * target latency and max page size, Chouette was never busy, and the page size has not been decreased since the run
+ * started. A long run thereby cannot push the page size up by more than one step.
+ * <p>
+ * The page size is used for the next sync run, as pages within a run are given by Tiamat's next links, which page by
+ * offset. A rejected page is therefore retried with its original size, the decrease taking effect from the next run.
+ * <p>
+ * State is held in the Hazelcast cluster, so that a new leader of the sync routes continues from the current page size and
+ * all members report the same page size and history. With adaptive sizing disabled the configured page size is used as is.
+ */
+@Component
+public class SyncBatchSizeController {
+
+    private static final Logger logger = LoggerFactory.getLogger(SyncBatchSizeController.class);
+
+    private static final String BATCH_SIZE_NAME = "irkalla.sync.batch.size";
+
+    private static final String HISTORY_NAME = "irkalla.sync.batch.size.history";
+
+    private static final String LAST_DECREASE_NAME = "irkalla.sync.batch.size.last.decrease";
+
+    @Value("${sync.stop.place.batch.size.adaptive.enabled:false}")
+    private boolean enabled;
+
+    @Value("${sync.stop.place.batch.size.min:100}")
+    private int minBatchSize;
+
+    @Value("${sync.stop.place.batch.size.max:5000}")
+    private int maxBatchSize;
+
+    @Value("${sync.stop.place.batch.size.increase.step:100}")
+    private int increaseStep;
+
+    @Value("${sync.stop.place.batch.size.decrease.factor:0.5}")
+    private double decreaseFactor;
+
+    @Value("${sync.stop.place.batch.size.target.latency.ms:60000}")
+    private long targetLatencyMillis;
+
+    @Value("${sync.stop.place.batch.size.max.page.bytes:52428800}")
+    private long maxPageBytes;
+
+    @Value("${sync.stop.place.batch.size.history.size:50}")
+    private int historySize;
+
+    private final Supplier<HazelcastInstance> hazelcast;
+
+    /**
+     * Configured page size, used until the page size is first adjusted in the cluster.
+     */
+    private final int initialBatchSize;
+
+    @Autowired
+    public SyncBatchSizeController(SingletonRoutePolicyFactory singletonRoutePolicyFactory, MeterRegistry meterRegistry,
+                                          @Value("${sync.stop.place.batch.size:1000}") int batchSize) {
+        this(singletonRoutePolicyFactory::getHazelcastInstance, meterRegistry, batchSize);
+    }
+
+    SyncBatchSizeController(Supplier<HazelcastInstance> hazelcast, MeterRegistry meterRegistry, int batchSize) {
+        this.hazelcast = hazelcast;
+        this.initialBatchSize = batchSize;
+        Gauge.builder("irkalla.sync.batch.size", this, SyncBatchSizeController::getBatchSize).register(meterRegistry);
+    }
+
+    public int getBatchSize() {
+        if (!enabled) {
+            return initialBatchSize;
+        }
+        return toBatchSize(getClusterBatchSize().get());
+    }
+
+    /**
+     * Page successfully posted to Chouette.
+     */
+    public void onPagePosted(long latencyMillis, long pageBytes) {
+        if (latencyMillis > targetLatencyMillis) {
+            decrease("Latency " + latencyMillis + " ms above target");
+        } else if (pageBytes > maxPageBytes) {
+            decrease("Page size " + pageBytes + " bytes above max");
+        }
+    }
+
+    /**
+     * Sync run started at given time (epoch millis) completed, with worst page latency, largest page and number of pages
+     * rejected because Chouette was busy. Increases page size by one step if the run went well throughout.
+     */
+    public void onSyncCompleted(long runStarted, long maxLatencyMillis, long maxRunPageBytes, int busyResponses) {
+        if (!enabled || busyResponses > 0 || maxLatencyMillis > targetLatencyMillis || maxRunPageBytes > maxPageBytes) {
+            return;
+        }
+        if (getLastDecrease().get() > runStarted) {
+            logger.debug("Not increasing stop place sync batch size, decreased during sync run");
+            return;
+        }
+        adjust(batchSize -> Math.min(maxBatchSize, batchSize + increaseStep),
+                "Sync run completed with max page latency " + maxLatencyMillis + " ms and max page size " + maxRunPageBytes + " bytes");
+    }
+
+    /**
+     * Chouette rejected page because it is busy (423).
+     */
+    public void onChouetteBusy() {
+        decrease("Chouette busy");
+    }
+
+    public void onPostFailed(Throwable t) {
+        decrease("Post failed: " + (t != null ? t.getMessage() : null));
+    }
+
+    public Status getStatus() {
+        List<Adjustment> history = enabled ? new ArrayList<>(getHistory()) : new ArrayList<>();
+        return new Status(enabled, getBatchSize(), minBatchSize, maxBatchSize, history);
+    }
+
+    private void decrease(String reason) {
+        if (enabled) {
+            getLastDecrease().set(System.currentTimeMillis());
+        }
+        adjust(batchSize -> Math.max(minBatchSize, (int) (batchSize * decreaseFactor)), reason);
+    }
+
+    private void adjust(IntUnaryOperator adjustment, String reason) {
+        if (!enabled) {
+            return;
+        }
+        IAtomicLong clusterBatchSize = getClusterBatchSize();
+        while (true) {
+            long current = clusterBatchSize.get();
+            int batchSize = toBatchSize(current);
+            int newBatchSize = adjustment.applyAsInt(batchSize);
+            if (newBatchSize == batchSize) {
+                return;
+            }
+            if (clusterBatchSize.compareAndSet(current, newBatchSize)) {
+                logger.info("Adjusting stop place sync batch size from {} to {}: {}", batchSize, newBatchSize, reason);
+                addToHistory(new Adjustment(Instant.now().toString(), batchSize, newBatchSize, reason));
+                return;
+            }
+        }
+    }
+
+    private void addToHistory(Adjustment adjustment) {
+        IList<Adjustment> history = getHistory();
+        history.add(0, adjustment);
+        while (history.size() > historySize) {
+            history.remove(history.size() - 1);
+        }
+    }
+
+    /**
+     * Page size is not set in the cluster until first adjusted.
+     */
+    private int toBatchSize(long clusterBatchSize) {
+        return clusterBatchSize > 0 ? (int) clusterBatchSize : initialBatchSize;
+    }
+
+    private IAtomicLong getClusterBatchSize() {
+        return hazelcast.get().getAtomicLong(BATCH_SIZE_NAME);
+    }
+
+    private IAtomicLong getLastDecrease() {
+        return hazelcast.get().getAtomicLong(LAST_DECREASE_NAME);
+    }
+
+    private IList<Adjustment> getHistory() {
+        return hazelcast.get().getList(HISTORY_NAME);
+    }
+
+    public static class Status {
+        public final boolean enabled;
+        public final int batchSize;
+        public final int minBatchSize;
+        public final int maxBatchSize;
+        public final List<Adjustment> history;
+
+        public Status(boolean enabled, int batchSize, int minBatchSize, int maxBatchSize, List<Adjustment> history) {
+            this.enabled = enabled;
+            this.batchSize = batchSize;
+            this.minBatchSize = minBatchSize;
+            this.maxBatchSize = maxBatchSize;
+            this.history = history;
+        }
+    }
+
+    public static class Adjustment implements Serializable {
+        public final String time;
+        public final int from;
+        public final int to;
+        public final String reason;
+
+        public Adjustment(String time, int from, int to, String reason) {
+            this.time = time;
+            this.from = from;
+            this.to = to;
+            this.reason = reason;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.apache.camel.Message;
+import org.rutebanken.irkalla.domain.SyncJob;
+
+import java.util.UUID;
+
+import static org.rutebanken.irkalla.Constants.*;
+
+/**
+ * Map sync progress between message headers, which drive the sync iterations, and the sync job record persisted in the
+ * sync status store.
+ */
+public class SyncJobCheckpoints {
+
+    /**
+     * Start new job for sync initialized in headers.
+     */
+    public static SyncJob start(Message in, long now) {
+        in.setHeader(HEADER_SYNC_JOB_ID, UUID.randomUUID().toString());
+        in.setHeader(HEADER_SYNC_JOB_PAGES_COMPLETED, 0);
+        SyncJob job = fromHeaders(in, now);
+        job.setStarted(now);
+        return job;
+    }
+
+    /**
+     * Register that the current page is completed and return job to be stored. Headers must already point to next page.
+     */
+    public static SyncJob checkpoint(Message in, SyncJob stored, long now) {
+        if (in.getHeader(HEADER_SYNC_JOB_ID) == null) {
+            // Sync started before checkpointing was enabled
+            in.setHeader(HEADER_SYNC_JOB_ID, UUID.randomUUID().toString());
+        }
+        in.setHeader(HEADER_SYNC_JOB_PAGES_COMPLETED, getPagesCompleted(in) + 1);
+        SyncJob job = fromHeaders(in, now);
+        if (stored != null && job.getJobId().equals(stored.getJobId())) {
+            job.setStarted(stored.getStarted());
+        }
+        return job;
+    }
+
+    /**
+     * Restore headers from stored job for a message not pointing to a page, if the stored job is the same job (retry of a
+     * page) or the stored job may replace the requested sync. A delta sync is replaced by any ongoing job, as the ongoing
+     * job will sync the same changes. A full sync is only replaced by an ongoing full sync.
+     *
+     * @return whether the stored job was resumed
+     */
+    public static boolean resume(Message in, SyncJob stored) {
+        if (stored == null) {
+            return false;
+        }
+        String operation = in.getHeader(HEADER_SYNC_OPERATION, String.class);
+        boolean sameJob = stored.getJobId().equals(in.getHeader(HEADER_SYNC_JOB_ID, String.class));
+        if (!sameJob && !SYNC_OPERATION_DELTA.equals(operation) && !stored.getOperation().equals(operation)) {
+            return false;
+        }
+
+        in.setHeader(HEADER_SYNC_JOB_ID, stored.getJobId());
+        in.setHeader(HEADER_SYNC_JOB_PAGES_COMPLETED, stored.getPagesCompleted());
+        in.setHeader(HEADER_SYNC_OPERATION, stored.getOperation());
+        in.setHeader(HEADER_SYNC_STATUS_FROM, stored.getSyncFrom());
+        in.setHeader(HEADER_SYNC_STATUS_TO, stored.getSyncTo());
+        in.setHeader(HEADER_NEXT_BATCH_URL, stored.getNextBatchUrl());
+        in.setHeader(HEADER_SYNC_BYTES_RECEIVED, stored.getBytesReceived());
+        in.setHeader(HEADER_SYNC_BYTES_UNCOMPRESSED, stored.getBytesUncompressed());
+        in.setHeader(HEADER_SYNC_BYTES_SENT, stored.getBytesSent());
+        in.setHeader(HEADER_SYNC_BYTES_SENT_UNCOMPRESSED, stored.getBytesSentUncompressed());
+        return true;
+    }
+
+    /**
+     * Whether message belongs to a job that has been replaced by another job, or that has already progressed further
+     * (duplicate iteration). Messages from before checkpointing was enabled are never superseded.
+     */
+    public static boolean isSuperseded(Message in, SyncJob stored) {
+        String jobId = in.getHeader(HEADER_SYNC_JOB_ID, String.class);
+        if (jobId == null) {
+            return false;
+        }
+        return stored == null || !jobId.equals(stored.getJobId()) || stored.getPagesCompleted() > getPagesCompleted(in);
+    }
+
+    private static SyncJob fromHeaders(Message in, long now) {
+        SyncJob job = new SyncJob();
+        job.setJobId(in.getHeader(HEADER_SYNC_JOB_ID, String.class));
+        job.setOperation(in.getHeader(HEADER_SYNC_OPERATION, String.class));
+        job.setSyncFrom(in.getHeader(HEADER_SYNC_STATUS_FROM, Long.class));
+        job.setSyncTo(in.getHeader(HEADER_SYNC_STATUS_TO, Long.class));
+        job.setNextBatchUrl(in.getHeader(HEADER_NEXT_BATCH_URL, String.class));
+        job.setPagesCompleted(getPagesCompleted(in));
+        job.setBytesReceived(in.getHeader(HEADER_SYNC_BYTES_RECEIVED, Long.class));
+        job.setBytesUncompressed(in.getHeader(HEADER_SYNC_BYTES_UNCOMPRESSED, Long.class));
+        job.setBytesSent(in.getHeader(HEADER_SYNC_BYTES_SENT, Long.class));
+        job.setBytesSentUncompressed(in.getHeader(HEADER_SYNC_BYTES_SENT_UNCOMPRESSED, Long.class));
+        job.setUpdated(now);
+        return job;
+    }
+
+    private static int getPagesCompleted(Message in) {
+        return in.getHeader(HEADER_SYNC_JOB_PAGES_COMPLETED, 0, Integer.class);
+    }
+}
@@ -59,6 +59,15 @@ public class SyncMsgComparator implements Comparator<ActiveMQMessage> {
                 return 1;
             }
 
+            // New targeted sync before new delta sync, as delta sync is triggered periodically anyway
+            if (SYNC_OPERATION_TARGETED.equals(o1Opr)) {
+                if (!SYNC_OPERATION_TARGETED.equals(o2Opr)) {
+                    return -1;
+                }
+            } else if (SYNC_OPERATION_TARGETED.equals(o2Opr)) {
+                return 1;
+            }
+
             return 0;
         } catch (IOException ioE) {
             throw new IrkallaException("Unable to get sync operation header as property from ActiveMQMessage: " + ioE.getMessage(), ioE);
@@ -0,0 +1,345 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IAtomicLong;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.IQueue;
+import com.hazelcast.core.MembershipAdapter;
+import com.hazelcast.core.MembershipEvent;
+import org.apache.camel.Exchange;
+import org.rutebanken.irkalla.domain.SyncPartition;
+import org.rutebanken.irkalla.routes.singleton.SingletonRoutePolicyFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+
+/**
+ * Cluster wide state for partitioned full sync, kept in Hazelcast.
+ * <p>
+ * A full sync is split into partitions by changed time window. The partitions are handed to all cluster members through a
+ * Hazelcast queue. Members take a new partition whenever they are done with the previous one, so faster members take
+ * more partitions. A cluster wide counter of remaining partitions acts as completion barrier: the member completing the
+ * last partition advances the sync status, provided that no partition failed.
+ * <p>
+ * Every partition not yet completed is tracked in a Hazelcast map together with the member syncing it, so that partitions
+ * held by a member leaving the cluster are put back on the queue. The number of concurrent posts of stop places to
+ * Chouette is limited cluster wide by a fixed number of permit slots, also owned by members and freed when the owner
+ * leaves the cluster.
+ */
+@Component
+public class SyncPartitionCoordinator {
+
+    private static final Logger logger = LoggerFactory.getLogger(SyncPartitionCoordinator.class);
+
+    /**
+     * Name of Hazelcast queue consumed by the hazelcast-seda partition route. The hazelcast-seda component passes message
+     * bodies as is, so partitions are offered directly to the queue.
+     */
+    public static final String PARTITION_QUEUE_NAME = "IrkallaSyncPartitionQueue";
+
+    private static final String PREFIX = "irkalla.sync.partitions.";
+
+    private static final String PROPERTY_CHOUETTE_PERMIT = "RutebankenChouettePermit";
+
+    private static final long PERMIT_POLL_INTERVAL = 100;
+
+    private final Supplier<HazelcastInstance> hazelcast;
+
+    private final int partitions;
+
+    private final Instant windowStart;
+
+    private final int chouettePermits;
+
+    private final long chouettePermitTimeout;
+
+    /**
+     * Max duration of a partitioned sync. A sync still not completed after this does not prevent a new sync from starting.
+     */
+    private final long syncTimeout;
+
+    private final ScheduledExecutorService retryExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "sync-partition-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Autowired
+    public SyncPartitionCoordinator(SingletonRoutePolicyFactory singletonRoutePolicyFactory,
+                                           @Value("${sync.stop.place.full.partitions:0}") int partitions,
+                                           @Value("${sync.stop.place.full.partition.window.start:2016-01-01T00:00:00Z}") String windowStart,
+                                           @Value("${sync.stop.place.full.partition.chouette.permits:2}") int chouettePermits,
+                                           @Value("${sync.stop.place.full.partition.chouette.permit.timeout.ms:60000}") long chouettePermitTimeout,
+                                           @Value("${sync.stop.place.full.partition.timeout.ms:21600000}") long syncTimeout) {
+        this(singletonRoutePolicyFactory::getHazelcastInstance, partitions, Instant.parse(windowStart), chouettePermits, chouettePermitTimeout, syncTimeout);
+    }
+
+    SyncPartitionCoordinator(Supplier<HazelcastInstance> hazelcast, int partitions, Instant windowStart, int chouettePermits,
+                                    long chouettePermitTimeout, long syncTimeout) {
+        this.hazelcast = hazelcast;
+        this.partitions = partitions;
+        this.windowStart = windowStart;
+        this.chouettePermits = chouettePermits;
+        this.chouettePermitTimeout = chouettePermitTimeout;
+        this.syncTimeout = syncTimeout;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!isEnabled()) {
+            return;
+        }
+        getHazelcast().getCluster().addMembershipListener(new MembershipAdapter() {
+            @Override
+            public void memberRemoved(MembershipEvent membershipEvent) {
+                retryExecutor.execute(() -> releaseMember(membershipEvent.getMember().getUuid()));
+            }
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        retryExecutor.shutdownNow();
+    }
+
+    public boolean isEnabled() {
+        return partitions > 1;
+    }
+
+    /**
+     * Start new partitioned sync of all changes up until syncTo and put its partitions on the partition queue.
+     *
+     * @param unfiltered whether unchanged stop places should be forwarded to Chouette as well
+     * @return partitions to be synced, or null if another partitioned sync is still in progress
+     */
+    public synchronized List<SyncPartition> start(long syncTo, boolean unfiltered) {
+        long now = System.currentTimeMillis();
+        long remaining = counter("remaining").get();
+        long started = counter("started").get();
+        if (remaining > 0 && started + syncTimeout > now) {
+            logger.info("Not starting partitioned full sync, previous sync started at {} still has {} remaining partitions", Instant.ofEpochMilli(started), remaining);
+            return null;
+        }
+
+        List<SyncPartition> syncPartitions = split(windowStart.toEpochMilli(), syncTo, partitions);
+        getQueue().clear();
+        getPartitionMap().clear();
+        getPermitMap().clear();
+        counter("failed").set(0);
+        counter("syncTo").set(syncTo);
+        counter("started").set(now);
+        counter("remaining").set(syncPartitions.size());
+        for (SyncPartition partition : syncPartitions) {
+            partition.setSyncId(now);
+            partition.setUnfiltered(unfiltered);
+            getPartitionMap().put(partition.getIndex(), partition);
+            getQueue().offer(partition);
+        }
+        return syncPartitions;
+    }
+
+    /**
+     * Register partition taken from queue as being synced by this member.
+     *
+     * @return false if partition belongs to a previous sync or has already been completed, and should be discarded
+     */
+    public boolean claim(SyncPartition partition) {
+        if (partition.getSyncId() != counter("started").get()) {
+            return false;
+        }
+        return getPartitionMap().replace(partition.getIndex(), partition.withMemberId(getLocalMemberId())) != null;
+    }
+
+    /**
+     * Put partition back on queue for another attempt by any member.
+     */
+    public void requeue(SyncPartition partition) {
+        SyncPartition queued = partition.withMemberId(null);
+        if (getPartitionMap().replace(partition.getIndex(), queued) != null) {
+            getQueue().offer(queued);
+        } else {
+            logger.info("Not requeuing partition {} no longer part of current full sync", partition);
+        }
+    }
+
+    /**
+     * Put partition back on queue after delay, without holding up the consumer meanwhile. The partition stays registered
+     * with this member until requeued, so it is requeued by another member should this member leave the cluster first.
+     */
+    public void requeueLater(SyncPartition partition, long delayMillis) {
+        getPartitionMap().replace(partition.getIndex(), partition.withMemberId(getLocalMemberId()));
+        retryExecutor.schedule(() -> requeue(partition), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Register partition as completed, successfully or not. A partition is only counted once, even if it was synced
+     * by more than one member.
+     *
+     * @return whether this was the last remaining partition
+     */
+    public boolean complete(SyncPartition partition, boolean failed) {
+        if (getPartitionMap().remove(partition.getIndex()) == null) {
+            logger.info("Partition {} of full sync already completed", partition);
+            return false;
+        }
+        if (failed) {
+            counter("failed").incrementAndGet();
+        }
+        long remaining = counter("remaining").decrementAndGet();
+        logger.info("Partition {} of full sync {}, {} partitions remaining", partition, failed ? "failed" : "completed", remaining);
+        return remaining == 0;
+    }
+
+    public boolean hasFailures() {
+        return counter("failed").get() > 0;
+    }
+
+    public long getSyncTo() {
+        return counter("syncTo").get();
+    }
+
+    /**
+     * Acquire cluster wide permit for posting a page to Chouette. All posts take a permit while partitioned sync is
+     * enabled, also delta and targeted syncs by the singleton sync route, so that the limit holds during a partitioned
+     * full sync. Posts are not limited when partitioned sync is disabled.
+     */
+    public void acquireChouettePermit(Exchange e) throws InterruptedException {
+        if (!isEnabled()) {
+            return;
+        }
+        Integer permit = tryAcquirePermit(chouettePermitTimeout);
+        if (permit == null) {
+            throw new ChouetteBusyException("No permit for posting to Chouette available within " + chouettePermitTimeout + " ms");
+        }
+        e.setProperty(PROPERTY_CHOUETTE_PERMIT, permit);
+    }
+
+    public void releaseChouettePermit(Exchange e) {
+        Object permit = e.removeProperty(PROPERTY_CHOUETTE_PERMIT);
+        if (permit instanceof Integer) {
+            releasePermit((Integer) permit);
+        }
+    }
+
+    /**
+     * @return acquired permit slot, or null if none became available within timeout
+     */
+    Integer tryAcquirePermit(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        String memberId = getLocalMemberId();
+        while (true) {
+            for (int slot = 0; slot < chouettePermits; slot++) {
+                if (getPermitMap().putIfAbsent(slot, memberId) == null) {
+                    return slot;
+                }
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                return null;
+            }
+            Thread.sleep(PERMIT_POLL_INTERVAL);
+        }
+    }
+
+    void releasePermit(int slot) {
+        getPermitMap().remove(slot, getLocalMemberId());
+    }
+
+    /**
+     * Requeue partitions and free permits held by member that has left the cluster. Only the member succeeding in
+     * replacing a partition entry requeues it, so the partition is requeued once even though all members are notified.
+     */
+    void releaseMember(String memberId) {
+        try {
+            for (Map.Entry<Integer, SyncPartition> entry : getPartitionMap().entrySet()) {
+                SyncPartition partition = entry.getValue();
+                if (memberId.equals(partition.getMemberId())) {
+                    SyncPartition queued = partition.withMemberId(null);
+                    if (getPartitionMap().replace(entry.getKey(), partition, queued)) {
+                        logger.warn("Requeuing partition {} held by member {} that left the cluster", partition, memberId);
+                        getQueue().offer(queued);
+                    }
+                }
+            }
+            for (Map.Entry<Integer, String> entry : getPermitMap().entrySet()) {
+                if (memberId.equals(entry.getValue()) && getPermitMap().remove(entry.getKey(), memberId)) {
+                    logger.warn("Released Chouette permit {} held by member {} that left the cluster", entry.getKey(), memberId);
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("Failed to release partitions held by member {}: {}", memberId, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Split period up until syncTo into windows of equal length, starting at windowStart. The first window also includes all
+     * changes before windowStart.
+     */
+    static List<SyncPartition> split(long windowStart, long syncTo, int partitions) {
+        List<SyncPartition> syncPartitions = new ArrayList<>(partitions);
+        if (syncTo <= windowStart) {
+            syncPartitions.add(new SyncPartition(0, 1, null, syncTo));
+            return syncPartitions;
+        }
+        long windowLength = (syncTo - windowStart) / partitions;
+        Long from = null;
+        for (int i = 0; i < partitions; i++) {
+            long to = i == partitions - 1 ? syncTo : windowStart + windowLength * (i + 1);
+            syncPartitions.add(new SyncPartition(i, partitions, from, to));
+            from = to;
+        }
+        return syncPartitions;
+    }
+
+    private IQueue<SyncPartition> getQueue() {
+        return getHazelcast().getQueue(PARTITION_QUEUE_NAME);
+    }
+
+    private IMap<Integer, SyncPartition> getPartitionMap() {
+        return getHazelcast().getMap(PREFIX + "inflight");
+    }
+
+    private IMap<Integer, String> getPermitMap() {
+        return getHazelcast().getMap(PREFIX + "chouette.permits");
+    }
+
+    private IAtomicLong counter(String name) {
+        return getHazelcast().getAtomicLong(PREFIX + name);
+    }
+
+    private String getLocalMemberId() {
+        return getHazelcast().getCluster().getLocalMember().getUuid();
+    }
+
+    private HazelcastInstance getHazelcast() {
+        return hazelcast.get();
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.etcd;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.MembershipAdapter;
+import com.hazelcast.core.MembershipEvent;
+import org.rutebanken.irkalla.IrkallaException;
+import org.rutebanken.irkalla.domain.SyncJob;
+import org.rutebanken.irkalla.routes.etcd.json.EtcdResponse;
+import org.rutebanken.irkalla.routes.syncstatus.SyncStatusStore;
+import org.rutebanken.irkalla.util.JsonSerialization;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Stop place synced until date in etcd, with last known value cached in memory.
+ * <p>
+ * Writes are compare-and-swap against the modifiedIndex of the cached value, so that a write based on stale state is
+ * rejected by etcd instead of silently overwriting a newer status. The cached value is reloaded from etcd after a
+ * conflict and when cluster membership (and thereby possibly leadership) changes. A value written by this member is
+ * known to be current until then. A value only read from etcd is also reloaded when older than the configured max age,
+ * so that members not writing the status themselves eventually see the writes of the leader.
+ * <p>
+ * The fencing token of the writing leader, if any, is appended to the date (separated by ';'). As writes are
+ * conditional on the modifiedIndex, a write is only stored if its token is not older than the token of the value it
+ * replaces.
+ * <p>
+ * The current sync job is stored as JSON with the fencing token of the writing leader under a separate key, written
+ * conditionally in the same way, and is always read from etcd. Not using camel-etcd
+ * because timeout does not work (hangs indefinitely) with underlying etcd4j lib.
+ */
+public class EtcdSyncStatusStore implements SyncStatusStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(EtcdSyncStatusStore.class);
+
+    private static final String DATE_TIME_PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSSXXXX";
+
+    private static final String TOKEN_SEPARATOR = ";";
+
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern(DATE_TIME_PATTERN);
+
+    private final RestTemplate restTemplate;
+
+    private final String syncStatusUrl;
+
+    private final String syncJobUrl;
+
+    private final long maxAgeMillis;
+
+    private final int maxConflictRetries;
+
+    private volatile CachedStatus cached;
+
+    public EtcdSyncStatusStore(RestTemplate restTemplate, String syncStatusUrl, String syncJobUrl, long maxAgeMillis, int maxConflictRetries) {
+        this.restTemplate = restTemplate;
+        this.syncStatusUrl = syncStatusUrl;
+        this.syncJobUrl = syncJobUrl;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxConflictRetries = maxConflictRetries;
+    }
+
+    /**
+     * Drop cached value whenever a member joins or leaves the cluster, as leadership of the singleton sync routes may
+     * have moved.
+     */
+    public void invalidateOnMembershipChange(HazelcastInstance hazelcast) {
+        hazelcast.getCluster().addMembershipListener(new MembershipAdapter() {
+            @Override
+            public void memberAdded(MembershipEvent membershipEvent) {
+                invalidate();
+            }
+
+            @Override
+            public void memberRemoved(MembershipEvent membershipEvent) {
+                invalidate();
+            }
+        });
+    }
+
+    /**
+     * Served from memory when the cached value is still valid.
+     */
+    @Override
+    public Long getSyncedUntil() {
+        CachedStatus current = cached;
+        if (current == null || current.isOlderThan(maxAgeMillis)) {
+            current = load();
+        }
+        return current.syncedUntil;
+    }
+
+    /**
+     * On conflict the current value is reloaded. If it has been written with a newer fencing token, the write is
+     * rejected. If another member has already stored a status at least as recent as this one, it is kept. Otherwise
+     * the write is retried against the reloaded value.
+     */
+    @Override
+    public void setSyncedUntil(long syncedUntil, Long fencingToken) {
+        CachedStatus current = cached;
+        if (current == null) {
+            current = load();
+        }
+
+        for (int attempt = 0; ; attempt++) {
+            Long token = SyncStatusStore.nextFencingToken(current.fencingToken, fencingToken);
+            if (attempt > 0 && current.syncedUntil != null && current.syncedUntil >= syncedUntil) {
+                logger.info("Keeping sync status in etcd: {}, which is not older than: {}", current.syncedUntil, syncedUntil);
+                return;
+            }
+            try {
+                cached = compareAndSet(current, syncedUntil, token);
+                return;
+            } catch (HttpClientErrorException e) {
+                if (!HttpStatus.PRECONDITION_FAILED.equals(e.getStatusCode())) {
+                    throw e;
+                }
+                if (attempt >= maxConflictRetries) {
+                    invalidate();
+                    throw new IrkallaException("Gave up storing sync status in etcd after " + (attempt + 1) + " conflicting writes");
+                }
+                logger.info("Sync status in etcd was modified concurrently, reloading before retry");
+                current = load();
+            }
+        }
+    }
+
+    @Override
+    public SyncJob getSyncJob() {
+        StoredSyncJob stored = loadSyncJob();
+        return stored.syncJob == null || stored.syncJob.isDeleted() ? null : stored.syncJob;
+    }
+
+    @Override
+    public void setSyncJob(SyncJob syncJob, Long fencingToken) {
+        writeSyncJob(syncJob, fencingToken);
+    }
+
+    /**
+     * A job deleted with a fencing token is replaced by a deleted marker keeping the token.
+     */
+    @Override
+    public void deleteSyncJob(Long fencingToken) {
+        writeSyncJob(null, fencingToken);
+    }
+
+    /**
+     * Write sync job, or delete it if null, conditional on the modifiedIndex of the job it replaces. On conflict (also
+     * reported as not found if the job has been deleted concurrently) the stored job is reloaded and the fencing token
+     * checked again before retry.
+     */
+    private void writeSyncJob(SyncJob syncJob, Long fencingToken) {
+        for (int attempt = 0; ; attempt++) {
+            StoredSyncJob current = loadSyncJob();
+            Long token = SyncStatusStore.nextFencingToken(current.syncJob == null ? null : current.syncJob.getFencingToken(), fencingToken);
+            try {
+                if (syncJob != null) {
+                    syncJob.setFencingToken(token);
+                    compareAndSetSyncJob(current, syncJob);
+                } else if (token != null) {
+                    compareAndSetSyncJob(current, SyncJob.deleted(token));
+                } else if (current.modifiedIndex != null) {
+                    restTemplate.delete(syncJobUrl + "?prevIndex=" + current.modifiedIndex);
+                }
+                return;
+            } catch (HttpClientErrorException e) {
+                if (!HttpStatus.PRECONDITION_FAILED.equals(e.getStatusCode()) && !HttpStatus.NOT_FOUND.equals(e.getStatusCode())) {
+                    throw e;
+                }
+                if (attempt >= maxConflictRetries) {
+                    throw new IrkallaException("Gave up storing sync job in etcd after " + (attempt + 1) + " conflicting writes");
+                }
+                logger.info("Sync job in etcd was modified concurrently, reloading before retry");
+            }
+        }
+    }
+
+    private StoredSyncJob loadSyncJob() {
+        try {
+            EtcdResponse response = restTemplate.getForObject(syncJobUrl, EtcdResponse.class);
+            return new StoredSyncJob(JsonSerialization.toSyncJob(response.node.value), response.node.modifiedIndex);
+        } catch (HttpClientErrorException e) {
+            if (!HttpStatus.NOT_FOUND.equals(e.getStatusCode())) {
+                throw e;
+            }
+            return new StoredSyncJob(null, null);
+        } catch (IOException e) {
+            throw new IrkallaException("Failed to read sync job from etcd: " + e.getMessage(), e);
+        }
+    }
+
+    private void compareAndSetSyncJob(StoredSyncJob current, SyncJob syncJob) {
+        MultiValueMap<String, String> form = new LinkedMultiValueMap<>();
+        form.add("value", JsonSerialization.toString(syncJob));
+        if (current.modifiedIndex != null) {
+            form.add("prevIndex", current.modifiedIndex.toString());
+        } else {
+            form.add("prevExist", "false");
+        }
+        restTemplate.exchange(syncJobUrl, HttpMethod.PUT, new HttpEntity<>(form, formHeaders()), EtcdResponse.class);
+    }
+
+    public void invalidate() {
+        cached = null;
+    }
+
+    private CachedStatus load() {
+        CachedStatus status;
+        try {
+            EtcdResponse response = restTemplate.getForObject(syncStatusUrl, EtcdResponse.class);
+            String[] value = response.node.value.split(TOKEN_SEPARATOR);
+            Long fencingToken = value.length > 1 ? Long.valueOf(value[1]) : null;
+            status = new CachedStatus(Instant.from(FORMATTER.parse(value[0])).toEpochMilli(), fencingToken, response.node.modifiedIndex, false);
+        } catch (HttpClientErrorException e) {
+            if (!HttpStatus.NOT_FOUND.equals(e.getStatusCode())) {
+                throw e;
+            }
+            logger.info("No synced until date found in etcd. Using null");
+            status = new CachedStatus(null, null, null, false);
+        }
+        cached = status;
+        return status;
+    }
+
+    private CachedStatus compareAndSet(CachedStatus current, long syncedUntil, Long fencingToken) {
+        String value = Instant.ofEpochMilli(syncedUntil).atZone(ZoneId.of("UTC")).format(FORMATTER);
+        MultiValueMap<String, String> form = new LinkedMultiValueMap<>();
+        form.add("value", fencingToken == null ? value : value + TOKEN_SEPARATOR + fencingToken);
+        if (current.modifiedIndex != null) {
+            form.add("prevIndex", current.modifiedIndex.toString());
+        } else {
+            form.add("prevExist", "false");
+        }
+
+        EtcdResponse response = restTemplate.exchange(syncStatusUrl, HttpMethod.PUT, new HttpEntity<>(form, formHeaders()), EtcdResponse.class).getBody();
+        return new CachedStatus(syncedUntil, fencingToken, response.node.modifiedIndex, true);
+    }
+
+    private static HttpHeaders formHeaders() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
+        return headers;
+    }
+
+    private static class CachedStatus {
+
+        private final Long syncedUntil;
+
+        private final Long fencingToken;
+
+        private final Long modifiedIndex;
+
+        private final boolean written;
+
+        private final long loaded = System.currentTimeMillis();
+
+        CachedStatus(Long syncedUntil, Long fencingToken, Long modifiedIndex, boolean written) {
+            this.syncedUntil = syncedUntil;
+            this.fencingToken = fencingToken;
+            this.modifiedIndex = modifiedIndex;
+            this.written = written;
+        }
+
+        boolean isOlderThan(long maxAgeMillis) {
+            return !written && maxAgeMillis > 0 && System.currentTimeMillis() - loaded > maxAgeMillis;
+        }
+    }
+
+    private static class StoredSyncJob {
+
+        private final SyncJob syncJob;
+
+        private final Long modifiedIndex;
+
+        StoredSyncJob(SyncJob syncJob, Long modifiedIndex) {
+            this.syncJob = syncJob;
+            this.modifiedIndex = modifiedIndex;
+        }
+    }
+}
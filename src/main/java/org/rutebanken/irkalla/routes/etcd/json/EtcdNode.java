@@ -25,4 +25,6 @@ public class EtcdNode {
     public String key;
 
     public String value;
+
+    public Long modifiedIndex;
 }
@@ -15,26 +15,76 @@
 
 package org.rutebanken.irkalla.routes.notification;
 
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.activemq.command.ActiveMQMessage;
+import org.apache.camel.Exchange;
 import org.apache.camel.LoggingLevel;
 import org.apache.camel.model.dataformat.JsonLibrary;
+import org.apache.camel.support.SynchronizationAdapter;
 import org.rutebanken.irkalla.Constants;
+import org.rutebanken.irkalla.IrkallaException;
 import org.rutebanken.irkalla.domain.EntityChangedEvent;
 import org.rutebanken.irkalla.routes.BaseRouteBuilder;
+import org.rutebanken.irkalla.util.JsonSerialization;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.jms.JMSException;
+import javax.jms.TextMessage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 @Component
 public class EntityChangedRouteBuilder extends BaseRouteBuilder {
 
+    @Value("${changelog.batch.enabled:false}")
+    private boolean batchEnabled;
+
+    /**
+     * Max time to wait for more messages before a batch is flushed.
+     */
+    @Value("${changelog.batch.max.wait:1000}")
+    private long batchMaxWait;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private DistributionSummary batchSizeSummary;
+
+    private Timer batchFlushLatencyTimer;
+
+    private Timer batchCommittedTimer;
+
+    private Timer batchRolledBackTimer;
+
     @Override
     public void configure() throws Exception {
         super.configure();
 
+        if (batchEnabled) {
+            configureBatchConsumer();
+        } else {
+            configureSingleMessageConsumer();
+        }
+    }
+
+    private void configureSingleMessageConsumer() {
         from("activemq:queue:IrkallaChangelogQueue?transacted=true")
                 .transacted()
                 .unmarshal().json(JsonLibrary.Jackson, EntityChangedEvent.class)
                 .setHeader(Constants.HEADER_ENTITY_ID,simple("${body.entityId}"))
                 .setHeader(Constants.HEADER_ENTITY_VERSION,simple("${body.entityVersion}"))
                 .setHeader(Constants.HEADER_CRUD_ACTION,simple("${body.crudAction}"))
+                .setHeader(Constants.HEADER_CORRELATION_ID, simple("${body.msgId}"))
+                .setHeader(Constants.HEADER_CHANGELOG_ENQUEUED_TIME, header("JMSTimestamp"))
 
                 .log(LoggingLevel.INFO,"Received changelog event: ${body.crudAction} ${body.entityType} ${body.entityId} v${body.entityVersion}")
                 .choice()
@@ -44,4 +94,97 @@ public class EntityChangedRouteBuilder extends BaseRouteBuilder {
 
                 .routeId("entity-changed-route");
     }
+
+    /**
+     * Consume changelog events in batches. All events in a batch are processed and committed in one transaction.
+     */
+    private void configureBatchConsumer() {
+        batchSizeSummary = DistributionSummary.builder("irkalla.changelog.batch.size").register(meterRegistry);
+        batchFlushLatencyTimer = Timer.builder("irkalla.changelog.batch.flush.latency").register(meterRegistry);
+        batchCommittedTimer = Timer.builder("irkalla.changelog.batch.commit.time").tag("outcome", "committed").register(meterRegistry);
+        batchRolledBackTimer = Timer.builder("irkalla.changelog.batch.commit.time").tag("outcome", "rolledback").register(meterRegistry);
+
+        from("activemq:queue:IrkallaChangelogQueue?transacted=true&messageListenerContainerFactoryRef=changelogBatchListenerContainerFactory&receiveTimeout=" + batchMaxWait)
+                .transacted()
+                .process(e -> startBatch(e))
+                .log(LoggingLevel.INFO, "Received batch of ${body.size} changelog events")
+                .process(e -> e.getIn().setBody(filterByEntityType(e.getIn().getBody(List.class), EntityChangedEvent.EntityType.STOP_PLACE)))
+                .choice()
+                .when(simple("${body.size} > 0"))
+                .to("direct:handleStopPlacesChanged")
+                .end()
+
+                .routeId("entity-changed-batch-route");
+    }
+
+    private void startBatch(Exchange e) throws IOException, JMSException {
+        long batchStart = System.nanoTime();
+        List<ActiveMQMessage> msgList = e.getIn().getBody(List.class);
+        List<EntityChangedEvent> events = new ArrayList<>(msgList.size());
+
+        long firstReceived = Long.MAX_VALUE;
+        for (ActiveMQMessage msg : msgList) {
+            if (!(msg instanceof TextMessage)) {
+                throw new IrkallaException("Unable to read changelog event from message of type: " + msg.getClass());
+            }
+            EntityChangedEvent event = JsonSerialization.toEntityChangedEvent(((TextMessage) msg).getText());
+            events.add(event);
+            if (msg.getJMSTimestamp() > 0) {
+                event.setEnqueuedTime(msg.getJMSTimestamp());
+            }
+            // Time message was dispatched to this consumer, so flush latency does not include time spent waiting in queue
+            if (msg.getBrokerOutTime() > 0) {
+                firstReceived = Math.min(firstReceived, msg.getBrokerOutTime());
+            }
+        }
+
+        batchSizeSummary.record(events.size());
+        if (firstReceived != Long.MAX_VALUE) {
+            batchFlushLatencyTimer.record(Math.max(0, System.currentTimeMillis() - firstReceived), TimeUnit.MILLISECONDS);
+        }
+        recordBatchCommitTime(e, batchStart);
+
+        e.getIn().setBody(events);
+    }
+
+    private List<EntityChangedEvent> filterByEntityType(List<EntityChangedEvent> events, EntityChangedEvent.EntityType entityType) {
+        List<EntityChangedEvent> filtered = new ArrayList<>(events.size());
+        for (EntityChangedEvent event : events) {
+            if (entityType.equals(event.getEntityType())) {
+                filtered.add(event);
+            }
+        }
+        return filtered;
+    }
+
+    /**
+     * Record time spent processing and committing batch. Transaction commit happens after the route is completed, so use
+     * transaction synchronization when available.
+     */
+    private void recordBatchCommitTime(Exchange e, long batchStart) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    recordBatchDuration(batchStart, status == TransactionSynchronization.STATUS_COMMITTED);
+                }
+            });
+        } else {
+            e.addOnCompletion(new SynchronizationAdapter() {
+                @Override
+                public void onComplete(Exchange exchange) {
+                    recordBatchDuration(batchStart, true);
+                }
+
+                @Override
+                public void onFailure(Exchange exchange) {
+                    recordBatchDuration(batchStart, false);
+                }
+            });
+        }
+    }
+
+    private void recordBatchDuration(long batchStart, boolean committed) {
+        (committed ? batchCommittedTimer : batchRolledBackTimer).record(System.nanoTime() - batchStart, TimeUnit.NANOSECONDS);
+    }
 }
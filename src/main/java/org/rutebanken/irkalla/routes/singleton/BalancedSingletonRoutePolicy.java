@@ -0,0 +1,78 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.singleton;
+
+import org.apache.camel.Route;
+import org.apache.camel.support.RoutePolicySupport;
+import org.apache.camel.util.ObjectHelper;
+
+/**
+ * Policy for a singleton route led by the member it is assigned to by {@link SingletonRouteBalancer}. The consumer of
+ * the route is only running while this member is leader for the route.
+ */
+public class BalancedSingletonRoutePolicy extends RoutePolicySupport {
+
+    private final SingletonRouteBalancer balancer;
+
+    private volatile Route route;
+
+    private volatile boolean leader;
+
+    public BalancedSingletonRoutePolicy(SingletonRouteBalancer balancer) {
+        this.balancer = balancer;
+    }
+
+    @Override
+    public void onStart(Route route) {
+        this.route = route;
+        if (!leader) {
+            try {
+                stopConsumer(route.getConsumer());
+            } catch (Exception e) {
+                throw ObjectHelper.wrapRuntimeCamelException(e);
+            }
+        }
+        balancer.register(this);
+    }
+
+    @Override
+    public void onStop(Route route) {
+        balancer.unregister(this);
+    }
+
+    @Override
+    public void onRemove(Route route) {
+        balancer.unregister(this);
+    }
+
+    public String getRouteId() {
+        return route.getId();
+    }
+
+    public boolean isLeader() {
+        return leader;
+    }
+
+    void startLeading() throws Exception {
+        leader = true;
+        startConsumer(route.getConsumer());
+    }
+
+    void stopLeading() throws Exception {
+        leader = false;
+        stopConsumer(route.getConsumer());
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.singleton;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Lease granting a member leadership of a singleton route until expiry. The token is increased for every new lease
+ * and serves as fencing token: a lease with a token no longer current in the cluster must not be used to commit state.
+ */
+public class Lease implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String key;
+
+    private final String memberId;
+
+    private final long token;
+
+    private final long expires;
+
+    public Lease(String key, String memberId, long token, long expires) {
+        this.key = key;
+        this.memberId = memberId;
+        this.token = token;
+        this.expires = expires;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getMemberId() {
+        return memberId;
+    }
+
+    public long getToken() {
+        return token;
+    }
+
+    public long getExpires() {
+        return expires;
+    }
+
+    public boolean isExpired(long now) {
+        return now >= expires;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Lease lease = (Lease) o;
+        return token == lease.token &&
+                       expires == lease.expires &&
+                       Objects.equals(key, lease.key) &&
+                       Objects.equals(memberId, lease.memberId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(key, memberId, token, expires);
+    }
+
+    @Override
+    public String toString() {
+        return "Lease{key='" + key + "', memberId='" + memberId + "', token=" + token + ", expires=" + expires + '}';
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.singleton;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Route;
+import org.apache.camel.support.RoutePolicySupport;
+import org.apache.camel.util.ObjectHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Policy for a singleton route led by the member holding a lease for the route id. The lease is renewed by heartbeat
+ * at a third of the ttl. When a leader dies, other members take over as soon as the lease expires, without waiting for
+ * Hazelcast to detect that the member is gone.
+ * <p>
+ * A leader failing to renew its lease stops its consumer, at the latest when the lease would expire. Exchanges started
+ * while leading carry the lease as {@link #PROPERTY_LEASE}, so that state changes can be rejected if the lease has
+ * been taken over in the meantime (fencing of a paused or partitioned former leader).
+ * <p>
+ * With balancing, only the member the route is assigned to acquires a free lease, and asks the holder to hand over a
+ * lease held by another member. Other members release the lease when asked, and only acquire it if it has expired, ie the
+ * leader has failed. Failover is then as fast as without balancing, and leadership moves back to the assigned member.
+ */
+public class LeaseSingletonRoutePolicy extends RoutePolicySupport {
+
+    private static final Logger logger = LoggerFactory.getLogger(LeaseSingletonRoutePolicy.class);
+
+    public static final String PROPERTY_LEASE = "IrkallaSingletonRouteLease";
+
+    private final SingletonRouteLeases leases;
+
+    private final ScheduledExecutorService executor;
+
+    private final long ttlMillis;
+
+    /**
+     * Whether a route id is assigned to this member.
+     */
+    private final Predicate<String> assigned;
+
+    private volatile Route route;
+
+    private volatile Lease lease;
+
+    private ScheduledFuture<?> heartbeat;
+
+    public LeaseSingletonRoutePolicy(SingletonRouteLeases leases, ScheduledExecutorService executor, long ttlMillis) {
+        this(leases, executor, ttlMillis, routeId -> true);
+    }
+
+    public LeaseSingletonRoutePolicy(SingletonRouteLeases leases, ScheduledExecutorService executor, long ttlMillis, Predicate<String> assigned) {
+        this.leases = leases;
+        this.executor = executor;
+        this.ttlMillis = ttlMillis;
+        this.assigned = assigned;
+    }
+
+    @Override
+    public synchronized void onStart(Route route) {
+        this.route = route;
+        if (lease == null) {
+            try {
+                stopConsumer(route.getConsumer());
+            } catch (Exception e) {
+                throw ObjectHelper.wrapRuntimeCamelException(e);
+            }
+        }
+        if (heartbeat == null) {
+            long interval = Math.max(1, ttlMillis / 3);
+            heartbeat = executor.scheduleWithFixedDelay(this::heartbeat, 0, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void onStop(Route route) {
+        stopHeartbeat();
+    }
+
+    @Override
+    public void onRemove(Route route) {
+        stopHeartbeat();
+    }
+
+    @Override
+    public void onExchangeBegin(Route route, Exchange exchange) {
+        Lease current = lease;
+        if (current != null) {
+            exchange.setProperty(PROPERTY_LEASE, current);
+        }
+    }
+
+    private synchronized void stopHeartbeat() {
+        if (heartbeat != null) {
+            heartbeat.cancel(false);
+            heartbeat = null;
+        }
+        Lease current = lease;
+        if (current != null) {
+            lease = null;
+            try {
+                leases.release(current);
+            } catch (Exception e) {
+                logger.warn("Failed to release lease for singleton route " + current.getKey() + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private synchronized void heartbeat() {
+        String routeId = route.getId();
+        Lease current = lease;
+        try {
+            boolean assignedToThisMember = assigned.test(routeId);
+            if (current == null) {
+                Lease acquired = assignedToThisMember ? leases.tryAcquire(routeId, ttlMillis) : leases.tryTakeOver(routeId, ttlMillis);
+                if (acquired != null) {
+                    lease = acquired;
+                    startConsumer(route.getConsumer());
+                    logger.info("Leading singleton route: {} with fencing token: {}", routeId, acquired.getToken());
+                    if (assignedToThisMember) {
+                        leases.clearHandoverRequest(routeId);
+                    }
+                } else if (assignedToThisMember) {
+                    leases.requestHandover(routeId, ttlMillis);
+                }
+            } else if (!assignedToThisMember && leases.isHandoverRequested(routeId)) {
+                stepDown(routeId, "handing over to the member the route is assigned to");
+                leases.release(current);
+            } else {
+                Lease renewed = leases.renew(current, ttlMillis);
+                if (renewed != null) {
+                    lease = renewed;
+                } else {
+                    stepDown(routeId, "lease has been taken over by another member");
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("Lease heartbeat failed for singleton route " + routeId + ": " + e.getMessage(), e);
+            if (current != null && current.isExpired(System.currentTimeMillis() + ttlMillis / 3)) {
+                stepDown(routeId, "lease could not be renewed before expiry");
+            }
+        }
+    }
+
+    private void stepDown(String routeId, String reason) {
+        lease = null;
+        try {
+            stopConsumer(route.getConsumer());
+        } catch (Exception e) {
+            logger.warn("Failed to stop consumer for singleton route " + routeId + ": " + e.getMessage(), e);
+        }
+        logger.warn("Resigned leadership of singleton route: {}, {}", routeId, reason);
+    }
+}
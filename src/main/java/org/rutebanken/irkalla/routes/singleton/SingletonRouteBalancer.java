@@ -0,0 +1,222 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.singleton;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.Member;
+import com.hazelcast.core.MembershipAdapter;
+import com.hazelcast.core.MembershipEvent;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Spread leadership of singleton routes evenly across the live members of the cluster.
+ * <p>
+ * All members run the same singleton routes. Each route is assigned to the member with the highest hash of route id and
+ * member uuid (rendezvous hashing), so that every member computes the same assignment from the same cluster view and
+ * only the routes of a joining or leaving member move when membership changes. Assignment is re-evaluated when members
+ * join or leave and at a fixed interval.
+ * <p>
+ * Exclusive leadership is still enforced with a cluster lock per route id, in the same lock map as used by
+ * HazelcastRoutePolicy. A member resigns routes no longer assigned to it and releases the lock, allowing the newly
+ * assigned member to take over on its next evaluation. Locks held by members leaving the cluster are released by
+ * Hazelcast. The time from a route is assigned to a member until the member leads it is recorded as handover time.
+ * <p>
+ * Lock and unlock are thread bound in Hazelcast, so all leadership changes are made by a single thread.
+ */
+public class SingletonRouteBalancer {
+
+    private static final Logger logger = LoggerFactory.getLogger(SingletonRouteBalancer.class);
+
+    private static final String LOCK_MAP_NAME = "lockMap";
+
+    private final HazelcastInstance hazelcast;
+
+    private final MeterRegistry meterRegistry;
+
+    private final long handoverTimeoutMillis;
+
+    private final String membershipListenerId;
+
+    private final Map<String, BalancedSingletonRoutePolicy> policies = new ConcurrentHashMap<>();
+
+    /**
+     * Time (nanos) routes were assigned to this member, for routes assigned but not yet led. Only accessed by executor.
+     */
+    private final Map<String, Long> assignedAt = new HashMap<>();
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "singleton-route-balancer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public SingletonRouteBalancer(HazelcastInstance hazelcast, MeterRegistry meterRegistry, long intervalMillis, long handoverTimeoutMillis) {
+        this.hazelcast = hazelcast;
+        this.meterRegistry = meterRegistry;
+        this.handoverTimeoutMillis = handoverTimeoutMillis;
+
+        Gauge.builder("irkalla.singleton.routes.led", policies, p -> p.values().stream().filter(BalancedSingletonRoutePolicy::isLeader).count())
+                .register(meterRegistry);
+
+        membershipListenerId = hazelcast.getCluster().addMembershipListener(new MembershipAdapter() {
+            @Override
+            public void memberAdded(MembershipEvent membershipEvent) {
+                executor.execute(SingletonRouteBalancer.this::rebalance);
+            }
+
+            @Override
+            public void memberRemoved(MembershipEvent membershipEvent) {
+                executor.execute(SingletonRouteBalancer.this::rebalance);
+            }
+        });
+        executor.scheduleWithFixedDelay(this::rebalance, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void register(BalancedSingletonRoutePolicy policy) {
+        policies.put(policy.getRouteId(), policy);
+        executor.execute(this::rebalance);
+    }
+
+    public void unregister(BalancedSingletonRoutePolicy policy) {
+        if (policies.remove(policy.getRouteId()) != null) {
+            executor.execute(() -> resign(policy));
+        }
+    }
+
+    /**
+     * Stop balancing. Locks still held are released by Hazelcast when this member leaves the cluster.
+     */
+    public void shutdown() {
+        try {
+            hazelcast.getCluster().removeMembershipListener(membershipListenerId);
+        } catch (Exception e) {
+            logger.debug("Failed to remove membership listener: " + e.getMessage(), e);
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * Assign each route id to the member with the highest weight for the route, ties broken by lowest member id.
+     */
+    static Map<String, String> assign(Collection<String> routeIds, Collection<String> memberIds) {
+        Map<String, String> assignment = new HashMap<>();
+        for (String routeId : routeIds) {
+            String assigned = null;
+            long highest = 0;
+            for (String memberId : memberIds) {
+                long weight = weight(routeId, memberId);
+                if (assigned == null || weight > highest || (weight == highest && memberId.compareTo(assigned) < 0)) {
+                    assigned = memberId;
+                    highest = weight;
+                }
+            }
+            if (assigned != null) {
+                assignment.put(routeId, assigned);
+            }
+        }
+        return assignment;
+    }
+
+    /**
+     * Weight of member for route, identical on all members. The string hash codes are mixed with the MurmurHash3
+     * finalizer, so that weights are evenly spread also for similar ids.
+     */
+    static long weight(String routeId, String memberId) {
+        long h = ((long) routeId.hashCode() << 32) ^ (memberId.hashCode() & 0xffffffffL);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private void rebalance() {
+        try {
+            String localMemberId = hazelcast.getCluster().getLocalMember().getUuid();
+            List<String> memberIds = hazelcast.getCluster().getMembers().stream().map(Member::getUuid).collect(Collectors.toList());
+            Map<String, String> assignment = assign(policies.keySet(), memberIds);
+
+            for (BalancedSingletonRoutePolicy policy : policies.values()) {
+                if (localMemberId.equals(assignment.get(policy.getRouteId()))) {
+                    lead(policy);
+                } else {
+                    resign(policy);
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("Failed to balance singleton routes: " + e.getMessage(), e);
+        }
+    }
+
+    private void lead(BalancedSingletonRoutePolicy policy) {
+        String routeId = policy.getRouteId();
+        if (policy.isLeader()) {
+            return;
+        }
+        long assigned = assignedAt.computeIfAbsent(routeId, id -> System.nanoTime());
+        IMap<String, String> lockMap = hazelcast.getMap(LOCK_MAP_NAME);
+        if (!lockMap.tryLock(routeId)) {
+            long waitingMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - assigned);
+            if (waitingMillis > handoverTimeoutMillis) {
+                logger.warn("Singleton route {} assigned to this member {} ms ago is still led by another member", routeId, waitingMillis);
+            }
+            return;
+        }
+        try {
+            policy.startLeading();
+        } catch (Exception e) {
+            logger.warn("Failed to start leading singleton route " + routeId + ": " + e.getMessage(), e);
+            lockMap.unlock(routeId);
+            return;
+        }
+        assignedAt.remove(routeId);
+        Timer.builder("irkalla.singleton.route.handover").tag("route", routeId).register(meterRegistry)
+                .record(System.nanoTime() - assigned, TimeUnit.NANOSECONDS);
+        logger.info("Leading singleton route: {}", routeId);
+    }
+
+    private void resign(BalancedSingletonRoutePolicy policy) {
+        String routeId = policy.getRouteId();
+        assignedAt.remove(routeId);
+        if (!policy.isLeader()) {
+            return;
+        }
+        try {
+            policy.stopLeading();
+        } catch (Exception e) {
+            logger.warn("Failed to stop consumer for singleton route " + routeId + ": " + e.getMessage(), e);
+        } finally {
+            hazelcast.getMap(LOCK_MAP_NAME).unlock(routeId);
+        }
+        logger.info("Resigned leadership of singleton route: {}", routeId);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.singleton;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IAtomicLong;
+import com.hazelcast.core.IMap;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Leases for leadership of singleton routes, stored in a Hazelcast map. All updates are atomic compare-and-swap
+ * operations on the map entry, so at most one member holds an unexpired lease for a key.
+ * <p>
+ * Expiry is compared with the local clock of each member, so the lease ttl must be well above the expected clock skew
+ * between members.
+ * <p>
+ * A member that should lead a route, but finds it leased by another member, may request a handover. The holder then
+ * releases the lease on its next heartbeat, instead of keeping it until it fails.
+ */
+public class SingletonRouteLeases {
+
+    private static final String MAP_NAME = "irkalla.singleton.leases";
+
+    private static final String TOKEN_COUNTER_NAME = "irkalla.singleton.lease.token";
+
+    private static final String HANDOVER_MAP_NAME = "irkalla.singleton.lease.handovers";
+
+    private final IMap<String, Lease> leases;
+
+    private final IMap<String, String> handovers;
+
+    private final IAtomicLong tokenCounter;
+
+    private final String memberId;
+
+    public SingletonRouteLeases(HazelcastInstance hazelcast) {
+        this.leases = hazelcast.getMap(MAP_NAME);
+        this.handovers = hazelcast.getMap(HANDOVER_MAP_NAME);
+        this.tokenCounter = hazelcast.getAtomicLong(TOKEN_COUNTER_NAME);
+        this.memberId = hazelcast.getCluster().getLocalMember().getUuid();
+    }
+
+    /**
+     * Acquire lease for key if it is free or expired.
+     *
+     * @return new lease, or null if key is leased by another member
+     */
+    public Lease tryAcquire(String key, long ttlMillis) {
+        long now = System.currentTimeMillis();
+        Lease current = leases.get(key);
+        if (current == null) {
+            Lease lease = new Lease(key, memberId, tokenCounter.incrementAndGet(), now + ttlMillis);
+            return leases.putIfAbsent(key, lease) == null ? lease : null;
+        }
+        if (memberId.equals(current.getMemberId()) || current.isExpired(now)) {
+            Lease lease = new Lease(key, memberId, tokenCounter.incrementAndGet(), now + ttlMillis);
+            return leases.replace(key, current, lease) ? lease : null;
+        }
+        return null;
+    }
+
+    /**
+     * Take over lease for key if it is expired, ie its holder has failed. Keys not leased at all are left for the member
+     * that should lead them.
+     *
+     * @return new lease, or null if key is not leased or leased by another member
+     */
+    public Lease tryTakeOver(String key, long ttlMillis) {
+        long now = System.currentTimeMillis();
+        Lease current = leases.get(key);
+        if (current != null && (memberId.equals(current.getMemberId()) || current.isExpired(now))) {
+            Lease lease = new Lease(key, memberId, tokenCounter.incrementAndGet(), now + ttlMillis);
+            return leases.replace(key, current, lease) ? lease : null;
+        }
+        return null;
+    }
+
+    /**
+     * Ask the member holding the lease for key to release it to this member. The request expires after ttl.
+     */
+    public void requestHandover(String key, long ttlMillis) {
+        handovers.put(key, memberId, ttlMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Whether another member has requested the lease for key.
+     */
+    public boolean isHandoverRequested(String key) {
+        String requestedBy = handovers.get(key);
+        return requestedBy != null && !memberId.equals(requestedBy);
+    }
+
+    /**
+     * Clear handover request made by this member for key, if any.
+     */
+    public void clearHandoverRequest(String key) {
+        handovers.remove(key, memberId);
+    }
+
+    /**
+     * Extend lease held by this member, keeping the token.
+     *
+     * @return extended lease, or null if the lease has been taken over by another member
+     */
+    public Lease renew(Lease lease, long ttlMillis) {
+        Lease renewed = new Lease(lease.getKey(), lease.getMemberId(), lease.getToken(), System.currentTimeMillis() + ttlMillis);
+        return leases.replace(lease.getKey(), lease, renewed) ? renewed : null;
+    }
+
+    public void release(Lease lease) {
+        leases.remove(lease.getKey(), lease);
+    }
+
+    /**
+     * Whether the fencing token of the lease is still the current one for its key, and the lease is not expired.
+     */
+    public boolean isCurrent(Lease lease) {
+        Lease current = leases.get(lease.getKey());
+        return current != null && current.getToken() == lease.getToken() && !current.isExpired(System.currentTimeMillis());
+    }
+}
@@ -15,7 +15,11 @@
 
 package org.rutebanken.irkalla.routes.singleton;
 
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.Member;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
 import org.apache.camel.component.hazelcast.policy.HazelcastRoutePolicy;
 import org.apache.camel.model.RouteDefinition;
 import org.apache.camel.spi.RoutePolicy;
@@ -28,6 +32,13 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Collectors;
+
 import static org.rutebanken.irkalla.Constants.SINGLETON_ROUTE_DEFINITION_GROUP_NAME;
 
 /**
@@ -41,6 +52,38 @@ public class SingletonRoutePolicyFactory extends HazelCastService implements Rou
     @Value("${rutebanken.route.singleton.policy.ignore:false}")
     private boolean ignorePolicy;
 
+    /**
+     * Spread singleton routes across members instead of letting the first member to start lead all of them.
+     */
+    @Value("${rutebanken.route.singleton.policy.balanced:false}")
+    private boolean balanced;
+
+    @Value("${rutebanken.route.singleton.balance.interval:2000}")
+    private long balanceInterval;
+
+    @Value("${rutebanken.route.singleton.handover.timeout:30000}")
+    private long handoverTimeout;
+
+    /**
+     * Lead singleton routes by renewable leases with fencing tokens, for failover within the lease ttl. Combined with
+     * balanced policy, leases are held by the member each route is assigned to, except while taking over for a failed
+     * member.
+     */
+    @Value("${rutebanken.route.singleton.policy.lease:false}")
+    private boolean lease;
+
+    @Value("${rutebanken.route.singleton.lease.ttl:10000}")
+    private long leaseTtl;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private SingletonRouteBalancer balancer;
+
+    private SingletonRouteLeases leases;
+
+    private ScheduledExecutorService leaseExecutor;
+
     public SingletonRoutePolicyFactory(@Autowired KubernetesService kubernetesService,
                                               @Value("${rutebanken.hazelcast.management.url:}") String managementUrl) {
         super(kubernetesService, managementUrl);
@@ -59,10 +102,78 @@ public class SingletonRoutePolicyFactory extends HazelCastService implements Rou
         return hazelcastRoutePolicy;
     }
 
+    private synchronized SingletonRouteBalancer getBalancer() {
+        if (balancer == null) {
+            balancer = new SingletonRouteBalancer(hazelcast, meterRegistry, balanceInterval, handoverTimeout);
+        }
+        return balancer;
+    }
+
+    private synchronized SingletonRouteLeases getLeases() {
+        if (leases == null) {
+            leases = new SingletonRouteLeases(hazelcast);
+            leaseExecutor = Executors.newScheduledThreadPool(2, r -> {
+                Thread thread = new Thread(r, "singleton-route-lease");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return leases;
+    }
+
+    /**
+     * Whether the lease carried by an exchange, if any, is still current. Exchanges not started by a lease based
+     * singleton route are not fenced.
+     */
+    public boolean isLeaseCurrent(Exchange exchange) {
+        Lease exchangeLease = exchange.getProperty(LeaseSingletonRoutePolicy.PROPERTY_LEASE, Lease.class);
+        return exchangeLease == null || getLeases().isCurrent(exchangeLease);
+    }
+
+    /**
+     * Stop background threads of balanced and lease based policies. Leadership held by this member is released when
+     * it leaves the cluster.
+     */
+    @PreDestroy
+    public synchronized void shutdownPolicies() {
+        if (balancer != null) {
+            balancer.shutdown();
+        }
+        if (leaseExecutor != null) {
+            leaseExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Hazelcast instance used for cluster sync, for sharing other cluster wide state.
+     */
+    public HazelcastInstance getHazelcastInstance() {
+        return hazelcast;
+    }
+
+    /**
+     * Whether route is assigned to this member by the same rendezvous hashing as used by {@link SingletonRouteBalancer}.
+     */
+    private boolean isAssignedToLocalMember(String routeId) {
+        String localMemberId = hazelcast.getCluster().getLocalMember().getUuid();
+        List<String> memberIds = hazelcast.getCluster().getMembers().stream().map(Member::getUuid).collect(Collectors.toList());
+        return localMemberId.equals(SingletonRouteBalancer.assign(Collections.singleton(routeId), memberIds).get(routeId));
+    }
+
     @Override
     public RoutePolicy createRoutePolicy(CamelContext camelContext, String routeId, RouteDefinition routeDefinition) {
         try {
             if (!ignorePolicy && SINGLETON_ROUTE_DEFINITION_GROUP_NAME.equals(routeDefinition.getGroup())) {
+                if (lease) {
+                    SingletonRouteLeases routeLeases = getLeases();
+                    if (balanced) {
+                        return new LeaseSingletonRoutePolicy(routeLeases, leaseExecutor, leaseTtl, this::isAssignedToLocalMember);
+                    }
+                    return new LeaseSingletonRoutePolicy(routeLeases, leaseExecutor, leaseTtl);
+                }
+                if (balanced) {
+                    return new BalancedSingletonRoutePolicy(getBalancer());
+                }
                 return build(routeId);
             }
         } catch (Exception e) {
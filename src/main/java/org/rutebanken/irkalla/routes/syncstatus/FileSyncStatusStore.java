@@ -0,0 +1,203 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.syncstatus;
+
+import org.rutebanken.irkalla.IrkallaException;
+import org.rutebanken.irkalla.domain.SyncJob;
+import org.rutebanken.irkalla.util.JsonSerialization;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Sync status in a local file, for single node setups without etcd.
+ * <p>
+ * Every write is appended as a line and forced to disk, the last complete line being the current status. A partially
+ * written last line (crash during write) is ignored, and cut off when the file is loaded so that the next entry is not
+ * appended to it. When the file reaches the configured number of entries, it is replaced by a file containing the
+ * current status only. Each line holds the synced until date, followed by the fencing token of the writing leader if
+ * any, separated by ';'.
+ * <p>
+ * The current sync job is stored as JSON in a separate file next to the status file (name suffixed with '.job'),
+ * replaced atomically on every write. The fencing token of the writing leader is included in the JSON, and kept in a
+ * deleted marker when the job is deleted by a leader.
+ */
+public class FileSyncStatusStore implements SyncStatusStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileSyncStatusStore.class);
+
+    private static final String TOKEN_SEPARATOR = ";";
+
+    private final Path file;
+
+    private final Path syncJobFile;
+
+    private final int maxEntries;
+
+    private int entries;
+
+    private volatile Long syncedUntil;
+
+    private Long fencingToken;
+
+    public FileSyncStatusStore(Path file, int maxEntries) {
+        this.file = file;
+        this.syncJobFile = file.resolveSibling(file.getFileName() + ".job");
+        this.maxEntries = maxEntries;
+        load();
+    }
+
+    @Override
+    public Long getSyncedUntil() {
+        return syncedUntil;
+    }
+
+    @Override
+    public synchronized void setSyncedUntil(long syncedUntil, Long fencingToken) {
+        Long token = SyncStatusStore.nextFencingToken(this.fencingToken, fencingToken);
+        byte[] entry = toBytes(syncedUntil, token);
+        try {
+            if (entries >= maxEntries) {
+                replace(file, entry);
+                entries = 1;
+            } else {
+                write(file, entry, StandardOpenOption.APPEND);
+                entries++;
+            }
+        } catch (IOException e) {
+            throw new IrkallaException("Failed to write sync status to file: " + file, e);
+        }
+        this.syncedUntil = syncedUntil;
+        this.fencingToken = token;
+    }
+
+    @Override
+    public synchronized SyncJob getSyncJob() {
+        SyncJob syncJob = loadSyncJob();
+        return syncJob == null || syncJob.isDeleted() ? null : syncJob;
+    }
+
+    @Override
+    public synchronized void setSyncJob(SyncJob syncJob, Long fencingToken) {
+        syncJob.setFencingToken(SyncStatusStore.nextFencingToken(storedFencingToken(loadSyncJob()), fencingToken));
+        writeSyncJob(syncJob);
+    }
+
+    /**
+     * A job deleted with a fencing token is replaced by a deleted marker keeping the token.
+     */
+    @Override
+    public synchronized void deleteSyncJob(Long fencingToken) {
+        Long token = SyncStatusStore.nextFencingToken(storedFencingToken(loadSyncJob()), fencingToken);
+        if (token != null) {
+            writeSyncJob(SyncJob.deleted(token));
+            return;
+        }
+        try {
+            Files.deleteIfExists(syncJobFile);
+        } catch (IOException e) {
+            throw new IrkallaException("Failed to delete sync job file: " + syncJobFile, e);
+        }
+    }
+
+    private SyncJob loadSyncJob() {
+        if (!Files.exists(syncJobFile)) {
+            return null;
+        }
+        try {
+            return JsonSerialization.toSyncJob(new String(Files.readAllBytes(syncJobFile), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new IrkallaException("Failed to read sync job from file: " + syncJobFile, e);
+        }
+    }
+
+    private void writeSyncJob(SyncJob syncJob) {
+        try {
+            replace(syncJobFile, JsonSerialization.toBytes(syncJob));
+        } catch (IOException e) {
+            throw new IrkallaException("Failed to write sync job to file: " + syncJobFile, e);
+        }
+    }
+
+    private void load() {
+        if (!Files.exists(file)) {
+            logger.info("No sync status file found: {}. Using null", file);
+            return;
+        }
+        try {
+            String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+            int end = content.lastIndexOf('\n');
+            if (end < content.length() - 1) {
+                logger.warn("Discarding partially written sync status entry in file: {}", file);
+                truncate(file, content.substring(0, end + 1).getBytes(StandardCharsets.UTF_8).length);
+            }
+            if (end < 0) {
+                logger.warn("No complete sync status entry found in file: {}. Using null", file);
+                return;
+            }
+            String[] lines = content.substring(0, end).split("\n");
+            entries = lines.length;
+            String[] entry = lines[lines.length - 1].trim().split(TOKEN_SEPARATOR);
+            syncedUntil = Long.valueOf(entry[0]);
+            fencingToken = entry.length > 1 ? Long.valueOf(entry[1]) : null;
+        } catch (IOException | NumberFormatException e) {
+            throw new IrkallaException("Failed to read sync status from file: " + file, e);
+        }
+    }
+
+    private static void replace(Path path, byte[] content) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        write(tmp, content, StandardOpenOption.TRUNCATE_EXISTING);
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Cut off a partially written entry, so that the next entry is not appended to it.
+     */
+    private static void truncate(Path path, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+            channel.force(false);
+        }
+    }
+
+    private static void write(Path path, byte[] content, StandardOpenOption mode) throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode)) {
+            channel.write(ByteBuffer.wrap(content));
+            channel.force(false);
+        }
+    }
+
+    private static Long storedFencingToken(SyncJob storedJob) {
+        return storedJob == null ? null : storedJob.getFencingToken();
+    }
+
+    private static byte[] toBytes(long syncedUntil, Long fencingToken) {
+        String entry = fencingToken == null ? Long.toString(syncedUntil) : syncedUntil + TOKEN_SEPARATOR + fencingToken;
+        return (entry + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+}
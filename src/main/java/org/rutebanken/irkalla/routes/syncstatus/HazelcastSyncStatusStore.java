@@ -0,0 +1,160 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.syncstatus;
+
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.map.listener.EntryAddedListener;
+import com.hazelcast.map.listener.EntryUpdatedListener;
+import org.rutebanken.irkalla.IrkallaException;
+import org.rutebanken.irkalla.domain.SyncJob;
+import org.rutebanken.irkalla.util.JsonSerialization;
+
+import java.io.IOException;
+
+/**
+ * Sync status kept in the Hazelcast cluster of the irkalla members. The map is backed up on another member (default
+ * backup count for Hazelcast maps), so the status survives restart of single members, but not of the whole cluster.
+ * <p>
+ * The status is stored with the fencing token of the writing leader. Writes are compare-and-swap against the current
+ * entry, so a write with an older token is rejected even if a newer leader writes concurrently.
+ * <p>
+ * Every member keeps a local copy, updated by an entry listener, so that reads do not require a network hop. The
+ * current sync job is stored as JSON with the fencing token of the writing leader in a separate map, written the same
+ * way, and is always read from the cluster.
+ */
+public class HazelcastSyncStatusStore implements SyncStatusStore {
+
+    public static final String MAP_NAME = "irkalla.sync.status";
+
+    public static final String SYNC_JOB_MAP_NAME = "irkalla.sync.job";
+
+    private static final String KEY = "stopPlaceSyncedUntil";
+
+    private static final String SYNC_JOB_KEY = "stopPlaceSyncJob";
+
+    private final IMap<String, SyncStatus> map;
+
+    private final IMap<String, String> syncJobMap;
+
+    private volatile Long syncedUntil;
+
+    public HazelcastSyncStatusStore(HazelcastInstance hazelcast) {
+        this.map = hazelcast.getMap(MAP_NAME);
+        map.addEntryListener(new SyncStatusListener(), KEY, true);
+        syncedUntil = toSyncedUntil(map.get(KEY));
+        this.syncJobMap = hazelcast.getMap(SYNC_JOB_MAP_NAME);
+    }
+
+    @Override
+    public Long getSyncedUntil() {
+        return syncedUntil;
+    }
+
+    @Override
+    public void setSyncedUntil(long syncedUntil, Long fencingToken) {
+        while (true) {
+            SyncStatus current = map.get(KEY);
+            if (current == null) {
+                SyncStatus status = new SyncStatus(syncedUntil, fencingToken);
+                if (map.putIfAbsent(KEY, status) == null) {
+                    break;
+                }
+            } else {
+                SyncStatus status = new SyncStatus(syncedUntil, SyncStatusStore.nextFencingToken(current.getFencingToken(), fencingToken));
+                if (map.replace(KEY, current, status)) {
+                    break;
+                }
+            }
+        }
+        this.syncedUntil = syncedUntil;
+    }
+
+    @Override
+    public SyncJob getSyncJob() {
+        SyncJob syncJob = toSyncJob(syncJobMap.get(SYNC_JOB_KEY));
+        return syncJob == null || syncJob.isDeleted() ? null : syncJob;
+    }
+
+    @Override
+    public void setSyncJob(SyncJob syncJob, Long fencingToken) {
+        while (true) {
+            String current = syncJobMap.get(SYNC_JOB_KEY);
+            syncJob.setFencingToken(SyncStatusStore.nextFencingToken(storedFencingToken(current), fencingToken));
+            if (compareAndSetSyncJob(current, JsonSerialization.toString(syncJob))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * A job deleted with a fencing token is replaced by a deleted marker keeping the token.
+     */
+    @Override
+    public void deleteSyncJob(Long fencingToken) {
+        while (true) {
+            String current = syncJobMap.get(SYNC_JOB_KEY);
+            Long token = SyncStatusStore.nextFencingToken(storedFencingToken(current), fencingToken);
+            if (compareAndSetSyncJob(current, token == null ? null : JsonSerialization.toString(SyncJob.deleted(token)))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Replace current sync job JSON with given JSON, or remove it if null, unless modified concurrently.
+     */
+    private boolean compareAndSetSyncJob(String current, String json) {
+        if (current == null) {
+            return json == null || syncJobMap.putIfAbsent(SYNC_JOB_KEY, json) == null;
+        }
+        return json == null ? syncJobMap.remove(SYNC_JOB_KEY, current) : syncJobMap.replace(SYNC_JOB_KEY, current, json);
+    }
+
+    private static Long storedFencingToken(String json) {
+        SyncJob storedJob = toSyncJob(json);
+        return storedJob == null ? null : storedJob.getFencingToken();
+    }
+
+    private static SyncJob toSyncJob(String json) {
+        if (json == null) {
+            return null;
+        }
+        try {
+            return JsonSerialization.toSyncJob(json);
+        } catch (IOException e) {
+            throw new IrkallaException("Failed to read sync job from Hazelcast: " + e.getMessage(), e);
+        }
+    }
+
+    private static Long toSyncedUntil(SyncStatus status) {
+        return status == null ? null : status.getSyncedUntil();
+    }
+
+    private class SyncStatusListener implements EntryAddedListener<String, SyncStatus>, EntryUpdatedListener<String, SyncStatus> {
+
+        @Override
+        public void entryAdded(EntryEvent<String, SyncStatus> event) {
+            syncedUntil = toSyncedUntil(event.getValue());
+        }
+
+        @Override
+        public void entryUpdated(EntryEvent<String, SyncStatus> event) {
+            syncedUntil = toSyncedUntil(event.getValue());
+        }
+    }
+}
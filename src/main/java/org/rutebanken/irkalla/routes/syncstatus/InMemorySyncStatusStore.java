@@ -0,0 +1,60 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.syncstatus;
+
+import org.rutebanken.irkalla.domain.SyncJob;
+
+/**
+ * Sync status kept in memory only. Lost on restart, for testing without external storage.
+ */
+public class InMemorySyncStatusStore implements SyncStatusStore {
+
+    private volatile Long syncedUntil;
+
+    private Long fencingToken;
+
+    private volatile SyncJob syncJob;
+
+    private Long syncJobFencingToken;
+
+    @Override
+    public Long getSyncedUntil() {
+        return syncedUntil;
+    }
+
+    @Override
+    public synchronized void setSyncedUntil(long syncedUntil, Long fencingToken) {
+        this.fencingToken = SyncStatusStore.nextFencingToken(this.fencingToken, fencingToken);
+        this.syncedUntil = syncedUntil;
+    }
+
+    @Override
+    public SyncJob getSyncJob() {
+        return syncJob;
+    }
+
+    @Override
+    public synchronized void setSyncJob(SyncJob syncJob, Long fencingToken) {
+        this.syncJobFencingToken = SyncStatusStore.nextFencingToken(this.syncJobFencingToken, fencingToken);
+        this.syncJob = syncJob;
+    }
+
+    @Override
+    public synchronized void deleteSyncJob(Long fencingToken) {
+        this.syncJobFencingToken = SyncStatusStore.nextFencingToken(this.syncJobFencingToken, fencingToken);
+        syncJob = null;
+    }
+}
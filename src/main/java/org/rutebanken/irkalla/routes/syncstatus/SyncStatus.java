@@ -0,0 +1,63 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.syncstatus;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Synced until date together with the fencing token of the leader that wrote it, if any.
+ */
+public class SyncStatus implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long syncedUntil;
+
+    private final Long fencingToken;
+
+    public SyncStatus(long syncedUntil, Long fencingToken) {
+        this.syncedUntil = syncedUntil;
+        this.fencingToken = fencingToken;
+    }
+
+    public long getSyncedUntil() {
+        return syncedUntil;
+    }
+
+    public Long getFencingToken() {
+        return fencingToken;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        SyncStatus that = (SyncStatus) o;
+        return syncedUntil == that.syncedUntil &&
+                       Objects.equals(fencingToken, that.fencingToken);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(syncedUntil, fencingToken);
+    }
+
+    @Override
+    public String toString() {
+        return "SyncStatus{syncedUntil=" + syncedUntil + ", fencingToken=" + fencingToken + '}';
+    }
+}
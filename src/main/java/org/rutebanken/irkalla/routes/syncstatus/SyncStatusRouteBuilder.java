@@ -0,0 +1,98 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.syncstatus;
+
+import org.apache.camel.Exchange;
+import org.rutebanken.irkalla.IrkallaException;
+import org.rutebanken.irkalla.domain.SyncJob;
+import org.rutebanken.irkalla.routes.BaseRouteBuilder;
+import org.rutebanken.irkalla.routes.singleton.Lease;
+import org.rutebanken.irkalla.routes.singleton.LeaseSingletonRoutePolicy;
+import org.rutebanken.irkalla.routes.singleton.SingletonRoutePolicyFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+
+/**
+ * Get/ set stop place synced until date and current sync job in configured {@link SyncStatusStore}. Synced until date
+ * is returned as epoch millis and may be set as either epoch millis or {@link Instant}.
+ */
+@Component
+public class SyncStatusRouteBuilder extends BaseRouteBuilder {
+
+    @Autowired
+    private SyncStatusStore syncStatusStore;
+
+    @Autowired
+    private SingletonRoutePolicyFactory singletonRoutePolicyFactory;
+
+    @Override
+    public void configure() throws Exception {
+        from("direct:getSyncStatusUntilTime")
+                .process(e -> e.getIn().setBody(syncStatusStore.getSyncedUntil()))
+                .routeId("get-sync-status-until");
+
+        from("direct:setSyncStatusUntilTime")
+                .process(e -> verifyLeadership(e))
+                .process(e -> syncStatusStore.setSyncedUntil(toEpochMillis(e), getFencingToken(e)))
+                .routeId("set-sync-status-until");
+
+        from("direct:getSyncJob")
+                .process(e -> e.getIn().setBody(syncStatusStore.getSyncJob()))
+                .routeId("get-sync-job");
+
+        from("direct:setSyncJob")
+                .process(e -> verifyLeadership(e))
+                .process(e -> syncStatusStore.setSyncJob(e.getIn().getBody(SyncJob.class), getFencingToken(e)))
+                .routeId("set-sync-job");
+
+        from("direct:deleteSyncJob")
+                .process(e -> verifyLeadership(e))
+                .process(e -> syncStatusStore.deleteSyncJob(getFencingToken(e)))
+                .routeId("delete-sync-job");
+    }
+
+    /**
+     * Refuse to commit sync status or sync job from an exchange started by a leader whose lease has since been taken
+     * over. Only an early check, the lease may still be taken over before the store is written. The store rejects a
+     * write or delete with an older fencing token than the stored one atomically.
+     */
+    private void verifyLeadership(Exchange e) {
+        if (!singletonRoutePolicyFactory.isLeaseCurrent(e)) {
+            Lease lease = e.getProperty(LeaseSingletonRoutePolicy.PROPERTY_LEASE, Lease.class);
+            throw new IrkallaException("Not committing sync status or job, lease with fencing token " + lease.getToken() + " for route " + lease.getKey() + " is no longer current");
+        }
+    }
+
+    /**
+     * Fencing token of the lease carried by the exchange, or null if not started by a lease based singleton route.
+     */
+    private Long getFencingToken(Exchange e) {
+        Lease lease = e.getProperty(LeaseSingletonRoutePolicy.PROPERTY_LEASE, Lease.class);
+        return lease == null ? null : lease.getToken();
+    }
+
+    private long toEpochMillis(Exchange e) {
+        Object body = e.getIn().getBody();
+        if (body instanceof Instant) {
+            return ((Instant) body).toEpochMilli();
+        } else if (body instanceof Number) {
+            return ((Number) body).longValue();
+        }
+        throw new IrkallaException("Unable to store sync status of type: " + (body == null ? null : body.getClass()));
+    }
+}
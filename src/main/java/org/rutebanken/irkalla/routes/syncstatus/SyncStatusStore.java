@@ -0,0 +1,105 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.syncstatus;
+
+import org.rutebanken.irkalla.domain.SyncJob;
+
+/**
+ * Storage for the date stop places are synced to Chouette until. Delta synchronization continues from this date, so a
+ * lost status forces a full synchronization.
+ * <p>
+ * Also stores the progress of the current sync job, if any, so that an interrupted sync can be resumed.
+ * <p>
+ * The synced until date and the sync job are each stored together with the fencing token of the leader writing them. A
+ * write or delete carrying an older token than the stored one comes from a deposed leader and is rejected atomically by
+ * the store.
+ */
+public interface SyncStatusStore {
+
+    /**
+     * Get synced until date as epoch millis, or null if no status is stored.
+     */
+    Long getSyncedUntil();
+
+    /**
+     * Store synced until date without fencing, keeping the stored fencing token.
+     */
+    default void setSyncedUntil(long syncedUntil) {
+        setSyncedUntil(syncedUntil, null);
+    }
+
+    /**
+     * Store synced until date written by the leader holding the given fencing token, or without fencing if null.
+     *
+     * @throws StaleFencingTokenException if the stored status was written with a newer fencing token
+     */
+    void setSyncedUntil(long syncedUntil, Long fencingToken);
+
+    /**
+     * Get progress of current sync job, or null if no job is stored.
+     */
+    SyncJob getSyncJob();
+
+    /**
+     * Store sync job without fencing, keeping the stored fencing token.
+     */
+    default void setSyncJob(SyncJob syncJob) {
+        setSyncJob(syncJob, null);
+    }
+
+    /**
+     * Store sync job written by the leader holding the given fencing token, or without fencing if null.
+     *
+     * @throws StaleFencingTokenException if the stored job was written or deleted with a newer fencing token
+     */
+    void setSyncJob(SyncJob syncJob, Long fencingToken);
+
+    /**
+     * Remove current sync job, if any, without fencing.
+     */
+    default void deleteSyncJob() {
+        deleteSyncJob(null);
+    }
+
+    /**
+     * Remove current sync job, if any, by the leader holding the given fencing token, or without fencing if null. The
+     * fencing token is kept after the job is removed.
+     *
+     * @throws StaleFencingTokenException if the stored job was written or deleted with a newer fencing token
+     */
+    void deleteSyncJob(Long fencingToken);
+
+    /**
+     * Fencing token to store with a new status or sync job.
+     *
+     * @throws StaleFencingTokenException if the token is older than the stored token
+     */
+    static Long nextFencingToken(Long storedToken, Long fencingToken) {
+        if (fencingToken == null) {
+            return storedToken;
+        }
+        if (storedToken != null && fencingToken < storedToken) {
+            throw new StaleFencingTokenException("Rejecting write with fencing token " + fencingToken + ", newer fencing token " + storedToken + " has already been stored");
+        }
+        return fencingToken;
+    }
+
+    /**
+     * Release resources and persist pending writes, if any.
+     */
+    default void close() {
+    }
+}
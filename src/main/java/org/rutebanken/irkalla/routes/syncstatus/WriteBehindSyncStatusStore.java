@@ -0,0 +1,134 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.syncstatus;
+
+import org.rutebanken.irkalla.domain.SyncJob;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Decorator serving reads from memory and writing to the underlying store asynchronously. Writes made while a write is
+ * pending are coalesced, only the latest status is written.
+ * <p>
+ * A status not yet written when the node dies is lost. The stored status is then older than the actual one, causing
+ * the next delta synchronization to include some already synced changes, but no changes to be skipped.
+ * <p>
+ * Fencing tokens are checked by the underlying store when the status is written. A status rejected because it was
+ * written by a deposed leader is dropped, and the status is reloaded from the underlying store on next read.
+ * <p>
+ * Sync jobs are written through to the underlying store, as a resumed job must continue from its last checkpoint. A
+ * write or delete rejected because of a stale fencing token fails the caller.
+ */
+public class WriteBehindSyncStatusStore implements SyncStatusStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteBehindSyncStatusStore.class);
+
+    private final SyncStatusStore delegate;
+
+    private final long delayMillis;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "sync-status-write-behind");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicReference<SyncStatus> pending = new AtomicReference<>();
+
+    private volatile Long syncedUntil;
+
+    private volatile boolean loaded;
+
+    public WriteBehindSyncStatusStore(SyncStatusStore delegate, long delayMillis) {
+        this.delegate = delegate;
+        this.delayMillis = delayMillis;
+    }
+
+    @Override
+    public Long getSyncedUntil() {
+        if (!loaded) {
+            synchronized (this) {
+                if (!loaded) {
+                    syncedUntil = delegate.getSyncedUntil();
+                    loaded = true;
+                }
+            }
+        }
+        return syncedUntil;
+    }
+
+    @Override
+    public void setSyncedUntil(long syncedUntil, Long fencingToken) {
+        this.syncedUntil = syncedUntil;
+        loaded = true;
+        if (pending.getAndSet(new SyncStatus(syncedUntil, fencingToken)) == null) {
+            executor.schedule(this::flush, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public SyncJob getSyncJob() {
+        return delegate.getSyncJob();
+    }
+
+    @Override
+    public void setSyncJob(SyncJob syncJob, Long fencingToken) {
+        delegate.setSyncJob(syncJob, fencingToken);
+    }
+
+    @Override
+    public void deleteSyncJob(Long fencingToken) {
+        delegate.deleteSyncJob(fencingToken);
+    }
+
+    /**
+     * Write pending status, if any, to the underlying store. Failed writes are retried with next scheduled flush.
+     */
+    void flush() {
+        SyncStatus value = pending.getAndSet(null);
+        if (value == null) {
+            return;
+        }
+        try {
+            delegate.setSyncedUntil(value.getSyncedUntil(), value.getFencingToken());
+        } catch (StaleFencingTokenException e) {
+            logger.warn("Dropping sync status: " + e.getMessage());
+            loaded = false;
+        } catch (RuntimeException e) {
+            logger.warn("Failed to write sync status, will retry: " + e.getMessage(), e);
+            if (pending.compareAndSet(null, value) && !executor.isShutdown()) {
+                executor.schedule(this::flush, delayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(delayMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        delegate.close();
+    }
+}
@@ -18,8 +18,10 @@ package org.rutebanken.irkalla.routes.tiamat;
 import com.google.common.base.Joiner;
 import org.rutebanken.irkalla.domain.CrudAction;
 import org.rutebanken.irkalla.routes.tiamat.graphql.model.GraphqlGeometry;
+import org.rutebanken.irkalla.routes.tiamat.graphql.model.Quay;
 import org.rutebanken.irkalla.routes.tiamat.graphql.model.StopPlace;
 import org.rutebanken.irkalla.routes.tiamat.graphql.model.TopographicPlace;
+import org.rutebanken.irkalla.util.GeoDistance;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.CollectionUtils;
@@ -29,15 +31,16 @@ import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.stream.Collectors;
 
 /**
  * Representation of a change for a stop place.
  */
 public class StopPlaceChange {
-    public enum StopPlaceUpdateType {NAME, COORDINATES, TYPE, NEW_QUAY, REMOVED_QUAY, MINOR, MAJOR}
+    public enum StopPlaceUpdateType {NAME, COORDINATES, TYPE, NEW_QUAY, REMOVED_QUAY, RENAMED_QUAY, MOVED_QUAY, MINOR, MAJOR}
 
     private static final Logger logger = LoggerFactory.getLogger(StopPlaceChange.class);
 
@@ -57,10 +60,27 @@ public class StopPlaceChange {
 
     private List<String> newValue = new ArrayList<>();
 
+    /**
+     * Moves shorter than this (in metres) are not regarded as substantial changes.
+     */
+    private double coordinateChangeThreshold;
+
+    /**
+     * Tolerance (in metres) for regarding a quay as moved along with its stop place when no coordinate change threshold is set.
+     */
+    private static final double MOVED_WITH_STOP_PLACE_TOLERANCE = 0.01;
+
+    private Double coordinateChangeDistance;
+
     public StopPlaceChange(CrudAction crudAction, StopPlace current, StopPlace previousVersion) {
+        this(crudAction, current, previousVersion, 0);
+    }
+
+    public StopPlaceChange(CrudAction crudAction, StopPlace current, StopPlace previousVersion, double coordinateChangeThreshold) {
         this.crudAction = crudAction;
         this.current = current;
         this.previousVersion = previousVersion;
+        this.coordinateChangeThreshold = coordinateChangeThreshold;
         detectUpdateType();
     }
 
@@ -108,6 +128,13 @@ public class StopPlaceChange {
         return updateType;
     }
 
+    /**
+     * Distance in metres the stop place has been moved since previous version, or null if not moved or distance is unknown.
+     */
+    public Double getCoordinateChangeDistance() {
+        return coordinateChangeDistance;
+    }
+
     public String getOldValue() {
         return oldValue.isEmpty() ? null : Joiner.on("\n").join(oldValue);
     }
@@ -154,15 +181,59 @@ public class StopPlaceChange {
         checkForChanges(current.getNameAsString(), previousVersion.getNameAsString(), StopPlaceUpdateType.NAME);
         checkForChanges(current.stopPlaceType, previousVersion.stopPlaceType, StopPlaceUpdateType.TYPE);
 
-        // TODO do we need to verify magnitude of coord change? Seems to be small changes due to rounding.
-        checkForChanges(current.geometry, previousVersion.geometry, StopPlaceUpdateType.COORDINATES);
+        checkForCoordinateChanges();
+
+        detectQuayChanges();
+    }
 
-        List<String> currentQuayIds = current.safeGetQuays().stream().map(q -> q.id).collect(Collectors.toList());
-        List<String> previousVersionQuayIds = previousVersion.safeGetQuays().stream().map(q -> q.id).collect(Collectors.toList());
+    /**
+     * Small moves are typically caused by rounding of coordinates, and are not registered as coordinate changes.
+     */
+    private void checkForCoordinateChanges() {
+        if (Objects.equals(current.geometry, previousVersion.geometry)) {
+            return;
+        }
+        coordinateChangeDistance = distance(previousVersion.geometry, current.geometry);
+        if (!isBelowCoordinateChangeThreshold(coordinateChangeDistance)) {
+            checkForChanges(current.geometry, previousVersion.geometry, StopPlaceUpdateType.COORDINATES);
+        }
+    }
 
+    /**
+     * Diff quays by id in linear time. Quays left in the map of previous quays after matching all current quays have been removed.
+     */
+    private void detectQuayChanges() {
+        List<Quay> previousQuays = previousVersion.safeGetQuays();
+        Map<String, Quay> previousQuaysById = new LinkedHashMap<>(previousQuays.size() * 2);
+        for (Quay quay : previousQuays) {
+            previousQuaysById.put(quay.id, quay);
+        }
 
-        List<String> newQuays = currentQuayIds.stream().filter(q -> !previousVersionQuayIds.contains(q)).collect(Collectors.toList());
-        List<String> removedQuays = previousVersionQuayIds.stream().filter(q -> !currentQuayIds.contains(q)).collect(Collectors.toList());
+        List<String> newQuays = new ArrayList<>();
+        Map<String, String> renamedQuaysOldValue = new LinkedHashMap<>();
+        Map<String, String> renamedQuaysNewValue = new LinkedHashMap<>();
+        Map<String, String> movedQuaysOldValue = new LinkedHashMap<>();
+        Map<String, String> movedQuaysNewValue = new LinkedHashMap<>();
+
+        for (Quay quay : current.safeGetQuays()) {
+            Quay previousQuay = previousQuaysById.remove(quay.id);
+            if (previousQuay == null) {
+                newQuays.add(quay.id);
+                continue;
+            }
+            String name = quay.name != null ? quay.name.value : null;
+            String previousName = previousQuay.name != null ? previousQuay.name.value : null;
+            if (!Objects.equals(name, previousName)) {
+                renamedQuaysOldValue.put(quay.id, previousName);
+                renamedQuaysNewValue.put(quay.id, name);
+            }
+            if (!Objects.equals(quay.geometry, previousQuay.geometry) && !isBelowCoordinateChangeThreshold(distance(previousQuay.geometry, quay.geometry))
+                        && !isMovedWithStopPlace(previousQuay.geometry, quay.geometry)) {
+                movedQuaysOldValue.put(quay.id, formatValue(previousQuay.geometry));
+                movedQuaysNewValue.put(quay.id, formatValue(quay.geometry));
+            }
+        }
+        List<String> removedQuays = new ArrayList<>(previousQuaysById.keySet());
 
         if (!newQuays.isEmpty()) {
             registerUpdate(StopPlaceUpdateType.NEW_QUAY);
@@ -173,6 +244,17 @@ public class StopPlaceChange {
             oldValue.add(removedQuays.toString());
         }
 
+        if (!renamedQuaysNewValue.isEmpty()) {
+            registerUpdate(StopPlaceUpdateType.RENAMED_QUAY);
+            oldValue.add(renamedQuaysOldValue.toString());
+            newValue.add(renamedQuaysNewValue.toString());
+        }
+
+        if (!movedQuaysNewValue.isEmpty()) {
+            registerUpdate(StopPlaceUpdateType.MOVED_QUAY);
+            oldValue.add(movedQuaysOldValue.toString());
+            newValue.add(movedQuaysNewValue.toString());
+        }
     }
 
     private void checkForChanges(Object curr, Object pv, StopPlaceUpdateType updateType) {
@@ -205,6 +287,54 @@ public class StopPlaceChange {
         return null;
     }
 
+    /**
+     * Moving a stop place in Tiamat moves its quays along with it. Quays keeping their offset from the stop place are not
+     * reported as moved, so that moving the whole stop place is a COORDINATES change only.
+     */
+    private boolean isMovedWithStopPlace(GraphqlGeometry previousQuayGeometry, GraphqlGeometry quayGeometry) {
+        if (Objects.equals(current.geometry, previousVersion.geometry)) {
+            return false;
+        }
+        List<Double> stop = pointCoordinates(current.geometry);
+        List<Double> previousStop = pointCoordinates(previousVersion.geometry);
+        List<Double> quay = pointCoordinates(quayGeometry);
+        List<Double> previousQuay = pointCoordinates(previousQuayGeometry);
+        if (stop == null || previousStop == null || quay == null || previousQuay == null) {
+            return false;
+        }
+        double expectedLongitude = previousQuay.get(0) + stop.get(0) - previousStop.get(0);
+        double expectedLatitude = previousQuay.get(1) + stop.get(1) - previousStop.get(1);
+        double deviation = GeoDistance.haversine(expectedLatitude, expectedLongitude, quay.get(1), quay.get(0));
+        return deviation < Math.max(coordinateChangeThreshold, MOVED_WITH_STOP_PLACE_TOLERANCE);
+    }
+
+    private boolean isBelowCoordinateChangeThreshold(Double distance) {
+        return distance != null && distance < coordinateChangeThreshold;
+    }
+
+    /**
+     * Great-circle distance in metres between two points, or null if either is not a valid point.
+     */
+    private Double distance(GraphqlGeometry from, GraphqlGeometry to) {
+        List<Double> fromCoordinates = pointCoordinates(from);
+        List<Double> toCoordinates = pointCoordinates(to);
+        if (fromCoordinates == null || toCoordinates == null) {
+            return null;
+        }
+        // GeoJSON coordinates are given as longitude, latitude
+        return GeoDistance.haversine(fromCoordinates.get(1), fromCoordinates.get(0), toCoordinates.get(1), toCoordinates.get(0));
+    }
+
+    private List<Double> pointCoordinates(GraphqlGeometry geometry) {
+        if (geometry != null && "Point".equals(geometry.type) && !CollectionUtils.isEmpty(geometry.coordinates)) {
+            List<Double> coordinates = geometry.coordinates.get(0);
+            if (coordinates != null && coordinates.size() > 1 && coordinates.get(0) != null && coordinates.get(1) != null) {
+                return coordinates;
+            }
+        }
+        return null;
+    }
+
     private void registerUpdate(StopPlaceUpdateType updateType) {
         if (StopPlaceUpdateType.MINOR.equals(this.updateType)) {
             this.updateType = updateType;
@@ -0,0 +1,81 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.tiamat;
+
+import org.rutebanken.irkalla.domain.CrudAction;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coalesce changes for the same stop place, keeping only the newest version per stop place.
+ * <p>
+ * The coalesced change is compared against the version preceding the oldest coalesced change, so that the resulting
+ * diff covers all the coalesced changes:
+ * <p>
+ * * Any DELETE results in a DELETE
+ * * Changes ending with a REMOVE results in a REMOVE of the newest version, also when starting with a CREATE, as the
+ *   stop place is already terminated
+ * * Other changes starting with a CREATE results in a CREATE of the newest version
+ * * Otherwise an UPDATE of the newest version compared with the version preceding the oldest change
+ */
+public class StopPlaceChangeCoalescer {
+
+    private StopPlaceChangeCoalescer() {
+    }
+
+    /**
+     * @return one change per stop place, in order of first occurrence of the stop place
+     */
+    public static List<StopPlaceChangeKey> coalesce(List<StopPlaceChangeKey> keys) {
+        Map<String, List<StopPlaceChangeKey>> keysPerStopPlace = new LinkedHashMap<>();
+        for (StopPlaceChangeKey key : keys) {
+            keysPerStopPlace.computeIfAbsent(key.getId(), id -> new ArrayList<>()).add(key);
+        }
+
+        List<StopPlaceChangeKey> coalesced = new ArrayList<>(keysPerStopPlace.size());
+        for (List<StopPlaceChangeKey> keysForStopPlace : keysPerStopPlace.values()) {
+            coalesced.add(coalesceForStopPlace(keysForStopPlace));
+        }
+        return coalesced;
+    }
+
+    private static StopPlaceChangeKey coalesceForStopPlace(List<StopPlaceChangeKey> keys) {
+        if (keys.size() == 1) {
+            return keys.get(0);
+        }
+
+        keys.sort(Comparator.comparing(StopPlaceChangeKey::getVersion, Comparator.nullsFirst(Comparator.naturalOrder())));
+        StopPlaceChangeKey oldest = keys.get(0);
+        StopPlaceChangeKey newest = keys.get(keys.size() - 1);
+
+        CrudAction crudAction;
+        if (keys.stream().anyMatch(key -> CrudAction.DELETE.equals(key.getCrudAction()))) {
+            crudAction = CrudAction.DELETE;
+        } else if (CrudAction.REMOVE.equals(newest.getCrudAction())) {
+            crudAction = CrudAction.REMOVE;
+        } else if (CrudAction.CREATE.equals(oldest.getCrudAction())) {
+            crudAction = CrudAction.CREATE;
+        } else {
+            crudAction = CrudAction.UPDATE;
+        }
+
+        return new StopPlaceChangeKey(crudAction, newest.getId(), newest.getVersion(), oldest.getPreviousVersion());
+    }
+}
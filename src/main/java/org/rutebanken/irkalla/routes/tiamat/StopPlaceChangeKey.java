@@ -0,0 +1,72 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.tiamat;
+
+import org.rutebanken.irkalla.domain.CrudAction;
+
+/**
+ * Identifies a single change of a stop place to be looked up: the action and the id and version of the stop place.
+ * <p>
+ * The change is normally compared with the immediately preceding version, but a coalesced change spanning several
+ * versions is compared with the version preceding the oldest of them.
+ */
+public class StopPlaceChangeKey {
+
+    private final CrudAction crudAction;
+
+    private final String id;
+
+    private final Long version;
+
+    private final Long previousVersion;
+
+    public StopPlaceChangeKey(CrudAction crudAction, String id, Long version) {
+        this(crudAction, id, version, version == null ? null : version - 1);
+    }
+
+    public StopPlaceChangeKey(CrudAction crudAction, String id, Long version, Long previousVersion) {
+        this.crudAction = crudAction;
+        this.id = id;
+        this.version = version;
+        this.previousVersion = previousVersion;
+    }
+
+    public CrudAction getCrudAction() {
+        return crudAction;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public Long getPreviousVersion() {
+        return previousVersion;
+    }
+
+    @Override
+    public String toString() {
+        return "StopPlaceChangeKey{" +
+                       "crudAction=" + crudAction +
+                       ", id='" + id + '\'' +
+                       ", version=" + version +
+                       ", previousVersion=" + previousVersion +
+                       '}';
+    }
+}
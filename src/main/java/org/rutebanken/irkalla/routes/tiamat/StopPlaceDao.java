@@ -19,9 +19,18 @@ import org.apache.camel.Header;
 import org.rutebanken.irkalla.Constants;
 import org.rutebanken.irkalla.domain.CrudAction;
 
+import java.util.List;
+
 public interface StopPlaceDao {
 
     StopPlaceChange getStopPlaceChange(@Header(value = Constants.HEADER_CRUD_ACTION) CrudAction crudAction,
                                               @Header(value = Constants.HEADER_ENTITY_ID) String id,
                                               @Header(value = Constants.HEADER_ENTITY_VERSION) Long version);
+
+    /**
+     * Look up changes for a batch of stop places, using as few requests as possible.
+     *
+     * @return changes in the same order as the keys. Changes for unknown stop places are left out.
+     */
+    List<StopPlaceChange> getStopPlaceChanges(List<StopPlaceChangeKey> keys);
 }
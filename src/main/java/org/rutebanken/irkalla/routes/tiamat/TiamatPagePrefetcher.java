@@ -0,0 +1,248 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.tiamat;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.component.http4.HttpMethods;
+import org.rutebanken.irkalla.IrkallaException;
+import org.rutebanken.irkalla.config.HttpClientConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.rutebanken.irkalla.util.Http4URL.toHttp4Url;
+import static org.rutebanken.irkalla.util.Http4URL.withHttpClientConfigurer;
+
+/**
+ * Fetches upcoming pages of changed stop places from Tiamat in the background, while the current page is being processed
+ * (posted to Chouette).
+ * <p>
+ * Prefetched pages are only kept in memory as a cache keyed by page URL. The URL of the next page to process is still
+ * checkpointed on the sync queue in the same transaction as before, so a lost or stale prefetch only means that the page
+ * is fetched again.
+ * <p>
+ * Prefetched pages are held on heap, also when streaming is enabled, as spooled streams do not outlive the exchange that
+ * fetched them. Keep the depth low for large pages.
+ */
+@Component
+public class TiamatPagePrefetcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(TiamatPagePrefetcher.class);
+
+    private final CamelContext camelContext;
+
+    /**
+     * Max number of pages to fetch ahead of the page being processed. 0 disables prefetching.
+     */
+    private final int prefetchDepth;
+
+    private final long prefetchTimeoutMillis;
+
+    private final boolean compressionEnabled;
+
+    private final Cache<String, CompletableFuture<PrefetchedPage>> prefetchedPages;
+
+    private final Counter hitCounter;
+
+    private final Counter missCounter;
+
+    private ProducerTemplate producerTemplate;
+
+    private ExecutorService executorService;
+
+    public TiamatPagePrefetcher(@Autowired CamelContext camelContext, @Autowired MeterRegistry meterRegistry,
+                                       @Value("${sync.stop.place.prefetch.depth:0}") int prefetchDepth,
+                                       @Value("${sync.stop.place.prefetch.timeout.ms:300000}") long prefetchTimeoutMillis,
+                                       @Value("${sync.stop.place.compression.enabled:false}") boolean compressionEnabled) {
+        this.camelContext = camelContext;
+        this.compressionEnabled = compressionEnabled;
+        this.prefetchDepth = prefetchDepth;
+        this.prefetchTimeoutMillis = prefetchTimeoutMillis;
+        this.prefetchedPages = CacheBuilder.newBuilder()
+                                       .maximumSize(prefetchDepth + 1)
+                                       .expireAfterWrite(prefetchTimeoutMillis, TimeUnit.MILLISECONDS)
+                                       .build();
+        this.hitCounter = meterRegistry.counter("irkalla.sync.prefetch", "result", "hit");
+        this.missCounter = meterRegistry.counter("irkalla.sync.prefetch", "result", "miss");
+    }
+
+    public boolean isEnabled() {
+        return prefetchDepth > 0;
+    }
+
+    /**
+     * Set body and headers from prefetched page for URL, if any.
+     *
+     * @return whether a prefetched page was used
+     */
+    public boolean usePrefetchedPage(Exchange e, String url) {
+        if (!isEnabled()) {
+            return false;
+        }
+        CompletableFuture<PrefetchedPage> future = prefetchedPages.getIfPresent(url);
+        prefetchedPages.invalidate(url);
+        if (future == null) {
+            missCounter.increment();
+            return false;
+        }
+
+        try {
+            PrefetchedPage page = future.get(prefetchTimeoutMillis, TimeUnit.MILLISECONDS);
+            e.getIn().setBody(page.body);
+            e.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, page.responseCode);
+            if (page.link != null) {
+                e.getIn().setHeader("Link", page.link);
+            }
+            if (page.contentEncoding != null) {
+                e.getIn().setHeader(Exchange.CONTENT_ENCODING, page.contentEncoding);
+            }
+            hitCounter.increment();
+            return true;
+        } catch (Exception ex) {
+            logger.info("Prefetch of page failed, fetching page again: {}: {}", url, ex.getMessage());
+            missCounter.increment();
+            return false;
+        }
+    }
+
+    /**
+     * Start prefetching pages following the page linked to by Link header, up to configured depth.
+     */
+    public void prefetchNext(Exchange e) {
+        String link = e.getIn().getHeader("Link", String.class);
+        if (isEnabled() && link != null) {
+            prefetch(nextBatchUrl(link), prefetchDepth);
+        }
+    }
+
+    private void prefetch(String url, int remainingDepth) {
+        if (remainingDepth <= 0) {
+            return;
+        }
+        CompletableFuture<PrefetchedPage> future = new CompletableFuture<>();
+        CompletableFuture<PrefetchedPage> existing = prefetchedPages.asMap().putIfAbsent(url, future);
+        if (existing != null) {
+            // Already prefetched or being prefetched. Still extend the chain, to keep the configured depth ahead of the page being processed
+            existing.thenAccept(page -> prefetchFollowing(page, remainingDepth - 1));
+            return;
+        }
+        logger.debug("Prefetching batch of changed stop places: {}", url);
+        getExecutorService().execute(() -> {
+            try {
+                future.complete(fetch(url));
+            } catch (Exception ex) {
+                future.completeExceptionally(ex);
+            }
+        });
+        future.whenComplete((page, ex) -> {
+            if (ex != null) {
+                prefetchedPages.invalidate(url);
+            } else {
+                prefetchFollowing(page, remainingDepth - 1);
+            }
+        });
+    }
+
+    private void prefetchFollowing(PrefetchedPage page, int remainingDepth) {
+        if (page.link != null) {
+            prefetch(nextBatchUrl(page.link), remainingDepth);
+        }
+    }
+
+    /**
+     * Endpoint for fetching page. Compressed pages are fetched with a client not decompressing responses.
+     */
+    public String pageEndpoint(String url) {
+        return compressionEnabled ? withHttpClientConfigurer(url, HttpClientConfig.NETEX_HTTP_CLIENT_CONFIGURER) : url;
+    }
+
+    private PrefetchedPage fetch(String url) {
+        Exchange result = getProducerTemplate().request(pageEndpoint(url), e -> {
+            e.getIn().setHeader(Exchange.HTTP_METHOD, HttpMethods.GET);
+            if (compressionEnabled) {
+                // Keep page compressed, as when fetched directly
+                e.getIn().setHeader("Accept-Encoding", "gzip");
+                e.setProperty(Exchange.SKIP_GZIP_ENCODING, true);
+            }
+        });
+        if (result.getException() != null) {
+            throw new IrkallaException("Failed to prefetch page: " + url + ": " + result.getException().getMessage(), result.getException());
+        }
+        Message response = result.hasOut() ? result.getOut() : result.getIn();
+        return new PrefetchedPage(response.getBody(byte[].class), response.getHeader(Exchange.HTTP_RESPONSE_CODE, Integer.class),
+                                         response.getHeader("Link", String.class), response.getHeader(Exchange.CONTENT_ENCODING, String.class));
+    }
+
+    /**
+     * URL to next page of result set is encoded as Link header (rel="next")
+     */
+    public static String nextBatchUrl(String link) {
+        return toHttp4Url(link.replaceFirst("\\<", "")
+                                  .replaceFirst("\\>; rel=\"next\"", ""));
+    }
+
+    private synchronized ProducerTemplate getProducerTemplate() {
+        if (producerTemplate == null) {
+            producerTemplate = camelContext.createProducerTemplate();
+        }
+        return producerTemplate;
+    }
+
+    private synchronized ExecutorService getExecutorService() {
+        if (executorService == null) {
+            executorService = camelContext.getExecutorServiceManager().newFixedThreadPool(this, "TiamatPagePrefetcher", prefetchDepth);
+        }
+        return executorService;
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (executorService != null) {
+            camelContext.getExecutorServiceManager().shutdownNow(executorService);
+        }
+    }
+
+    private static class PrefetchedPage {
+        private final byte[] body;
+
+        private final Integer responseCode;
+
+        private final String link;
+
+        private final String contentEncoding;
+
+        PrefetchedPage(byte[] body, Integer responseCode, String link, String contentEncoding) {
+            this.body = body;
+            this.responseCode = responseCode;
+            this.link = link;
+            this.contentEncoding = contentEncoding;
+        }
+    }
+}
@@ -18,13 +18,19 @@ package org.rutebanken.irkalla.routes.tiamat;
 import org.apache.camel.Exchange;
 import org.apache.camel.LoggingLevel;
 import org.apache.camel.component.http4.HttpMethods;
+import org.apache.camel.util.GZIPHelper;
 import org.glassfish.jersey.uri.internal.JerseyUriBuilder;
 import org.rutebanken.irkalla.Constants;
+import org.rutebanken.irkalla.config.StreamCachingConfig;
 import org.rutebanken.irkalla.routes.BaseRouteBuilder;
+import org.rutebanken.irkalla.routes.chouette.SyncBatchSizeController;
+import org.rutebanken.irkalla.util.TransferSize;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.ws.rs.core.UriBuilder;
+import java.io.IOException;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
@@ -44,8 +50,17 @@ public class TiamatPollForStopPlaceChangesRouteBuilder extends BaseRouteBuilder
     @Value("${tiamat.publication.delivery.path:/services/stop_places/netex/changed_in_period}")
     private String publicationDeliveryPath;
 
-    @Value("${sync.stop.place.batch.size:1000}")
-    private int batchSize;
+    @Value("${tiamat.export.path:/services/stop_places/netex}")
+    private String exportPath;
+
+    @Value("${sync.stop.place.compression.enabled:false}")
+    private boolean compressionEnabled;
+
+    @Autowired
+    private TiamatPagePrefetcher tiamatPagePrefetcher;
+
+    @Autowired
+    private SyncBatchSizeController syncBatchSizeController;
 
 
     private static final String DATE_TIME_PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSSXXXX";
@@ -54,6 +69,12 @@ public class TiamatPollForStopPlaceChangesRouteBuilder extends BaseRouteBuilder
 
     private static final ZoneId TIME_ZONE_ID = ZoneId.of("UTC");
 
+    private static final String PROPERTY_PREFETCHED = "RutebankenPrefetched";
+
+    private static final String PROPERTY_PAGE_ENDPOINT = "RutebankenPageEndpoint";
+
+    private static final String ACCEPT_ENCODING = "Accept-Encoding";
+
     @Override
     public void configure() throws Exception {
         super.configure();
@@ -66,15 +87,34 @@ public class TiamatPollForStopPlaceChangesRouteBuilder extends BaseRouteBuilder
                 .to("direct:processBatchOfChangedStopPlacesAsNetex")
                 .routeId("tiamat-get-changed-stop-places-as-netex");
 
+        from("direct:setStopPlacesByIdURL")
+                .process(e -> setStopPlacesByIdURL(e))
+                .routeId("tiamat-set-stop-places-by-id-url");
+
         from("direct:processBatchOfChangedStopPlacesAsNetex")
+                .streamCaching(StreamCachingConfig.STREAM_CACHING)
                 .log(LoggingLevel.INFO, "Fetching batch of changed stop places: ${header." + HEADER_NEXT_BATCH_URL + "}")
                 .removeHeader("Link")
+                .removeHeader(Exchange.CONTENT_ENCODING)
                 .setHeader(Exchange.HTTP_METHOD, constant(HttpMethods.GET))
                 .setBody(constant(null))
-                .toD("${header." + HEADER_NEXT_BATCH_URL + "}")
+                .process(e -> requestCompressedResponse(e))
+                .process(e -> e.setProperty(PROPERTY_PREFETCHED, tiamatPagePrefetcher.usePrefetchedPage(e, e.getIn().getHeader(HEADER_NEXT_BATCH_URL, String.class))))
+                .choice()
+                .when(exchangeProperty(PROPERTY_PREFETCHED).isEqualTo(false))
+                .process(e -> e.setProperty(PROPERTY_PAGE_ENDPOINT, tiamatPagePrefetcher.pageEndpoint(e.getIn().getHeader(HEADER_NEXT_BATCH_URL, String.class))))
+                .toD("${exchangeProperty." + PROPERTY_PAGE_ENDPOINT + "}")
+                .end()
+                .removeProperty(PROPERTY_PREFETCHED)
+                .removeProperty(PROPERTY_PAGE_ENDPOINT)
+                .removeProperty(Exchange.SKIP_GZIP_ENCODING)
+                .removeHeader(ACCEPT_ENCODING)
                 .removeHeader(HEADER_NEXT_BATCH_URL)
                 .choice()
                 .when(simple("${header." + Exchange.HTTP_RESPONSE_CODE + "} == 200"))
+                .process(e -> registerBytesReceived(e))
+                // Fetch following page(s) while this page is processed. Next URL is still only checkpointed after processing.
+                .process(e -> tiamatPagePrefetcher.prefetchNext(e))
                 .toD("${header." + Constants.HEADER_PROCESS_TARGET + "}")
                 .choice()
                 .when(simple("${header.Link}"))
@@ -84,6 +124,29 @@ public class TiamatPollForStopPlaceChangesRouteBuilder extends BaseRouteBuilder
 
     }
 
+    /**
+     * Ask Tiamat for gzip encoded page, and keep it compressed so that it can be passed on to Chouette as is.
+     */
+    private void requestCompressedResponse(Exchange e) {
+        if (compressionEnabled) {
+            e.getIn().setHeader(ACCEPT_ENCODING, "gzip");
+            e.setProperty(Exchange.SKIP_GZIP_ENCODING, true);
+        }
+    }
+
+    /**
+     * Accumulate bytes received from Tiamat for the whole sync run in headers, which are passed on to next iteration.
+     */
+    private void registerBytesReceived(Exchange e) throws IOException {
+        Object body = e.getIn().getBody();
+        long received = TransferSize.bytes(body);
+        long uncompressed = GZIPHelper.isGzip(e.getIn().getHeader(Exchange.CONTENT_ENCODING, String.class)) ? TransferSize.gzipUncompressedBytes(body) : received;
+        if (received >= 0 && uncompressed >= 0) {
+            e.getIn().setHeader(HEADER_SYNC_BYTES_RECEIVED, e.getIn().getHeader(HEADER_SYNC_BYTES_RECEIVED, 0L, Long.class) + received);
+            e.getIn().setHeader(HEADER_SYNC_BYTES_UNCOMPRESSED, e.getIn().getHeader(HEADER_SYNC_BYTES_UNCOMPRESSED, 0L, Long.class) + uncompressed);
+        }
+    }
+
     private void setPollForChangesURL(Exchange e) {
         Long fromAsEpocMillis = e.getIn().getHeader(Constants.HEADER_SYNC_STATUS_FROM, Long.class);
         Long toAsEpocMillis = e.getIn().getHeader(Constants.HEADER_SYNC_STATUS_TO, Long.class);
@@ -101,6 +164,7 @@ public class TiamatPollForStopPlaceChangesRouteBuilder extends BaseRouteBuilder
             Instant to = Instant.ofEpochMilli(toAsEpocMillis);
             uriBuilder.queryParam("to", to.atZone(TIME_ZONE_ID).format(FORMATTER));
         }
+        int batchSize = syncBatchSizeController.getBatchSize();
         if (batchSize > 0) {
             uriBuilder.queryParam("per_page", batchSize);
         }
@@ -110,12 +174,22 @@ public class TiamatPollForStopPlaceChangesRouteBuilder extends BaseRouteBuilder
 
 
     /**
-     * URL to next page of result set is encoded as Link header (rel="next")
+     * Set url for exporting stop places with ids in body (String[]), all in one page.
      */
+    private void setStopPlacesByIdURL(Exchange e) {
+        String[] ids = e.getIn().getBody(String[].class);
+
+        UriBuilder uriBuilder = new JerseyUriBuilder().path(toHttp4Url(tiamatUrl) + exportPath);
+        uriBuilder.queryParam("topographicPlaceExportMode", "NONE");
+        uriBuilder.queryParam("tariffZoneExportMode", "NONE");
+        uriBuilder.queryParam("idList", String.join(",", ids));
+        uriBuilder.queryParam("per_page", ids.length);
+
+        e.getIn().setHeader(HEADER_NEXT_BATCH_URL, uriBuilder.build().toString());
+    }
+
     private void setURLToNextBatch(Exchange e) {
-        e.getIn().setHeader(HEADER_NEXT_BATCH_URL, toHttp4Url(e.getIn().getHeader("Link", String.class)
-                .replaceFirst("\\<", "")
-                .replaceFirst("\\>; rel=\"next\"", "")));
+        e.getIn().setHeader(HEADER_NEXT_BATCH_URL, TiamatPagePrefetcher.nextBatchUrl(e.getIn().getHeader("Link", String.class)));
     }
 
 }
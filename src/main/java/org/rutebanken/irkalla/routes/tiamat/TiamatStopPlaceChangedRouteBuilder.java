@@ -16,13 +16,27 @@
 package org.rutebanken.irkalla.routes.tiamat;
 
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.apache.camel.Exchange;
 import org.apache.camel.LoggingLevel;
 import org.rutebanken.irkalla.Constants;
+import org.rutebanken.irkalla.domain.CrudAction;
+import org.rutebanken.irkalla.domain.CrudEvent;
+import org.rutebanken.irkalla.domain.EntityChangedEvent;
+import org.rutebanken.irkalla.metrics.PropagationLagMetrics;
 import org.rutebanken.irkalla.routes.BaseRouteBuilder;
+import org.rutebanken.irkalla.routes.chouette.PendingStopPlaceIds;
+import org.rutebanken.irkalla.routes.tiamat.mapper.StopPlaceChangedToEvent;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Process changelog events for stop places:
@@ -30,14 +44,46 @@ import java.time.Instant;
  * * Look up current and, if relevant, previous version of stop
  * * Analyze change
  * * Build and send CRUD event to event handler (Nabu).
+ * <p>
+ * Changelog events consumed in batches are looked up in Tiamat with one query per batch. Multiple changes for the same
+ * stop place within a batch are coalesced into one change for the newest version (see {@link StopPlaceChangeCoalescer}).
  */
 @Component
 public class TiamatStopPlaceChangedRouteBuilder extends BaseRouteBuilder {
 
+    private static final String PROPERTY_DELETED_STOP_PLACES = "RutebankenDeletedStopPlaces";
+
+    private static final String PROPERTY_CHANGELOG_EVENTS = "RutebankenChangelogEvents";
+
+    @Value("${changelog.coalesce.enabled:true}")
+    private boolean coalesceEnabled;
+
+    /**
+     * Sync only stop places with effective changes to Chouette, instead of all stop places changed in period.
+     */
+    @Value("${sync.stop.place.targeted.enabled:false}")
+    private boolean targetedSyncEnabled;
+
+    @Autowired
+    private PendingStopPlaceIds pendingStopPlaceIds;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private StopPlaceChangedToEvent stopPlaceChangedToEvent;
+
+    @Autowired
+    private PropagationLagMetrics propagationLagMetrics;
+
+    private Counter coalescedCounter;
+
     @Override
     public void configure() throws Exception {
         super.configure();
 
+        coalescedCounter = Counter.builder("irkalla.changelog.coalesced").register(meterRegistry);
+
         from("direct:handleStopPlaceChanged")
                 .choice()
                 .when(simple("${header." + Constants.HEADER_CRUD_ACTION + "} == ${type:org.rutebanken.irkalla.domain.CrudAction.DELETE}"))
@@ -51,25 +97,127 @@ public class TiamatStopPlaceChangedRouteBuilder extends BaseRouteBuilder {
                                                 " ${header." + Constants.HEADER_ENTITY_ID + "} " +
                                                 "v: ${header." + Constants.HEADER_ENTITY_VERSION + "} ")
                     .otherwise()
-                    .process(e -> e.getIn().setHeader("isEffective", isChangeEffective(e)))
-                    .bean("stopPlaceChangedToEvent", "toEvent")
-                    .convertBodyTo(String.class)
-                    .to("activemq:queue:CrudEventQueue")
-
-                        .to("direct:triggerStopPlaceSyncIfChangeIsEffective")
+                    .to("direct:publishStopPlaceChange")
                     .endChoice()
                 .end()
                 .routeId("tiamat-stop-place-changed");
 
+        from("direct:handleStopPlacesChanged")
+                .process(e -> splitOutDeletedStopPlaces(e))
+                .split(exchangeProperty(PROPERTY_DELETED_STOP_PLACES))
+                    .setHeader(Constants.HEADER_ENTITY_ID, simple("${body.id}"))
+                    .setBody(constant(null))
+                    .to("activemq:queue:ChouetteStopPlaceDeleteQueue")
+                .end()
+                .removeProperty(PROPERTY_DELETED_STOP_PLACES)
+                .choice()
+                .when(simple("${body.size} > 0"))
+                    .bean("stopPlaceDao", "getStopPlaceChanges")
+                    .split(body())
+                        .setHeader(Constants.HEADER_ENTITY_ID, simple("${body.current.id}"))
+                        .setHeader(Constants.HEADER_ENTITY_VERSION, simple("${body.current.version}"))
+                        .setHeader(Constants.HEADER_CRUD_ACTION, simple("${body.crudAction}"))
+                        .process(e -> setChangelogHeaders(e))
+                        .to("direct:publishStopPlaceChange")
+                    .end()
+                .end()
+                .removeProperty(PROPERTY_CHANGELOG_EVENTS)
+                .routeId("tiamat-stop-places-changed");
+
+        from("direct:publishStopPlaceChange")
+                .process(e -> propagationLagMetrics.record(PropagationLagMetrics.STAGE_TIAMAT_LOOKUP, e.getIn()))
+                .process(e -> e.getIn().setHeader("isEffective", isChangeEffective(e)))
+                .process(e -> e.getIn().setBody(toCrudEvent(e)))
+                .process(e -> e.getIn().setBody(e.getIn().getBody(CrudEvent.class).toBytes()))
+                .to("activemq:queue:CrudEventQueue")
+                .process(e -> propagationLagMetrics.record(PropagationLagMetrics.STAGE_CRUD_EVENT_PUBLISHED, e.getIn()))
+                .to("direct:triggerStopPlaceSyncIfChangeIsEffective")
+                .routeId("tiamat-publish-stop-place-change");
+
         from("direct:triggerStopPlaceSyncIfChangeIsEffective")
                 .choice()
                 .when(simple("${header.isEffective}"))
+                .process(e -> registerForTargetedSync(e))
                 .setBody(constant(null))
                 .to("activemq:queue:ChouetteStopPlaceSyncQueue")
                 .routeId("tiamat-trigger-chouette-update-for-changed-stop");
 
     }
 
+    /**
+     * Convert batch of changelog events to lookup keys, keeping deleted stop places (which cannot be looked up) in a separate list.
+     */
+    private void splitOutDeletedStopPlaces(Exchange e) {
+        List<EntityChangedEvent> events = e.getIn().getBody(List.class);
+        List<StopPlaceChangeKey> keys = new ArrayList<>(events.size());
+        Map<String, EntityChangedEvent> firstEventPerEntity = new HashMap<>();
+        for (EntityChangedEvent event : events) {
+            keys.add(new StopPlaceChangeKey(event.getCrudAction(), event.getEntityId(), event.getEntityVersion()));
+            firstEventPerEntity.merge(event.getEntityId(), event, (first, other) -> isEnqueuedBefore(other, first) ? other : first);
+        }
+        e.setProperty(PROPERTY_CHANGELOG_EVENTS, firstEventPerEntity);
+
+        if (coalesceEnabled) {
+            List<StopPlaceChangeKey> coalescedKeys = StopPlaceChangeCoalescer.coalesce(keys);
+            coalescedCounter.increment(keys.size() - coalescedKeys.size());
+            keys = coalescedKeys;
+        }
+
+        List<StopPlaceChangeKey> deleted = new ArrayList<>();
+        List<StopPlaceChangeKey> changed = new ArrayList<>();
+        for (StopPlaceChangeKey key : keys) {
+            if (CrudAction.DELETE.equals(key.getCrudAction())) {
+                deleted.add(key);
+            } else {
+                changed.add(key);
+            }
+        }
+
+        e.setProperty(PROPERTY_DELETED_STOP_PLACES, deleted);
+        e.getIn().setBody(changed);
+    }
+
+    private boolean isEnqueuedBefore(EntityChangedEvent event, EntityChangedEvent other) {
+        return event.getEnqueuedTime() != null && (other.getEnqueuedTime() == null || event.getEnqueuedTime() < other.getEnqueuedTime());
+    }
+
+    /**
+     * Carry id and enqueue time of the first changelog event for the stop place in the batch, so that lag is measured
+     * from the first of coalesced changes.
+     */
+    private void setChangelogHeaders(Exchange e) {
+        Map<String, EntityChangedEvent> events = e.getProperty(PROPERTY_CHANGELOG_EVENTS, Map.class);
+        EntityChangedEvent event = events == null ? null : events.get(e.getIn().getHeader(Constants.HEADER_ENTITY_ID, String.class));
+        if (event != null) {
+            e.getIn().setHeader(Constants.HEADER_CORRELATION_ID, event.getMsgId());
+            e.getIn().setHeader(Constants.HEADER_CHANGELOG_ENQUEUED_TIME, event.getEnqueuedTime());
+        }
+    }
+
+    /**
+     * Correlation id is the id of the changelog event, so that the change can be traced from Tiamat to downstream
+     * consumers. Registered time is when the change was enqueued in the changelog.
+     */
+    private CrudEvent toCrudEvent(Exchange e) {
+        String correlationId = e.getIn().getHeader(Constants.HEADER_CORRELATION_ID, String.class);
+        if (correlationId == null) {
+            correlationId = e.getExchangeId();
+        }
+        Long enqueuedTime = e.getIn().getHeader(Constants.HEADER_CHANGELOG_ENQUEUED_TIME, Long.class);
+        Instant registeredTime = enqueuedTime != null && enqueuedTime > 0 ? Instant.ofEpochMilli(enqueuedTime) : Instant.now();
+        return stopPlaceChangedToEvent.toEvent(e.getIn().getBody(StopPlaceChange.class), correlationId, registeredTime);
+    }
+
+    /**
+     * Add stop place to set of stop places pending targeted sync, and make sync message trigger targeted sync.
+     */
+    private void registerForTargetedSync(Exchange e) {
+        if (targetedSyncEnabled) {
+            pendingStopPlaceIds.add(e.getIn().getHeader(Constants.HEADER_ENTITY_ID, String.class));
+            e.getIn().setHeader(Constants.HEADER_SYNC_OPERATION, Constants.SYNC_OPERATION_TARGETED);
+        }
+    }
+
     private boolean isChangeEffective(Exchange e) {
         Instant changeTime = e.getIn().getBody(StopPlaceChange.class).getChangeTime();
         return changeTime != null && changeTime.isBefore(Instant.now());
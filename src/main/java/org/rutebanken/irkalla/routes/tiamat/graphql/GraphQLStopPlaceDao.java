@@ -17,8 +17,14 @@ package org.rutebanken.irkalla.routes.tiamat.graphql;
 
 import org.rutebanken.irkalla.domain.CrudAction;
 import org.rutebanken.irkalla.routes.tiamat.StopPlaceChange;
+import org.rutebanken.irkalla.routes.tiamat.StopPlaceChangeKey;
 import org.rutebanken.irkalla.routes.tiamat.StopPlaceDao;
+import org.rutebanken.irkalla.routes.tiamat.graphql.StopPlaceQuery.QueryPlan;
 import org.rutebanken.irkalla.routes.tiamat.graphql.model.StopPlace;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
@@ -26,18 +32,16 @@ import org.springframework.http.HttpMethod;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
 
-import static org.rutebanken.irkalla.Constants.ET_CLIENT_ID_HEADER;
-import static org.rutebanken.irkalla.Constants.ET_CLIENT_NAME_HEADER;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
 
 
 @Service("stopPlaceDao")
 public class GraphQLStopPlaceDao implements StopPlaceDao {
 
-    @Value("${http.client.name:irkalla}")
-    private String clientName;
-
-    @Value("${HOSTNAME:irkalla}")
-    private String clientId;
+    private static final Logger logger = LoggerFactory.getLogger(GraphQLStopPlaceDao.class);
 
     @Value("${tiamat.url}")
     private String tiamatUrl;
@@ -45,37 +49,134 @@ public class GraphQLStopPlaceDao implements StopPlaceDao {
     @Value("${tiamat.graphql.path:/services/stop_places/graphql}")
     private String tiamatGraphQLPath;
 
+    @Value("${tiamat.graphql.batch.size:50}")
+    private int batchSize;
+
+    /**
+     * Stop places and quays moved less than this (in metres) are not regarded as moved.
+     */
+    @Value("${tiamat.stop.place.coordinate.change.threshold.meters:1.0}")
+    private double coordinateChangeThreshold;
+
+    private final RestTemplate restTemplate;
+
+    private final StopPlaceVersionCache stopPlaceVersionCache;
+
+    public GraphQLStopPlaceDao(@Autowired @Qualifier("tiamatRestTemplate") RestTemplate restTemplate,
+                                      @Autowired StopPlaceVersionCache stopPlaceVersionCache) {
+        this.restTemplate = restTemplate;
+        this.stopPlaceVersionCache = stopPlaceVersionCache;
+    }
+
     @Override
     public StopPlaceChange getStopPlaceChange(CrudAction crudAction, String id, Long version) {
-        RestTemplate restTemplate = new RestTemplate();
-        StopPlaceResponse rsp =
-                restTemplate.exchange(tiamatUrl + tiamatGraphQLPath, HttpMethod.POST, createQueryHttpEntity(id, version), StopPlaceResponse.class).getBody();
+        return lookup(Collections.singletonList(new StopPlaceChangeKey(crudAction, id, version))).get(0);
+    }
 
-        return toStopPlaceChange(crudAction, id, version, rsp);
+    @Override
+    public List<StopPlaceChange> getStopPlaceChanges(List<StopPlaceChangeKey> keys) {
+        List<StopPlaceChange> changes = new ArrayList<>(keys.size());
+        List<StopPlaceChange> lookedUp = lookup(keys);
+        for (int i = 0; i < keys.size(); i++) {
+            StopPlaceChange change = lookedUp.get(i);
+            if (change == null) {
+                logger.warn("Discarding stop place changed event for unknown stop place: {} v: {}", keys.get(i).getId(), keys.get(i).getVersion());
+            } else {
+                changes.add(change);
+            }
+        }
+        return changes;
     }
 
-    private StopPlaceChange toStopPlaceChange(CrudAction crudAction, String id, Long version, StopPlaceResponse rsp) {
-        StopPlace current = rsp.getCurrent();
+    /**
+     * Look up changes, using cached versions where available and one aliased GraphQL query per batch of max
+     * 'tiamat.graphql.batch.size' stop places for the rest.
+     *
+     * @return changes in same order as keys, with null for unknown stop places
+     */
+    private List<StopPlaceChange> lookup(List<StopPlaceChangeKey> keys) {
+        StopPlace[] current = new StopPlace[keys.size()];
+        StopPlace[] previous = new StopPlace[keys.size()];
+        List<Integer> toBeQueried = new ArrayList<>();
+
+        for (int i = 0; i < keys.size(); i++) {
+            StopPlaceChangeKey key = keys.get(i);
+            current[i] = stopPlaceVersionCache.get(key.getId(), key.getVersion());
+            if (isPreviousVersionRelevant(key)) {
+                previous[i] = stopPlaceVersionCache.getPreviousVersion(key.getId(), key.getPreviousVersion());
+            }
+            if (current[i] == null || (previous[i] == null && isPreviousVersionRelevant(key))) {
+                toBeQueried.add(i);
+            }
+        }
+
+        int querySize = batchSize > 0 ? batchSize : toBeQueried.size();
+        for (int from = 0; from < toBeQueried.size(); from += querySize) {
+            query(keys, toBeQueried.subList(from, Math.min(from + querySize, toBeQueried.size())), current, previous);
+        }
+
+        List<StopPlaceChange> changes = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            changes.add(toStopPlaceChange(keys.get(i), current[i], previous[i]));
+        }
+        return changes;
+    }
+
+    private void query(List<StopPlaceChangeKey> keys, List<Integer> indexes, StopPlace[] current, StopPlace[] previous) {
+        StopPlaceQuery query = new StopPlaceQuery();
+        for (int index : indexes) {
+            StopPlaceChangeKey key = keys.get(index);
+            query.addStopPlace(key.getId(),
+                    current[index] == null ? key.getVersion() : null,
+                    previous[index] == null && isPreviousVersionRelevant(key) ? key.getPreviousVersion() : null);
+        }
+
+        StopPlaceBatchResponse rsp =
+                restTemplate.exchange(tiamatUrl + tiamatGraphQLPath, HttpMethod.POST, createQueryHttpEntity(query), StopPlaceBatchResponse.class).getBody();
+        if (rsp == null) {
+            return;
+        }
+
+        for (int i = 0; i < indexes.size(); i++) {
+            int index = indexes.get(i);
+            if (current[index] == null) {
+                current[index] = rsp.getCurrent(i);
+                stopPlaceVersionCache.put(current[index]);
+            }
+            if (previous[index] == null && rsp.getPreviousVersion(i) != null) {
+                previous[index] = rsp.getPreviousVersion(i);
+                stopPlaceVersionCache.putPreviousVersion(previous[index]);
+            }
+        }
+    }
+
+    /**
+     * Previous version is only needed to detect type of updates. Tiamat returns version 1 if queried for v 0, so no need
+     * to query for versions before that.
+     */
+    private boolean isPreviousVersionRelevant(StopPlaceChangeKey key) {
+        return QueryPlan.forAction(key.getCrudAction()).includesPrevious()
+                       && key.getPreviousVersion() != null && key.getPreviousVersion() > 0;
+    }
 
-        if (current == null || !id.equals(current.id)) {
+    private StopPlaceChange toStopPlaceChange(StopPlaceChangeKey key, StopPlace current, StopPlace previousVersion) {
+        if (current == null || !key.getId().equals(current.id)) {
             return null;
         }
 
-        // Tiamat returns version 1 if queried for v 0. Verify that version is actually previous
+        // Verify that version is actually previous
         StopPlace previous = null;
-        if (rsp.getPreviousVersion() != null && id.equals(rsp.getPreviousVersion().id) && rsp.getPreviousVersion().version == (version - 1)) {
-            previous = rsp.getPreviousVersion();
+        if (previousVersion != null && key.getId().equals(previousVersion.id) && Objects.equals(previousVersion.version, key.getPreviousVersion())) {
+            previous = previousVersion;
         }
 
-        return new StopPlaceChange(crudAction, current, previous);
+        return new StopPlaceChange(key.getCrudAction(), current, previous, coordinateChangeThreshold);
     }
 
-    private HttpEntity<String> createQueryHttpEntity(String id, Long version) {
+    private HttpEntity<byte[]> createQueryHttpEntity(StopPlaceQuery query) {
         HttpHeaders headers = new HttpHeaders();
         headers.set(HttpHeaders.CONTENT_TYPE, "application/json");
-        headers.set(ET_CLIENT_NAME_HEADER, clientName);
-        headers.set(ET_CLIENT_ID_HEADER, clientId);
-        return new HttpEntity<>(new StopPlaceQuery(id, version).toString(), headers);
+        return new HttpEntity<>(query.toBytes(), headers);
     }
 
 
@@ -21,40 +21,36 @@ import org.rutebanken.irkalla.routes.tiamat.graphql.model.StopPlace;
 import org.springframework.util.CollectionUtils;
 
 import java.util.List;
+import java.util.Map;
 
-@JsonInclude(JsonInclude.Include.NON_NULL)
-public class StopPlaceResponse {
+import static org.rutebanken.irkalla.routes.tiamat.graphql.StopPlaceQuery.CURRENT_ALIAS;
+import static org.rutebanken.irkalla.routes.tiamat.graphql.StopPlaceQuery.PREVIOUS_ALIAS;
 
+/**
+ * Response for a {@link StopPlaceQuery} for multiple stop places, with results keyed by alias.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class StopPlaceBatchResponse {
 
-    public Data data;
+    public Map<String, List<StopPlace>> data;
 
-    public StopPlaceResponse() {
+    public StopPlaceBatchResponse() {
     }
 
-    @JsonInclude(JsonInclude.Include.NON_NULL)
-    public class Data {
-        public List<StopPlace> current;
-
-
-        public List<StopPlace> previous;
-
+    @JsonIgnore
+    public StopPlace getCurrent(int index) {
+        return getFirst(CURRENT_ALIAS + index);
     }
 
-
     @JsonIgnore
-    public StopPlace getCurrent() {
-        if (data == null || CollectionUtils.isEmpty(data.current)) {
-            return null;
-        }
-        return data.current.get(0);
+    public StopPlace getPreviousVersion(int index) {
+        return getFirst(PREVIOUS_ALIAS + index);
     }
 
-    @JsonIgnore
-    public StopPlace getPreviousVersion() {
-        if (data == null || CollectionUtils.isEmpty(data.previous)) {
+    private StopPlace getFirst(String alias) {
+        if (data == null || CollectionUtils.isEmpty(data.get(alias))) {
             return null;
         }
-        return data.previous.get(0);
+        return data.get(alias).get(0);
     }
 }
-
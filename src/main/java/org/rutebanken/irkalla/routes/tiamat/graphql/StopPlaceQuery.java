@@ -16,28 +16,95 @@
 package org.rutebanken.irkalla.routes.tiamat.graphql;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.rutebanken.irkalla.domain.CrudAction;
+import org.rutebanken.irkalla.util.JsonSerialization;
 
-import java.io.IOException;
-import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * GraphQL query for current and/or previous version of one or more stop places.
+ * <p>
+ * Each stop place gets its own set of aliases and variables, suffixed with the index of the stop place in the query
+ * (current0, previous0, current1 ...). Current versions are fetched with the full result definition, while previous
+ * versions are only fetched with the fields needed to detect the type of an update.
+ * <p>
+ * The query string only depends on the plan for each stop place in the query, so rendered queries are cached per
+ * combination of plans.
+ */
 @JsonInclude(JsonInclude.Include.NON_NULL)
 public class StopPlaceQuery {
 
+    public static final String CURRENT_ALIAS = "current";
+
+    public static final String PREVIOUS_ALIAS = "previous";
 
     // Query size 1 should be sufficient when querying for fixed id and version
     private static final int DEFAULT_QUERY_SIZE = 1;
 
+    private static final int MAX_CACHED_QUERIES = 1000;
+
+    private static final Map<String, String> RENDERED_QUERIES = new ConcurrentHashMap<>();
+
+    /**
+     * Which versions of a stop place to fetch.
+     */
+    public enum QueryPlan {
+        CURRENT('C', true, false), PREVIOUS('P', false, true), CURRENT_AND_PREVIOUS('B', true, true);
+
+        private final char code;
+
+        private final boolean current;
+
+        private final boolean previous;
+
+        QueryPlan(char code, boolean current, boolean previous) {
+            this.code = code;
+            this.current = current;
+            this.previous = previous;
+        }
+
+        public boolean includesCurrent() {
+            return current;
+        }
+
+        public boolean includesPrevious() {
+            return previous;
+        }
+
+        /**
+         * Only updates need the previous version, for detecting what has changed.
+         */
+        public static QueryPlan forAction(CrudAction crudAction) {
+            return CrudAction.UPDATE.equals(crudAction) ? CURRENT_AND_PREVIOUS : CURRENT;
+        }
+
+        public static QueryPlan of(boolean current, boolean previous) {
+            if (current && previous) {
+                return CURRENT_AND_PREVIOUS;
+            }
+            return current ? CURRENT : PREVIOUS;
+        }
+
+        private static QueryPlan fromCode(char code) {
+            for (QueryPlan plan : values()) {
+                if (plan.code == code) {
+                    return plan;
+                }
+            }
+            throw new IllegalArgumentException("Unknown query plan: " + code);
+        }
+    }
+
     public String operationName = "findStop";
 
     public Map<String, Object> variables = new HashMap<>();
 
-    public StopPlaceQuery(String stopPlaceId, Long version) {
-        variables.put("id", stopPlaceId);
-        variables.put("currentVersion", version);
-        variables.put("previousVersion", version - 1);
+    private final StringBuilder plans = new StringBuilder();
+
+    public StopPlaceQuery() {
         setQuerySize(DEFAULT_QUERY_SIZE);
     }
 
@@ -45,23 +112,101 @@ public class StopPlaceQuery {
         variables.put("size", querySize);
     }
 
-    public String query = "query stopPlace($id: String, $size: Int, $currentVersion: Int, $previousVersion: Int) { " +
-                                  "current: stopPlace(id: $id, size: $size, version: $currentVersion) " + RESULT_DEFINITION +
-                                  " previous: stopPlace(id: $id, size: $size, version: $previousVersion) " + RESULT_DEFINITION +
-                                  "}";
+    /**
+     * Add stop place to query. At least one of the versions must be set.
+     *
+     * @param currentVersion  current version to fetch, or null if current version is not needed
+     * @param previousVersion previous version to fetch, or null if previous version is not needed
+     * @return index of stop place in query, used as alias suffix
+     */
+    public int addStopPlace(String stopPlaceId, Long currentVersion, Long previousVersion) {
+        if (currentVersion == null && previousVersion == null) {
+            throw new IllegalArgumentException("Neither current nor previous version requested for stop place: " + stopPlaceId);
+        }
+        int index = plans.length();
+        variables.put("id" + index, stopPlaceId);
+        if (currentVersion != null) {
+            variables.put("currentVersion" + index, currentVersion);
+        }
+        if (previousVersion != null) {
+            variables.put("previousVersion" + index, previousVersion);
+        }
+        plans.append(QueryPlan.of(currentVersion != null, previousVersion != null).code);
+        return index;
+    }
+
+    @JsonProperty("query")
+    public String getQuery() {
+        String key = plans.toString();
+        String query = RENDERED_QUERIES.get(key);
+        if (query == null) {
+            query = render(key);
+            if (RENDERED_QUERIES.size() < MAX_CACHED_QUERIES) {
+                RENDERED_QUERIES.putIfAbsent(key, query);
+            }
+        }
+        return query;
+    }
+
+    private static String render(String plans) {
+        StringBuilder params = new StringBuilder("query stopPlace($size: Int");
+        StringBuilder selections = new StringBuilder();
+        for (int index = 0; index < plans.length(); index++) {
+            QueryPlan plan = QueryPlan.fromCode(plans.charAt(index));
+            params.append(", $id").append(index).append(": String");
+            if (plan.includesCurrent()) {
+                appendSelection(params, selections, CURRENT_ALIAS, "currentVersion", index, RESULT_DEFINITION);
+            }
+            if (plan.includesPrevious()) {
+                appendSelection(params, selections, PREVIOUS_ALIAS, "previousVersion", index, PREVIOUS_VERSION_RESULT_DEFINITION);
+            }
+        }
+        return params.append(") {").append(selections).append("}").toString();
+    }
 
+    private static void appendSelection(StringBuilder params, StringBuilder selections, String alias, String versionVariable, int index, String resultDefinition) {
+        params.append(", $").append(versionVariable).append(index).append(": Int");
+        selections.append(" ").append(alias).append(index)
+                .append(": stopPlace(id: $id").append(index).append(", size: $size, version: $").append(versionVariable).append(index).append(") ")
+                .append(resultDefinition);
+    }
+
+    public byte[] toBytes() {
+        return JsonSerialization.toBytes(this);
+    }
 
     public String toString() {
-        try {
-            ObjectMapper mapper = new ObjectMapper();
-            StringWriter writer = new StringWriter();
-            mapper.writeValue(writer, this);
-            return writer.toString();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        return JsonSerialization.toString(this);
     }
 
+    /**
+     * Only the fields compared when detecting update type for a stop place.
+     */
+    private static final String PREVIOUS_VERSION_RESULT_DEFINITION = "{" +
+                                                                             "id " +
+                                                                             "version " +
+                                                                             "name {" +
+                                                                             "      value" +
+                                                                             "    }" +
+                                                                             "    geometry {" +
+                                                                             "      type" +
+                                                                             "      coordinates" +
+                                                                             "    }" +
+                                                                             "    ... on StopPlace {" +
+                                                                             "    stopPlaceType " +
+                                                                             "    quays {" +
+                                                                             "      id" +
+                                                                             "       name {" +
+                                                                             "          value" +
+                                                                             "        }" +
+                                                                             "      geometry {" +
+                                                                             "        type" +
+                                                                             "        coordinates" +
+                                                                             "      }" +
+                                                                             "    }" +
+                                                                             "    }" +
+                                                                             "  }";
+
     private static final String RESULT_DEFINITION = "{" +
                                                             "id " +
                                                             "version " +
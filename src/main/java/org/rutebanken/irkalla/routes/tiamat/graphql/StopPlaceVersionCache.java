@@ -0,0 +1,93 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.tiamat.graphql;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import org.rutebanken.irkalla.routes.tiamat.graphql.model.StopPlace;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded cache of stop places keyed by id and version. A published version of a stop place never changes, so cached
+ * versions never need to be invalidated, only evicted by size and age.
+ * <p>
+ * Previous versions are fetched with fewer fields than current versions, and are cached separately so that they are
+ * never returned as a current version.
+ */
+@Component
+public class StopPlaceVersionCache {
+
+    private final Cache<String, StopPlace> cache;
+
+    public StopPlaceVersionCache(@Autowired MeterRegistry meterRegistry,
+                                        @Value("${tiamat.stop.place.cache.max.size:10000}") long maxSize,
+                                        @Value("${tiamat.stop.place.cache.ttl.seconds:3600}") long ttlSeconds) {
+        cache = CacheBuilder.newBuilder()
+                        .maximumSize(maxSize)
+                        .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                        .recordStats()
+                        .build();
+        GuavaCacheMetrics.monitor(meterRegistry, cache, "tiamatStopPlaceVersions");
+    }
+
+    public StopPlace get(String id, Long version) {
+        if (id == null || version == null) {
+            return null;
+        }
+        return cache.getIfPresent(key(id, version));
+    }
+
+    /**
+     * Get stop place version for use as previous version, preferring a fully populated version if cached.
+     */
+    public StopPlace getPreviousVersion(String id, Long version) {
+        StopPlace stopPlace = get(id, version);
+        if (stopPlace == null && id != null && version != null) {
+            stopPlace = cache.getIfPresent(previousVersionKey(id, version));
+        }
+        return stopPlace;
+    }
+
+    public void put(StopPlace stopPlace) {
+        if (isCacheable(stopPlace)) {
+            cache.put(key(stopPlace.id, stopPlace.version), stopPlace);
+        }
+    }
+
+    public void putPreviousVersion(StopPlace stopPlace) {
+        if (isCacheable(stopPlace)) {
+            cache.put(previousVersionKey(stopPlace.id, stopPlace.version), stopPlace);
+        }
+    }
+
+    private static boolean isCacheable(StopPlace stopPlace) {
+        return stopPlace != null && stopPlace.id != null && stopPlace.version != null;
+    }
+
+    private static String key(String id, Long version) {
+        return id + "_" + version;
+    }
+
+    private static String previousVersionKey(String id, Long version) {
+        return key(id, version) + "_previous";
+    }
+}
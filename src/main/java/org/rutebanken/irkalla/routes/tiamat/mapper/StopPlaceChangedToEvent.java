@@ -24,13 +24,18 @@ import org.springframework.util.ObjectUtils;
 import org.wololo.geojson.Geometry;
 import org.wololo.geojson.Point;
 
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
 
 @Component
 public class StopPlaceChangedToEvent {
 
-    public CrudEvent toEvent(StopPlaceChange stopPlaceChange) {
+    /**
+     * @param correlationId  id for tracing change from changelog event to downstream consumers
+     * @param registeredTime time change was registered in changelog
+     */
+    public CrudEvent toEvent(StopPlaceChange stopPlaceChange, String correlationId, Instant registeredTime) {
         StopPlace currentVersion = stopPlaceChange.getCurrent();
 
         CrudEvent.Builder event = CrudEvent.builder()
@@ -47,7 +52,10 @@ public class StopPlaceChangedToEvent {
                                           .username(currentVersion.changedBy)
                                           .geometry(toGeometry(currentVersion.geometry))
                                           .location(stopPlaceChange.getLocation())
-                                          .eventTime(stopPlaceChange.getChangeTime());
+                                          .distance(stopPlaceChange.getCoordinateChangeDistance())
+                                          .eventTime(stopPlaceChange.getChangeTime())
+                                          .correlationId(correlationId)
+                                          .registeredTime(registeredTime);
 
         return event.build();
     }
@@ -0,0 +1,129 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.util;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.entity.GzipCompressingEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.entity.InputStreamEntity;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.function.LongSupplier;
+
+/**
+ * Gzip encoded request entity counting bytes as sent (compressed) and their uncompressed size, so that compression of
+ * transfers can be reported.
+ */
+public class CountingEntity extends HttpEntityWrapper {
+
+    private final LongSupplier uncompressedBytes;
+
+    private long bytesWritten;
+
+    private CountingEntity(HttpEntity wrappedEntity, LongSupplier uncompressedBytes) {
+        super(wrappedEntity);
+        this.uncompressedBytes = uncompressedBytes;
+    }
+
+    /**
+     * Entity for content already gzip encoded, passed on as is.
+     *
+     * @param uncompressedBytes uncompressed size of content, or -1 if unknown
+     */
+    public static CountingEntity gzipEncoded(InputStream gzipped, ContentType contentType, long uncompressedBytes) {
+        InputStreamEntity entity = new InputStreamEntity(gzipped, contentType);
+        entity.setContentEncoding("gzip");
+        return new CountingEntity(entity, () -> uncompressedBytes);
+    }
+
+    /**
+     * Entity gzip encoding content while it is sent.
+     */
+    public static CountingEntity gzipCompressing(InputStream content, ContentType contentType) {
+        CountingInputStream countingContent = new CountingInputStream(content);
+        return new CountingEntity(new GzipCompressingEntity(new InputStreamEntity(countingContent, contentType)), () -> countingContent.count);
+    }
+
+    @Override
+    public void writeTo(OutputStream outStream) throws IOException {
+        super.writeTo(new FilterOutputStream(outStream) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesWritten++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytesWritten += len;
+            }
+        });
+    }
+
+    /**
+     * Bytes sent, as encoded.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Uncompressed size of bytes sent, or -1 if unknown.
+     */
+    public long getUncompressedBytes() {
+        return uncompressedBytes.getAsLong();
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
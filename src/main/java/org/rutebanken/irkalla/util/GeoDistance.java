@@ -0,0 +1,32 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.util;
+
+public class GeoDistance {
+
+    private static final double EARTH_RADIUS_METERS = 6371008.8;
+
+    /**
+     * Great-circle distance in metres between two points given in decimal degrees, using the haversine formula.
+     */
+    public static double haversine(double lat1, double lon1, double lat2, double lon2) {
+        double sinHalfDeltaLat = Math.sin(Math.toRadians(lat2 - lat1) / 2);
+        double sinHalfDeltaLon = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+        double a = sinHalfDeltaLat * sinHalfDeltaLat
+                           + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * sinHalfDeltaLon * sinHalfDeltaLon;
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+}
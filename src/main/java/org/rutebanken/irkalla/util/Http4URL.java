@@ -23,4 +23,11 @@ public class Http4URL {
         }
         return url.replaceFirst("https:", "https4:").replaceFirst("http:", "http4:");
     }
+
+    /**
+     * Add endpoint option for using the http client configurer bean with the given name to url.
+     */
+    public static String withHttpClientConfigurer(String url, String beanName) {
+        return url + (url.contains("?") ? "&" : "?") + "httpClientConfigurer=#" + beanName;
+    }
 }
@@ -0,0 +1,80 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.util;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.rutebanken.irkalla.IrkallaException;
+import org.rutebanken.irkalla.domain.CrudEvent;
+import org.rutebanken.irkalla.domain.EntityChangedEvent;
+import org.rutebanken.irkalla.domain.SyncJob;
+
+import java.io.IOException;
+
+/**
+ * Shared, pre-built (and thread safe) Jackson readers and writers for the JSON formats used by Irkalla, so that mappers
+ * are not created and configured per message.
+ */
+public class JsonSerialization {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper().registerModule(new JavaTimeModule());
+
+    private static final ObjectWriter CRUD_EVENT_WRITER = MAPPER.writerFor(CrudEvent.class);
+
+    private static final ObjectReader ENTITY_CHANGED_EVENT_READER = MAPPER.readerFor(EntityChangedEvent.class);
+
+    private static final ObjectReader SYNC_JOB_READER = MAPPER.readerFor(SyncJob.class);
+
+    private static final ObjectWriter WRITER = MAPPER.writer();
+
+    /**
+     * Serialize event directly to UTF-8 encoded bytes, without going through an intermediate String.
+     */
+    public static byte[] toBytes(CrudEvent event) {
+        try {
+            return CRUD_EVENT_WRITER.writeValueAsBytes(event);
+        } catch (JsonProcessingException e) {
+            throw new IrkallaException("Failed to serialize CrudEvent: " + e.getMessage(), e);
+        }
+    }
+
+    public static EntityChangedEvent toEntityChangedEvent(String json) throws IOException {
+        return ENTITY_CHANGED_EVENT_READER.readValue(json);
+    }
+
+    public static SyncJob toSyncJob(String json) throws IOException {
+        return SYNC_JOB_READER.readValue(json);
+    }
+
+    public static byte[] toBytes(Object value) {
+        try {
+            return WRITER.writeValueAsBytes(value);
+        } catch (JsonProcessingException e) {
+            throw new IrkallaException("Failed to serialize " + value.getClass().getSimpleName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    public static String toString(Object value) {
+        try {
+            return WRITER.writeValueAsString(value);
+        } catch (JsonProcessingException e) {
+            throw new IrkallaException("Failed to serialize " + value.getClass().getSimpleName() + ": " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.util;
+
+import org.apache.camel.StreamCache;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Size of message bodies as transferred, without reading them into memory.
+ */
+public class TransferSize {
+
+    /**
+     * Size in bytes of body, or -1 if unknown.
+     */
+    public static long bytes(Object body) {
+        if (body instanceof byte[]) {
+            return ((byte[]) body).length;
+        }
+        if (body instanceof StreamCache) {
+            return ((StreamCache) body).length();
+        }
+        return -1;
+    }
+
+    /**
+     * Uncompressed size of gzip encoded body as given by the gzip trailer (ISIZE, size modulo 2^32), or -1 if unknown.
+     */
+    public static long gzipUncompressedBytes(Object body) throws IOException {
+        byte[] trailer;
+        if (body instanceof byte[]) {
+            trailer = (byte[]) body;
+        } else if (body instanceof StreamCache) {
+            StreamCache streamCache = (StreamCache) body;
+            TrailerOutputStream trailerOutputStream = new TrailerOutputStream();
+            streamCache.writeTo(trailerOutputStream);
+            streamCache.reset();
+            trailer = trailerOutputStream.trailer();
+        } else {
+            return -1;
+        }
+
+        int length = trailer.length;
+        if (length < 4) {
+            return -1;
+        }
+        return (trailer[length - 4] & 0xffL)
+                       | (trailer[length - 3] & 0xffL) << 8
+                       | (trailer[length - 2] & 0xffL) << 16
+                       | (trailer[length - 1] & 0xffL) << 24;
+    }
+
+    /**
+     * Keeps only the last 4 bytes written.
+     */
+    private static class TrailerOutputStream extends OutputStream {
+
+        private final byte[] buffer = new byte[4];
+
+        private long count;
+
+        @Override
+        public void write(int b) {
+            buffer[(int) (count++ % buffer.length)] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            // Only the last bytes are of interest
+            int skip = Math.max(0, len - buffer.length);
+            count += skip;
+            for (int i = off + skip; i < off + len; i++) {
+                write(b[i]);
+            }
+        }
+
+        byte[] trailer() {
+            int length = (int) Math.min(count, buffer.length);
+            byte[] trailer = new byte[length];
+            for (int i = 0; i < length; i++) {
+                trailer[i] = buffer[(int) ((count - length + i) % buffer.length)];
+            }
+            return trailer;
+        }
+    }
+}
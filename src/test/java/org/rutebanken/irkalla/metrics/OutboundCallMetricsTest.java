@@ -0,0 +1,72 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withStatus;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+public class OutboundCallMetricsTest {
+
+    private MeterRegistry meterRegistry;
+
+    private OutboundCallMetrics outboundCallMetrics;
+
+    @Before
+    public void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        outboundCallMetrics = new OutboundCallMetrics(meterRegistry, "http://tiamat:2888", "http:chouette:8080", "http://etcd-client:2379");
+    }
+
+    @Test
+    public void targetIsResolvedFromHostAndPort() {
+        Assert.assertEquals(OutboundCallMetrics.TARGET_TIAMAT, outboundCallMetrics.getTarget("http4://tiamat:2888/services/stop_places/netex?page=1"));
+        Assert.assertEquals(OutboundCallMetrics.TARGET_CHOUETTE, outboundCallMetrics.getTarget("http4://chouette:8080/chouette_iev/stop_place"));
+        Assert.assertEquals(OutboundCallMetrics.TARGET_ETCD, outboundCallMetrics.getTarget("http4:etcd-client:2379/v2/keys/sync"));
+        Assert.assertEquals(OutboundCallMetrics.TARGET_OTHER, outboundCallMetrics.getTarget("http4://tiamat:2999/services"));
+    }
+
+    @Test
+    public void restTemplateCallsAreTimedWithStatus() {
+        RestTemplate restTemplate = new RestTemplate();
+        MockRestServiceServer etcd = MockRestServiceServer.bindTo(restTemplate).build();
+        restTemplate.getInterceptors().add(outboundCallMetrics.interceptor(OutboundCallMetrics.TARGET_ETCD, "sync_status"));
+
+        etcd.expect(requestTo("http://etcd-client:2379/v2/keys/sync")).andRespond(withSuccess());
+        etcd.expect(requestTo("http://etcd-client:2379/v2/keys/sync")).andRespond(withStatus(HttpStatus.NOT_FOUND));
+
+        restTemplate.getForObject("http://etcd-client:2379/v2/keys/sync", String.class);
+        try {
+            restTemplate.getForObject("http://etcd-client:2379/v2/keys/sync", String.class);
+            Assert.fail("Expected not found");
+        } catch (HttpClientErrorException e) {
+            Assert.assertEquals(HttpStatus.NOT_FOUND, e.getStatusCode());
+        }
+
+        Assert.assertEquals(1, meterRegistry.get(OutboundCallMetrics.METER_NAME).tag("target", "etcd").tag("status", "200").timer().count());
+        Assert.assertEquals(1, meterRegistry.get(OutboundCallMetrics.METER_NAME).tag("target", "etcd").tag("status", "404").timer().count());
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.metrics;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class PropagationLagMetricsTest {
+
+    private MeterRegistry meterRegistry;
+
+    private PropagationLagMetrics propagationLagMetrics;
+
+    @Before
+    public void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        propagationLagMetrics = new PropagationLagMetrics(meterRegistry);
+    }
+
+    @Test
+    public void lagIsRecordedPerStage() {
+        propagationLagMetrics.record(PropagationLagMetrics.STAGE_TIAMAT_LOOKUP, 1000L, 1500);
+        propagationLagMetrics.record(PropagationLagMetrics.STAGE_TIAMAT_LOOKUP, 1000L, 2000);
+        propagationLagMetrics.record(PropagationLagMetrics.STAGE_CHOUETTE_SYNCED, 1000L, 61000);
+
+        Timer lookup = meterRegistry.get("irkalla.propagation.lag").tag("stage", PropagationLagMetrics.STAGE_TIAMAT_LOOKUP).timer();
+        Assert.assertEquals(2, lookup.count());
+        Assert.assertEquals(1000, lookup.max(TimeUnit.MILLISECONDS), 0.1);
+
+        Timer synced = meterRegistry.get("irkalla.propagation.lag").tag("stage", PropagationLagMetrics.STAGE_CHOUETTE_SYNCED).timer();
+        Assert.assertEquals(1, synced.count());
+        Assert.assertEquals(60, synced.totalTime(TimeUnit.SECONDS), 0.1);
+    }
+
+    @Test
+    public void lastPropagationIsRecordedPerStage() {
+        propagationLagMetrics.record(PropagationLagMetrics.STAGE_CRUD_EVENT_PUBLISHED, 1000L, 5000);
+        propagationLagMetrics.record(PropagationLagMetrics.STAGE_CRUD_EVENT_PUBLISHED, 1000L, 9000);
+
+        Gauge last = meterRegistry.get("irkalla.propagation.last").tag("stage", PropagationLagMetrics.STAGE_CRUD_EVENT_PUBLISHED).gauge();
+        Assert.assertEquals(9, last.value(), 0.1);
+    }
+
+    @Test
+    public void changeWithoutEnqueueTimeIsIgnored() {
+        propagationLagMetrics.record(PropagationLagMetrics.STAGE_TIAMAT_LOOKUP, null, 5000);
+        propagationLagMetrics.record(PropagationLagMetrics.STAGE_TIAMAT_LOOKUP, 0L, 5000);
+
+        Assert.assertNull(meterRegistry.find("irkalla.propagation.lag").timer());
+        Assert.assertNull(meterRegistry.find("irkalla.propagation.last").gauge());
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.camel.CamelContext;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RouteMetricsEventNotifierTest {
+
+    private MeterRegistry meterRegistry;
+
+    private CamelContext camelContext;
+
+    @Before
+    public void setUp() throws Exception {
+        meterRegistry = new SimpleMeterRegistry();
+        OutboundCallMetrics outboundCallMetrics = new OutboundCallMetrics(meterRegistry, "http://tiamat", "http://chouette", "http://etcd");
+
+        camelContext = new DefaultCamelContext();
+        camelContext.getManagementStrategy().addEventNotifier(new RouteMetricsEventNotifier(meterRegistry, outboundCallMetrics));
+        camelContext.addRoutes(new RouteBuilder() {
+            @Override
+            public void configure() {
+                errorHandler(defaultErrorHandler().maximumRedeliveries(2).redeliveryDelay(0));
+
+                from("direct:fail").routeId("fail-route").throwException(new IllegalStateException("Failed"));
+
+                from("direct:parent").routeId("parent-route").to("direct:subFail");
+
+                from("direct:subFail").routeId("sub-fail-route").throwException(new IllegalStateException("Failed"));
+            }
+        });
+        camelContext.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        camelContext.stop();
+    }
+
+    @Test
+    public void redeliveriesAreCounted() {
+        camelContext.createProducerTemplate().send("direct:fail", e -> e.getIn().setBody("body"));
+
+        Assert.assertEquals(2, meterRegistry.get("irkalla.camel.route.redeliveries").tag("route", "fail-route").counter().count(), 0);
+    }
+
+    @Test
+    public void redeliveriesAreCountedForSubRoute() {
+        camelContext.createProducerTemplate().send("direct:parent", e -> e.getIn().setBody("body"));
+
+        Assert.assertEquals(2, meterRegistry.get("irkalla.camel.route.redeliveries").tag("route", "sub-fail-route").counter().count(), 0);
+        Assert.assertNull(meterRegistry.find("irkalla.camel.route.redeliveries").tag("route", "parent-route").counter());
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.camel.CamelContext;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RouteMetricsRoutePolicyTest {
+
+    private MeterRegistry meterRegistry;
+
+    private CamelContext camelContext;
+
+    @Before
+    public void setUp() throws Exception {
+        meterRegistry = new SimpleMeterRegistry();
+
+        camelContext = new DefaultCamelContext();
+        camelContext.addRoutePolicyFactory(RouteMetricsRoutePolicy.factory(meterRegistry));
+        camelContext.addRoutes(new RouteBuilder() {
+            @Override
+            public void configure() {
+                from("direct:ok").routeId("ok-route").to("direct:sub");
+
+                from("direct:sub").routeId("sub-route").log("sub");
+
+                from("direct:fail").routeId("fail-route").to("direct:subFail");
+
+                from("direct:subFail").routeId("sub-fail-route").throwException(new IllegalStateException("Failed"));
+            }
+        });
+        camelContext.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        camelContext.stop();
+    }
+
+    @Test
+    public void exchangesAreTimedPerRouteAndOutcome() {
+        ProducerTemplate producerTemplate = camelContext.createProducerTemplate();
+        producerTemplate.sendBody("direct:ok", "body");
+        producerTemplate.sendBody("direct:ok", "body");
+        producerTemplate.send("direct:fail", e -> e.getIn().setBody("body"));
+
+        Assert.assertEquals(2, meterRegistry.get("irkalla.camel.route.exchange").tag("route", "ok-route").tag("outcome", "success").timer().count());
+        Assert.assertEquals(1, meterRegistry.get("irkalla.camel.route.exchange").tag("route", "fail-route").tag("outcome", "failure").timer().count());
+    }
+
+    @Test
+    public void subRoutesAreTimedSeparately() {
+        ProducerTemplate producerTemplate = camelContext.createProducerTemplate();
+        producerTemplate.sendBody("direct:ok", "body");
+        producerTemplate.send("direct:fail", e -> e.getIn().setBody("body"));
+
+        Assert.assertEquals(1, meterRegistry.get("irkalla.camel.route.exchange").tag("route", "sub-route").tag("outcome", "success").timer().count());
+        Assert.assertEquals(1, meterRegistry.get("irkalla.camel.route.exchange").tag("route", "sub-fail-route").tag("outcome", "failure").timer().count());
+    }
+
+    @Test
+    public void inflightExchangesAreGaugedForAllRoutes() {
+        camelContext.createProducerTemplate().sendBody("direct:ok", "body");
+
+        Assert.assertEquals(0, meterRegistry.get("irkalla.camel.route.inflight").tag("route", "ok-route").gauge().value(), 0);
+        Assert.assertEquals(0, meterRegistry.get("irkalla.camel.route.inflight").tag("route", "sub-fail-route").gauge().value(), 0);
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.activemq.ScheduledMessage;
+import org.apache.camel.Exchange;
+import org.apache.camel.http.common.HttpOperationFailedException;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.UUID;
+
+import static org.rutebanken.irkalla.Constants.HEADER_CHOUETTE_RETRY_ATTEMPT;
+
+public class ChouetteRetryPolicyTest {
+
+    private HazelcastInstance hazelcast;
+
+    private ChouetteRetryPolicy policy;
+
+    @Before
+    public void setUp() {
+        Config config = new Config();
+        config.getGroupConfig().setName("irkalla-retry-policy-test-" + UUID.randomUUID());
+        config.setProperty("hazelcast.phone.home.enabled", "false");
+        config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+        hazelcast = Hazelcast.newHazelcastInstance(config);
+        policy = policy();
+    }
+
+    @After
+    public void tearDown() {
+        hazelcast.getLifecycleService().terminate();
+    }
+
+    private ChouetteRetryPolicy policy() {
+        ChouetteRetryPolicy policy = new ChouetteRetryPolicy(() -> hazelcast, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(policy, "initialDelay", 1000L);
+        ReflectionTestUtils.setField(policy, "maxDelay", 10000L);
+        ReflectionTestUtils.setField(policy, "multiplier", 2.0);
+        ReflectionTestUtils.setField(policy, "jitter", 0.0);
+        ReflectionTestUtils.setField(policy, "failureThreshold", 3);
+        ReflectionTestUtils.setField(policy, "openMillis", 60000L);
+        return policy;
+    }
+
+    @Test
+    public void delayIsIncreasedExponentiallyUpToMax() {
+        Assert.assertEquals(1000, policy.getDelay(1));
+        Assert.assertEquals(2000, policy.getDelay(2));
+        Assert.assertEquals(8000, policy.getDelay(4));
+        Assert.assertEquals(10000, policy.getDelay(5));
+        Assert.assertEquals(10000, policy.getDelay(50));
+    }
+
+    @Test
+    public void delayIsWithinJitterBounds() {
+        ReflectionTestUtils.setField(policy, "jitter", 0.2);
+        for (int i = 0; i < 100; i++) {
+            long delay = policy.getDelay(2);
+            Assert.assertTrue("Delay out of bounds: " + delay, delay >= 1600 && delay <= 2400);
+        }
+    }
+
+    @Test
+    public void retryAttemptIsIncrementedAndResetOnSuccess() {
+        Exchange e = busyExchange(new HttpOperationFailedException(null, 423, null, null, null, null));
+        policy.scheduleRetry(e);
+        Assert.assertEquals(1, e.getIn().getHeader(HEADER_CHOUETTE_RETRY_ATTEMPT));
+        Assert.assertEquals(1000L, e.getIn().getHeader(ScheduledMessage.AMQ_SCHEDULED_DELAY));
+
+        policy.scheduleRetry(e);
+        Assert.assertEquals(2, e.getIn().getHeader(HEADER_CHOUETTE_RETRY_ATTEMPT));
+        Assert.assertEquals(2000L, e.getIn().getHeader(ScheduledMessage.AMQ_SCHEDULED_DELAY));
+
+        policy.onSuccess(e);
+        Assert.assertNull(e.getIn().getHeader(HEADER_CHOUETTE_RETRY_ATTEMPT));
+    }
+
+    @Test
+    public void circuitIsOpenedAfterConsecutiveBusyResponses() {
+        for (int i = 0; i < 3; i++) {
+            policy.checkRequestAllowed(exchange());
+            policy.scheduleRetry(busyExchange(new HttpOperationFailedException(null, 423, null, null, null, null)));
+        }
+        Assert.assertEquals(ChouetteRetryPolicy.CircuitState.OPEN, policy.getState());
+
+        try {
+            policy.checkRequestAllowed(exchange());
+            Assert.fail("Expected request to be rejected while circuit is open");
+        } catch (ChouetteBusyException expected) {
+        }
+
+        // Retries while open are delayed at least until circuit may be half opened
+        Exchange rejected = busyExchange(new ChouetteBusyException("open"));
+        policy.scheduleRetry(rejected);
+        Assert.assertTrue(rejected.getIn().getHeader(ScheduledMessage.AMQ_SCHEDULED_DELAY, Long.class) > 50000);
+    }
+
+    @Test
+    public void successfulProbeClosesCircuit() {
+        openCircuit();
+
+        policy.checkRequestAllowed(exchange());
+        Assert.assertEquals(ChouetteRetryPolicy.CircuitState.HALF_OPEN, policy.getState());
+        try {
+            policy.checkRequestAllowed(exchange());
+            Assert.fail("Expected only one probe request while circuit is half open");
+        } catch (ChouetteBusyException expected) {
+        }
+
+        policy.onSuccess(exchange());
+        Assert.assertEquals(ChouetteRetryPolicy.CircuitState.CLOSED, policy.getState());
+        policy.checkRequestAllowed(exchange());
+    }
+
+    @Test
+    public void busyProbeReopensCircuit() {
+        openCircuit();
+
+        policy.checkRequestAllowed(exchange());
+        policy.scheduleRetry(busyExchange(new HttpOperationFailedException(null, 423, null, null, null, null)));
+        Assert.assertEquals(ChouetteRetryPolicy.CircuitState.OPEN, policy.getState());
+    }
+
+    @Test
+    public void circuitIsSharedInCluster() {
+        ChouetteRetryPolicy otherMember = policy();
+        policy.scheduleRetry(busyExchange(new HttpOperationFailedException(null, 423, null, null, null, null)));
+        otherMember.scheduleRetry(busyExchange(new HttpOperationFailedException(null, 423, null, null, null, null)));
+        Assert.assertEquals(ChouetteRetryPolicy.CircuitState.CLOSED, otherMember.getState());
+
+        policy.scheduleRetry(busyExchange(new HttpOperationFailedException(null, 423, null, null, null, null)));
+        Assert.assertEquals(ChouetteRetryPolicy.CircuitState.OPEN, otherMember.getState());
+    }
+
+    @Test
+    public void onlyOneProbeIsLetThroughInCluster() {
+        ChouetteRetryPolicy otherMember = policy();
+        openCircuit();
+
+        policy.checkRequestAllowed(exchange());
+        try {
+            otherMember.checkRequestAllowed(exchange());
+            Assert.fail("Expected only one probe request in cluster while circuit is half open");
+        } catch (ChouetteBusyException expected) {
+        }
+
+        policy.onSuccess(exchange());
+        otherMember.checkRequestAllowed(exchange());
+    }
+
+    @Test
+    public void onlyBusyResponsesAreRetried() {
+        Assert.assertTrue(policy.isChouetteBusy(busyExchange(new HttpOperationFailedException(null, 423, null, null, null, null))));
+        Assert.assertTrue(policy.isChouetteBusy(busyExchange(new ChouetteBusyException("open"))));
+        Assert.assertFalse(policy.isChouetteBusy(busyExchange(new HttpOperationFailedException(null, 500, null, null, null, null))));
+    }
+
+    private void openCircuit() {
+        ReflectionTestUtils.setField(policy, "openMillis", 0L);
+        for (int i = 0; i < 3; i++) {
+            policy.scheduleRetry(busyExchange(new HttpOperationFailedException(null, 423, null, null, null, null)));
+        }
+        Assert.assertEquals(ChouetteRetryPolicy.CircuitState.OPEN, policy.getState());
+        ReflectionTestUtils.setField(policy, "openMillis", 60000L);
+    }
+
+    private Exchange busyExchange(Exception exception) {
+        Exchange e = exchange();
+        e.setProperty(Exchange.EXCEPTION_CAUGHT, exception);
+        return e;
+    }
+
+    private Exchange exchange() {
+        return new DefaultExchange(new DefaultCamelContext());
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.apache.camel.EndpointInject;
+import org.apache.camel.Exchange;
+import org.apache.camel.Produce;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.AdviceWithRouteBuilder;
+import org.apache.camel.component.mock.MockEndpoint;
+import org.junit.Before;
+import org.junit.Test;
+import org.rutebanken.irkalla.routes.RouteBuilderIntegrationTestBase;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.TestPropertySource;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import static org.rutebanken.irkalla.Constants.HEADER_SYNC_OPERATION;
+import static org.rutebanken.irkalla.Constants.SYNC_OPERATION_DELTA;
+import static org.rutebanken.irkalla.Constants.SYNC_OPERATION_FULL;
+import static org.rutebanken.irkalla.Constants.SYNC_OPERATION_FULL_WITH_DELETE_UNUSED_FIRST;
+import static org.rutebanken.irkalla.util.Http4URL.toHttp4Url;
+
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+@TestPropertySource(properties = "sync.stop.place.content.filter.enabled=true")
+public class ChouetteStopPlaceContentFilterRouteTest extends RouteBuilderIntegrationTestBase {
+
+    @Produce(uri = "activemq:queue:ChouetteStopPlaceSyncQueue")
+    protected ProducerTemplate updateStopPlaces;
+
+    @Value("${chouette.url}")
+    private String chouetteUrl;
+
+    @Value("${tiamat.url}")
+    private String tiamatUrl;
+
+    @Value("${tiamat.publication.delivery.path:/services/stop_places/netex/changed_in_period}")
+    private String publicationDeliveryPath;
+
+    @EndpointInject(uri = "mock:chouetteUpdateStopPlaces")
+    protected MockEndpoint chouetteUpdateStopPlaces;
+
+    @EndpointInject(uri = "mock:chouetteDeleteUnused")
+    protected MockEndpoint chouetteDeleteUnused;
+
+    @EndpointInject(uri = "mock:tiamatExportChanges")
+    protected MockEndpoint tiamatExportChanges;
+
+    @EndpointInject(uri = "mock:etcd")
+    protected MockEndpoint etcd;
+
+    private String page;
+
+    @Before
+    public void setUp() throws Exception {
+        // Unique id, as stop place hashes are kept in Hazelcast
+        page = "<PublicationDelivery><dataObjects><SiteFrame><stopPlaces>"
+                       + "<StopPlace id=\"NSR:StopPlace:" + UUID.randomUUID() + "\" version=\"1\"><Name>Stop</Name></StopPlace>"
+                       + "</stopPlaces></SiteFrame></dataObjects></PublicationDelivery>";
+        adviceRoutes();
+        context.start();
+
+        tiamatExportChanges.whenAnyExchangeReceived(e -> {
+            e.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, "200");
+            e.getIn().setBody(page.getBytes(StandardCharsets.UTF_8));
+        });
+    }
+
+    @Test
+    public void unchangedStopPlaceIsSuppressedOnSecondFullSync() throws Exception {
+        chouetteUpdateStopPlaces.expectedMessageCount(1);
+        etcd.expectedMessageCount(1);
+        updateStopPlaces.sendBodyAndHeader(null, HEADER_SYNC_OPERATION, SYNC_OPERATION_FULL);
+        chouetteUpdateStopPlaces.assertIsSatisfied();
+        etcd.assertIsSatisfied();
+
+        tiamatExportChanges.expectedMessageCount(2);
+        etcd.expectedMessageCount(2);
+        updateStopPlaces.sendBodyAndHeader(null, HEADER_SYNC_OPERATION, SYNC_OPERATION_FULL);
+        tiamatExportChanges.assertIsSatisfied();
+        etcd.assertIsSatisfied();
+
+        chouetteUpdateStopPlaces.setAssertPeriod(500);
+        chouetteUpdateStopPlaces.assertIsSatisfied();
+    }
+
+    @Test
+    public void fullSyncAfterDeletingUnusedForwardsUnchangedStopPlacesAndKeepsHashes() throws Exception {
+        chouetteUpdateStopPlaces.expectedMessageCount(1);
+        etcd.expectedMessageCount(1);
+        updateStopPlaces.sendBodyAndHeader(null, HEADER_SYNC_OPERATION, SYNC_OPERATION_FULL);
+        chouetteUpdateStopPlaces.assertIsSatisfied();
+        etcd.assertIsSatisfied();
+
+        // Stop place may have been deleted from Chouette, so it is forwarded again although unchanged
+        chouetteDeleteUnused.expectedMessageCount(1);
+        chouetteUpdateStopPlaces.expectedMessageCount(2);
+        etcd.expectedMessageCount(2);
+        updateStopPlaces.sendBodyAndHeader(null, HEADER_SYNC_OPERATION, SYNC_OPERATION_FULL_WITH_DELETE_UNUSED_FIRST);
+        chouetteDeleteUnused.assertIsSatisfied();
+        chouetteUpdateStopPlaces.assertIsSatisfied();
+        etcd.assertIsSatisfied();
+
+        // Hashes are still known to other syncs
+        tiamatExportChanges.expectedMessageCount(3);
+        etcd.expectedMessageCount(4);
+        updateStopPlaces.sendBodyAndHeader(null, HEADER_SYNC_OPERATION, SYNC_OPERATION_DELTA);
+        tiamatExportChanges.assertIsSatisfied();
+        etcd.assertIsSatisfied();
+
+        chouetteUpdateStopPlaces.setAssertPeriod(500);
+        chouetteUpdateStopPlaces.assertIsSatisfied();
+    }
+
+    private void adviceRoutes() throws Exception {
+        context.getRouteDefinition("tiamat-get-batch-of-changed-stop-places-as-netex").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint(toHttp4Url(tiamatUrl) + publicationDeliveryPath + "*")
+                        .skipSendToOriginalEndpoint().to("mock:tiamatExportChanges");
+            }
+        });
+
+        context.getRouteDefinition("chouette-synchronize-stop-place-batch").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint(toHttp4Url(chouetteUrl) + "/chouette_iev/stop_place")
+                        .skipSendToOriginalEndpoint().to("mock:chouetteUpdateStopPlaces");
+            }
+        });
+
+        context.getRouteDefinition("chouette-synchronize-stop-places-delete-unused").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint(toHttp4Url(chouetteUrl) + "/chouette_iev/stop_place/unused")
+                        .skipSendToOriginalEndpoint().to("mock:chouetteDeleteUnused");
+            }
+        });
+
+        context.getRouteDefinition("chouette-synchronize-stop-places-init").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint("direct:getSyncStatusUntilTime")
+                        .skipSendToOriginalEndpoint().to("mock:etcd");
+            }
+        });
+
+        context.getRouteDefinition("chouette-synchronize-stop-places-complete").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint("direct:setSyncStatusUntilTime")
+                        .skipSendToOriginalEndpoint().to("mock:etcd");
+            }
+        });
+    }
+}
@@ -15,16 +15,25 @@
 
 package org.rutebanken.irkalla.routes.chouette;
 
+import org.apache.activemq.ScheduledMessage;
 import org.apache.camel.EndpointInject;
+import org.apache.camel.Exchange;
 import org.apache.camel.Produce;
 import org.apache.camel.ProducerTemplate;
 import org.apache.camel.builder.AdviceWithRouteBuilder;
 import org.apache.camel.component.mock.MockEndpoint;
+import org.apache.camel.http.common.HttpOperationFailedException;
+import org.junit.Assert;
 import org.junit.Test;
 import org.rutebanken.irkalla.Constants;
 import org.rutebanken.irkalla.routes.RouteBuilderIntegrationTestBase;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.HashMap;
+import java.util.Map;
 
 import static org.rutebanken.irkalla.util.Http4URL.toHttp4Url;
 
@@ -41,6 +50,12 @@ public class ChouetteStopPlaceDeleteRouteBuilderTest extends RouteBuilderIntegra
     @EndpointInject(uri = "mock:chouetteDeleteStopPlace")
     protected MockEndpoint chouetteDeleteStopPlace;
 
+    @EndpointInject(uri = "mock:chouetteStopPlaceDeleteQueue")
+    protected MockEndpoint chouetteStopPlaceDeleteQueue;
+
+    @Autowired
+    private ChouetteRetryPolicy policy;
+
     @Test
     public void testDeleteStopPlace() throws Exception {
 
@@ -62,4 +77,50 @@ public class ChouetteStopPlaceDeleteRouteBuilderTest extends RouteBuilderIntegra
 
         chouetteDeleteStopPlace.assertIsSatisfied();
     }
+
+    @Test
+    public void deleteIsRetriedOnDeleteQueueWithGrowingDelayWhenChouetteIsBusy() throws Exception {
+        ReflectionTestUtils.setField(policy, "initialDelay", 1000L);
+        ReflectionTestUtils.setField(policy, "multiplier", 2.0);
+        ReflectionTestUtils.setField(policy, "jitter", 0.0);
+
+        context.getRouteDefinition("chouette-delete-stop-place").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint(toHttp4Url(chouetteUrl) + "/chouette_iev/stop_place/NSR:StopPlace:33")
+                        .skipSendToOriginalEndpoint().to("mock:chouetteDeleteStopPlace");
+                interceptSendToEndpoint("activemq:queue:ChouetteStopPlaceDeleteQueue")
+                        .skipSendToOriginalEndpoint().to("mock:chouetteStopPlaceDeleteQueue");
+            }
+        });
+
+        context.start();
+        chouetteDeleteStopPlace.expectedMessageCount(2);
+        chouetteDeleteStopPlace.whenAnyExchangeReceived(e -> {
+            throw new HttpOperationFailedException(null, 423, null, null, null, null);
+        });
+
+        deleteStopPlaces.sendBodyAndHeader(null, Constants.HEADER_ENTITY_ID, "NSR:StopPlace:33");
+        chouetteStopPlaceDeleteQueue.expectedMessageCount(1);
+        chouetteStopPlaceDeleteQueue.assertIsSatisfied();
+        Exchange firstRetry = chouetteStopPlaceDeleteQueue.getExchanges().get(0);
+
+        // Redeliver rescheduled message as the broker would after the delay
+        Map<String, Object> headers = new HashMap<>();
+        headers.put(Constants.HEADER_ENTITY_ID, firstRetry.getIn().getHeader(Constants.HEADER_ENTITY_ID));
+        headers.put(Constants.HEADER_CHOUETTE_RETRY_ATTEMPT, firstRetry.getIn().getHeader(Constants.HEADER_CHOUETTE_RETRY_ATTEMPT));
+        deleteStopPlaces.sendBodyAndHeaders(null, headers);
+        chouetteStopPlaceDeleteQueue.expectedMessageCount(2);
+        chouetteStopPlaceDeleteQueue.assertIsSatisfied();
+        chouetteDeleteStopPlace.assertIsSatisfied();
+        Exchange secondRetry = chouetteStopPlaceDeleteQueue.getExchanges().get(1);
+
+        Assert.assertEquals("NSR:StopPlace:33", firstRetry.getIn().getHeader(Constants.HEADER_ENTITY_ID));
+        Assert.assertEquals(1, firstRetry.getIn().getHeader(Constants.HEADER_CHOUETTE_RETRY_ATTEMPT, Integer.class).intValue());
+        Assert.assertEquals(1000L, firstRetry.getIn().getHeader(ScheduledMessage.AMQ_SCHEDULED_DELAY, Long.class).longValue());
+
+        Assert.assertEquals("NSR:StopPlace:33", secondRetry.getIn().getHeader(Constants.HEADER_ENTITY_ID));
+        Assert.assertEquals(2, secondRetry.getIn().getHeader(Constants.HEADER_CHOUETTE_RETRY_ATTEMPT, Integer.class).intValue());
+        Assert.assertEquals(2000L, secondRetry.getIn().getHeader(ScheduledMessage.AMQ_SCHEDULED_DELAY, Long.class).longValue());
+    }
 }
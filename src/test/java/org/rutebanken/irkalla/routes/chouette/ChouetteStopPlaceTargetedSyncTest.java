@@ -0,0 +1,254 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.apache.activemq.ScheduledMessage;
+import org.apache.camel.EndpointInject;
+import org.apache.camel.Exchange;
+import org.apache.camel.Produce;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.AdviceWithRouteBuilder;
+import org.apache.camel.component.mock.MockEndpoint;
+import org.apache.camel.http.common.HttpOperationFailedException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.rutebanken.irkalla.routes.RouteBuilderIntegrationTestBase;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.TestPropertySource;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.rutebanken.irkalla.Constants.HEADER_NEXT_BATCH_URL;
+import static org.rutebanken.irkalla.Constants.HEADER_SYNC_OPERATION;
+import static org.rutebanken.irkalla.Constants.SYNC_OPERATION_DELTA;
+import static org.rutebanken.irkalla.Constants.SYNC_OPERATION_TARGETED;
+import static org.rutebanken.irkalla.util.Http4URL.toHttp4Url;
+
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+@TestPropertySource(properties = "sync.stop.place.targeted.enabled=true")
+public class ChouetteStopPlaceTargetedSyncTest extends RouteBuilderIntegrationTestBase {
+
+    private static final String PAGE = "<PublicationDelivery><dataObjects><SiteFrame><stopPlaces>"
+                                               + "<StopPlace id=\"NSR:StopPlace:1\" version=\"1\"><Name>Stop</Name></StopPlace>"
+                                               + "</stopPlaces></SiteFrame></dataObjects></PublicationDelivery>";
+
+    @Produce(uri = "activemq:queue:ChouetteStopPlaceSyncQueue")
+    protected ProducerTemplate updateStopPlaces;
+
+    @Value("${chouette.url}")
+    private String chouetteUrl;
+
+    @Value("${tiamat.url}")
+    private String tiamatUrl;
+
+    @Value("${tiamat.publication.delivery.path:/services/stop_places/netex/changed_in_period}")
+    private String publicationDeliveryPath;
+
+    @Value("${tiamat.export.path:/services/stop_places/netex}")
+    private String exportPath;
+
+    @Autowired
+    private PendingStopPlaceIds pendingStopPlaceIds;
+
+    @EndpointInject(uri = "mock:chouetteUpdateStopPlaces")
+    protected MockEndpoint chouetteUpdateStopPlaces;
+
+    @EndpointInject(uri = "mock:tiamatExportById")
+    protected MockEndpoint tiamatExportById;
+
+    @EndpointInject(uri = "mock:tiamatExportChanges")
+    protected MockEndpoint tiamatExportChanges;
+
+    @EndpointInject(uri = "mock:etcd")
+    protected MockEndpoint etcd;
+
+    @EndpointInject(uri = "mock:chouetteStopPlaceSyncQueue")
+    protected MockEndpoint chouetteStopPlaceSyncQueueMock;
+
+    @Before
+    public void setUp() throws Exception {
+        pendingStopPlaceIds.drain(Integer.MAX_VALUE);
+        adviceRoutes();
+        tiamatExportById.whenAnyExchangeReceived(e -> respondWithPage(e));
+        tiamatExportChanges.whenAnyExchangeReceived(e -> respondWithPage(e));
+    }
+
+    @Test
+    public void targetedSyncPostsPendingStopPlaces() throws Exception {
+        pendingStopPlaceIds.addAll(Arrays.asList("NSR:StopPlace:1", "NSR:StopPlace:2"));
+        context.start();
+
+        tiamatExportById.expectedMessageCount(1);
+        chouetteUpdateStopPlaces.expectedMessageCount(1);
+
+        updateStopPlaces.sendBodyAndHeader(null, HEADER_SYNC_OPERATION, SYNC_OPERATION_TARGETED);
+
+        tiamatExportById.assertIsSatisfied();
+        chouetteUpdateStopPlaces.assertIsSatisfied();
+
+        String url = tiamatExportById.getReceivedExchanges().get(0).getIn().getHeader(HEADER_NEXT_BATCH_URL, String.class);
+        Assert.assertTrue(url, url.contains("idList="));
+        Assert.assertTrue(url, url.contains("per_page=2"));
+        Assert.assertEquals(0, pendingStopPlaceIds.size());
+        Assert.assertEquals(0, tiamatExportChanges.getReceivedCounter());
+    }
+
+    @Test
+    public void idsArePutBackWhenChouetteIsBusy() throws Exception {
+        pendingStopPlaceIds.addAll(Arrays.asList("NSR:StopPlace:1", "NSR:StopPlace:2"));
+        context.getRouteDefinition("chouette-synchronize-stop-places-targeted-pages").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint("activemq:queue:ChouetteStopPlaceSyncQueue")
+                        .skipSendToOriginalEndpoint().to("mock:chouetteStopPlaceSyncQueue");
+            }
+        });
+        context.start();
+
+        tiamatExportById.expectedMessageCount(1);
+        chouetteUpdateStopPlaces.expectedMessageCount(1);
+        chouetteStopPlaceSyncQueueMock.expectedMessageCount(1);
+        chouetteUpdateStopPlaces.whenExchangeReceived(1, e -> {
+            throw new HttpOperationFailedException(null, 423, null, null, null, null);
+        });
+
+        updateStopPlaces.sendBodyAndHeader(null, HEADER_SYNC_OPERATION, SYNC_OPERATION_TARGETED);
+
+        tiamatExportById.assertIsSatisfied();
+        chouetteUpdateStopPlaces.assertIsSatisfied();
+        chouetteStopPlaceSyncQueueMock.assertIsSatisfied();
+
+        Exchange retry = chouetteStopPlaceSyncQueueMock.getExchanges().get(0);
+        Assert.assertEquals(SYNC_OPERATION_TARGETED, retry.getIn().getHeader(HEADER_SYNC_OPERATION));
+        Assert.assertNotNull(retry.getIn().getHeader(ScheduledMessage.AMQ_SCHEDULED_DELAY));
+        Assert.assertNull(retry.getIn().getHeader(HEADER_NEXT_BATCH_URL));
+        Assert.assertEquals(2, pendingStopPlaceIds.size());
+    }
+
+    /**
+     * Ids are put back and the sync message is redelivered.
+     */
+    @Test
+    public void idsArePutBackWhenSyncFails() throws Exception {
+        pendingStopPlaceIds.addAll(Arrays.asList("NSR:StopPlace:1", "NSR:StopPlace:2"));
+        context.start();
+
+        tiamatExportById.expectedMessageCount(2);
+        chouetteUpdateStopPlaces.expectedMessageCount(2);
+        chouetteUpdateStopPlaces.whenExchangeReceived(1, e -> {
+            throw new HttpOperationFailedException(null, 500, null, null, null, null);
+        });
+
+        updateStopPlaces.sendBodyAndHeader(null, HEADER_SYNC_OPERATION, SYNC_OPERATION_TARGETED);
+
+        tiamatExportById.assertIsSatisfied();
+        chouetteUpdateStopPlaces.assertIsSatisfied();
+
+        String retryUrl = tiamatExportById.getReceivedExchanges().get(1).getIn().getHeader(HEADER_NEXT_BATCH_URL, String.class);
+        Assert.assertTrue(retryUrl, retryUrl.contains("per_page=2"));
+        Assert.assertEquals(0, pendingStopPlaceIds.size());
+    }
+
+    @Test
+    public void pendingIdsTriggerTargetedSyncWhenOtherSyncCompletes() throws Exception {
+        context.start();
+
+        tiamatExportChanges.expectedMessageCount(1);
+        tiamatExportById.expectedMessageCount(1);
+        etcd.expectedMessageCount(2);
+        // Change registered while delta sync is in progress, its trigger merged with delta sync message
+        tiamatExportChanges.whenAnyExchangeReceived(e -> {
+            pendingStopPlaceIds.add("NSR:StopPlace:2");
+            respondWithPage(e);
+        });
+
+        updateStopPlaces.sendBodyAndHeader(null, HEADER_SYNC_OPERATION, SYNC_OPERATION_DELTA);
+
+        tiamatExportChanges.assertIsSatisfied();
+        etcd.assertIsSatisfied();
+        tiamatExportById.assertIsSatisfied();
+        Assert.assertEquals(0, pendingStopPlaceIds.size());
+    }
+
+    @Test
+    public void deltaSyncSkipsStopPlacesAlreadySentByTargetedSync() throws Exception {
+        pendingStopPlaceIds.add("NSR:StopPlace:1");
+        context.start();
+
+        tiamatExportById.expectedMessageCount(1);
+        chouetteUpdateStopPlaces.expectedMessageCount(1);
+        updateStopPlaces.sendBodyAndHeader(null, HEADER_SYNC_OPERATION, SYNC_OPERATION_TARGETED);
+        tiamatExportById.assertIsSatisfied();
+        chouetteUpdateStopPlaces.assertIsSatisfied();
+
+        tiamatExportChanges.expectedMessageCount(1);
+        etcd.expectedMessageCount(2);
+        updateStopPlaces.sendBodyAndHeader(null, HEADER_SYNC_OPERATION, SYNC_OPERATION_DELTA);
+        tiamatExportChanges.assertIsSatisfied();
+        etcd.assertIsSatisfied();
+
+        // Unchanged stop place is not posted again, and no targeted sync is triggered when no ids are pending
+        chouetteUpdateStopPlaces.setAssertPeriod(500);
+        tiamatExportById.setAssertPeriod(500);
+        chouetteUpdateStopPlaces.assertIsSatisfied();
+        tiamatExportById.assertIsSatisfied();
+    }
+
+    private void respondWithPage(Exchange e) {
+        e.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, "200");
+        e.getIn().setBody(PAGE.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void adviceRoutes() throws Exception {
+        context.getRouteDefinition("tiamat-get-batch-of-changed-stop-places-as-netex").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint(toHttp4Url(tiamatUrl) + publicationDeliveryPath + "*")
+                        .skipSendToOriginalEndpoint().to("mock:tiamatExportChanges");
+                interceptSendToEndpoint(toHttp4Url(tiamatUrl) + exportPath + "?*")
+                        .skipSendToOriginalEndpoint().to("mock:tiamatExportById");
+            }
+        });
+
+        context.getRouteDefinition("chouette-synchronize-stop-place-batch").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint(toHttp4Url(chouetteUrl) + "/chouette_iev/stop_place*")
+                        .skipSendToOriginalEndpoint().to("mock:chouetteUpdateStopPlaces");
+            }
+        });
+
+        context.getRouteDefinition("chouette-synchronize-stop-places-init").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint("direct:getSyncStatusUntilTime")
+                        .skipSendToOriginalEndpoint().to("mock:etcd");
+            }
+        });
+
+        context.getRouteDefinition("chouette-synchronize-stop-places-complete").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint("direct:setSyncStatusUntilTime")
+                        .skipSendToOriginalEndpoint().to("mock:etcd");
+            }
+        });
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.apache.camel.EndpointInject;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.Produce;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.AdviceWithRouteBuilder;
+import org.apache.camel.component.mock.MockEndpoint;
+import org.apache.http.HttpEntity;
+import org.junit.Assert;
+import org.junit.Test;
+import org.rutebanken.irkalla.config.HttpClientConfig;
+import org.rutebanken.irkalla.routes.RouteBuilderIntegrationTestBase;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.TestPropertySource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.rutebanken.irkalla.Constants.HEADER_SYNC_BYTES_RECEIVED;
+import static org.rutebanken.irkalla.Constants.HEADER_SYNC_BYTES_SENT;
+import static org.rutebanken.irkalla.Constants.HEADER_SYNC_BYTES_SENT_UNCOMPRESSED;
+import static org.rutebanken.irkalla.Constants.HEADER_SYNC_BYTES_UNCOMPRESSED;
+import static org.rutebanken.irkalla.util.Http4URL.toHttp4Url;
+
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+@TestPropertySource(properties = {"sync.stop.place.compression.enabled=true", "chouette.sync.stop.place.compression.enabled=true"})
+public class ChouetteStopPlaceUpdateCompressionTest extends RouteBuilderIntegrationTestBase {
+
+    private static final String PAGE = "<PublicationDelivery><dataObjects><SiteFrame><stopPlaces>"
+                                               + "<StopPlace id=\"NSR:StopPlace:1\" version=\"1\"><Name>Stop</Name></StopPlace>"
+                                               + "</stopPlaces></SiteFrame></dataObjects></PublicationDelivery>";
+
+    @Produce(uri = "activemq:queue:ChouetteStopPlaceSyncQueue")
+    protected ProducerTemplate updateStopPlaces;
+
+    @Value("${chouette.url}")
+    private String chouetteUrl;
+
+    @Value("${tiamat.url}")
+    private String tiamatUrl;
+
+    @Value("${tiamat.publication.delivery.path:/services/stop_places/netex/changed_in_period}")
+    private String publicationDeliveryPath;
+
+    @EndpointInject(uri = "mock:chouetteUpdateStopPlaces")
+    protected MockEndpoint chouetteUpdateStopPlaces;
+
+    @EndpointInject(uri = "mock:tiamatExportChanges")
+    protected MockEndpoint tiamatExportChanges;
+
+    @EndpointInject(uri = "mock:etcd")
+    protected MockEndpoint etcd;
+
+    private final AtomicReference<String> postedContentEncoding = new AtomicReference<>();
+
+    private final AtomicReference<byte[]> postedBytes = new AtomicReference<>();
+
+    @Test
+    public void testCompressedPageIsPassedOnToChouetteAsIs() throws Exception {
+        byte[] compressedPage = gzip(PAGE.getBytes(StandardCharsets.UTF_8));
+        syncPage(e -> {
+            e.getIn().setHeader(Exchange.CONTENT_ENCODING, "gzip");
+            e.getIn().setBody(compressedPage);
+        });
+
+        Exchange tiamatRequest = tiamatExportChanges.getReceivedExchanges().get(0);
+        Assert.assertEquals("gzip", tiamatRequest.getIn().getHeader("Accept-Encoding"));
+        // Page is fetched with client not decompressing response
+        Assert.assertTrue(tiamatRequest.getIn().getHeader(Exchange.INTERCEPTED_ENDPOINT, String.class).contains(HttpClientConfig.NETEX_HTTP_CLIENT_CONFIGURER));
+
+        Assert.assertEquals("gzip", postedContentEncoding.get());
+        Assert.assertArrayEquals(compressedPage, postedBytes.get());
+
+        Exchange completed = etcd.getReceivedExchanges().get(1);
+        Assert.assertEquals(compressedPage.length, (long) completed.getIn().getHeader(HEADER_SYNC_BYTES_RECEIVED, Long.class));
+        Assert.assertEquals(PAGE.length(), (long) completed.getIn().getHeader(HEADER_SYNC_BYTES_UNCOMPRESSED, Long.class));
+        Assert.assertEquals(compressedPage.length, (long) completed.getIn().getHeader(HEADER_SYNC_BYTES_SENT, Long.class));
+        Assert.assertEquals(PAGE.length(), (long) completed.getIn().getHeader(HEADER_SYNC_BYTES_SENT_UNCOMPRESSED, Long.class));
+    }
+
+    @Test
+    public void testUncompressedPageIsCompressedForChouette() throws Exception {
+        syncPage(e -> e.getIn().setBody(PAGE.getBytes(StandardCharsets.UTF_8)));
+
+        Assert.assertEquals("gzip", postedContentEncoding.get());
+        Assert.assertEquals(PAGE, new String(gunzip(postedBytes.get()), StandardCharsets.UTF_8));
+
+        Exchange completed = etcd.getReceivedExchanges().get(1);
+        Assert.assertEquals(postedBytes.get().length, (long) completed.getIn().getHeader(HEADER_SYNC_BYTES_SENT, Long.class));
+        Assert.assertEquals(PAGE.length(), (long) completed.getIn().getHeader(HEADER_SYNC_BYTES_SENT_UNCOMPRESSED, Long.class));
+    }
+
+    private void syncPage(Processor tiamatResponse) throws Exception {
+        String exportPath = toHttp4Url(tiamatUrl) + publicationDeliveryPath + "*";
+
+        context.getRouteDefinition("tiamat-get-batch-of-changed-stop-places-as-netex").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint(exportPath)
+                        .skipSendToOriginalEndpoint().to("mock:tiamatExportChanges");
+            }
+        });
+
+        context.getRouteDefinition("chouette-synchronize-stop-place-batch").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint(toHttp4Url(chouetteUrl) + "/chouette_iev/stop_place*")
+                        .skipSendToOriginalEndpoint().to("mock:chouetteUpdateStopPlaces");
+            }
+        });
+
+        context.getRouteDefinition("chouette-synchronize-stop-places-init").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint("direct:getSyncStatusUntilTime")
+                        .skipSendToOriginalEndpoint().to("mock:etcd");
+            }
+        });
+
+        context.getRouteDefinition("chouette-synchronize-stop-places-complete").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint("direct:setSyncStatusUntilTime")
+                        .skipSendToOriginalEndpoint().to("mock:etcd");
+            }
+        });
+
+        context.start();
+
+        tiamatExportChanges.expectedMessageCount(1);
+        tiamatExportChanges.whenExchangeReceived(1, e -> {
+            e.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, "200");
+            tiamatResponse.process(e);
+        });
+
+        chouetteUpdateStopPlaces.expectedMessageCount(1);
+        chouetteUpdateStopPlaces.whenExchangeReceived(1, e -> {
+            HttpEntity entity = e.getIn().getBody(HttpEntity.class);
+            Assert.assertNull(e.getIn().getHeader(Exchange.CONTENT_ENCODING));
+            postedContentEncoding.set(entity.getContentEncoding().getValue());
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            entity.writeTo(bos);
+            postedBytes.set(bos.toByteArray());
+        });
+
+        etcd.expectedMessageCount(2);
+
+        updateStopPlaces.sendBody(null);
+
+        tiamatExportChanges.assertIsSatisfied();
+        chouetteUpdateStopPlaces.assertIsSatisfied();
+        etcd.assertIsSatisfied();
+    }
+
+    private byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bos)) {
+            gzip.write(bytes);
+        }
+        return bos.toByteArray();
+    }
+
+    private byte[] gunzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = gzip.read(buffer)) > 0) {
+                bos.write(buffer, 0, read);
+            }
+        }
+        return bos.toByteArray();
+    }
+}
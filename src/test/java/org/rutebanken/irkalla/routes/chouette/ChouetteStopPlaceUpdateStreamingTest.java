@@ -0,0 +1,129 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.apache.camel.EndpointInject;
+import org.apache.camel.Exchange;
+import org.apache.camel.Produce;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.AdviceWithRouteBuilder;
+import org.apache.camel.component.mock.MockEndpoint;
+import org.apache.camel.converter.stream.FileInputStreamCache;
+import org.junit.Assert;
+import org.junit.Test;
+import org.rutebanken.irkalla.routes.RouteBuilderIntegrationTestBase;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.TestPropertySource;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.rutebanken.irkalla.util.Http4URL.toHttp4Url;
+
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+@TestPropertySource(properties = {"sync.stop.place.streaming.enabled=true", "sync.stop.place.streaming.spool.threshold=1024"})
+public class ChouetteStopPlaceUpdateStreamingTest extends RouteBuilderIntegrationTestBase {
+
+    @Produce(uri = "activemq:queue:ChouetteStopPlaceSyncQueue")
+    protected ProducerTemplate updateStopPlaces;
+
+    @Value("${chouette.url}")
+    private String chouetteUrl;
+
+    @Value("${tiamat.url}")
+    private String tiamatUrl;
+
+    @Value("${tiamat.publication.delivery.path:/services/stop_places/netex/changed_in_period}")
+    private String publicationDeliveryPath;
+
+    @EndpointInject(uri = "mock:chouetteUpdateStopPlaces")
+    protected MockEndpoint chouetteUpdateStopPlaces;
+
+    @EndpointInject(uri = "mock:tiamatExportChanges")
+    protected MockEndpoint tiamatExportChanges;
+
+    @Test
+    public void testPageOverThresholdIsSpooledToDiskAndPostedAsStream() throws Exception {
+        String exportPath = toHttp4Url(tiamatUrl) + publicationDeliveryPath + "*";
+
+        context.getRouteDefinition("tiamat-get-batch-of-changed-stop-places-as-netex").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint(exportPath)
+                        .skipSendToOriginalEndpoint().to("mock:tiamatExportChanges");
+            }
+        });
+
+        context.getRouteDefinition("chouette-synchronize-stop-place-batch").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint(toHttp4Url(chouetteUrl) + "/chouette_iev/stop_place*")
+                        .skipSendToOriginalEndpoint().to("mock:chouetteUpdateStopPlaces");
+            }
+        });
+
+        context.getRouteDefinition("chouette-synchronize-stop-places-init").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint("direct:getSyncStatusUntilTime")
+                        .skipSendToOriginalEndpoint().to("mock:etcd");
+            }
+        });
+
+        context.getRouteDefinition("chouette-synchronize-stop-places-complete").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint("direct:setSyncStatusUntilTime")
+                        .skipSendToOriginalEndpoint().to("mock:etcd");
+            }
+        });
+
+        context.start();
+
+        String page = netexPage(500);
+        tiamatExportChanges.expectedMessageCount(1);
+        tiamatExportChanges.whenExchangeReceived(1, e -> {
+            e.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, "200");
+            e.getIn().setBody(new ByteArrayInputStream(page.getBytes(StandardCharsets.UTF_8)));
+        });
+
+        AtomicReference<Object> postedBody = new AtomicReference<>();
+        AtomicReference<String> postedContent = new AtomicReference<>();
+        chouetteUpdateStopPlaces.expectedMessageCount(1);
+        chouetteUpdateStopPlaces.whenExchangeReceived(1, e -> {
+            postedBody.set(e.getIn().getBody());
+            postedContent.set(e.getIn().getBody(String.class));
+        });
+
+        updateStopPlaces.sendBody(null);
+
+        tiamatExportChanges.assertIsSatisfied();
+        chouetteUpdateStopPlaces.assertIsSatisfied();
+
+        Assert.assertTrue("Expected page to be spooled to disk, was: " + postedBody.get().getClass(), postedBody.get() instanceof FileInputStreamCache);
+        Assert.assertEquals(page, postedContent.get());
+    }
+
+    private String netexPage(int stopPlaces) {
+        StringBuilder page = new StringBuilder("<PublicationDelivery><dataObjects><SiteFrame><stopPlaces>");
+        for (int i = 0; i < stopPlaces; i++) {
+            page.append("<StopPlace id=\"NSR:StopPlace:").append(i).append("\" version=\"1\"><Name>Stop ").append(i).append("</Name></StopPlace>");
+        }
+        return page.append("</stopPlaces></SiteFrame></dataObjects></PublicationDelivery>").toString();
+    }
+}
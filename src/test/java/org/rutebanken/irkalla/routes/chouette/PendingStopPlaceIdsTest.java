@@ -0,0 +1,90 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+public class PendingStopPlaceIdsTest {
+
+    private HazelcastInstance hazelcast;
+
+    private PendingStopPlaceIds pendingStopPlaceIds;
+
+    @Before
+    public void setUp() {
+        Config config = new Config();
+        config.getGroupConfig().setName("irkalla-pending-test-" + UUID.randomUUID());
+        config.setProperty("hazelcast.phone.home.enabled", "false");
+        config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+        hazelcast = Hazelcast.newHazelcastInstance(config);
+        pendingStopPlaceIds = new PendingStopPlaceIds(() -> hazelcast);
+    }
+
+    @After
+    public void tearDown() {
+        hazelcast.getLifecycleService().terminate();
+    }
+
+    @Test
+    public void drainTakesAtMostMaxIds() {
+        pendingStopPlaceIds.addAll(Arrays.asList("NSR:StopPlace:1", "NSR:StopPlace:2", "NSR:StopPlace:3"));
+
+        List<String> first = pendingStopPlaceIds.drain(2);
+        Assert.assertEquals(2, first.size());
+        Assert.assertEquals(1, pendingStopPlaceIds.size());
+
+        List<String> second = pendingStopPlaceIds.drain(2);
+        Assert.assertEquals(1, second.size());
+        Assert.assertEquals(0, pendingStopPlaceIds.size());
+
+        Set<String> drained = new HashSet<>(first);
+        drained.addAll(second);
+        Assert.assertEquals(3, drained.size());
+        Assert.assertTrue(pendingStopPlaceIds.drain(2).isEmpty());
+    }
+
+    @Test
+    public void sameIdIsOnlyPendingOnce() {
+        pendingStopPlaceIds.add("NSR:StopPlace:1");
+        pendingStopPlaceIds.add("NSR:StopPlace:1");
+
+        Assert.assertEquals(1, pendingStopPlaceIds.size());
+    }
+
+    @Test
+    public void idsPutBackAreDrainedAgain() {
+        pendingStopPlaceIds.addAll(Arrays.asList("NSR:StopPlace:1", "NSR:StopPlace:2"));
+        List<String> drained = pendingStopPlaceIds.drain(10);
+        pendingStopPlaceIds.add("NSR:StopPlace:3");
+
+        // Sync failed, ids put back together with id changed meanwhile
+        pendingStopPlaceIds.addAll(drained);
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList("NSR:StopPlace:1", "NSR:StopPlace:2", "NSR:StopPlace:3")), new HashSet<>(pendingStopPlaceIds.drain(10)));
+    }
+}
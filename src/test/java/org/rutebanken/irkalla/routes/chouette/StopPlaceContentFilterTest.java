@@ -0,0 +1,196 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.apache.camel.util.IOHelper;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class StopPlaceContentFilterTest {
+
+    private static final String NETEX = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                                                "<PublicationDelivery xmlns=\"http://www.netex.org.uk/netex\" version=\"1.0\">\n" +
+                                                "  <dataObjects>\n" +
+                                                "    <SiteFrame id=\"NSR:SiteFrame:1\" version=\"1\">\n" +
+                                                "      <stopPlaces>\n" +
+                                                "        <StopPlace id=\"NSR:StopPlace:1\" version=\"1\">\n" +
+                                                "          <Name>Parent</Name>\n" +
+                                                "        </StopPlace>\n" +
+                                                "        <StopPlace id=\"NSR:StopPlace:2\" version=\"3\">\n" +
+                                                "          <Name>Child</Name>\n" +
+                                                "          <ParentSiteRef ref=\"NSR:StopPlace:1\" version=\"1\"/>\n" +
+                                                "        </StopPlace>\n" +
+                                                "        <StopPlace id=\"NSR:StopPlace:3\" version=\"2\">\n" +
+                                                "          <Name>Other</Name>\n" +
+                                                "        </StopPlace>\n" +
+                                                "      </stopPlaces>\n" +
+                                                "    </SiteFrame>\n" +
+                                                "  </dataObjects>\n" +
+                                                "</PublicationDelivery>";
+
+    private CamelContext camelContext = new DefaultCamelContext();
+
+    @Test
+    public void allStopPlacesForwardedFirstTime() throws Exception {
+        Exchange e = exchange(NETEX);
+        StopPlaceContentFilter.Result result = StopPlaceContentFilter.filter(e, ids -> new HashMap<>());
+
+        Assert.assertEquals(3, result.stopPlaceCount);
+        Assert.assertEquals(3, result.forwardedHashes.size());
+        Assert.assertFalse(result.isModified());
+        Assert.assertEquals(NETEX, e.getIn().getBody(String.class));
+    }
+
+    @Test
+    public void unchangedStopPlacesAreSuppressed() throws Exception {
+        Map<String, Long> accepted = hashes(NETEX);
+
+        Exchange e = exchange(NETEX);
+        StopPlaceContentFilter.Result result = StopPlaceContentFilter.filter(e, ids -> accepted);
+
+        Assert.assertEquals(3, result.stopPlaceCount);
+        Assert.assertTrue(result.forwardedHashes.isEmpty());
+        String netex = e.getIn().getBody(String.class);
+        Assert.assertFalse(netex.contains("NSR:StopPlace:"));
+        Assert.assertTrue(netex.contains("stopPlaces"));
+        Assert.assertTrue(netex.contains("NSR:SiteFrame:1"));
+    }
+
+    @Test
+    public void parentIsForwardedWithChangedChild() throws Exception {
+        Map<String, Long> accepted = hashes(NETEX);
+        accepted.put("NSR:StopPlace:2", 0L);
+
+        Exchange e = exchange(NETEX);
+        StopPlaceContentFilter.Result result = StopPlaceContentFilter.filter(e, ids -> accepted);
+
+        Assert.assertEquals(2, result.forwardedHashes.size());
+        Assert.assertTrue(result.forwardedHashes.containsKey("NSR:StopPlace:1"));
+        Assert.assertTrue(result.forwardedHashes.containsKey("NSR:StopPlace:2"));
+        Assert.assertFalse(e.getIn().getBody(String.class).contains("NSR:StopPlace:3"));
+    }
+
+    @Test
+    public void whitespaceDoesNotAffectHash() throws Exception {
+        Assert.assertEquals(hashes(NETEX), hashes(NETEX.replace("\n          ", "\n    ")));
+    }
+
+    @Test
+    public void attributeOrderNamespacePrefixAndTextEscapingDoNotAffectHash() throws Exception {
+        String netex = "<PublicationDelivery xmlns=\"http://www.netex.org.uk/netex\"><stopPlaces>"
+                               + "<StopPlace id=\"NSR:StopPlace:1\" version=\"1\"><Name>A &amp; B</Name></StopPlace>"
+                               + "</stopPlaces></PublicationDelivery>";
+        String equivalent = "<n:PublicationDelivery xmlns:n=\"http://www.netex.org.uk/netex\"><n:stopPlaces>"
+                                    + "<n:StopPlace version='1' id='NSR:StopPlace:1'><n:Name><![CDATA[A & B]]></n:Name></n:StopPlace>"
+                                    + "</n:stopPlaces></n:PublicationDelivery>";
+        String otherNamespace = netex.replace("http://www.netex.org.uk/netex", "http://www.netex.org.uk/other");
+
+        Assert.assertEquals(hashes(netex), hashes(equivalent));
+        Assert.assertNotEquals(hashes(netex), hashes(otherNamespace));
+    }
+
+    @Test
+    public void encodingDeclaredInPrologIsUsed() throws Exception {
+        String netex = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><PublicationDelivery><stopPlaces>"
+                               + "<StopPlace id=\"NSR:StopPlace:1\" version=\"1\"><Name>Tøyen</Name></StopPlace>"
+                               + "</stopPlaces></PublicationDelivery>";
+        Exchange e = new DefaultExchange(camelContext);
+        e.getIn().setBody(netex.getBytes(StandardCharsets.ISO_8859_1));
+        Map<String, Long> hashes = StopPlaceContentFilter.filter(e, ids -> new HashMap<>()).forwardedHashes;
+
+        Assert.assertEquals(hashes(netex.replace("ISO-8859-1", "UTF-8")), hashes);
+    }
+
+    @Test
+    public void pageWithoutSuppressedStopPlacesIsPassedOnAsIs() throws Exception {
+        Exchange e = exchange(NETEX);
+        Object page = e.getIn().getBody();
+
+        StopPlaceContentFilter.Result result = StopPlaceContentFilter.filter(e, ids -> new HashMap<>());
+
+        Assert.assertFalse(result.isModified());
+        Assert.assertSame(page, e.getIn().getBody());
+    }
+
+    @Test
+    public void forwardedStopPlacesAreKeptUnchanged() throws Exception {
+        Map<String, Long> accepted = hashes(NETEX);
+        accepted.remove("NSR:StopPlace:3");
+
+        Exchange e = exchange(NETEX);
+        StopPlaceContentFilter.Result result = StopPlaceContentFilter.filter(e, ids -> accepted);
+
+        Assert.assertTrue(result.isModified());
+        String netex = e.getIn().getBody(String.class);
+        // Suppressed stop places are left out together with their indentation
+        Assert.assertTrue(netex.contains("<stopPlaces>\n        <StopPlace id=\"NSR:StopPlace:3\" version=\"2\">\n          <Name>Other</Name>\n        </StopPlace>\n      </stopPlaces>"));
+        Assert.assertEquals(result.forwardedHashes, hashes(netex));
+    }
+
+    @Test
+    public void modifiedCompressedPageIsCompressedAgain() throws Exception {
+        Map<String, Long> accepted = hashes(NETEX);
+        accepted.remove("NSR:StopPlace:3");
+
+        Exchange e = new DefaultExchange(camelContext);
+        e.getIn().setBody(gzip(NETEX));
+        e.getIn().setHeader(Exchange.CONTENT_ENCODING, "gzip");
+        StopPlaceContentFilter.Result result = StopPlaceContentFilter.filter(e, ids -> accepted);
+
+        Assert.assertTrue(result.isModified());
+        Assert.assertEquals("gzip", e.getIn().getHeader(Exchange.CONTENT_ENCODING));
+        String netex = gunzip(e.getIn().getBody(InputStream.class));
+        Assert.assertTrue(netex.contains("NSR:StopPlace:3"));
+        Assert.assertFalse(netex.contains("NSR:StopPlace:1"));
+    }
+
+    private Map<String, Long> hashes(String netex) throws Exception {
+        return new HashMap<>(StopPlaceContentFilter.filter(exchange(netex), ids -> new HashMap<>()).forwardedHashes);
+    }
+
+    private Exchange exchange(String netex) {
+        Exchange e = new DefaultExchange(camelContext);
+        e.getIn().setBody(netex.getBytes(StandardCharsets.UTF_8));
+        return e;
+    }
+
+    private byte[] gzip(String content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        return out.toByteArray();
+    }
+
+    private String gunzip(InputStream compressed) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IOHelper.copyAndCloseInput(new GZIPInputStream(compressed), out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
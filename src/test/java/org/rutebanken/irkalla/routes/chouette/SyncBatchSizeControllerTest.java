@@ -0,0 +1,148 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.UUID;
+
+public class SyncBatchSizeControllerTest {
+
+    private HazelcastInstance hazelcast;
+
+    private SyncBatchSizeController controller;
+
+    @Before
+    public void setUp() {
+        Config config = new Config();
+        config.getGroupConfig().setName("irkalla-batch-size-test-" + UUID.randomUUID());
+        config.setProperty("hazelcast.phone.home.enabled", "false");
+        config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+        hazelcast = Hazelcast.newHazelcastInstance(config);
+        controller = controller();
+    }
+
+    @After
+    public void tearDown() {
+        hazelcast.getLifecycleService().terminate();
+    }
+
+    private SyncBatchSizeController controller() {
+        SyncBatchSizeController controller = new SyncBatchSizeController(() -> hazelcast, new SimpleMeterRegistry(), 1000);
+        ReflectionTestUtils.setField(controller, "enabled", true);
+        ReflectionTestUtils.setField(controller, "minBatchSize", 100);
+        ReflectionTestUtils.setField(controller, "maxBatchSize", 1200);
+        ReflectionTestUtils.setField(controller, "increaseStep", 100);
+        ReflectionTestUtils.setField(controller, "decreaseFactor", 0.5);
+        ReflectionTestUtils.setField(controller, "targetLatencyMillis", 1000L);
+        ReflectionTestUtils.setField(controller, "maxPageBytes", 1000000L);
+        ReflectionTestUtils.setField(controller, "historySize", 3);
+        return controller;
+    }
+
+    @Test
+    public void batchSizeIsIncreasedAdditivelyUpToMaxOncePerRun() {
+        controller.onSyncCompleted(System.currentTimeMillis(), 500, 1000, 0);
+        Assert.assertEquals(1100, controller.getBatchSize());
+        controller.onSyncCompleted(System.currentTimeMillis(), 500, 1000, 0);
+        controller.onSyncCompleted(System.currentTimeMillis(), 500, 1000, 0);
+        Assert.assertEquals(1200, controller.getBatchSize());
+    }
+
+    @Test
+    public void longRunCannotIncreaseBatchSizeByMoreThanOneStep() {
+        long runStarted = System.currentTimeMillis();
+        for (int page = 0; page < 500; page++) {
+            controller.onPagePosted(500, 1000);
+        }
+        Assert.assertEquals(1000, controller.getBatchSize());
+
+        controller.onSyncCompleted(runStarted, 500, 1000, 0);
+        Assert.assertEquals(1100, controller.getBatchSize());
+    }
+
+    @Test
+    public void batchSizeIsNotIncreasedAfterRunWithSlowOrBusyPages() {
+        controller.onSyncCompleted(System.currentTimeMillis(), 5000, 1000, 0);
+        controller.onSyncCompleted(System.currentTimeMillis(), 500, 2000000, 0);
+        controller.onSyncCompleted(System.currentTimeMillis(), 500, 1000, 1);
+        Assert.assertEquals(1000, controller.getBatchSize());
+    }
+
+    @Test
+    public void batchSizeIsNotIncreasedWhenDecreasedDuringRun() {
+        long runStarted = System.currentTimeMillis() - 1000;
+        controller.onChouetteBusy();
+
+        controller.onSyncCompleted(runStarted, 500, 1000, 0);
+        Assert.assertEquals(500, controller.getBatchSize());
+    }
+
+    @Test
+    public void batchSizeIsDecreasedMultiplicativelyDownToMin() {
+        controller.onChouetteBusy();
+        Assert.assertEquals(500, controller.getBatchSize());
+        controller.onPagePosted(5000, 1000);
+        Assert.assertEquals(250, controller.getBatchSize());
+        controller.onPagePosted(500, 2000000);
+        Assert.assertEquals(125, controller.getBatchSize());
+        controller.onPostFailed(new RuntimeException("Read timed out"));
+        Assert.assertEquals(100, controller.getBatchSize());
+    }
+
+    @Test
+    public void historyIsBoundedWithNewestFirst() {
+        controller.onChouetteBusy();
+        controller.onChouetteBusy();
+        controller.onChouetteBusy();
+        controller.onSyncCompleted(System.currentTimeMillis(), 10, 10, 0);
+
+        SyncBatchSizeController.Status status = controller.getStatus();
+        Assert.assertEquals(3, status.history.size());
+        Assert.assertEquals(125, status.history.get(0).from);
+        Assert.assertEquals(225, status.history.get(0).to);
+        Assert.assertEquals(500, status.history.get(2).from);
+    }
+
+    @Test
+    public void batchSizeIsNotAdjustedWhenDisabled() {
+        ReflectionTestUtils.setField(controller, "enabled", false);
+        controller.onChouetteBusy();
+        Assert.assertEquals(1000, controller.getBatchSize());
+        Assert.assertTrue(controller.getStatus().history.isEmpty());
+    }
+
+    @Test
+    public void batchSizeAndHistoryAreSharedInCluster() {
+        controller.onChouetteBusy();
+
+        // E.g. new leader after handover
+        SyncBatchSizeController otherController = controller();
+        Assert.assertEquals(500, otherController.getBatchSize());
+        otherController.onSyncCompleted(System.currentTimeMillis(), 500, 1000, 0);
+
+        Assert.assertEquals(600, controller.getBatchSize());
+        Assert.assertEquals(2, controller.getStatus().history.size());
+    }
+}
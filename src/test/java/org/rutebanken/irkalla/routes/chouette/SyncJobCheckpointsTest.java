@@ -0,0 +1,119 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import org.apache.camel.Message;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.Assert;
+import org.junit.Test;
+import org.rutebanken.irkalla.domain.SyncJob;
+
+import static org.rutebanken.irkalla.Constants.*;
+
+public class SyncJobCheckpointsTest {
+
+    @Test
+    public void checkpointRecordsProgress() {
+        Message in = message(SYNC_OPERATION_FULL);
+        in.setHeader(HEADER_SYNC_STATUS_TO, 2000L);
+        SyncJob started = SyncJobCheckpoints.start(in, 1000);
+        Assert.assertNotNull(started.getJobId());
+        Assert.assertEquals(0, started.getPagesCompleted());
+        Assert.assertNull(started.getNextBatchUrl());
+
+        in.setHeader(HEADER_NEXT_BATCH_URL, "http://tiamat/netex?page=2");
+        in.setHeader(HEADER_SYNC_BYTES_RECEIVED, 100L);
+        SyncJob checkpoint = SyncJobCheckpoints.checkpoint(in, started, 1500);
+
+        Assert.assertEquals(started.getJobId(), checkpoint.getJobId());
+        Assert.assertEquals(1, checkpoint.getPagesCompleted());
+        Assert.assertEquals(1, in.getHeader(HEADER_SYNC_JOB_PAGES_COMPLETED));
+        Assert.assertEquals("http://tiamat/netex?page=2", checkpoint.getNextBatchUrl());
+        Assert.assertEquals(SYNC_OPERATION_FULL, checkpoint.getOperation());
+        Assert.assertEquals(Long.valueOf(2000), checkpoint.getSyncTo());
+        Assert.assertEquals(Long.valueOf(100), checkpoint.getBytesReceived());
+        Assert.assertEquals(Long.valueOf(1000), checkpoint.getStarted());
+        Assert.assertEquals(Long.valueOf(1500), checkpoint.getUpdated());
+    }
+
+    @Test
+    public void deltaSyncResumesStoredJob() {
+        Message in = message(SYNC_OPERATION_DELTA);
+        Assert.assertTrue(SyncJobCheckpoints.resume(in, storedJob(SYNC_OPERATION_FULL)));
+
+        Assert.assertEquals("job1", in.getHeader(HEADER_SYNC_JOB_ID));
+        Assert.assertEquals(SYNC_OPERATION_FULL, in.getHeader(HEADER_SYNC_OPERATION));
+        Assert.assertEquals("http://tiamat/netex?page=4", in.getHeader(HEADER_NEXT_BATCH_URL));
+        Assert.assertEquals(3, in.getHeader(HEADER_SYNC_JOB_PAGES_COMPLETED));
+        Assert.assertEquals(Long.valueOf(500), in.getHeader(HEADER_SYNC_BYTES_RECEIVED));
+    }
+
+    @Test
+    public void fullSyncDoesNotResumeStoredDeltaJob() {
+        Assert.assertFalse(SyncJobCheckpoints.resume(message(SYNC_OPERATION_FULL), storedJob(SYNC_OPERATION_DELTA)));
+        Assert.assertTrue(SyncJobCheckpoints.resume(message(SYNC_OPERATION_FULL), storedJob(SYNC_OPERATION_FULL)));
+        Assert.assertFalse(SyncJobCheckpoints.resume(message(SYNC_OPERATION_FULL), null));
+    }
+
+    @Test
+    public void retryOfPageResumesSameJob() {
+        Message in = message(SYNC_OPERATION_DELTA);
+        in.setHeader(HEADER_SYNC_JOB_ID, "job1");
+        Assert.assertTrue(SyncJobCheckpoints.resume(in, storedJob(SYNC_OPERATION_DELTA)));
+        Assert.assertEquals("http://tiamat/netex?page=4", in.getHeader(HEADER_NEXT_BATCH_URL));
+    }
+
+    @Test
+    public void iterationIsSupersededByOtherOrMoreAdvancedJob() {
+        Message in = message(SYNC_OPERATION_FULL);
+        in.setHeader(HEADER_SYNC_JOB_ID, "job1");
+        in.setHeader(HEADER_SYNC_JOB_PAGES_COMPLETED, 3);
+        Assert.assertFalse(SyncJobCheckpoints.isSuperseded(in, storedJob(SYNC_OPERATION_FULL)));
+
+        in.setHeader(HEADER_SYNC_JOB_PAGES_COMPLETED, 2);
+        Assert.assertTrue(SyncJobCheckpoints.isSuperseded(in, storedJob(SYNC_OPERATION_FULL)));
+
+        in.setHeader(HEADER_SYNC_JOB_ID, "job2");
+        in.setHeader(HEADER_SYNC_JOB_PAGES_COMPLETED, 3);
+        Assert.assertTrue(SyncJobCheckpoints.isSuperseded(in, storedJob(SYNC_OPERATION_FULL)));
+
+        // Job completed
+        Assert.assertTrue(SyncJobCheckpoints.isSuperseded(in, null));
+    }
+
+    @Test
+    public void iterationWithoutJobIsNotSuperseded() {
+        Assert.assertFalse(SyncJobCheckpoints.isSuperseded(message(SYNC_OPERATION_FULL), storedJob(SYNC_OPERATION_FULL)));
+    }
+
+    private SyncJob storedJob(String operation) {
+        SyncJob job = new SyncJob();
+        job.setJobId("job1");
+        job.setOperation(operation);
+        job.setSyncTo(2000L);
+        job.setNextBatchUrl("http://tiamat/netex?page=4");
+        job.setPagesCompleted(3);
+        job.setBytesReceived(500L);
+        return job;
+    }
+
+    private Message message(String operation) {
+        Message in = new DefaultExchange(new DefaultCamelContext()).getIn();
+        in.setHeader(HEADER_SYNC_OPERATION, operation);
+        return in;
+    }
+}
@@ -33,7 +33,7 @@ public class SyncMsgComparatorTest {
     public void testComparator() throws Exception {
         List<ActiveMQMessage> sortedList = Arrays.asList(msg(SYNC_OPERATION_FULL_WITH_DELETE_UNUSED_FIRST, null),
                 msg(SYNC_OPERATION_FULL, "url"), msg(SYNC_OPERATION_FULL, null),
-                msg(SYNC_OPERATION_DELTA, "url"), msg(SYNC_OPERATION_DELTA, null));
+                msg(SYNC_OPERATION_DELTA, "url"), msg(SYNC_OPERATION_TARGETED, null), msg(SYNC_OPERATION_DELTA, null));
 
 
         List<ActiveMQMessage> toBeSortedList = new ArrayList<>(sortedList);
@@ -0,0 +1,259 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.chouette;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.JoinConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IQueue;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.rutebanken.irkalla.domain.SyncPartition;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Partitioned sync coordinated across an embedded cluster of two Hazelcast members.
+ */
+public class SyncPartitionCoordinatorTest {
+
+    private static final long SYNC_TIMEOUT = 1000;
+
+    private List<HazelcastInstance> members = new ArrayList<>();
+
+    private SyncPartitionCoordinator first;
+
+    private SyncPartitionCoordinator second;
+
+    @Before
+    public void setUp() {
+        String clusterName = "irkalla-partition-test-" + UUID.randomUUID();
+        members.add(Hazelcast.newHazelcastInstance(config(clusterName)));
+        members.add(Hazelcast.newHazelcastInstance(config(clusterName)));
+        Assert.assertEquals(2, members.get(0).getCluster().getMembers().size());
+        first = coordinator(members.get(0));
+        second = coordinator(members.get(1));
+    }
+
+    @After
+    public void tearDown() {
+        first.shutdown();
+        second.shutdown();
+        members.forEach(member -> member.getLifecycleService().terminate());
+    }
+
+    @Test
+    public void periodIsSplitInAdjacentWindows() {
+        List<SyncPartition> partitions = SyncPartitionCoordinator.split(1000, 2001, 4);
+
+        Assert.assertEquals(4, partitions.size());
+        Assert.assertNull(partitions.get(0).getFrom());
+        Assert.assertEquals(1250, partitions.get(0).getTo());
+        for (int i = 1; i < partitions.size(); i++) {
+            Assert.assertEquals(i, partitions.get(i).getIndex());
+            Assert.assertEquals(4, partitions.get(i).getCount());
+            Assert.assertEquals(Long.valueOf(partitions.get(i - 1).getTo()), partitions.get(i).getFrom());
+        }
+        Assert.assertEquals(2001, partitions.get(3).getTo());
+    }
+
+    @Test
+    public void singlePartitionIfSyncToBeforeWindowStart() {
+        List<SyncPartition> partitions = SyncPartitionCoordinator.split(1000, 500, 4);
+
+        Assert.assertEquals(1, partitions.size());
+        Assert.assertNull(partitions.get(0).getFrom());
+        Assert.assertEquals(500, partitions.get(0).getTo());
+    }
+
+    @Test
+    public void startIsRejectedWhileSyncInProgressUntilTimeout() throws Exception {
+        List<SyncPartition> partitions = first.start(5000, false);
+        Assert.assertEquals(3, partitions.size());
+        Assert.assertEquals(3, queue().size());
+
+        Assert.assertNull(second.start(6000, false));
+
+        Thread.sleep(SYNC_TIMEOUT + 100);
+        Assert.assertNotNull(second.start(7000, false));
+        Assert.assertEquals(7000, first.getSyncTo());
+        Assert.assertEquals(3, queue().size());
+    }
+
+    @Test
+    public void lastCompletedPartitionPassesBarrier() {
+        List<SyncPartition> partitions = first.start(5000, false);
+
+        Assert.assertFalse(first.complete(partitions.get(0), false));
+        Assert.assertFalse(second.complete(partitions.get(2), false));
+        Assert.assertTrue(second.complete(partitions.get(1), false));
+        Assert.assertFalse(first.hasFailures());
+        Assert.assertEquals(5000, second.getSyncTo());
+    }
+
+    @Test
+    public void partitionIsOnlyCompletedOnce() {
+        List<SyncPartition> partitions = first.start(5000, false);
+
+        Assert.assertFalse(first.complete(partitions.get(0), false));
+        Assert.assertFalse(second.complete(partitions.get(0), false));
+        Assert.assertFalse(first.complete(partitions.get(1), false));
+        Assert.assertTrue(first.complete(partitions.get(2), false));
+    }
+
+    @Test
+    public void failedPartitionIsRequeuedUntilCompletedAsFailure() throws Exception {
+        first.start(5000, false);
+        SyncPartition partition = queue().poll();
+        queue().clear();
+        Assert.assertTrue(second.claim(partition));
+
+        partition.setAttempts(1);
+        partition.setNextBatchUrl("http://tiamat/page/2");
+        second.requeue(partition);
+
+        SyncPartition requeued = queue().poll(1, TimeUnit.SECONDS);
+        Assert.assertEquals(partition.getIndex(), requeued.getIndex());
+        Assert.assertEquals(1, requeued.getAttempts());
+        Assert.assertEquals("http://tiamat/page/2", requeued.getNextBatchUrl());
+        Assert.assertNull(requeued.getMemberId());
+
+        Assert.assertTrue(first.claim(requeued));
+        Assert.assertFalse(first.complete(requeued, true));
+        Assert.assertTrue(first.hasFailures());
+
+        // Completed partition is neither requeued nor claimed again
+        first.requeue(requeued);
+        Assert.assertTrue(queue().isEmpty());
+        Assert.assertFalse(second.claim(requeued));
+    }
+
+    @Test
+    public void delayedRequeueDoesNotBlockCaller() throws Exception {
+        first.start(5000, false);
+        SyncPartition partition = queue().poll();
+        queue().clear();
+        Assert.assertTrue(first.claim(partition));
+
+        long start = System.currentTimeMillis();
+        first.requeueLater(partition, 500);
+        Assert.assertTrue(System.currentTimeMillis() - start < 500);
+        Assert.assertTrue(queue().isEmpty());
+
+        SyncPartition requeued = queue().poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(requeued);
+        Assert.assertTrue(System.currentTimeMillis() - start >= 500);
+        Assert.assertEquals(partition.getIndex(), requeued.getIndex());
+    }
+
+    @Test
+    public void partitionOfPreviousSyncIsDiscarded() throws Exception {
+        first.start(5000, false);
+        SyncPartition stale = queue().poll();
+
+        Thread.sleep(SYNC_TIMEOUT + 100);
+        first.start(6000, false);
+
+        Assert.assertFalse(second.claim(stale));
+    }
+
+    @Test
+    public void partitionsAndPermitsOfLeavingMemberAreReleased() throws Exception {
+        first.init();
+        first.start(5000, false);
+        SyncPartition partition = queue().poll();
+        queue().clear();
+        Assert.assertTrue(second.claim(partition));
+        Assert.assertNotNull(second.tryAcquirePermit(0));
+        Assert.assertNotNull(second.tryAcquirePermit(0));
+        Assert.assertNull(first.tryAcquirePermit(0));
+
+        members.get(1).getLifecycleService().terminate();
+
+        SyncPartition requeued = queue().poll(10, TimeUnit.SECONDS);
+        Assert.assertNotNull(requeued);
+        Assert.assertEquals(partition.getIndex(), requeued.getIndex());
+        Assert.assertNull(requeued.getMemberId());
+        Assert.assertNotNull(first.tryAcquirePermit(5000));
+        Assert.assertNotNull(first.tryAcquirePermit(5000));
+    }
+
+    @Test
+    public void permitsAreLimitedAndReleased() throws Exception {
+        first.start(5000, false);
+        Integer permit = first.tryAcquirePermit(0);
+        Assert.assertNotNull(second.tryAcquirePermit(0));
+        Assert.assertNull(second.tryAcquirePermit(200));
+
+        first.releasePermit(permit);
+        Assert.assertNotNull(second.tryAcquirePermit(0));
+    }
+
+    @Test
+    public void postsOutsidePartitionsTakePermitsWhenPartitioningIsEnabled() throws Exception {
+        Exchange singletonPost = new DefaultExchange(new DefaultCamelContext());
+        first.acquireChouettePermit(singletonPost);
+        Assert.assertNotNull(second.tryAcquirePermit(0));
+        try {
+            second.acquireChouettePermit(new DefaultExchange(new DefaultCamelContext()));
+            Assert.fail("Expected post to be rejected when all permits are taken");
+        } catch (ChouetteBusyException expected) {
+        }
+
+        first.releaseChouettePermit(singletonPost);
+        Assert.assertNotNull(second.tryAcquirePermit(0));
+    }
+
+    @Test
+    public void postsAreNotLimitedWhenPartitioningIsDisabled() throws Exception {
+        SyncPartitionCoordinator disabled = new SyncPartitionCoordinator(() -> members.get(0), 0, Instant.ofEpochMilli(1000), 1, 0, SYNC_TIMEOUT);
+        Exchange post = new DefaultExchange(new DefaultCamelContext());
+        disabled.acquireChouettePermit(post);
+        disabled.acquireChouettePermit(new DefaultExchange(new DefaultCamelContext()));
+
+        Assert.assertNotNull(first.tryAcquirePermit(0));
+        disabled.shutdown();
+    }
+
+    private IQueue<SyncPartition> queue() {
+        return members.get(0).getQueue(SyncPartitionCoordinator.PARTITION_QUEUE_NAME);
+    }
+
+    private static SyncPartitionCoordinator coordinator(HazelcastInstance hazelcast) {
+        return new SyncPartitionCoordinator(() -> hazelcast, 3, Instant.ofEpochMilli(1000), 2, 1000, SYNC_TIMEOUT);
+    }
+
+    private static Config config(String clusterName) {
+        Config config = new Config();
+        config.getGroupConfig().setName(clusterName);
+        config.setProperty("hazelcast.phone.home.enabled", "false");
+        config.setProperty("hazelcast.wait.seconds.before.join", "0");
+        JoinConfig join = config.getNetworkConfig().getJoin();
+        join.getMulticastConfig().setEnabled(false);
+        join.getTcpIpConfig().setEnabled(true).addMember("127.0.0.1");
+        return config;
+    }
+}
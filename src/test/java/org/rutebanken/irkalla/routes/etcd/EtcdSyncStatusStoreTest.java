@@ -0,0 +1,282 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.etcd;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.rutebanken.irkalla.IrkallaException;
+import org.rutebanken.irkalla.domain.SyncJob;
+import org.rutebanken.irkalla.routes.syncstatus.StaleFencingTokenException;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.test.web.client.ResponseCreator;
+import org.springframework.web.client.RestTemplate;
+
+import java.time.Instant;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.content;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.method;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withStatus;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+public class EtcdSyncStatusStoreTest {
+
+    private static final String URL = "http://etcd/v2/keys/sync";
+
+    private static final String JOB_URL = "http://etcd/v2/keys/sync_job";
+
+    private static final long SYNCED_UNTIL = Instant.parse("2018-01-01T10:00:00Z").toEpochMilli();
+
+    private MockRestServiceServer etcd;
+
+    private EtcdSyncStatusStore syncStatus;
+
+    @Before
+    public void setUp() {
+        RestTemplate restTemplate = new RestTemplate();
+        etcd = MockRestServiceServer.bindTo(restTemplate).build();
+        syncStatus = new EtcdSyncStatusStore(restTemplate, URL, JOB_URL, 0, 1);
+    }
+
+    @Test
+    public void statusIsReadFromEtcdOnlyOnce() {
+        etcd.expect(requestTo(URL)).andExpect(method(HttpMethod.GET)).andRespond(node("2018-01-01T10:00:00.000Z", 7));
+
+        Assert.assertEquals(SYNCED_UNTIL, syncStatus.getSyncedUntil().longValue());
+        Assert.assertEquals(SYNCED_UNTIL, syncStatus.getSyncedUntil().longValue());
+        etcd.verify();
+    }
+
+    @Test
+    public void missingStatusIsNull() {
+        etcd.expect(requestTo(URL)).andExpect(method(HttpMethod.GET)).andRespond(withStatus(HttpStatus.NOT_FOUND));
+
+        Assert.assertNull(syncStatus.getSyncedUntil());
+        etcd.verify();
+    }
+
+    @Test
+    public void writeIsConditionalOnLastKnownIndexAndUpdatesCache() {
+        etcd.expect(requestTo(URL)).andExpect(method(HttpMethod.GET)).andRespond(node("2018-01-01T10:00:00.000Z", 7));
+        etcd.expect(requestTo(URL)).andExpect(method(HttpMethod.PUT))
+                .andExpect(content().string(containsString("prevIndex=7")))
+                .andRespond(node("2018-01-01T11:00:00.000Z", 8));
+        etcd.expect(requestTo(URL)).andExpect(method(HttpMethod.PUT))
+                .andExpect(content().string(containsString("prevIndex=8")))
+                .andRespond(node("2018-01-01T12:00:00.000Z", 9));
+
+        syncStatus.setSyncedUntil(Instant.ofEpochMilli(SYNCED_UNTIL).plusSeconds(3600).toEpochMilli());
+        syncStatus.setSyncedUntil(SYNCED_UNTIL + 7200 * 1000);
+
+        Assert.assertEquals(SYNCED_UNTIL + 7200 * 1000, syncStatus.getSyncedUntil().longValue());
+        etcd.verify();
+    }
+
+    @Test
+    public void firstWriteRequiresKeyToBeAbsent() {
+        etcd.expect(requestTo(URL)).andExpect(method(HttpMethod.GET)).andRespond(withStatus(HttpStatus.NOT_FOUND));
+        etcd.expect(requestTo(URL)).andExpect(method(HttpMethod.PUT))
+                .andExpect(content().string(containsString("prevExist=false")))
+                .andRespond(node("2018-01-01T10:00:00.000Z", 1));
+
+        syncStatus.setSyncedUntil(SYNCED_UNTIL);
+        etcd.verify();
+    }
+
+    @Test
+    public void conflictReloadsAndRetriesWhenOwnStatusIsNewer() {
+        etcd.expect(requestTo(URL)).andExpect(method(HttpMethod.GET)).andRespond(node("2018-01-01T10:00:00.000Z", 7));
+        etcd.expect(requestTo(URL)).andExpect(method(HttpMethod.PUT)).andRespond(withStatus(HttpStatus.PRECONDITION_FAILED));
+        etcd.expect(requestTo(URL)).andExpect(method(HttpMethod.GET)).andRespond(node("2018-01-01T10:30:00.000Z", 9));
+        etcd.expect(requestTo(URL)).andExpect(method(HttpMethod.PUT))
+                .andExpect(content().string(containsString("prevIndex=9")))
+                .andRespond(node("2018-01-01T11:00:00.000Z", 10));
+
+        syncStatus.setSyncedUntil(SYNCED_UNTIL + 3600 * 1000);
+        etcd.verify();
+    }
+
+    @Test
+    public void conflictKeepsNewerStatusFromOtherMember() {
+        etcd.expect(requestTo(URL)).andExpect(method(HttpMethod.GET)).andRespond(node("2018-01-01T10:00:00.000Z", 7));
+        etcd.expect(requestTo(URL)).andExpect(method(HttpMethod.PUT)).andRespond(withStatus(HttpStatus.PRECONDITION_FAILED));
+        etcd.expect(requestTo(URL)).andExpect(method(HttpMethod.GET)).andRespond(node("2018-01-01T12:00:00.000Z", 9));
+
+        syncStatus.setSyncedUntil(SYNCED_UNTIL + 3600 * 1000);
+
+        Assert.assertEquals(SYNCED_UNTIL + 7200 * 1000, syncStatus.getSyncedUntil().longValue());
+        etcd.verify();
+    }
+
+    @Test(expected = IrkallaException.class)
+    public void repeatedConflictsFail() {
+        etcd.expect(requestTo(URL)).andExpect(method(HttpMethod.GET)).andRespond(node("2018-01-01T10:00:00.000Z", 7));
+        etcd.expect(requestTo(URL)).andExpect(method(HttpMethod.PUT)).andRespond(withStatus(HttpStatus.PRECONDITION_FAILED));
+        etcd.expect(requestTo(URL)).andExpect(method(HttpMethod.GET)).andRespond(node("2018-01-01T10:00:00.000Z", 8));
+        etcd.expect(requestTo(URL)).andExpect(method(HttpMethod.PUT)).andRespond(withStatus(HttpStatus.PRECONDITION_FAILED));
+
+        syncStatus.setSyncedUntil(SYNCED_UNTIL + 3600 * 1000);
+    }
+
+    @Test
+    public void invalidatedStatusIsReloaded() {
+        etcd.expect(requestTo(URL)).andExpect(method(HttpMethod.GET)).andRespond(node("2018-01-01T10:00:00.000Z", 7));
+        etcd.expect(requestTo(URL)).andExpect(method(HttpMethod.GET)).andRespond(node("2018-01-01T12:00:00.000Z", 9));
+
+        syncStatus.getSyncedUntil();
+        syncStatus.invalidate();
+
+        Assert.assertEquals(SYNCED_UNTIL + 7200 * 1000, syncStatus.getSyncedUntil().longValue());
+        etcd.verify();
+    }
+
+    @Test
+    public void fencingTokenIsStoredWithStatus() {
+        etcd.expect(requestTo(URL)).andExpect(method(HttpMethod.GET)).andRespond(node("2018-01-01T10:00:00.000Z;5", 7));
+        etcd.expect(requestTo(URL)).andExpect(method(HttpMethod.PUT))
+                .andExpect(content().string(containsString("%3B6")))
+                .andExpect(content().string(containsString("prevIndex=7")))
+                .andRespond(node("2018-01-01T11:00:00.000Z;6", 8));
+
+        syncStatus.setSyncedUntil(SYNCED_UNTIL + 3600 * 1000, 6L);
+
+        Assert.assertEquals(SYNCED_UNTIL + 3600 * 1000, syncStatus.getSyncedUntil().longValue());
+        etcd.verify();
+    }
+
+    @Test(expected = StaleFencingTokenException.class)
+    public void writeOfDeposedLeaderIsRejected() {
+        etcd.expect(requestTo(URL)).andExpect(method(HttpMethod.GET)).andRespond(node("2018-01-01T10:00:00.000Z;6", 7));
+
+        syncStatus.setSyncedUntil(SYNCED_UNTIL + 3600 * 1000, 5L);
+    }
+
+    @Test
+    public void writeOfDeposedLeaderIsRejectedWhenNewLeaderWritesConcurrently() {
+        etcd.expect(requestTo(URL)).andExpect(method(HttpMethod.GET)).andRespond(node("2018-01-01T10:00:00.000Z;5", 7));
+        etcd.expect(requestTo(URL)).andExpect(method(HttpMethod.PUT)).andRespond(withStatus(HttpStatus.PRECONDITION_FAILED));
+        etcd.expect(requestTo(URL)).andExpect(method(HttpMethod.GET)).andRespond(node("2018-01-01T10:30:00.000Z;6", 8));
+
+        try {
+            syncStatus.setSyncedUntil(SYNCED_UNTIL + 3600 * 1000, 5L);
+            Assert.fail("Expected write with older fencing token to be rejected");
+        } catch (StaleFencingTokenException e) {
+            Assert.assertEquals(SYNCED_UNTIL + 1800 * 1000, syncStatus.getSyncedUntil().longValue());
+        }
+        etcd.verify();
+    }
+
+    @Test
+    public void syncJobIsStoredAsJson() {
+        etcd.expect(requestTo(JOB_URL)).andExpect(method(HttpMethod.GET)).andRespond(withStatus(HttpStatus.NOT_FOUND));
+        etcd.expect(requestTo(JOB_URL)).andExpect(method(HttpMethod.PUT))
+                .andExpect(content().string(containsString("jobId")))
+                .andExpect(content().string(containsString("prevExist=false")))
+                .andRespond(withSuccess("{\"action\":\"set\",\"node\":{\"key\":\"/sync_job\",\"modifiedIndex\":3}}", MediaType.APPLICATION_JSON));
+        etcd.expect(requestTo(JOB_URL)).andExpect(method(HttpMethod.GET))
+                .andRespond(jobNode("{\\\"jobId\\\":\\\"1\\\",\\\"pagesCompleted\\\":3}", 3));
+
+        SyncJob job = new SyncJob();
+        job.setJobId("1");
+        job.setPagesCompleted(3);
+        syncStatus.setSyncJob(job);
+
+        SyncJob stored = syncStatus.getSyncJob();
+        Assert.assertEquals("1", stored.getJobId());
+        Assert.assertEquals(3, stored.getPagesCompleted());
+        etcd.verify();
+    }
+
+    @Test
+    public void missingSyncJobIsNullAndDeleteOfMissingJobIsIgnored() {
+        etcd.expect(requestTo(JOB_URL)).andExpect(method(HttpMethod.GET)).andRespond(withStatus(HttpStatus.NOT_FOUND));
+        etcd.expect(requestTo(JOB_URL)).andExpect(method(HttpMethod.GET)).andRespond(withStatus(HttpStatus.NOT_FOUND));
+
+        Assert.assertNull(syncStatus.getSyncJob());
+        syncStatus.deleteSyncJob();
+        etcd.verify();
+    }
+
+    @Test
+    public void syncJobIsDeletedConditionallyOnLastKnownIndex() {
+        etcd.expect(requestTo(JOB_URL)).andExpect(method(HttpMethod.GET))
+                .andRespond(jobNode("{\\\"jobId\\\":\\\"1\\\"}", 3));
+        etcd.expect(requestTo(JOB_URL + "?prevIndex=3")).andExpect(method(HttpMethod.DELETE)).andRespond(withSuccess());
+
+        syncStatus.deleteSyncJob();
+        etcd.verify();
+    }
+
+    @Test
+    public void syncJobDeletedWithFencingTokenIsReplacedByDeletedMarker() {
+        etcd.expect(requestTo(JOB_URL)).andExpect(method(HttpMethod.GET))
+                .andRespond(jobNode("{\\\"jobId\\\":\\\"1\\\",\\\"fencingToken\\\":5}", 3));
+        etcd.expect(requestTo(JOB_URL)).andExpect(method(HttpMethod.PUT))
+                .andExpect(content().string(containsString("fencingToken")))
+                .andExpect(content().string(containsString("prevIndex=3")))
+                .andRespond(withSuccess("{\"action\":\"set\",\"node\":{\"key\":\"/sync_job\",\"modifiedIndex\":4}}", MediaType.APPLICATION_JSON));
+        etcd.expect(requestTo(JOB_URL)).andExpect(method(HttpMethod.GET))
+                .andRespond(jobNode("{\\\"fencingToken\\\":6}", 4));
+
+        syncStatus.deleteSyncJob(6L);
+
+        Assert.assertNull(syncStatus.getSyncJob());
+        etcd.verify();
+    }
+
+    @Test(expected = StaleFencingTokenException.class)
+    public void syncJobWriteOfDeposedLeaderIsRejected() {
+        etcd.expect(requestTo(JOB_URL)).andExpect(method(HttpMethod.GET))
+                .andRespond(jobNode("{\\\"fencingToken\\\":6}", 4));
+
+        SyncJob job = new SyncJob();
+        job.setJobId("1");
+        syncStatus.setSyncJob(job, 5L);
+    }
+
+    @Test
+    public void syncJobWriteOfDeposedLeaderIsRejectedWhenNewLeaderWritesConcurrently() {
+        etcd.expect(requestTo(JOB_URL)).andExpect(method(HttpMethod.GET))
+                .andRespond(jobNode("{\\\"jobId\\\":\\\"1\\\",\\\"fencingToken\\\":5}", 3));
+        etcd.expect(requestTo(JOB_URL)).andExpect(method(HttpMethod.PUT)).andRespond(withStatus(HttpStatus.PRECONDITION_FAILED));
+        etcd.expect(requestTo(JOB_URL)).andExpect(method(HttpMethod.GET))
+                .andRespond(jobNode("{\\\"jobId\\\":\\\"2\\\",\\\"fencingToken\\\":6}", 4));
+
+        SyncJob job = new SyncJob();
+        job.setJobId("1");
+        try {
+            syncStatus.setSyncJob(job, 5L);
+            Assert.fail("Expected write with older fencing token to be rejected");
+        } catch (StaleFencingTokenException e) {
+            etcd.verify();
+        }
+    }
+
+    private static ResponseCreator node(String value, long modifiedIndex) {
+        return withSuccess("{\"action\":\"get\",\"node\":{\"key\":\"/sync\",\"value\":\"" + value + "\",\"modifiedIndex\":" + modifiedIndex + "}}",
+                MediaType.APPLICATION_JSON);
+    }
+
+    private static ResponseCreator jobNode(String json, long modifiedIndex) {
+        return withSuccess("{\"action\":\"get\",\"node\":{\"key\":\"/sync_job\",\"value\":\"" + json + "\",\"modifiedIndex\":" + modifiedIndex + "}}",
+                MediaType.APPLICATION_JSON);
+    }
+}
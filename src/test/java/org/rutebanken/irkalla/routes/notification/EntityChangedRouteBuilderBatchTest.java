@@ -0,0 +1,106 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.notification;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.camel.EndpointInject;
+import org.apache.camel.Produce;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.AdviceWithRouteBuilder;
+import org.apache.camel.component.mock.MockEndpoint;
+import org.junit.Assert;
+import org.junit.Test;
+import org.rutebanken.irkalla.IrkallaException;
+import org.rutebanken.irkalla.domain.EntityChangedEvent;
+import org.rutebanken.irkalla.routes.RouteBuilderIntegrationTestBase;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.TestPropertySource;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+@TestPropertySource(properties = {"changelog.batch.enabled=true", "changelog.batch.size=3", "changelog.batch.max.wait=500"})
+public class EntityChangedRouteBuilderBatchTest extends RouteBuilderIntegrationTestBase {
+
+    @Produce(uri = "activemq:queue:IrkallaChangelogQueue")
+    protected ProducerTemplate changelog;
+
+    @EndpointInject(uri = "mock:handleStopPlacesChanged")
+    protected MockEndpoint handleStopPlacesChanged;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Test
+    public void testBatchIsFlushedWhenFullAndAfterMaxWait() throws Exception {
+        interceptHandleStopPlacesChanged();
+        context.start();
+
+        handleStopPlacesChanged.expectedMessageCount(2);
+        handleStopPlacesChanged.setAssertPeriod(2000);
+
+        for (int i = 1; i <= 4; i++) {
+            changelog.sendBody(event(i));
+        }
+
+        handleStopPlacesChanged.assertIsSatisfied();
+        Assert.assertEquals(3, entityIds(handleStopPlacesChanged, 0).size());
+        Assert.assertEquals(1, entityIds(handleStopPlacesChanged, 1).size());
+        Assert.assertEquals(2, meterRegistry.get("irkalla.changelog.batch.commit.time").tag("outcome", "committed").timer().count());
+    }
+
+    @Test
+    public void testWholeBatchIsRolledBackAndRedelivered() throws Exception {
+        interceptHandleStopPlacesChanged();
+        context.start();
+
+        handleStopPlacesChanged.expectedMessageCount(2);
+        handleStopPlacesChanged.setResultWaitTime(20000);
+        handleStopPlacesChanged.whenExchangeReceived(1, e -> {
+            throw new IrkallaException("Failed to process batch");
+        });
+
+        for (int i = 1; i <= 3; i++) {
+            changelog.sendBody(event(i));
+        }
+
+        handleStopPlacesChanged.assertIsSatisfied();
+        Assert.assertEquals(entityIds(handleStopPlacesChanged, 0), entityIds(handleStopPlacesChanged, 1));
+        Assert.assertEquals(3, entityIds(handleStopPlacesChanged, 1).size());
+        Assert.assertEquals(1, meterRegistry.get("irkalla.changelog.batch.commit.time").tag("outcome", "rolledback").timer().count());
+    }
+
+    private void interceptHandleStopPlacesChanged() throws Exception {
+        context.getRouteDefinition("entity-changed-batch-route").adviceWith(context, new AdviceWithRouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                interceptSendToEndpoint("direct:handleStopPlacesChanged")
+                        .skipSendToOriginalEndpoint().to("mock:handleStopPlacesChanged");
+            }
+        });
+    }
+
+    private List<String> entityIds(MockEndpoint mock, int index) {
+        List<EntityChangedEvent> events = mock.getReceivedExchanges().get(index).getIn().getBody(List.class);
+        return events.stream().map(EntityChangedEvent::getEntityId).sorted().collect(Collectors.toList());
+    }
+
+    private String event(int id) {
+        return "{\"msgId\":\"" + id + "\",\"entityType\":\"STOP_PLACE\",\"entityId\":\"NSR:StopPlace:" + id + "\",\"entityVersion\":1,\"crudAction\":\"UPDATE\"}";
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.singleton;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.JoinConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Leadership of balanced singleton routes across an embedded cluster of two Hazelcast members.
+ */
+public class SingletonRouteBalancerClusterTest {
+
+    private static final List<String> ROUTES = Arrays.asList("route-a", "route-b", "route-c", "route-d", "route-e", "route-f");
+
+    private static final long INTERVAL = 100;
+
+    private static final long HANDOVER_TIMEOUT = 1000;
+
+    private List<HazelcastInstance> members = new ArrayList<>();
+
+    private List<SingletonRouteBalancer> balancers = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        String clusterName = "irkalla-balancer-test-" + UUID.randomUUID();
+        members.add(Hazelcast.newHazelcastInstance(config(clusterName)));
+        members.add(Hazelcast.newHazelcastInstance(config(clusterName)));
+        Assert.assertEquals(2, members.get(0).getCluster().getMembers().size());
+    }
+
+    @After
+    public void tearDown() {
+        balancers.forEach(SingletonRouteBalancer::shutdown);
+        members.forEach(member -> member.getLifecycleService().terminate());
+    }
+
+    @Test
+    public void everyRouteIsLedByAssignedMemberOnly() throws Exception {
+        List<Map<String, TestPolicy>> policies = Arrays.asList(registerAll(members.get(0)), registerAll(members.get(1)));
+        Map<String, String> assignment = SingletonRouteBalancer.assign(ROUTES, Arrays.asList(uuid(0), uuid(1)));
+
+        await(() -> ROUTES.stream().allMatch(route -> policies.get(memberIndex(assignment.get(route))).get(route).isLeader()));
+
+        for (String route : ROUTES) {
+            int assigned = memberIndex(assignment.get(route));
+            Assert.assertFalse(route + " led by both members", policies.get(1 - assigned).get(route).isLeader());
+        }
+    }
+
+    @Test
+    public void routesOfLeavingMemberAreTakenOverWithoutMovingOthers() throws Exception {
+        Map<String, TestPolicy> remaining = registerAll(members.get(0));
+        registerAll(members.get(1));
+        Map<String, String> assignment = SingletonRouteBalancer.assign(ROUTES, Arrays.asList(uuid(0), uuid(1)));
+        await(() -> ROUTES.stream().filter(route -> uuid(0).equals(assignment.get(route))).allMatch(route -> remaining.get(route).isLeader()));
+
+        balancers.get(1).shutdown();
+        members.get(1).getLifecycleService().terminate();
+
+        await(() -> remaining.values().stream().allMatch(TestPolicy::isLeader));
+        for (TestPolicy policy : remaining.values()) {
+            Assert.assertEquals(policy.getRouteId() + " resigned", 0, policy.resigned);
+        }
+    }
+
+    @Test
+    public void routeLockedByOtherMemberIsLedWhenReleasedAndHandoverIsTimed() throws Exception {
+        String route = routeAssignedTo(0);
+        IMap<String, String> lockMap = members.get(1).getMap("lockMap");
+        lockMap.lock(route);
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        SingletonRouteBalancer balancer = balancer(members.get(0), meterRegistry);
+        TestPolicy policy = new TestPolicy(balancer, route);
+        balancer.register(policy);
+
+        Thread.sleep(5 * INTERVAL);
+        Assert.assertFalse(policy.isLeader());
+
+        lockMap.unlock(route);
+        await(policy::isLeader);
+        Assert.assertTrue(lockMap.isLocked(route));
+
+        Timer handover = meterRegistry.find("irkalla.singleton.route.handover").tag("route", route).timer();
+        Assert.assertNotNull(handover);
+        Assert.assertEquals(1, handover.count());
+        Assert.assertTrue(handover.totalTime(TimeUnit.MILLISECONDS) >= 5 * INTERVAL);
+    }
+
+    @Test
+    public void unregisteredRouteIsResignedAndUnlocked() throws Exception {
+        String route = routeAssignedTo(0);
+        SingletonRouteBalancer balancer = balancer(members.get(0), new SimpleMeterRegistry());
+        TestPolicy policy = new TestPolicy(balancer, route);
+        balancer.register(policy);
+        await(policy::isLeader);
+
+        balancer.unregister(policy);
+
+        IMap<String, String> lockMap = members.get(1).getMap("lockMap");
+        await(() -> !policy.isLeader() && !lockMap.isLocked(route));
+        Assert.assertEquals(1, policy.resigned);
+    }
+
+    private Map<String, TestPolicy> registerAll(HazelcastInstance member) {
+        SingletonRouteBalancer balancer = balancer(member, new SimpleMeterRegistry());
+        Map<String, TestPolicy> policies = new HashMap<>();
+        for (String route : ROUTES) {
+            TestPolicy policy = new TestPolicy(balancer, route);
+            policies.put(route, policy);
+            balancer.register(policy);
+        }
+        return policies;
+    }
+
+    private SingletonRouteBalancer balancer(HazelcastInstance member, SimpleMeterRegistry meterRegistry) {
+        SingletonRouteBalancer balancer = new SingletonRouteBalancer(member, meterRegistry, INTERVAL, HANDOVER_TIMEOUT);
+        balancers.add(balancer);
+        return balancer;
+    }
+
+    /**
+     * Route id assigned to the given member in the two member cluster.
+     */
+    private String routeAssignedTo(int index) {
+        List<String> memberIds = Arrays.asList(uuid(0), uuid(1));
+        for (int i = 0; ; i++) {
+            String route = "route-" + i;
+            if (uuid(index).equals(SingletonRouteBalancer.assign(Arrays.asList(route), memberIds).get(route))) {
+                return route;
+            }
+        }
+    }
+
+    private String uuid(int index) {
+        return members.get(index).getCluster().getLocalMember().getUuid();
+    }
+
+    private int memberIndex(String uuid) {
+        return uuid(0).equals(uuid) ? 0 : 1;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (!condition.getAsBoolean()) {
+            Assert.assertTrue("Condition not met in time", System.currentTimeMillis() - start < 10000);
+            Thread.sleep(INTERVAL / 2);
+        }
+    }
+
+    private static Config config(String clusterName) {
+        Config config = new Config();
+        config.getGroupConfig().setName(clusterName);
+        config.setProperty("hazelcast.phone.home.enabled", "false");
+        config.setProperty("hazelcast.wait.seconds.before.join", "0");
+        JoinConfig join = config.getNetworkConfig().getJoin();
+        join.getMulticastConfig().setEnabled(false);
+        join.getTcpIpConfig().setEnabled(true).addMember("127.0.0.1");
+        return config;
+    }
+
+    /**
+     * Policy recording leadership instead of starting and stopping a route consumer.
+     */
+    private static class TestPolicy extends BalancedSingletonRoutePolicy {
+
+        private final String routeId;
+
+        private volatile boolean leader;
+
+        private volatile int resigned;
+
+        TestPolicy(SingletonRouteBalancer balancer, String routeId) {
+            super(balancer);
+            this.routeId = routeId;
+        }
+
+        @Override
+        public String getRouteId() {
+            return routeId;
+        }
+
+        @Override
+        public boolean isLeader() {
+            return leader;
+        }
+
+        @Override
+        void startLeading() {
+            leader = true;
+        }
+
+        @Override
+        void stopLeading() {
+            leader = false;
+            resigned++;
+        }
+    }
+}
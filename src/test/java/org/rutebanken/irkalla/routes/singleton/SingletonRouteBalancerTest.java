@@ -0,0 +1,88 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.singleton;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class SingletonRouteBalancerTest {
+
+    private static final List<String> ROUTES = Arrays.asList("route-e", "route-a", "route-d", "route-b", "route-c");
+
+    private static final List<String> MANY_ROUTES = new ArrayList<>();
+
+    static {
+        for (int i = 0; i < 100; i++) {
+            MANY_ROUTES.add("route-" + i);
+        }
+    }
+
+    @Test
+    public void routesAreSpreadAcrossMembers() {
+        Map<String, String> assignment = SingletonRouteBalancer.assign(MANY_ROUTES, Arrays.asList("m2", "m1", "m3"));
+
+        Assert.assertEquals(MANY_ROUTES.size(), assignment.size());
+        for (String member : Arrays.asList("m1", "m2", "m3")) {
+            Assert.assertTrue(Collections.frequency(assignment.values(), member) > 20);
+        }
+    }
+
+    @Test
+    public void assignmentDoesNotDependOnOrder() {
+        Map<String, String> assignment = SingletonRouteBalancer.assign(ROUTES, Arrays.asList("m1", "m2", "m3"));
+
+        Assert.assertEquals(assignment, SingletonRouteBalancer.assign(Arrays.asList("route-c", "route-b", "route-a", "route-e", "route-d"),
+                Arrays.asList("m3", "m1", "m2")));
+    }
+
+    @Test
+    public void onlyRoutesOfRemovedMemberAreReassigned() {
+        Map<String, String> before = SingletonRouteBalancer.assign(MANY_ROUTES, Arrays.asList("m1", "m2", "m3"));
+        Map<String, String> after = SingletonRouteBalancer.assign(MANY_ROUTES, Arrays.asList("m1", "m3"));
+
+        Assert.assertFalse(after.containsValue("m2"));
+        Assert.assertEquals(MANY_ROUTES.size(), after.size());
+        for (String route : MANY_ROUTES) {
+            if (!"m2".equals(before.get(route))) {
+                Assert.assertEquals(before.get(route), after.get(route));
+            }
+        }
+    }
+
+    @Test
+    public void onlyRoutesAssignedToAddedMemberAreMoved() {
+        Map<String, String> before = SingletonRouteBalancer.assign(MANY_ROUTES, Arrays.asList("m1", "m2"));
+        Map<String, String> after = SingletonRouteBalancer.assign(MANY_ROUTES, Arrays.asList("m1", "m2", "m3"));
+
+        Assert.assertTrue(after.containsValue("m3"));
+        for (String route : MANY_ROUTES) {
+            if (!"m3".equals(after.get(route))) {
+                Assert.assertEquals(before.get(route), after.get(route));
+            }
+        }
+    }
+
+    @Test
+    public void noAssignmentWithoutMembers() {
+        Assert.assertTrue(SingletonRouteBalancer.assign(ROUTES, Collections.emptyList()).isEmpty());
+    }
+}
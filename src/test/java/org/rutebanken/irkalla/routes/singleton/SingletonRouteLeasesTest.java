@@ -0,0 +1,161 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.singleton;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.JoinConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Leases across an embedded cluster of two Hazelcast members.
+ */
+public class SingletonRouteLeasesTest {
+
+    private static final String KEY = "chouette-synchronize-stop-places-control-route";
+
+    private static final long TTL = 2000;
+
+    private List<HazelcastInstance> members = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        String clusterName = "irkalla-lease-test-" + UUID.randomUUID();
+        members.add(Hazelcast.newHazelcastInstance(config(clusterName)));
+        members.add(Hazelcast.newHazelcastInstance(config(clusterName)));
+        Assert.assertEquals(2, members.get(0).getCluster().getMembers().size());
+    }
+
+    @After
+    public void tearDown() {
+        members.forEach(member -> member.getLifecycleService().terminate());
+    }
+
+    @Test
+    public void onlyOneMemberHoldsLease() {
+        SingletonRouteLeases first = new SingletonRouteLeases(members.get(0));
+        SingletonRouteLeases second = new SingletonRouteLeases(members.get(1));
+
+        Lease lease = first.tryAcquire(KEY, TTL);
+        Assert.assertNotNull(lease);
+        Assert.assertNull(second.tryAcquire(KEY, TTL));
+        Assert.assertTrue(second.isCurrent(lease));
+    }
+
+    @Test
+    public void renewalKeepsFencingToken() {
+        SingletonRouteLeases leases = new SingletonRouteLeases(members.get(0));
+
+        Lease lease = leases.tryAcquire(KEY, TTL);
+        Lease renewed = leases.renew(lease, TTL);
+
+        Assert.assertNotNull(renewed);
+        Assert.assertEquals(lease.getToken(), renewed.getToken());
+        Assert.assertTrue(leases.isCurrent(lease));
+    }
+
+    @Test
+    public void leaseIsTakenOverWithinTtlWhenLeaderDies() throws Exception {
+        SingletonRouteLeases first = new SingletonRouteLeases(members.get(0));
+        SingletonRouteLeases second = new SingletonRouteLeases(members.get(1));
+        Lease firstLease = first.tryAcquire(KEY, TTL);
+
+        long killed = System.currentTimeMillis();
+        members.get(0).getLifecycleService().terminate();
+
+        Lease secondLease = null;
+        while (secondLease == null && System.currentTimeMillis() - killed < 5 * TTL) {
+            Thread.sleep(TTL / 20);
+            secondLease = second.tryAcquire(KEY, TTL);
+        }
+        long failover = System.currentTimeMillis() - killed;
+
+        Assert.assertNotNull(secondLease);
+        Assert.assertTrue("Failover took " + failover + " ms", failover < TTL + TTL / 2);
+        Assert.assertTrue(secondLease.getToken() > firstLease.getToken());
+    }
+
+    @Test
+    public void pausedLeaderIsFenced() throws Exception {
+        SingletonRouteLeases first = new SingletonRouteLeases(members.get(0));
+        SingletonRouteLeases second = new SingletonRouteLeases(members.get(1));
+        Lease firstLease = first.tryAcquire(KEY, TTL);
+
+        // First leader does not renew in time, e.g. due to a long GC pause
+        Thread.sleep(TTL + 100);
+        Lease secondLease = second.tryAcquire(KEY, TTL);
+        Assert.assertNotNull(secondLease);
+
+        Assert.assertNull(first.renew(firstLease, TTL));
+        Assert.assertFalse(first.isCurrent(firstLease));
+        Assert.assertTrue(first.isCurrent(secondLease));
+    }
+
+    @Test
+    public void unassignedMemberOnlyTakesOverExpiredLease() throws Exception {
+        SingletonRouteLeases first = new SingletonRouteLeases(members.get(0));
+        SingletonRouteLeases second = new SingletonRouteLeases(members.get(1));
+
+        // Free lease is left for the assigned member
+        Assert.assertNull(second.tryTakeOver(KEY, TTL));
+        Lease firstLease = first.tryAcquire(KEY, TTL);
+        Assert.assertNotNull(firstLease);
+        Assert.assertNull(second.tryTakeOver(KEY, TTL));
+
+        Thread.sleep(TTL + 100);
+        Lease secondLease = second.tryTakeOver(KEY, TTL);
+        Assert.assertNotNull(secondLease);
+        Assert.assertTrue(secondLease.getToken() > firstLease.getToken());
+    }
+
+    @Test
+    public void leaseIsHandedOverWhenRequested() {
+        SingletonRouteLeases first = new SingletonRouteLeases(members.get(0));
+        SingletonRouteLeases second = new SingletonRouteLeases(members.get(1));
+        Lease firstLease = first.tryAcquire(KEY, TTL);
+
+        Assert.assertNull(second.tryAcquire(KEY, TTL));
+        second.requestHandover(KEY, TTL);
+        Assert.assertFalse(second.isHandoverRequested(KEY));
+        Assert.assertTrue(first.isHandoverRequested(KEY));
+
+        first.release(firstLease);
+        Lease secondLease = second.tryAcquire(KEY, TTL);
+        Assert.assertNotNull(secondLease);
+        second.clearHandoverRequest(KEY);
+        Assert.assertFalse(first.isHandoverRequested(KEY));
+        Assert.assertFalse(first.isCurrent(firstLease));
+    }
+
+    private static Config config(String clusterName) {
+        Config config = new Config();
+        config.getGroupConfig().setName(clusterName);
+        config.setProperty("hazelcast.phone.home.enabled", "false");
+        config.setProperty("hazelcast.wait.seconds.before.join", "0");
+        JoinConfig join = config.getNetworkConfig().getJoin();
+        join.getMulticastConfig().setEnabled(false);
+        join.getTcpIpConfig().setEnabled(true).addMember("127.0.0.1");
+        return config;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.syncstatus;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rutebanken.irkalla.domain.SyncJob;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class FileSyncStatusStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void statusIsNullWhenNoFileExists() {
+        Assert.assertNull(new FileSyncStatusStore(folder.getRoot().toPath().resolve("status"), 10).getSyncedUntil());
+    }
+
+    @Test
+    public void lastWrittenStatusSurvivesRestart() {
+        Path file = folder.getRoot().toPath().resolve("dir/status");
+        FileSyncStatusStore store = new FileSyncStatusStore(file, 10);
+        store.setSyncedUntil(1000);
+        store.setSyncedUntil(2000);
+
+        Assert.assertEquals(2000, store.getSyncedUntil().longValue());
+        Assert.assertEquals(2000, new FileSyncStatusStore(file, 10).getSyncedUntil().longValue());
+    }
+
+    @Test
+    public void partiallyWrittenLastEntryIsIgnored() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("status");
+        new FileSyncStatusStore(file, 10).setSyncedUntil(1000);
+        Files.write(file, "20".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        Assert.assertEquals(1000, new FileSyncStatusStore(file, 10).getSyncedUntil().longValue());
+    }
+
+    @Test
+    public void entryWrittenAfterPartiallyWrittenEntryIsReadAfterRestart() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("status");
+        new FileSyncStatusStore(file, 10).setSyncedUntil(1000);
+        Files.write(file, "17".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        new FileSyncStatusStore(file, 10).setSyncedUntil(2000);
+
+        Assert.assertEquals(2000, new FileSyncStatusStore(file, 10).getSyncedUntil().longValue());
+        Assert.assertEquals(2, Files.readAllLines(file).size());
+    }
+
+    @Test
+    public void fileIsCompactedWhenMaxEntriesIsReached() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("status");
+        FileSyncStatusStore store = new FileSyncStatusStore(file, 3);
+        for (int i = 1; i <= 4; i++) {
+            store.setSyncedUntil(i * 1000);
+        }
+
+        Assert.assertEquals(1, Files.readAllLines(file).size());
+        Assert.assertEquals(4000, new FileSyncStatusStore(file, 3).getSyncedUntil().longValue());
+    }
+
+    @Test
+    public void writeOfDeposedLeaderIsRejectedAfterRestart() {
+        Path file = folder.getRoot().toPath().resolve("status");
+        FileSyncStatusStore store = new FileSyncStatusStore(file, 10);
+        store.setSyncedUntil(1000, 5L);
+        store.setSyncedUntil(2000, 6L);
+
+        FileSyncStatusStore restarted = new FileSyncStatusStore(file, 10);
+        try {
+            restarted.setSyncedUntil(3000, 5L);
+            Assert.fail("Expected write with older fencing token to be rejected");
+        } catch (StaleFencingTokenException e) {
+            Assert.assertEquals(2000, new FileSyncStatusStore(file, 10).getSyncedUntil().longValue());
+        }
+
+        restarted.setSyncedUntil(3000, 6L);
+        restarted.setSyncedUntil(4000);
+        Assert.assertEquals(4000, new FileSyncStatusStore(file, 10).getSyncedUntil().longValue());
+    }
+
+    @Test
+    public void syncJobSurvivesRestartUntilDeleted() {
+        Path file = folder.getRoot().toPath().resolve("status");
+        FileSyncStatusStore store = new FileSyncStatusStore(file, 10);
+        Assert.assertNull(store.getSyncJob());
+
+        SyncJob job = new SyncJob();
+        job.setJobId("1");
+        job.setPagesCompleted(3);
+        store.setSyncJob(job);
+
+        SyncJob stored = new FileSyncStatusStore(file, 10).getSyncJob();
+        Assert.assertEquals("1", stored.getJobId());
+        Assert.assertEquals(3, stored.getPagesCompleted());
+
+        store.deleteSyncJob();
+        Assert.assertNull(new FileSyncStatusStore(file, 10).getSyncJob());
+    }
+
+    @Test
+    public void syncJobOfDeposedLeaderIsRejectedAfterRestart() {
+        Path file = folder.getRoot().toPath().resolve("status");
+        FileSyncStatusStore store = new FileSyncStatusStore(file, 10);
+        SyncJob job = new SyncJob();
+        job.setJobId("1");
+        store.setSyncJob(job, 5L);
+        store.deleteSyncJob(6L);
+
+        FileSyncStatusStore restarted = new FileSyncStatusStore(file, 10);
+        Assert.assertNull(restarted.getSyncJob());
+        try {
+            restarted.setSyncJob(job, 5L);
+            Assert.fail("Expected write with older fencing token to be rejected");
+        } catch (StaleFencingTokenException e) {
+            Assert.assertNull(restarted.getSyncJob());
+        }
+
+        restarted.setSyncJob(job, 6L);
+        Assert.assertEquals("1", new FileSyncStatusStore(file, 10).getSyncJob().getJobId());
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.syncstatus;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.rutebanken.irkalla.domain.SyncJob;
+
+import java.util.UUID;
+
+public class HazelcastSyncStatusStoreTest {
+
+    private HazelcastInstance member1;
+
+    private HazelcastInstance member2;
+
+    @Before
+    public void setUp() {
+        String group = "irkalla-sync-status-test-" + UUID.randomUUID();
+        member1 = Hazelcast.newHazelcastInstance(config(group));
+        member2 = Hazelcast.newHazelcastInstance(config(group));
+    }
+
+    @After
+    public void tearDown() {
+        member1.getLifecycleService().terminate();
+        member2.getLifecycleService().terminate();
+    }
+
+    @Test
+    public void statusIsNullUntilWritten() {
+        Assert.assertNull(new HazelcastSyncStatusStore(member1).getSyncedUntil());
+    }
+
+    @Test
+    public void statusWrittenByOneMemberIsSeenByOther() throws Exception {
+        HazelcastSyncStatusStore store1 = new HazelcastSyncStatusStore(member1);
+        HazelcastSyncStatusStore store2 = new HazelcastSyncStatusStore(member2);
+
+        store1.setSyncedUntil(1000);
+
+        Assert.assertEquals(1000, store1.getSyncedUntil().longValue());
+        awaitSyncedUntil(store2, 1000);
+        Assert.assertEquals(1000, new HazelcastSyncStatusStore(member2).getSyncedUntil().longValue());
+    }
+
+    @Test
+    public void statusSurvivesMemberLeaving() {
+        new HazelcastSyncStatusStore(member1).setSyncedUntil(1000);
+
+        member1.getLifecycleService().terminate();
+
+        Assert.assertEquals(1000, new HazelcastSyncStatusStore(member2).getSyncedUntil().longValue());
+    }
+
+    @Test
+    public void writeOfDeposedLeaderIsRejected() throws Exception {
+        HazelcastSyncStatusStore deposedLeader = new HazelcastSyncStatusStore(member1);
+        HazelcastSyncStatusStore newLeader = new HazelcastSyncStatusStore(member2);
+        deposedLeader.setSyncedUntil(1000, 5L);
+
+        newLeader.setSyncedUntil(2000, 6L);
+        try {
+            deposedLeader.setSyncedUntil(3000, 5L);
+            Assert.fail("Expected write with older fencing token to be rejected");
+        } catch (StaleFencingTokenException e) {
+            awaitSyncedUntil(deposedLeader, 2000);
+        }
+
+        newLeader.setSyncedUntil(4000, 6L);
+        Assert.assertEquals(4000, new HazelcastSyncStatusStore(member1).getSyncedUntil().longValue());
+    }
+
+    @Test
+    public void syncJobIsSharedUntilDeleted() {
+        HazelcastSyncStatusStore store1 = new HazelcastSyncStatusStore(member1);
+        HazelcastSyncStatusStore store2 = new HazelcastSyncStatusStore(member2);
+        Assert.assertNull(store2.getSyncJob());
+
+        SyncJob job = new SyncJob();
+        job.setJobId("1");
+        job.setPagesCompleted(3);
+        store1.setSyncJob(job);
+
+        SyncJob stored = store2.getSyncJob();
+        Assert.assertEquals("1", stored.getJobId());
+        Assert.assertEquals(3, stored.getPagesCompleted());
+
+        store2.deleteSyncJob();
+        Assert.assertNull(store1.getSyncJob());
+    }
+
+    @Test
+    public void syncJobOfDeposedLeaderIsRejected() {
+        HazelcastSyncStatusStore deposedLeader = new HazelcastSyncStatusStore(member1);
+        HazelcastSyncStatusStore newLeader = new HazelcastSyncStatusStore(member2);
+        SyncJob job = new SyncJob();
+        job.setJobId("1");
+        deposedLeader.setSyncJob(job, 5L);
+
+        newLeader.deleteSyncJob(6L);
+        try {
+            deposedLeader.setSyncJob(job, 5L);
+            Assert.fail("Expected write with older fencing token to be rejected");
+        } catch (StaleFencingTokenException e) {
+            Assert.assertNull(newLeader.getSyncJob());
+        }
+        try {
+            deposedLeader.deleteSyncJob(5L);
+            Assert.fail("Expected delete with older fencing token to be rejected");
+        } catch (StaleFencingTokenException e) {
+            Assert.assertNull(newLeader.getSyncJob());
+        }
+
+        newLeader.setSyncJob(job, 6L);
+        Assert.assertEquals("1", deposedLeader.getSyncJob().getJobId());
+    }
+
+    private static void awaitSyncedUntil(SyncStatusStore store, long expected) throws InterruptedException {
+        for (int i = 0; i < 50 && !Long.valueOf(expected).equals(store.getSyncedUntil()); i++) {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(expected, store.getSyncedUntil().longValue());
+    }
+
+    private static Config config(String group) {
+        Config config = new Config();
+        config.getGroupConfig().setName(group);
+        config.setProperty("hazelcast.phone.home.enabled", "false");
+        config.setProperty("hazelcast.wait.seconds.before.join", "0");
+        config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+        config.getNetworkConfig().getJoin().getTcpIpConfig().setEnabled(true).addMember("127.0.0.1");
+        return config;
+    }
+}
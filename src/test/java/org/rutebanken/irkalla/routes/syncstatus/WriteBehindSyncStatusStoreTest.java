@@ -0,0 +1,126 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.syncstatus;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.rutebanken.irkalla.domain.SyncJob;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class WriteBehindSyncStatusStoreTest {
+
+    @Test
+    public void writesAreServedFromMemoryAndCoalesced() {
+        RecordingStore delegate = new RecordingStore();
+        WriteBehindSyncStatusStore store = new WriteBehindSyncStatusStore(delegate, 60000);
+
+        store.setSyncedUntil(1000);
+        store.setSyncedUntil(2000);
+
+        Assert.assertEquals(2000, store.getSyncedUntil().longValue());
+        Assert.assertTrue(delegate.writes.isEmpty());
+
+        store.flush();
+        Assert.assertEquals(1, delegate.writes.size());
+        Assert.assertEquals(2000, delegate.writes.get(0).longValue());
+    }
+
+    @Test
+    public void statusIsReadFromUnderlyingStoreUntilWritten() {
+        RecordingStore delegate = new RecordingStore();
+        delegate.setSyncedUntil(1000);
+        WriteBehindSyncStatusStore store = new WriteBehindSyncStatusStore(delegate, 60000);
+
+        Assert.assertEquals(1000, store.getSyncedUntil().longValue());
+    }
+
+    @Test
+    public void failedWriteIsRetried() {
+        RecordingStore delegate = new RecordingStore();
+        delegate.failures = 1;
+        WriteBehindSyncStatusStore store = new WriteBehindSyncStatusStore(delegate, 60000);
+        store.setSyncedUntil(1000);
+
+        store.flush();
+        Assert.assertTrue(delegate.writes.isEmpty());
+
+        store.flush();
+        Assert.assertEquals(1000, delegate.getSyncedUntil().longValue());
+    }
+
+    @Test
+    public void pendingWriteIsFlushedOnClose() {
+        RecordingStore delegate = new RecordingStore();
+        WriteBehindSyncStatusStore store = new WriteBehindSyncStatusStore(delegate, 60000);
+        store.setSyncedUntil(1000);
+
+        store.close();
+        Assert.assertEquals(1000, delegate.getSyncedUntil().longValue());
+    }
+
+    @Test
+    public void writeOfDeposedLeaderIsDroppedAndStatusReloaded() {
+        RecordingStore delegate = new RecordingStore();
+        delegate.setSyncedUntil(2000, 6L);
+        WriteBehindSyncStatusStore store = new WriteBehindSyncStatusStore(delegate, 60000);
+        store.setSyncedUntil(3000, 5L);
+
+        store.flush();
+        Assert.assertEquals(1, delegate.writes.size());
+        Assert.assertEquals(2000, store.getSyncedUntil().longValue());
+
+        store.flush();
+        Assert.assertEquals(1, delegate.writes.size());
+    }
+
+    @Test
+    public void syncJobIsWrittenThrough() {
+        RecordingStore delegate = new RecordingStore();
+        WriteBehindSyncStatusStore store = new WriteBehindSyncStatusStore(delegate, 60000);
+        SyncJob job = new SyncJob();
+        job.setJobId("1");
+
+        store.setSyncJob(job);
+        Assert.assertSame(job, delegate.getSyncJob());
+
+        store.deleteSyncJob();
+        Assert.assertNull(delegate.getSyncJob());
+    }
+
+    private static class RecordingStore extends InMemorySyncStatusStore {
+
+        private List<Long> writes = new ArrayList<>();
+
+        private int failures;
+
+        @Override
+        public Long getSyncedUntil() {
+            return writes.isEmpty() ? null : writes.get(writes.size() - 1);
+        }
+
+        @Override
+        public void setSyncedUntil(long syncedUntil, Long fencingToken) {
+            if (failures > 0) {
+                failures--;
+                throw new RuntimeException("Write failed");
+            }
+            super.setSyncedUntil(syncedUntil, fencingToken);
+            writes.add(syncedUntil);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.tiamat;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.rutebanken.irkalla.domain.CrudAction;
+import org.rutebanken.irkalla.routes.tiamat.graphql.GraphQLStopPlaceDao;
+import org.rutebanken.irkalla.routes.tiamat.graphql.StopPlaceVersionCache;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.content;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.method;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+public class GraphqlStopPlaceDaoBatchTest {
+
+    private static final String TIAMAT_URL = "http://tiamat";
+
+    private static final String GRAPHQL_PATH = "/services/stop_places/graphql";
+
+    private MockRestServiceServer tiamat;
+
+    private GraphQLStopPlaceDao stopPlaceDao;
+
+    private MeterRegistry meterRegistry;
+
+    @Before
+    public void setUp() {
+        RestTemplate restTemplate = new RestTemplate();
+        tiamat = MockRestServiceServer.bindTo(restTemplate).build();
+
+        meterRegistry = new SimpleMeterRegistry();
+        stopPlaceDao = new GraphQLStopPlaceDao(restTemplate, new StopPlaceVersionCache(meterRegistry, 100, 60));
+        ReflectionTestUtils.setField(stopPlaceDao, "tiamatUrl", TIAMAT_URL);
+        ReflectionTestUtils.setField(stopPlaceDao, "tiamatGraphQLPath", GRAPHQL_PATH);
+        ReflectionTestUtils.setField(stopPlaceDao, "batchSize", 2);
+    }
+
+    @Test
+    public void batchOfStopPlacesIsLookedUpWithOneAliasedQueryPerBatch() {
+        tiamat.expect(requestTo(TIAMAT_URL + GRAPHQL_PATH))
+                .andExpect(method(HttpMethod.POST))
+                .andExpect(content().string(containsString("current1: stopPlace(id: $id1")))
+                .andRespond(withSuccess("{\"data\":{" +
+                                                "\"current0\":[{\"id\":\"NSR:StopPlace:1\",\"version\":2}]," +
+                                                "\"previous0\":[{\"id\":\"NSR:StopPlace:1\",\"version\":1}]," +
+                                                "\"current1\":[]," +
+                                                "\"previous1\":[]}}", MediaType.APPLICATION_JSON));
+
+        tiamat.expect(requestTo(TIAMAT_URL + GRAPHQL_PATH))
+                .andExpect(method(HttpMethod.POST))
+                .andRespond(withSuccess("{\"data\":{" +
+                                                "\"current0\":[{\"id\":\"NSR:StopPlace:3\",\"version\":1}]}}", MediaType.APPLICATION_JSON));
+
+        List<StopPlaceChange> changes = stopPlaceDao.getStopPlaceChanges(Arrays.asList(
+                new StopPlaceChangeKey(CrudAction.UPDATE, "NSR:StopPlace:1", 2L),
+                new StopPlaceChangeKey(CrudAction.UPDATE, "NSR:StopPlace:2", 5L),
+                new StopPlaceChangeKey(CrudAction.CREATE, "NSR:StopPlace:3", 1L)));
+
+        tiamat.verify();
+
+        // Unknown stop place is left out
+        Assert.assertEquals(2, changes.size());
+
+        Assert.assertEquals("NSR:StopPlace:1", changes.get(0).getCurrent().id);
+        Assert.assertEquals(CrudAction.UPDATE, changes.get(0).getCrudAction());
+        Assert.assertNotNull(changes.get(0).getPreviousVersion());
+
+        Assert.assertEquals("NSR:StopPlace:3", changes.get(1).getCurrent().id);
+        Assert.assertEquals(CrudAction.CREATE, changes.get(1).getCrudAction());
+        Assert.assertNull(changes.get(1).getPreviousVersion());
+    }
+
+    @Test
+    public void previousVersionFoundInCacheIsNotQueried() {
+        tiamat.expect(requestTo(TIAMAT_URL + GRAPHQL_PATH))
+                .andRespond(withSuccess("{\"data\":{" +
+                                                "\"current0\":[{\"id\":\"NSR:StopPlace:1\",\"version\":2}]," +
+                                                "\"previous0\":[{\"id\":\"NSR:StopPlace:1\",\"version\":1}]}}", MediaType.APPLICATION_JSON));
+
+        tiamat.expect(requestTo(TIAMAT_URL + GRAPHQL_PATH))
+                .andExpect(content().string(not(containsString("previous0"))))
+                .andRespond(withSuccess("{\"data\":{" +
+                                                "\"current0\":[{\"id\":\"NSR:StopPlace:1\",\"version\":3}]}}", MediaType.APPLICATION_JSON));
+
+        stopPlaceDao.getStopPlaceChange(CrudAction.UPDATE, "NSR:StopPlace:1", 2L);
+        StopPlaceChange change = stopPlaceDao.getStopPlaceChange(CrudAction.UPDATE, "NSR:StopPlace:1", 3L);
+
+        // Looking up same change again should be served from cache alone
+        stopPlaceDao.getStopPlaceChange(CrudAction.UPDATE, "NSR:StopPlace:1", 3L);
+
+        tiamat.verify();
+        Assert.assertEquals(Long.valueOf(3), change.getCurrent().version);
+        Assert.assertEquals(Long.valueOf(2), change.getPreviousVersion().version);
+        Assert.assertEquals(3, meterRegistry.get("cache.gets").tag("result", "hit").functionCounter().count(), 0);
+    }
+
+    @Test
+    public void previousVersionIsOnlyQueriedForUpdates() {
+        tiamat.expect(requestTo(TIAMAT_URL + GRAPHQL_PATH))
+                .andExpect(content().string(not(containsString("previous0"))))
+                .andRespond(withSuccess("{\"data\":{" +
+                                                "\"current0\":[{\"id\":\"NSR:StopPlace:1\",\"version\":4}]}}", MediaType.APPLICATION_JSON));
+
+        StopPlaceChange change = stopPlaceDao.getStopPlaceChange(CrudAction.REMOVE, "NSR:StopPlace:1", 4L);
+
+        tiamat.verify();
+        Assert.assertEquals(CrudAction.REMOVE, change.getCrudAction());
+        Assert.assertNull(change.getPreviousVersion());
+    }
+
+    @Test
+    public void previousVersionIsQueriedWithoutFieldsNotUsedForComparison() {
+        tiamat.expect(requestTo(TIAMAT_URL + GRAPHQL_PATH))
+                .andExpect(content().string(containsString("previous0: stopPlace(id: $id0, size: $size, version: $previousVersion0) {id version name")))
+                .andRespond(withSuccess("{\"data\":{" +
+                                                "\"current0\":[{\"id\":\"NSR:StopPlace:1\",\"version\":2}]," +
+                                                "\"previous0\":[{\"id\":\"NSR:StopPlace:1\",\"version\":1}]}}", MediaType.APPLICATION_JSON));
+
+        StopPlaceChange change = stopPlaceDao.getStopPlaceChange(CrudAction.UPDATE, "NSR:StopPlace:1", 2L);
+
+        tiamat.verify();
+        Assert.assertEquals(Long.valueOf(1), change.getPreviousVersion().version);
+    }
+}
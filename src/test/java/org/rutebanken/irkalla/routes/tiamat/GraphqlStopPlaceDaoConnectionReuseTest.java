@@ -0,0 +1,112 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.tiamat;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.rutebanken.irkalla.config.HttpClientConfig;
+import org.rutebanken.irkalla.domain.CrudAction;
+import org.rutebanken.irkalla.metrics.OutboundCallMetrics;
+import org.rutebanken.irkalla.routes.tiamat.graphql.GraphQLStopPlaceDao;
+import org.rutebanken.irkalla.routes.tiamat.graphql.StopPlaceVersionCache;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class GraphqlStopPlaceDaoConnectionReuseTest {
+
+    private static final String GRAPHQL_PATH = "/services/stop_places/graphql";
+
+    private static final String RESPONSE = "{\"data\":{" +
+                                                   "\"current0\":[{\"id\":\"NSR:StopPlace:1\",\"version\":2}]," +
+                                                   "\"previous0\":[{\"id\":\"NSR:StopPlace:1\",\"version\":1}]}}";
+
+    private HttpServer tiamat;
+
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+
+    private final AtomicInteger requestCount = new AtomicInteger();
+
+    private CloseableHttpClient httpClient;
+
+    @Before
+    public void setUp() throws IOException {
+        tiamat = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        tiamat.createContext(GRAPHQL_PATH, exchange -> {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            requestCount.incrementAndGet();
+            StreamUtils.drain(exchange.getRequestBody());
+
+            byte[] rsp = RESPONSE.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, rsp.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(rsp);
+            }
+        });
+        tiamat.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (httpClient != null) {
+            httpClient.close();
+        }
+        tiamat.stop(0);
+    }
+
+    @Test
+    public void connectionIsReusedAcrossLookups() {
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        HttpClientConfig httpClientConfig = new HttpClientConfig();
+        httpClient = httpClientConfig.tiamatHttpClient(meterRegistry, 5, 1000, 1000, 1000, 30000);
+        String tiamatUrl = "http://localhost:" + tiamat.getAddress().getPort();
+        OutboundCallMetrics outboundCallMetrics = new OutboundCallMetrics(meterRegistry, tiamatUrl, "http://chouette", "http://etcd");
+
+        // No caching, every lookup should hit Tiamat
+        StopPlaceVersionCache noCache = new StopPlaceVersionCache(meterRegistry, 0, 60);
+        GraphQLStopPlaceDao stopPlaceDao = new GraphQLStopPlaceDao(httpClientConfig.tiamatRestTemplate(httpClient, outboundCallMetrics), noCache);
+        ReflectionTestUtils.setField(stopPlaceDao, "tiamatUrl", tiamatUrl);
+        ReflectionTestUtils.setField(stopPlaceDao, "tiamatGraphQLPath", GRAPHQL_PATH);
+
+        for (int i = 0; i < 5; i++) {
+            StopPlaceChange stopPlaceChange = stopPlaceDao.getStopPlaceChange(CrudAction.UPDATE, "NSR:StopPlace:1", 2L);
+            Assert.assertNotNull(stopPlaceChange);
+            Assert.assertNotNull(stopPlaceChange.getPreviousVersion());
+        }
+
+        Assert.assertEquals(5, requestCount.get());
+        Assert.assertEquals("All lookups should be served over the same connection", 1, clientPorts.size());
+
+        Assert.assertEquals(0, meterRegistry.get("irkalla.http.client.pool.leased").tag("client", "tiamat").gauge().value(), 0);
+        Assert.assertEquals(1, meterRegistry.get("irkalla.http.client.pool.available").tag("client", "tiamat").gauge().value(), 0);
+        Assert.assertEquals(5, meterRegistry.get("irkalla.http.client.pool.max").tag("client", "tiamat").gauge().value(), 0);
+        Assert.assertEquals(5, meterRegistry.get(OutboundCallMetrics.METER_NAME).tag("target", "tiamat").tag("call", "graphql").tag("status", "200").timer().count());
+    }
+}
@@ -15,20 +15,39 @@
 
 package org.rutebanken.irkalla.routes.tiamat;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.Assert;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.rutebanken.irkalla.domain.CrudAction;
 import org.rutebanken.irkalla.routes.tiamat.graphql.GraphQLStopPlaceDao;
+import org.rutebanken.irkalla.routes.tiamat.graphql.StopPlaceVersionCache;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.web.client.RestTemplate;
 
 @RunWith(SpringRunner.class)
-@SpringBootTest(classes = GraphQLStopPlaceDao.class)
+@SpringBootTest(classes = {GraphQLStopPlaceDao.class, StopPlaceVersionCache.class, GraphqlStopPlaceDaoTest.RestTemplateConfig.class})
 public class GraphqlStopPlaceDaoTest {
 
+    @Configuration
+    static class RestTemplateConfig {
+        @Bean
+        public RestTemplate tiamatRestTemplate() {
+            return new RestTemplate();
+        }
+
+        @Bean
+        public MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+    }
+
     @Autowired
     private GraphQLStopPlaceDao stopPlaceDao;
 
@@ -0,0 +1,94 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.tiamat;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.rutebanken.irkalla.domain.CrudAction;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class StopPlaceChangeCoalescerTest {
+
+    @Test
+    public void updatesAreCoalescedToNewestVersionComparedWithVersionBeforeOldest() {
+        List<StopPlaceChangeKey> coalesced = StopPlaceChangeCoalescer.coalesce(Arrays.asList(
+                key(CrudAction.UPDATE, "NSR:StopPlace:1", 4),
+                key(CrudAction.UPDATE, "NSR:StopPlace:2", 7),
+                key(CrudAction.UPDATE, "NSR:StopPlace:1", 3),
+                key(CrudAction.UPDATE, "NSR:StopPlace:1", 5)));
+
+        Assert.assertEquals(2, coalesced.size());
+        assertKey(coalesced.get(0), CrudAction.UPDATE, "NSR:StopPlace:1", 5, 2);
+        assertKey(coalesced.get(1), CrudAction.UPDATE, "NSR:StopPlace:2", 7, 6);
+    }
+
+    @Test
+    public void createFollowedByUpdatesIsCoalescedToCreate() {
+        List<StopPlaceChangeKey> coalesced = StopPlaceChangeCoalescer.coalesce(Arrays.asList(
+                key(CrudAction.CREATE, "NSR:StopPlace:1", 1),
+                key(CrudAction.UPDATE, "NSR:StopPlace:1", 2)));
+
+        Assert.assertEquals(1, coalesced.size());
+        Assert.assertEquals(CrudAction.CREATE, coalesced.get(0).getCrudAction());
+        Assert.assertEquals(Long.valueOf(2), coalesced.get(0).getVersion());
+    }
+
+    @Test
+    public void updateFollowedByRemoveIsCoalescedToRemove() {
+        List<StopPlaceChangeKey> coalesced = StopPlaceChangeCoalescer.coalesce(Arrays.asList(
+                key(CrudAction.UPDATE, "NSR:StopPlace:1", 2),
+                key(CrudAction.REMOVE, "NSR:StopPlace:1", 3)));
+
+        Assert.assertEquals(1, coalesced.size());
+        Assert.assertEquals(CrudAction.REMOVE, coalesced.get(0).getCrudAction());
+        Assert.assertEquals(Long.valueOf(3), coalesced.get(0).getVersion());
+    }
+
+    @Test
+    public void createFollowedByRemoveIsCoalescedToRemove() {
+        List<StopPlaceChangeKey> coalesced = StopPlaceChangeCoalescer.coalesce(Arrays.asList(
+                key(CrudAction.CREATE, "NSR:StopPlace:1", 1),
+                key(CrudAction.UPDATE, "NSR:StopPlace:1", 2),
+                key(CrudAction.REMOVE, "NSR:StopPlace:1", 3)));
+
+        Assert.assertEquals(1, coalesced.size());
+        Assert.assertEquals(CrudAction.REMOVE, coalesced.get(0).getCrudAction());
+        Assert.assertEquals(Long.valueOf(3), coalesced.get(0).getVersion());
+    }
+
+    @Test
+    public void anyDeleteIsCoalescedToDelete() {
+        List<StopPlaceChangeKey> coalesced = StopPlaceChangeCoalescer.coalesce(Arrays.asList(
+                key(CrudAction.UPDATE, "NSR:StopPlace:1", 2),
+                key(CrudAction.DELETE, "NSR:StopPlace:1", 2)));
+
+        Assert.assertEquals(1, coalesced.size());
+        Assert.assertEquals(CrudAction.DELETE, coalesced.get(0).getCrudAction());
+    }
+
+    private void assertKey(StopPlaceChangeKey key, CrudAction crudAction, String id, long version, long previousVersion) {
+        Assert.assertEquals(crudAction, key.getCrudAction());
+        Assert.assertEquals(id, key.getId());
+        Assert.assertEquals(Long.valueOf(version), key.getVersion());
+        Assert.assertEquals(Long.valueOf(previousVersion), key.getPreviousVersion());
+    }
+
+    private StopPlaceChangeKey key(CrudAction crudAction, String id, long version) {
+        return new StopPlaceChangeKey(crudAction, id, version);
+    }
+}
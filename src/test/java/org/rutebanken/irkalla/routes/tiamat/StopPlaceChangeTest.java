@@ -100,6 +100,38 @@ public class StopPlaceChangeTest {
         Assert.assertEquals("(4.0,2.0)", change.getNewValue());
     }
 
+    @Test
+    public void coordinateChangeBelowThresholdGivesMinorChange() {
+        // 0.00001 degrees latitude is approx 1.1 metres
+        StopPlace current = stopPlace("stopName", 10.0, 60.00001, "quay1");
+        StopPlace prev = stopPlace("stopName", 10.0, 60.0, "quay1");
+
+        StopPlaceChange change = new StopPlaceChange(CrudAction.UPDATE, current, prev, 2);
+        Assert.assertEquals(StopPlaceChange.StopPlaceUpdateType.MINOR, change.getUpdateType());
+        Assert.assertNull(change.getOldValue());
+        Assert.assertEquals(1.11, change.getCoordinateChangeDistance(), 0.01);
+    }
+
+    @Test
+    public void coordinateChangeAboveThresholdGivesCoordinateChange() {
+        StopPlace current = stopPlace("stopName", 10.0, 60.0001, "quay1");
+        StopPlace prev = stopPlace("stopName", 10.0, 60.0, "quay1");
+
+        StopPlaceChange change = new StopPlaceChange(CrudAction.UPDATE, current, prev, 2);
+        Assert.assertEquals(StopPlaceChange.StopPlaceUpdateType.COORDINATES, change.getUpdateType());
+        Assert.assertEquals(11.1, change.getCoordinateChangeDistance(), 0.1);
+    }
+
+    @Test
+    public void quayMovedBelowThresholdGivesMinorChange() {
+        StopPlace current = stopPlace("stopName", 4, 2, "quay1");
+        current.quays.get(0).geometry = point(4.00001, 2);
+        StopPlace prev = stopPlace("stopName", 4, 2, "quay1");
+
+        StopPlaceChange change = new StopPlaceChange(CrudAction.UPDATE, current, prev, 2);
+        Assert.assertEquals(StopPlaceChange.StopPlaceUpdateType.MINOR, change.getUpdateType());
+    }
+
     @Test
     public void onlyNewQuaysAdded() {
         StopPlace current = stopPlace("stopName", 4, 2, "quay1", "quay2");
@@ -134,6 +166,77 @@ public class StopPlaceChangeTest {
     }
 
 
+    @Test
+    public void onlyQuaysRenamed() {
+        StopPlace current = stopPlace("stopName", 4, 2, "quay1", "quay2", "quay3");
+        current.quays.get(1).name = new Name("newName");
+        current.quays.get(2).name = null;
+        StopPlace prev = stopPlace("stopName", 4, 2, "quay1", "quay2", "quay3");
+
+        StopPlaceChange change = new StopPlaceChange(CrudAction.UPDATE, current, prev);
+        Assert.assertEquals(StopPlaceChange.StopPlaceUpdateType.RENAMED_QUAY, change.getUpdateType());
+        Assert.assertEquals("{quay2=quay2, quay3=quay3}", change.getOldValue());
+        Assert.assertEquals("{quay2=newName, quay3=null}", change.getNewValue());
+    }
+
+    @Test
+    public void onlyQuaysMoved() {
+        StopPlace current = stopPlace("stopName", 4, 2, "quay1", "quay2");
+        current.quays.get(0).geometry = point(4, 3);
+        StopPlace prev = stopPlace("stopName", 4, 2, "quay2", "quay1");
+
+        StopPlaceChange change = new StopPlaceChange(CrudAction.UPDATE, current, prev);
+        Assert.assertEquals(StopPlaceChange.StopPlaceUpdateType.MOVED_QUAY, change.getUpdateType());
+        Assert.assertEquals("{quay1=(4.0,2.0)}", change.getOldValue());
+        Assert.assertEquals("{quay1=(4.0,3.0)}", change.getNewValue());
+    }
+
+    @Test
+    public void quaysMovedAlongWithStopPlaceGivesOnlyCoordinateChange() {
+        StopPlace current = stopPlace("stopName", 4, 2, "quay1", "quay2");
+        current.quays.get(1).geometry = point(4.5, 2.5);
+        StopPlace prev = stopPlace("stopName", 4, 5, "quay1", "quay2");
+        prev.quays.get(1).geometry = point(4.5, 5.5);
+
+        StopPlaceChange change = new StopPlaceChange(CrudAction.UPDATE, current, prev);
+        Assert.assertEquals(StopPlaceChange.StopPlaceUpdateType.COORDINATES, change.getUpdateType());
+        Assert.assertEquals("(4.0,5.0)", change.getOldValue());
+        Assert.assertEquals("(4.0,2.0)", change.getNewValue());
+    }
+
+    @Test
+    public void quayMovedRelativeToMovedStopPlaceGivesMajorChange() {
+        StopPlace current = stopPlace("stopName", 4, 2, "quay1", "quay2");
+        current.quays.get(1).geometry = point(4.5, 2);
+        StopPlace prev = stopPlace("stopName", 4, 5, "quay1", "quay2");
+
+        StopPlaceChange change = new StopPlaceChange(CrudAction.UPDATE, current, prev);
+        Assert.assertEquals(StopPlaceChange.StopPlaceUpdateType.MAJOR, change.getUpdateType());
+        Assert.assertEquals("(4.0,5.0)\n{quay2=(4.0,5.0)}", change.getOldValue());
+        Assert.assertEquals("(4.0,2.0)\n{quay2=(4.5,2.0)}", change.getNewValue());
+    }
+
+    @Test
+    public void reorderedQuaysGivesOnlyMinorChanges() {
+        StopPlace current = stopPlace("stopName", 4, 2, "quay1", "quay2", "quay3");
+        StopPlace prev = stopPlace("stopName", 4, 2, "quay3", "quay1", "quay2");
+
+        StopPlaceChange change = new StopPlaceChange(CrudAction.UPDATE, current, prev);
+        Assert.assertEquals(StopPlaceChange.StopPlaceUpdateType.MINOR, change.getUpdateType());
+    }
+
+    @Test
+    public void quayAddedAndOtherQuayRenamedGivesMajorChange() {
+        StopPlace current = stopPlace("stopName", 4, 2, "quay1", "quay2");
+        current.quays.get(0).name = new Name("newName");
+        StopPlace prev = stopPlace("stopName", 4, 2, "quay1");
+
+        StopPlaceChange change = new StopPlaceChange(CrudAction.UPDATE, current, prev);
+        Assert.assertEquals(StopPlaceChange.StopPlaceUpdateType.MAJOR, change.getUpdateType());
+        Assert.assertEquals("[]\n{quay1=quay1}", change.getOldValue());
+        Assert.assertEquals("[quay2]\n{quay1=newName}", change.getNewValue());
+    }
+
     @Test
     public void majorChanges() {
         StopPlace current = stopPlace("stopName", 4, 2, "quay1");
@@ -197,4 +300,8 @@ public class StopPlaceChangeTest {
 
         return stopPlace;
     }
+
+    private GraphqlGeometry point(double x, double y) {
+        return new GraphqlGeometry("Point", Arrays.asList(Arrays.asList(x, y)));
+    }
 }
@@ -0,0 +1,140 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.routes.tiamat;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TiamatPagePrefetcherTest {
+
+    private CamelContext camelContext;
+
+    private AtomicInteger pageFetches = new AtomicInteger();
+
+    private AtomicInteger page3Fetches = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        camelContext = new DefaultCamelContext();
+        camelContext.addRoutes(new RouteBuilder() {
+            @Override
+            public void configure() {
+                from("direct:page2")
+                        .process(e -> pageFetches.incrementAndGet())
+                        .setHeader(Exchange.HTTP_RESPONSE_CODE, constant(200))
+                        .setHeader("Link", constant("<direct:page3>; rel=\"next\""))
+                        .setBody(constant("page2"));
+                from("direct:page3")
+                        .process(e -> pageFetches.incrementAndGet())
+                        .process(e -> page3Fetches.incrementAndGet())
+                        .setHeader(Exchange.HTTP_RESPONSE_CODE, constant(200))
+                        .setHeader("Link", constant("<direct:page4>; rel=\"next\""))
+                        .setBody(constant("page3"));
+                from("direct:page4")
+                        .process(e -> pageFetches.incrementAndGet())
+                        .setHeader(Exchange.HTTP_RESPONSE_CODE, constant(200))
+                        .removeHeader("Link")
+                        .setBody(constant("page4"));
+            }
+        });
+        camelContext.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        camelContext.stop();
+    }
+
+    @Test
+    public void followingPagesArePrefetchedUpToDepth() {
+        TiamatPagePrefetcher prefetcher = new TiamatPagePrefetcher(camelContext, new SimpleMeterRegistry(), 2, 10000, false);
+
+        Exchange page1 = new DefaultExchange(camelContext);
+        page1.getIn().setHeader("Link", "<direct:page2>; rel=\"next\"");
+        prefetcher.prefetchNext(page1);
+
+        Exchange page2 = new DefaultExchange(camelContext);
+        Assert.assertTrue(prefetcher.usePrefetchedPage(page2, "direct:page2"));
+        Assert.assertEquals("page2", page2.getIn().getBody(String.class));
+        Assert.assertEquals("<direct:page3>; rel=\"next\"", page2.getIn().getHeader("Link"));
+        Assert.assertEquals(200, page2.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE));
+
+        // Page 3 already prefetched, should not be fetched again
+        prefetcher.prefetchNext(page2);
+        Exchange page3 = new DefaultExchange(camelContext);
+        Assert.assertTrue(prefetcher.usePrefetchedPage(page3, "direct:page3"));
+        Assert.assertEquals("page3", page3.getIn().getBody(String.class));
+        Assert.assertEquals(1, page3Fetches.get());
+
+        prefetcher.shutdown();
+    }
+
+    @Test
+    public void prefetchDepthIsKeptAheadWhenUsingPrefetchedPages() throws Exception {
+        TiamatPagePrefetcher prefetcher = new TiamatPagePrefetcher(camelContext, new SimpleMeterRegistry(), 2, 10000, false);
+
+        Exchange page1 = new DefaultExchange(camelContext);
+        page1.getIn().setHeader("Link", "<direct:page2>; rel=\"next\"");
+        prefetcher.prefetchNext(page1);
+
+        Exchange page2 = new DefaultExchange(camelContext);
+        Assert.assertTrue(prefetcher.usePrefetchedPage(page2, "direct:page2"));
+
+        // Page 3 is already being prefetched, page 4 should be requested without waiting for page 3 to be used
+        prefetcher.prefetchNext(page2);
+        for (int i = 0; i < 100 && pageFetches.get() < 3; i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(3, pageFetches.get());
+        Exchange page4 = new DefaultExchange(camelContext);
+        Assert.assertTrue(prefetcher.usePrefetchedPage(page4, "direct:page4"));
+        Assert.assertEquals("page4", page4.getIn().getBody(String.class));
+        Assert.assertEquals(1, page3Fetches.get());
+
+        prefetcher.shutdown();
+    }
+
+    @Test
+    public void pageNotPrefetchedIsNotUsed() {
+        TiamatPagePrefetcher prefetcher = new TiamatPagePrefetcher(camelContext, new SimpleMeterRegistry(), 2, 10000, false);
+
+        Exchange page = new DefaultExchange(camelContext);
+        Assert.assertFalse(prefetcher.usePrefetchedPage(page, "direct:page2"));
+        Assert.assertNull(page.getIn().getBody());
+    }
+
+    @Test
+    public void prefetchingDisabledByDefault() {
+        TiamatPagePrefetcher prefetcher = new TiamatPagePrefetcher(camelContext, new SimpleMeterRegistry(), 0, 10000, false);
+
+        Exchange page1 = new DefaultExchange(camelContext);
+        page1.getIn().setHeader("Link", "<direct:page2>; rel=\"next\"");
+        prefetcher.prefetchNext(page1);
+
+        Assert.assertFalse(prefetcher.usePrefetchedPage(new DefaultExchange(camelContext), "direct:page2"));
+        Assert.assertEquals(0, pageFetches.get());
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package org.rutebanken.irkalla.util;
+
+import org.apache.camel.converter.stream.InputStreamCache;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+public class TransferSizeTest {
+
+    @Test
+    public void uncompressedSizeIsReadFromGzipTrailer() throws Exception {
+        byte[] uncompressed = repeat("<StopPlace/>", 1000).getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = gzip(uncompressed);
+
+        Assert.assertEquals(compressed.length, TransferSize.bytes(compressed));
+        Assert.assertEquals(uncompressed.length, TransferSize.gzipUncompressedBytes(compressed));
+    }
+
+    @Test
+    public void uncompressedSizeIsReadFromGzipTrailerOfStreamCacheWithoutConsumingStream() throws Exception {
+        byte[] uncompressed = repeat("<Quay/>", 5000).getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = gzip(uncompressed);
+        InputStreamCache streamCache = new InputStreamCache(compressed);
+
+        Assert.assertEquals(compressed.length, TransferSize.bytes(streamCache));
+        Assert.assertEquals(uncompressed.length, TransferSize.gzipUncompressedBytes(streamCache));
+        Assert.assertEquals(compressed[0], (byte) streamCache.read());
+    }
+
+    @Test
+    public void unknownBodyGivesUnknownSize() throws Exception {
+        Assert.assertEquals(-1, TransferSize.bytes("text"));
+        Assert.assertEquals(-1, TransferSize.gzipUncompressedBytes(null));
+    }
+
+    private byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bos)) {
+            gzip.write(bytes);
+        }
+        return bos.toByteArray();
+    }
+
+    private String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+}